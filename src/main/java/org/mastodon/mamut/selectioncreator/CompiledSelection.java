@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator;
+
+import java.util.Locale;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.SelectionParser.ExecutionMode;
+import org.mastodon.mamut.selectioncreator.evaluation.BlockOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.ExecutionProfile;
+import org.mastodon.mamut.selectioncreator.evaluation.QueryPlanner;
+import org.mastodon.mamut.selectioncreator.evaluation.ResultCache;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionCompiler;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionEvaluator;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionVariable;
+import org.scijava.parsington.SyntaxTree;
+
+/**
+ * A selection expression parsed once and bound to the features, tags and
+ * morphers of a model, that can be executed many times.
+ * <p>
+ * Instances are created by {@link SelectionParser#compile(String)}. The
+ * binding is redone automatically when the feature model or the tag-set
+ * structure changes. Expressions that cannot be compiled are evaluated from
+ * their cached syntax tree, without re-parsing them, by a stack evaluator
+ * that is part of the binding and keeps the features and tags it resolved.
+ * <p>
+ * A compiled selection can be evaluated concurrently by several threads. Each
+ * thread sees the plan of its own last execution. Like for any read of the
+ * model, the caller is responsible for holding the graph read lock.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class CompiledSelection< V extends Vertex< E >, E extends Edge< V > >
+{
+
+	private final SelectionParser< V, E > parser;
+
+	private final String expression;
+
+	private final SyntaxTree tree;
+
+	private volatile Binding binding;
+
+	/**
+	 * The plan of the last execution, per thread.
+	 */
+	private final ThreadLocal< QueryPlanner.Plan > plan = new ThreadLocal<>();
+
+	CompiledSelection( final SelectionParser< V, E > parser, final String expression, final SyntaxTree tree )
+	{
+		this.parser = parser;
+		this.expression = expression;
+		this.tree = tree;
+		this.binding = bind();
+	}
+
+	/**
+	 * Returns the expression this selection was compiled from.
+	 *
+	 * @return the expression.
+	 */
+	public String getExpression()
+	{
+		return expression;
+	}
+
+	/**
+	 * Evaluates this expression on the current content of the model. The
+	 * result is read from the result cache of the parser if the model did not
+	 * change since the same expression was last evaluated.
+	 *
+	 * @return a new selection variable.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be evaluated. The exception
+	 *             message explains why.
+	 */
+	public SelectionVariable evaluate()
+	{
+		plan.remove();
+		final ResultCache results = parser.results();
+		final ResultCache.Key key = results.key( tree );
+		final SelectionVariable cached = results.get( key );
+		if ( cached != null )
+			return cached;
+		final SelectionVariable result = compute();
+		results.put( key, result );
+		return result;
+	}
+
+	private SelectionVariable compute()
+	{
+		final BlockOperator operator = binding().operator;
+		if ( operator != null && parser.getExecutionMode() == ExecutionMode.BLOCK )
+		{
+			// Plan at each execution, with the statistics available now.
+			final QueryPlanner.Plan p = parser.planner().plan( operator );
+			plan.set( p );
+			try
+			{
+				return parser.executor().execute( p.operator() );
+			}
+			catch ( final IllegalArgumentException iae )
+			{
+				// Let the stack evaluator report the error.
+			}
+		}
+		return interpret();
+	}
+
+	/**
+	 * Evaluates this expression with the stack evaluator. Expressions that
+	 * cannot be compiled, and expressions whose execution failed, end up
+	 * here, so that all the errors are reported the same way.
+	 */
+	private SelectionVariable interpret()
+	{
+		final SelectionEvaluator< V, E > evaluator = binding().evaluator.get();
+		final Object result;
+		try
+		{
+			result = evaluator.evaluate( tree );
+		}
+		catch ( final IllegalArgumentException iae )
+		{
+			final String err = evaluator.getErrorMessage();
+			if ( err != null )
+				throw new IllegalArgumentException( "Incorrect syntax: " + err, iae );
+			throw iae;
+		}
+		if ( result instanceof SelectionVariable )
+			return ( SelectionVariable ) result;
+		throw new IllegalArgumentException( "Got unexpected result: " + result );
+	}
+
+	/**
+	 * Replaces the content of the selection model by the result of the
+	 * evaluation of this expression.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be evaluated. The exception
+	 *             message explains why.
+	 */
+	public void apply()
+	{
+		parser.apply( evaluate() );
+	}
+
+	/**
+	 * Returns the plan of the last evaluation of this expression by the
+	 * calling thread: the operator tree with the operands of 'and' and 'or'
+	 * reordered, and the estimates they were ordered with.
+	 *
+	 * @return the plan, or <code>null</code> if the last evaluation by this
+	 *         thread did not run the block executor, for instance because its
+	 *         result was read from the result cache.
+	 */
+	public QueryPlanner.Plan getPlan()
+	{
+		return plan.get();
+	}
+
+	/**
+	 * Describes how this expression is evaluated on the current content of
+	 * the model: whether its result is in the result cache, and the operator
+	 * tree the block executor runs, with the access path and the estimated
+	 * number of objects selected by each operator.
+	 * <p>
+	 * In analyze mode, the expression is also executed, and the time spent,
+	 * the objects tested and accepted and the bytes allocated by each
+	 * operator are reported. The result is neither applied nor stored in the
+	 * result cache.
+	 *
+	 * @param analyze
+	 *            whether to execute the expression.
+	 * @return the report.
+	 * @throws IllegalArgumentException
+	 *             if the expression is executed and cannot be evaluated.
+	 */
+	public String explain( final boolean analyze )
+	{
+		final StringBuilder str = new StringBuilder( analyze ? "EXPLAIN ANALYZE " : "EXPLAIN " );
+		str.append( expression ).append( '\n' );
+		final ResultCache results = parser.results();
+		str.append( results.contains( results.key( tree ) )
+				? "Result cache: hit, the result is read from the cache.\n"
+				: "Result cache: miss.\n" );
+
+		final BlockOperator operator = binding().operator;
+		if ( operator != null && parser.getExecutionMode() == ExecutionMode.BLOCK )
+		{
+			final QueryPlanner planner = parser.planner();
+			final QueryPlanner.Plan p = planner.plan( operator );
+			if ( !analyze )
+				return str.append( p ).toString();
+			final ExecutionProfile profile = new ExecutionProfile( planner, p );
+			try
+			{
+				profile.execute( parser.executor() );
+				return str.append( profile ).toString();
+			}
+			catch ( final IllegalArgumentException iae )
+			{
+				str.append( "Execution failed: evaluated by the stack evaluator." );
+			}
+		}
+		else
+		{
+			str.append( operator == null
+					? "Not compiled: evaluated by the stack evaluator."
+					: "Evaluated by the stack evaluator." );
+		}
+		if ( analyze )
+		{
+			final long start = System.nanoTime();
+			final SelectionVariable result = interpret();
+			final long nanos = System.nanoTime() - start;
+			str.append( String.format( Locale.ROOT, "\nTotal: %.2f ms, %d vertices and %d edges selected.",
+					nanos / 1e6, result.vertexCount(), result.edgeCount() ) );
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Returns the operator tree of this expression.
+	 *
+	 * @return the root of the operator tree, or <code>null</code> if the
+	 *         expression cannot be compiled.
+	 */
+	BlockOperator operator()
+	{
+		return binding().operator;
+	}
+
+	private Binding binding()
+	{
+		Binding b = binding;
+		if ( b.version != parser.version() )
+		{
+			synchronized ( this )
+			{
+				b = binding;
+				if ( b.version != parser.version() )
+				{
+					b = bind();
+					binding = b;
+				}
+			}
+		}
+		return b;
+	}
+
+	private Binding bind()
+	{
+		// Read the version first: a change during binding triggers a rebind.
+		final long version = parser.version();
+		final ThreadLocal< SelectionEvaluator< V, E > > evaluator = ThreadLocal.withInitial( () -> {
+			final SelectionEvaluator< V, E > e = parser.evaluator();
+			e.keepBindings();
+			return e;
+		} );
+		final BlockOperator operator = new SelectionCompiler<>( evaluator.get() ).compile( tree );
+		return new Binding( version, operator, evaluator );
+	}
+
+	@Override
+	public String toString()
+	{
+		return expression;
+	}
+
+	/**
+	 * An operator tree, the stack evaluators it was compiled with, and the
+	 * version of the model it was compiled against.
+	 */
+	private final class Binding
+	{
+
+		private final long version;
+
+		/**
+		 * <code>null</code> if the expression cannot be compiled.
+		 */
+		private final BlockOperator operator;
+
+		/**
+		 * The stack evaluator, per thread, that keeps the features and tags
+		 * it resolved while the binding is valid.
+		 */
+		private final ThreadLocal< SelectionEvaluator< V, E > > evaluator;
+
+		private Binding( final long version, final BlockOperator operator, final ThreadLocal< SelectionEvaluator< V, E > > evaluator )
+		{
+			this.version = version;
+			this.operator = operator;
+			this.evaluator = evaluator;
+		}
+	}
+}
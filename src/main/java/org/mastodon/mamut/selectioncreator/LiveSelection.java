@@ -0,0 +1,355 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator;
+
+import java.util.BitSet;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphChangeListener;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.graph.ListenableReadOnlyGraph;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.evaluation.BlockOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.ModelVersion;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionVariable;
+import org.mastodon.spatial.VertexPositionChangeProvider;
+import org.mastodon.spatial.VertexPositionListener;
+
+/**
+ * A compiled selection whose result is kept and updated as the graph is
+ * edited, instead of being computed again from scratch.
+ * <p>
+ * Instances are created by {@link SelectionParser#live(String)}. The view
+ * listens to the vertices and edges added to or removed from the graph, and
+ * to the spots moved if the graph is a {@link VertexPositionChangeProvider},
+ * and only records their IDs, so that keeping many views costs little per
+ * edit. The edges of a moved spot are recorded with it, and the ends of an
+ * added or removed link and the neighbours of a removed spot too, since
+ * features such as the number of links change with them. When the result is
+ * read, the expression is tested again on these objects only, provided it
+ * decides on an object by looking at this object alone: feature comparisons,
+ * tag tests, and their combinations.
+ * <p>
+ * The whole expression is evaluated again when Mastodon notifies a change
+ * that does not say which objects changed: recomputed features, a new
+ * tag-set structure, or a graph change that was not preceded by any
+ * addition, removal or move. Objects are tagged, and spot properties other
+ * than the position are edited, with nothing more than a graph change, that
+ * may come after moves of the same edit. So for expressions that read tags,
+ * or features that are not tracked by the graph events, every graph change
+ * triggers a full evaluation.
+ * <p>
+ * Expressions that depend on other objects, like the current selection or
+ * morphs, and graphs that cannot be listened to, are always evaluated in
+ * full.
+ * <p>
+ * Like for any read of the model, the caller is responsible for holding the
+ * graph read lock.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class LiveSelection< V extends Vertex< E >, E extends Edge< V > >
+		implements GraphListener< V, E >, GraphChangeListener, VertexPositionListener< V >
+{
+
+	private final SelectionParser< V, E > parser;
+
+	private final CompiledSelection< V, E > selection;
+
+	/**
+	 * <code>null</code> if the graph cannot be listened to.
+	 */
+	private final ListenableReadOnlyGraph< V, E > graph;
+
+	/**
+	 * <code>null</code> if the graph does not notify spot moves.
+	 */
+	private final VertexPositionChangeProvider< V > positions;
+
+	private final GraphIdBimap< V, E > idmap;
+
+	private final ModelVersion version;
+
+	/**
+	 * The last result, or <code>null</code> if the whole expression must be
+	 * evaluated.
+	 */
+	private SelectionVariable result;
+
+	/**
+	 * The versions of the model when the whole expression was last evaluated.
+	 */
+	private long features;
+
+	private long tags;
+
+	/**
+	 * Whether the graph notified a change that cannot be traced to the
+	 * recorded objects since the last evaluation.
+	 */
+	private boolean unknownChange;
+
+	/**
+	 * Whether objects were recorded since the last graph change notification
+	 * or evaluation.
+	 */
+	private boolean recorded;
+
+	/**
+	 * The IDs of the objects added, removed or moved since the last
+	 * evaluation.
+	 */
+	private final BitSet changedVertices = new BitSet();
+
+	private final BitSet changedEdges = new BitSet();
+
+	private int tested = -1;
+
+	@SuppressWarnings( "unchecked" )
+	LiveSelection(
+			final SelectionParser< V, E > parser,
+			final CompiledSelection< V, E > selection,
+			final ReadOnlyGraph< V, E > graph,
+			final GraphIdBimap< V, E > idmap,
+			final ModelVersion version )
+	{
+		this.parser = parser;
+		this.selection = selection;
+		this.graph = graph instanceof ListenableReadOnlyGraph ? ( ListenableReadOnlyGraph< V, E > ) graph : null;
+		this.positions = graph instanceof VertexPositionChangeProvider ? ( VertexPositionChangeProvider< V > ) graph : null;
+		this.idmap = idmap;
+		this.version = version;
+		if ( this.graph != null )
+		{
+			this.graph.addGraphListener( this );
+			this.graph.addGraphChangeListener( this );
+		}
+		if ( positions != null )
+			positions.addVertexPositionListener( this );
+	}
+
+	/**
+	 * Returns the expression of this view.
+	 *
+	 * @return the expression.
+	 */
+	public String getExpression()
+	{
+		return selection.getExpression();
+	}
+
+	/**
+	 * Returns the result of this expression on the current content of the
+	 * model, updating the last result if possible.
+	 *
+	 * @return a new selection variable, sharing its bitmaps with this view.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be evaluated. The exception
+	 *             message explains why.
+	 */
+	public synchronized SelectionVariable evaluate()
+	{
+		final BlockOperator operator = selection.operator();
+		if ( graph == null || operator == null || !operator.isLocal() )
+		{
+			result = null;
+			tested = -1;
+			return selection.evaluate();
+		}
+
+		if ( result == null || !isCurrent() )
+		{
+			// Read the versions first: a change during evaluation makes it stale.
+			features = version.features();
+			tags = version.tags();
+			unknownChange = false;
+			recorded = false;
+			changedVertices.clear();
+			changedEdges.clear();
+			result = selection.evaluate();
+			tested = -1;
+		}
+		else
+		{
+			tested = changedVertices.cardinality() + changedEdges.cardinality();
+			if ( tested > 0 )
+			{
+				try
+				{
+					result = parser.executor().update( operator, result, changedVertices, changedEdges );
+				}
+				catch ( final IllegalArgumentException iae )
+				{
+					// Evaluate in full, which reports the error.
+					result = null;
+					tested = -1;
+					return selection.evaluate();
+				}
+				changedVertices.clear();
+				changedEdges.clear();
+			}
+			recorded = false;
+		}
+		return result.share();
+	}
+
+	/**
+	 * Replaces the content of the selection model by the result of this
+	 * expression.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be evaluated. The exception
+	 *             message explains why.
+	 */
+	public void apply()
+	{
+		parser.apply( evaluate() );
+	}
+
+	/**
+	 * Returns how many objects the last evaluation tested again.
+	 *
+	 * @return the number of objects tested again, or <code>-1</code> if the
+	 *         whole expression was evaluated.
+	 */
+	public synchronized int getTestedCount()
+	{
+		return tested;
+	}
+
+	/**
+	 * Stops listening to the graph. The view can still be evaluated, but
+	 * always in full.
+	 */
+	public synchronized void close()
+	{
+		if ( graph != null )
+		{
+			graph.removeGraphListener( this );
+			graph.removeGraphChangeListener( this );
+		}
+		if ( positions != null )
+			positions.removeVertexPositionListener( this );
+		result = null;
+	}
+
+	private boolean isCurrent()
+	{
+		return features == version.features()
+				&& tags == version.tags()
+				&& !unknownChange;
+	}
+
+	/**
+	 * Mastodon notifies a graph change after objects are added, removed or
+	 * moved, but also after they are tagged, without saying which ones. A
+	 * notification that follows recorded objects is attributed to them only
+	 * if the expression reads nothing else that may have changed.
+	 */
+	@Override
+	public synchronized void graphChanged()
+	{
+		final BlockOperator operator = selection.operator();
+		if ( !recorded || operator == null || !operator.isTracked() )
+			unknownChange = true;
+		recorded = false;
+	}
+
+	@Override
+	public synchronized void vertexPositionChanged( final V vertex )
+	{
+		changedVertices.set( idmap.getVertexId( vertex ) );
+		for ( final E edge : vertex.edges() )
+			changedEdges.set( idmap.getEdgeId( edge ) );
+		recorded = true;
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		result = null;
+	}
+
+	@Override
+	public synchronized void vertexAdded( final V vertex )
+	{
+		changedVertices.set( idmap.getVertexId( vertex ) );
+		recorded = true;
+	}
+
+	/**
+	 * Also records the edges of the vertex, if they were not removed first,
+	 * and their other ends.
+	 */
+	@Override
+	public synchronized void vertexRemoved( final V vertex )
+	{
+		changedVertices.set( idmap.getVertexId( vertex ) );
+		for ( final E edge : vertex.edges() )
+			recordEdge( edge );
+		recorded = true;
+	}
+
+	@Override
+	public synchronized void edgeAdded( final E edge )
+	{
+		recordEdge( edge );
+		recorded = true;
+	}
+
+	@Override
+	public synchronized void edgeRemoved( final E edge )
+	{
+		recordEdge( edge );
+		recorded = true;
+	}
+
+	/**
+	 * Records an edge and its two ends, whose links changed.
+	 */
+	private void recordEdge( final E edge )
+	{
+		changedEdges.set( idmap.getEdgeId( edge ) );
+		final V ref = idmap.vertexIdBimap().createRef();
+		changedVertices.set( idmap.getVertexId( edge.getSource( ref ) ) );
+		changedVertices.set( idmap.getVertexId( edge.getTarget( ref ) ) );
+		idmap.vertexIdBimap().releaseRef( ref );
+	}
+
+	@Override
+	public String toString()
+	{
+		return selection.toString();
+	}
+}
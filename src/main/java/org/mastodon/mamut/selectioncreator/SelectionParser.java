@@ -33,10 +33,22 @@ import org.mastodon.graph.Edge;
 import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.evaluation.BlockExecutor;
+import org.mastodon.mamut.selectioncreator.evaluation.EvaluationContext;
+import org.mastodon.mamut.selectioncreator.evaluation.FeatureColumnCache;
+import org.mastodon.mamut.selectioncreator.evaluation.FrameIndex;
+import org.mastodon.mamut.selectioncreator.evaluation.ModelVersion;
+import org.mastodon.mamut.selectioncreator.evaluation.QueryPlanner;
+import org.mastodon.mamut.selectioncreator.evaluation.ResultCache;
 import org.mastodon.mamut.selectioncreator.evaluation.SelectionEvaluator;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMirror;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher;
 import org.mastodon.mamut.selectioncreator.evaluation.SelectionVariable;
+import org.mastodon.mamut.selectioncreator.evaluation.TagIndexCache;
+import org.mastodon.mamut.selectioncreator.evaluation.TrackIndex;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.spatial.SpatioTemporalIndex;
 import org.scijava.parsington.ExpressionParser;
 import org.scijava.parsington.SyntaxTree;
 
@@ -213,6 +225,27 @@ import org.scijava.parsington.SyntaxTree;
 public class SelectionParser< V extends Vertex< E >, E extends Edge< V > >
 {
 
+	/**
+	 * Enum specifying how expressions are evaluated.
+	 *
+	 * @see SelectionParser#setExecutionMode(ExecutionMode)
+	 */
+	public static enum ExecutionMode
+	{
+		/**
+		 * Expressions are evaluated node by node, each comparison producing a
+		 * full selection before they are combined.
+		 */
+		STACK,
+		/**
+		 * Expressions are compiled into an operator pipeline, and blocks of
+		 * object IDs are pushed through the whole pipeline at once, so that
+		 * each object is read once. Expressions that cannot be compiled are
+		 * evaluated in {@link #STACK} mode.
+		 */
+		BLOCK;
+	}
+
 	private final ReadOnlyGraph< V, E > graph;
 
 	private final GraphIdBimap< V, E > graphIdBimap;
@@ -223,20 +256,76 @@ public class SelectionParser< V extends Vertex< E >, E extends Edge< V > >
 
 	private final SelectionModel< V, E > selectionModel;
 
+	private final FrameIndex< V > frames;
+
 	private String errorMessage;
 
+	private QueryPlanner.Plan plan;
+
+	private ExecutionMode executionMode = ExecutionMode.BLOCK;
+
+	private ModelVersion version;
+
+	private TrackIndex< V, E > tracks;
+
+	private SelectionMirror< V, E > mirror;
+
+	/**
+	 * The caches and indices shared by the evaluators and executors.
+	 */
+	private EvaluationContext< V, E > context;
+
+	private ResultCache results;
+
 	public SelectionParser(
 			final ReadOnlyGraph< V, E > graph,
 			final GraphIdBimap< V, E > graphIdBimap,
 			final TagSetModel< V, E > tagSetModel,
 			final FeatureModel featureModel,
 			final SelectionModel< V, E > selectionModel )
+	{
+		this( graph, graphIdBimap, tagSetModel, featureModel, selectionModel, null, 0, -1 );
+	}
+
+	/**
+	 * Creates a parser that reads the vertices of given timepoints from the
+	 * spatio-temporal index of the model, for the <code>frame</code> function
+	 * and the comparisons made on the frame of vertices.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param graphIdBimap
+	 *            the graph ID bimap.
+	 * @param tagSetModel
+	 *            the tag-set model.
+	 * @param featureModel
+	 *            the feature model.
+	 * @param selectionModel
+	 *            the selection model to write to.
+	 * @param index
+	 *            the spatio-temporal index of the model, may be
+	 *            <code>null</code>.
+	 * @param minTimepoint
+	 *            the first timepoint of the data.
+	 * @param maxTimepoint
+	 *            the last timepoint of the data, included.
+	 */
+	public SelectionParser(
+			final ReadOnlyGraph< V, E > graph,
+			final GraphIdBimap< V, E > graphIdBimap,
+			final TagSetModel< V, E > tagSetModel,
+			final FeatureModel featureModel,
+			final SelectionModel< V, E > selectionModel,
+			final SpatioTemporalIndex< V > index,
+			final int minTimepoint,
+			final int maxTimepoint )
 	{
 		this.graph = graph;
 		this.graphIdBimap = graphIdBimap;
 		this.tagSetModel = tagSetModel;
 		this.featureModel = featureModel;
 		this.selectionModel = selectionModel;
+		this.frames = index == null ? null : new FrameIndex<>( index, graphIdBimap.vertexIdBimap(), minTimepoint, maxTimepoint );
 	}
 
 	/**
@@ -253,35 +342,13 @@ public class SelectionParser< V extends Vertex< E >, E extends Edge< V > >
 	public boolean parse( final String expression )
 	{
 		errorMessage = null;
+		plan = null;
 		try
 		{
-			final SyntaxTree tree = new ExpressionParser().parseTree( expression );
-			final SelectionEvaluator< V, E > evaluator = new SelectionEvaluator<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel );
-			try
-			{
-
-				final Object result = evaluator.evaluate( tree );
-				if ( result instanceof SelectionVariable )
-				{
-					final SelectionVariable sv = ( SelectionVariable ) result;
-					sv.toSelectionModel( selectionModel, graphIdBimap );
-					return true;
-				}
-				else
-				{
-					errorMessage = "Got unexpected result: " + result;
-					return false;
-				}
-			}
-			catch ( final IllegalArgumentException iae )
-			{
-				final String err = evaluator.getErrorMessage();
-				if ( err != null )
-					errorMessage = "Incorrect syntax: " + err;
-				else
-					errorMessage = iae.getMessage();
-				return false;
-			}
+			final CompiledSelection< V, E > selection = compile( expression );
+			selection.apply();
+			plan = selection.getPlan();
+			return true;
 		}
 		catch ( final IllegalArgumentException iae )
 		{
@@ -290,6 +357,176 @@ public class SelectionParser< V extends Vertex< E >, E extends Edge< V > >
 		}
 	}
 
+	/**
+	 * Parses the specified expression and binds it to the features, tags and
+	 * morphers of the model, so that it can be evaluated many times.
+	 *
+	 * @param expression
+	 *            the expression to compile.
+	 * @return a new compiled selection.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be parsed.
+	 */
+	public CompiledSelection< V, E > compile( final String expression )
+	{
+		listenToModels();
+		final SyntaxTree tree = new ExpressionParser().parseTree( expression );
+		return new CompiledSelection<>( this, expression, tree );
+	}
+
+	/**
+	 * Describes how the specified expression would be evaluated, without
+	 * evaluating it: the operator tree, the index or values each operator
+	 * reads, and the estimated number of objects it selects.
+	 *
+	 * @param expression
+	 *            the expression to explain.
+	 * @return the report.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be parsed.
+	 * @see CompiledSelection#explain(boolean)
+	 */
+	public String explain( final String expression )
+	{
+		return compile( expression ).explain( false );
+	}
+
+	/**
+	 * Evaluates the specified expression and reports, for each operator, the
+	 * time spent, the objects tested and accepted and the bytes allocated.
+	 * The selection model is not modified.
+	 *
+	 * @param expression
+	 *            the expression to analyze.
+	 * @return the report.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be parsed or evaluated.
+	 * @see CompiledSelection#explain(boolean)
+	 */
+	public String explainAnalyze( final String expression )
+	{
+		return compile( expression ).explain( true );
+	}
+
+	/**
+	 * Compiles the specified expression into a view whose result is updated
+	 * as the graph is edited.
+	 *
+	 * @param expression
+	 *            the expression to compile.
+	 * @return a new live selection. Must be closed when not needed anymore.
+	 * @throws IllegalArgumentException
+	 *             if the expression cannot be parsed.
+	 */
+	public LiveSelection< V, E > live( final String expression )
+	{
+		final CompiledSelection< V, E > selection = compile( expression );
+		return new LiveSelection<>( this, selection, graph, graphIdBimap, version );
+	}
+
+	/**
+	 * Starts tracking the changes of the model and labels the tracks of the
+	 * graph, so that the first expression selecting whole tracks does not have
+	 * to. Meant to be called when the project is opened.
+	 */
+	public void buildIndices()
+	{
+		listenToModels();
+		tracks.build();
+	}
+
+	/**
+	 * Starts tracking the changes of the model. Done once, on the first
+	 * compilation or by {@link #buildIndices()}.
+	 */
+	private synchronized void listenToModels()
+	{
+		if ( version != null )
+			return;
+		version = new ModelVersion( graph, featureModel, tagSetModel );
+		tracks = new TrackIndex<>( graph, graphIdBimap );
+		mirror = new SelectionMirror<>( selectionModel, graphIdBimap, version );
+		results = new ResultCache( version, mirror );
+		context = EvaluationContext.< V, E >builder()
+				.columns( new FeatureColumnCache( version ) )
+				.tagIndices( new TagIndexCache( version ) )
+				.frames( frames )
+				.morpher( new SelectionMorpher<>( graph, graphIdBimap, tracks, version ) )
+				.mirror( mirror )
+				.build();
+	}
+
+	/**
+	 * Stops tracking the changes of the model, so that this parser and its
+	 * caches can be garbage-collected with the model. The parser, its compiled
+	 * selections and its live views must not be used afterwards.
+	 */
+	public synchronized void close()
+	{
+		if ( version == null )
+			return;
+		version.close();
+		mirror.close();
+		tracks.close();
+	}
+
+	/**
+	 * Returns a counter incremented every time the bindings of the compiled
+	 * selections become stale.
+	 */
+	long version()
+	{
+		return version.features() + version.tags();
+	}
+
+	ResultCache results()
+	{
+		return results;
+	}
+
+	SelectionEvaluator< V, E > evaluator()
+	{
+		return new SelectionEvaluator<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel, context );
+	}
+
+	QueryPlanner planner()
+	{
+		return new QueryPlanner( graph, mirror );
+	}
+
+	BlockExecutor< V, E > executor()
+	{
+		return new BlockExecutor<>( graph, graphIdBimap, selectionModel, context );
+	}
+
+	void apply( final SelectionVariable selection )
+	{
+		selection.toSelectionModel( selectionModel, graphIdBimap, mirror.get() );
+		mirror.applied( selection );
+	}
+
+	/**
+	 * Sets how expressions are evaluated by {@link #parse(String)} and by the
+	 * compiled selections.
+	 *
+	 * @param executionMode
+	 *            the execution mode.
+	 */
+	public void setExecutionMode( final ExecutionMode executionMode )
+	{
+		this.executionMode = executionMode;
+	}
+
+	/**
+	 * Returns how expressions are evaluated by {@link #parse(String)}.
+	 *
+	 * @return the execution mode.
+	 */
+	public ExecutionMode getExecutionMode()
+	{
+		return executionMode;
+	}
+
 	/**
 	 * Returns the error message possible triggered by the last call to
 	 * {@link #parse(String)}.
@@ -301,4 +538,40 @@ public class SelectionParser< V extends Vertex< E >, E extends Edge< V > >
 	{
 		return errorMessage;
 	}
+
+	/**
+	 * Returns the plan the expression of the last call to
+	 * {@link #parse(String)} was executed with.
+	 *
+	 * @return the plan, <code>null</code> if the expression was not executed
+	 *         by the block executor, for instance because its result was
+	 *         read from the result cache.
+	 */
+	public QueryPlanner.Plan getPlan()
+	{
+		return plan;
+	}
+
+	/**
+	 * Returns the index of the tracks used to select whole tracks.
+	 *
+	 * @return the track index, <code>null</code> until the first expression
+	 *         is compiled or {@link #buildIndices()} is called.
+	 */
+	public synchronized TrackIndex< V, E > getTrackIndex()
+	{
+		return tracks;
+	}
+
+	/**
+	 * Returns the cache of the results of the expressions evaluated by this
+	 * parser.
+	 *
+	 * @return the result cache, <code>null</code> until the first expression
+	 *         is compiled or {@link #buildIndices()} is called.
+	 */
+	public synchronized ResultCache getResultCache()
+	{
+		return results;
+	}
 }
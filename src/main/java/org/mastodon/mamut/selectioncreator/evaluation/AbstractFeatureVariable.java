@@ -29,7 +29,6 @@
 package org.mastodon.mamut.selectioncreator.evaluation;
 
 import java.util.BitSet;
-import java.util.function.DoublePredicate;
 
 import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollection;
@@ -50,6 +49,10 @@ public abstract class AbstractFeatureVariable< O > implements FeatureVariable< O
 
 	private final FeatureProjectionKey projectionKey;
 
+	private final FeatureColumnCache cache;
+
+	private final FrameIndex< O > frames;
+
 	protected AbstractFeatureVariable(
 			final FeatureSpec< ?, ? > featureSpec,
 			final FeatureProjectionKey projectionKey,
@@ -57,57 +60,300 @@ public abstract class AbstractFeatureVariable< O > implements FeatureVariable< O
 			final RefCollection< O > collection,
 			final RefPool< O > idMap )
 	{
+		this( featureSpec, projectionKey, projection, collection, idMap, null, null );
+	}
+
+	protected AbstractFeatureVariable(
+			final FeatureSpec< ?, ? > featureSpec,
+			final FeatureProjectionKey projectionKey,
+			final FeatureProjection< O > projection,
+			final RefCollection< O > collection,
+			final RefPool< O > idMap,
+			final FeatureColumnCache cache,
+			final FrameIndex< O > frames )
+	{
+		this.frames = ( frames != null && frames.isFrameFeature( featureSpec ) ) ? frames : null;
 		this.featureSpec = featureSpec;
 		this.projectionKey = projectionKey;
 		this.projection = projection;
 		this.collection = collection;
 		this.idMap = idMap;
+		this.cache = cache;
 	}
 
 	@Override
 	public SelectionVariable lessThan( final double threshold )
 	{
-		return make( test( ( v ) -> v < threshold ) );
+		return lessThan( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable lessThan( final double threshold, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.LESS_THAN, threshold ), domain ) );
 	}
 
 	@Override
 	public SelectionVariable greaterThan( final double threshold )
 	{
-		return make( test( ( v ) -> v > threshold ) );
+		return greaterThan( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable greaterThan( final double threshold, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.GREATER_THAN, threshold ), domain ) );
 	}
 
 	@Override
 	public SelectionVariable lessThanOrEqual( final double threshold )
 	{
-		return make( test( ( v ) -> v <= threshold ) );
+		return lessThanOrEqual( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable lessThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.LESS_THAN_OR_EQUAL, threshold ), domain ) );
 	}
 
 	@Override
 	public SelectionVariable greaterThanOrEqual( final double threshold )
 	{
-		return make( test( ( v ) -> v >= threshold ) );
+		return greaterThanOrEqual( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable greaterThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, threshold ), domain ) );
 	}
 
 	@Override
 	public SelectionVariable equal( final double value )
 	{
-		return make( test( ( v ) -> v == value ) );
+		return equal( value, null );
+	}
+
+	@Override
+	public SelectionVariable equal( final double value, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.EQUAL, value ), domain ) );
 	}
 
 	@Override
 	public SelectionVariable notEqual( final double value )
 	{
-		return make( test( ( v ) -> v != value ) );
+		return notEqual( value, null );
+	}
+
+	@Override
+	public SelectionVariable notEqual( final double value, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.of( Comparison.NOT_EQUAL, value ), domain ) );
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max )
+	{
+		return between( min, max, null );
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max, final SelectionVariable domain )
+	{
+		return make( select( IntervalSet.between( min, max ), domain ) );
 	}
 
 	protected abstract SelectionVariable make( BitSet mainBitSet );
 
-	private BitSet test( final DoublePredicate tester )
+	/**
+	 * Returns the kind of objects this feature is defined for.
+	 *
+	 * @return the kind of objects.
+	 */
+	abstract ObjectKind kind();
+
+	/**
+	 * Returns a {@link BlockOperator} that accepts the objects whose feature
+	 * value compares with the specified threshold.
+	 *
+	 * @param comparison
+	 *            the comparison.
+	 * @param threshold
+	 *            the threshold.
+	 * @return a new operator.
+	 */
+	BlockOperator compare( final Comparison comparison, final double threshold )
+	{
+		return compare( IntervalSet.of( comparison, threshold ) );
+	}
+
+	/**
+	 * Returns a {@link BlockOperator} that accepts the objects whose feature
+	 * value is in the specified intervals.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @return a new operator.
+	 */
+	BlockOperator compare( final IntervalSet intervals )
+	{
+		return new FeatureComparisonOperator<>( this, intervals );
+	}
+
+	/**
+	 * Returns the IDs of the objects at the timepoints in the specified
+	 * intervals, read from the frame index. Only possible if this feature is
+	 * the frame of vertices, and worth it if these timepoints hold a small
+	 * part of the vertices.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @return a superset of the objects whose value is in the intervals, or
+	 *         <code>null</code>.
+	 */
+	BitSet frameCandidates( final IntervalSet intervals )
+	{
+		if ( frames == null || intervals.acceptsNaN() )
+			return null;
+		if ( 4 * frames.count( intervals ) > collection.size() )
+			return null;
+		final BitSet candidates = new BitSet();
+		frames.select( intervals, candidates );
+		return candidates;
+	}
+
+	/**
+	 * Estimates the fraction of the objects whose feature value is in the
+	 * specified intervals, from the statistics of a valid column, or from the
+	 * frame index.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @return a number between 0 and 1, or <code>NaN</code> if there is
+	 *         neither a valid column nor a frame index.
+	 */
+	double selectivity( final IntervalSet intervals )
+	{
+		final FeatureColumn column = column( false );
+		if ( column != null )
+			return column.statistics.selectivity( intervals );
+		if ( frames != null && !intervals.acceptsNaN() )
+			return collection.isEmpty() ? 0. : Math.min( 1., ( double ) frames.count( intervals ) / collection.size() );
+		return Double.NaN;
+	}
+
+	/**
+	 * Describes how the values of this feature are read.
+	 *
+	 * @return a short description.
+	 */
+	String access()
+	{
+		final FeatureColumn column = column( false );
+		if ( column != null )
+			return column.isIndexed() ? "column, sorted index" : "column";
+		if ( frames != null )
+			return "frame index";
+		return cache == null ? "feature values" : "feature values, cached on first scan";
+	}
+
+	/**
+	 * Returns <code>true</code> if this variable and the other one read the
+	 * same projection of the same feature, for the same kind of objects.
+	 *
+	 * @param other
+	 *            the other feature variable.
+	 * @return whether the variables read the same values.
+	 */
+	boolean sameProjection( final AbstractFeatureVariable< ? > other )
+	{
+		return kind() == other.kind()
+				&& featureSpec.equals( other.featureSpec )
+				&& projectionKey.equals( other.projectionKey );
+	}
+
+	/**
+	 * Returns whether the values of this feature only change with an event
+	 * that says which objects changed.
+	 *
+	 * @return <code>true</code> if the projection is tracked.
+	 * @see FeatureColumn#isTracked(FeatureSpec, FeatureProjection)
+	 */
+	boolean isTracked()
+	{
+		return FeatureColumn.isTracked( featureSpec, projection );
+	}
+
+	/**
+	 * Returns a valid column of the values of this feature, or
+	 * <code>null</code> if values are not cached.
+	 *
+	 * @param build
+	 *            whether to build the column if there is no valid one.
+	 * @return the column, or <code>null</code>.
+	 */
+	FeatureColumn column( final boolean build )
+	{
+		if ( cache == null )
+			return null;
+		return build
+				? cache.get( featureSpec, projectionKey, projection, collection, idMap )
+				: cache.getIfPresent( featureSpec, projectionKey );
+	}
+
+	/**
+	 * Returns the selection of the objects whose feature value is in the
+	 * specified intervals.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @param domain
+	 *            the objects to test, or <code>null</code> to test all of them.
+	 * @return a new selection.
+	 */
+	SelectionVariable test( final IntervalSet intervals, final SelectionVariable domain )
+	{
+		return make( select( intervals, domain ) );
+	}
+
+	private BitSet select( final IntervalSet intervals, final SelectionVariable domain )
 	{
 		final BitSet target = new BitSet();
-		for ( final O v : collection )
-			if ( projection.isSet( v ) && tester.test( projection.value( v ) ) )
-				target.set( idMap.getId( v ) );
+		FeatureColumn column = column( false );
+		BitSet candidates = domain == null ? null : kind().of( domain ).asBitSet();
+		if ( column == null && candidates == null )
+		{
+			// Only visit the vertices of the accepted timepoints if possible.
+			// Otherwise everything is scanned anyway: build a column.
+			candidates = frameCandidates( intervals );
+			if ( candidates == null )
+				column = column( true );
+		}
+		if ( column != null )
+		{
+			column.select( intervals, candidates, target );
+			return target;
+		}
+
+		if ( candidates == null )
+		{
+			for ( final O v : collection )
+				if ( projection.isSet( v ) && intervals.test( projection.value( v ) ) )
+					target.set( idMap.getId( v ) );
+			return target;
+		}
+
+		// Only visit the candidate objects.
+		final O ref = idMap.createRef();
+		for ( int id = candidates.nextSetBit( 0 ); id >= 0; id = candidates.nextSetBit( id + 1 ) )
+		{
+			final O v = idMap.getObject( id, ref );
+			if ( projection.isSet( v ) && intervals.test( projection.value( v ) ) )
+				target.set( id );
+		}
+		idMap.releaseRef( ref );
 		return target;
 	}
 
@@ -30,9 +30,11 @@ package org.mastodon.mamut.selectioncreator.evaluation;
 
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.function.Predicate;
 
 import org.mastodon.RefPool;
 import org.mastodon.collection.RefCollection;
+import org.mastodon.mamut.selectioncreator.evaluation.TagComparisonOperator.TagTest;
 import org.mastodon.model.tag.ObjTagMap;
 import org.mastodon.model.tag.TagSetStructure.Tag;
 import org.mastodon.model.tag.TagSetStructure.TagSet;
@@ -40,20 +42,28 @@ import org.mastodon.model.tag.TagSetStructure.TagSet;
 public abstract class AbstractTagSetVariable< V > implements TagSetVariable
 {
 
-	private final ObjTagMap< V, Tag > tags;
+	protected final ObjTagMap< V, Tag > tags;
 
-	private final RefCollection< V > collection;
+	protected final RefCollection< V > collection;
 
-	private final RefPool< V > idMap;
+	protected final RefPool< V > idMap;
 
 	private final TagSet tagSet;
 
+	private final TagIndexCache cache;
+
 	public AbstractTagSetVariable( final TagSet tagSet, final ObjTagMap< V, Tag > tags, final RefCollection< V > collection, final RefPool< V > idMap )
+	{
+		this( tagSet, tags, collection, idMap, null );
+	}
+
+	public AbstractTagSetVariable( final TagSet tagSet, final ObjTagMap< V, Tag > tags, final RefCollection< V > collection, final RefPool< V > idMap, final TagIndexCache cache )
 	{
 		this.tagSet = tagSet;
 		this.tags = tags;
 		this.collection = collection;
 		this.idMap = idMap;
+		this.cache = cache;
 	}
 
 	@Override
@@ -65,42 +75,129 @@ public abstract class AbstractTagSetVariable< V > implements TagSetVariable
 	@Override
 	public SelectionVariable equal( final Tag tag )
 	{
+		return equal( tag, null );
+	}
+
+	@Override
+	public SelectionVariable notEqual( final Tag tag )
+	{
+		return notEqual( tag, null );
+	}
+
+	@Override
+	public SelectionVariable unset()
+	{
+		return unset( null );
+	}
+
+	@Override
+	public SelectionVariable set()
+	{
+		return set( null );
+	}
+
+	@Override
+	public SelectionVariable equal( final Tag tag, final SelectionVariable domain )
+	{
+		final TagIndex index = index( domain == null );
+		if ( index != null )
+			return make( index.select( TagTest.EQUAL, tag, domain == null ? null : kind().of( domain ).asBitSet() ) );
+
 		final Collection< V > tagged = tags.getTaggedWith( tag );
+		if ( domain != null && kind().of( domain ).cardinality() < tagged.size() )
+			return make( test( TagTest.EQUAL, tag, t -> tag.equals( t ), domain ) );
+
 		final BitSet bitset = new BitSet();
 		for ( final V v : tagged )
 			bitset.set( idMap.getId( v ) );
+		if ( domain != null )
+			bitset.and( kind().of( domain ).asBitSet() );
 		return make( bitset );
 	}
 
 	@Override
-	public SelectionVariable notEqual( final Tag tag )
+	public SelectionVariable notEqual( final Tag tag, final SelectionVariable domain )
 	{
-		final BitSet bitset = new BitSet();
-		for ( final V v : collection )
-			if ( !tag.equals( tags.get( v ) ) )
-				bitset.set( idMap.getId( v ) );
-		return make( bitset );
+		return make( test( TagTest.NOT_EQUAL, tag, t -> !tag.equals( t ), domain ) );
 	}
 
 	@Override
-	public SelectionVariable unset()
+	public SelectionVariable unset( final SelectionVariable domain )
 	{
-		final BitSet bitset = new BitSet();
-		for ( final V v : collection )
-			if ( null == tags.get( v ) )
-				bitset.set( idMap.getId( v ) );
-		return make( bitset );
+		return make( test( TagTest.UNSET, null, t -> null == t, domain ) );
 	}
 
 	@Override
-	public SelectionVariable set()
+	public SelectionVariable set( final SelectionVariable domain )
+	{
+		return make( test( TagTest.SET, null, t -> null != t, domain ) );
+	}
+
+	/**
+	 * Returns a valid index of the tags of this tag-set, or <code>null</code>
+	 * if tags are not indexed.
+	 *
+	 * @param build
+	 *            whether to build the index if there is no valid one.
+	 * @return the index, or <code>null</code>.
+	 */
+	TagIndex index( final boolean build )
+	{
+		if ( cache == null )
+			return null;
+		return build
+				? cache.get( tagSet, tags, collection, idMap )
+				: cache.getIfPresent( tags );
+	}
+
+	private BitSet test( final TagTest tagTest, final Tag tag, final Predicate< Tag > tester, final SelectionVariable domain )
 	{
+		// Only build an index when scanning everything anyway.
+		final TagIndex index = index( domain == null );
+		if ( index != null )
+			return index.select( tagTest, tag, domain == null ? null : kind().of( domain ).asBitSet() );
+
 		final BitSet bitset = new BitSet();
-		for ( final V v : collection )
-			if ( null != tags.get( v ) )
-				bitset.set( idMap.getId( v ) );
-		return make( bitset );
+		if ( domain == null )
+		{
+			for ( final V v : collection )
+				if ( tester.test( tags.get( v ) ) )
+					bitset.set( idMap.getId( v ) );
+			return bitset;
+		}
+
+		// Only visit the objects of the domain.
+		final IdBitmap candidates = kind().of( domain );
+		final V ref = idMap.createRef();
+		for ( int id = candidates.nextSetBit( 0 ); id >= 0; id = candidates.nextSetBit( id + 1 ) )
+			if ( tester.test( tags.get( idMap.getObject( id, ref ) ) ) )
+				bitset.set( id );
+		idMap.releaseRef( ref );
+		return bitset;
 	}
 
 	protected abstract SelectionVariable make( BitSet bitset );
+
+	/**
+	 * Returns the kind of objects tagged.
+	 *
+	 * @return the kind of objects.
+	 */
+	abstract ObjectKind kind();
+
+	/**
+	 * Returns a {@link BlockOperator} that accepts the objects according to
+	 * their tag in this tag-set.
+	 *
+	 * @param tagTest
+	 *            the test to perform on the tag of objects.
+	 * @param tag
+	 *            the tag to compare with, ignored for
+	 *            {@link TagTest#SET} and {@link TagTest#UNSET}.
+	 * @return a new operator.
+	 */
+	BlockOperator compare( final TagTest tagTest, final Tag tag )
+	{
+		return new TagComparisonOperator<>( this, tagTest, tag );
+	}
 }
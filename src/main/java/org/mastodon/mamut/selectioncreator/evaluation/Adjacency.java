@@ -0,0 +1,500 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+
+/**
+ * A snapshot of the structure of the graph, in compressed sparse row arrays
+ * of IDs.
+ * <p>
+ * It stores the source and target vertex of each edge, and the incoming and
+ * outgoing edges of each vertex as ranges of two edge arrays sorted by
+ * vertex. Morphing a selection then amounts to loops over primitive arrays,
+ * without iterating over the edges of vertex objects and mapping them back
+ * to IDs.
+ * <p>
+ * The snapshot is immutable. It is stale as soon as the {@link ModelVersion}
+ * says that vertices or edges were added or removed.
+ */
+final class Adjacency
+{
+
+	/**
+	 * Min number of vertices in a chunk of a level expanded concurrently.
+	 */
+	private static final int MIN_CHUNK = 1 << 13;
+
+	/**
+	 * The IDs of the vertices of the graph.
+	 */
+	private final BitSet vertices;
+
+	/**
+	 * The source vertex of each edge ID, <code>-1</code> for unused IDs.
+	 */
+	private final int[] sources;
+
+	/**
+	 * The target vertex of each edge ID, <code>-1</code> for unused IDs.
+	 */
+	private final int[] targets;
+
+	/**
+	 * The outgoing edges of the vertex <code>id</code> are stored in
+	 * <code>outEdges</code> from <code>outOffsets[id]</code> to
+	 * <code>outOffsets[id + 1]</code>.
+	 */
+	private final int[] outOffsets;
+
+	private final int[] outEdges;
+
+	private final int[] inOffsets;
+
+	private final int[] inEdges;
+
+	/**
+	 * The structure version this snapshot was built at.
+	 */
+	final long structureVersion;
+
+	private Adjacency( final BitSet vertices, final int[] sources, final int[] targets, final int[] outOffsets, final int[] outEdges, final int[] inOffsets, final int[] inEdges, final long structureVersion )
+	{
+		this.vertices = vertices;
+		this.sources = sources;
+		this.targets = targets;
+		this.outOffsets = outOffsets;
+		this.outEdges = outEdges;
+		this.inOffsets = inOffsets;
+		this.inEdges = inEdges;
+		this.structureVersion = structureVersion;
+	}
+
+	/**
+	 * Takes a snapshot of the specified graph.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            the graph ID bimap.
+	 * @param version
+	 *            the current model version, may be <code>null</code> for a
+	 *            one-off snapshot.
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 * @return a new snapshot.
+	 */
+	static < V extends Vertex< E >, E extends Edge< V > > Adjacency build( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final ModelVersion version )
+	{
+		// Read the version first: a change during the build makes it stale.
+		final long structureVersion = version == null ? -1l : version.structure();
+
+		final BitSet vertices = new BitSet();
+		for ( final V v : graph.vertices() )
+			vertices.set( idmap.getVertexId( v ) );
+		final int maxVertexId = vertices.length() - 1;
+		int maxEdgeId = -1;
+		for ( final E e : graph.edges() )
+			maxEdgeId = Math.max( maxEdgeId, idmap.getEdgeId( e ) );
+
+		final int[] sources = new int[ maxEdgeId + 1 ];
+		final int[] targets = new int[ maxEdgeId + 1 ];
+		Arrays.fill( sources, -1 );
+		Arrays.fill( targets, -1 );
+		final int[] outOffsets = new int[ maxVertexId + 2 ];
+		final int[] inOffsets = new int[ maxVertexId + 2 ];
+		final V ref = graph.vertexRef();
+		for ( final E e : graph.edges() )
+		{
+			final int id = idmap.getEdgeId( e );
+			final int source = idmap.getVertexId( e.getSource( ref ) );
+			final int target = idmap.getVertexId( e.getTarget( ref ) );
+			sources[ id ] = source;
+			targets[ id ] = target;
+			outOffsets[ source + 1 ]++;
+			inOffsets[ target + 1 ]++;
+		}
+		graph.releaseRef( ref );
+
+		for ( int v = 0; v <= maxVertexId; v++ )
+		{
+			outOffsets[ v + 1 ] += outOffsets[ v ];
+			inOffsets[ v + 1 ] += inOffsets[ v ];
+		}
+		final int[] outEdges = new int[ outOffsets[ maxVertexId + 1 ] ];
+		final int[] inEdges = new int[ inOffsets[ maxVertexId + 1 ] ];
+		final int[] outFill = Arrays.copyOf( outOffsets, maxVertexId + 1 );
+		final int[] inFill = Arrays.copyOf( inOffsets, maxVertexId + 1 );
+		for ( int e = 0; e <= maxEdgeId; e++ )
+		{
+			if ( sources[ e ] < 0 )
+				continue;
+			outEdges[ outFill[ sources[ e ] ]++ ] = e;
+			inEdges[ inFill[ targets[ e ] ]++ ] = e;
+		}
+		return new Adjacency( vertices, sources, targets, outOffsets, outEdges, inOffsets, inEdges, structureVersion );
+	}
+
+	/**
+	 * Returns <code>true</code> if no vertex or edge was added or removed since
+	 * this snapshot was built.
+	 *
+	 * @param version
+	 *            the current model version.
+	 * @return whether this snapshot is still valid.
+	 */
+	boolean isCurrent( final ModelVersion version )
+	{
+		return structureVersion == version.structure();
+	}
+
+	/**
+	 * Returns the number of vertex IDs covered by the snapshot.
+	 *
+	 * @return the max vertex ID plus one.
+	 */
+	int vertexRange()
+	{
+		return outOffsets.length - 1;
+	}
+
+	/**
+	 * Returns the number of edge IDs covered by the snapshot.
+	 *
+	 * @return the max edge ID plus one.
+	 */
+	int edgeRange()
+	{
+		return sources.length;
+	}
+
+	/**
+	 * Returns the source vertex of an edge.
+	 *
+	 * @param edge
+	 *            the edge ID.
+	 * @return the vertex ID, <code>-1</code> if there is no such edge.
+	 */
+	int source( final int edge )
+	{
+		return edge < sources.length ? sources[ edge ] : -1;
+	}
+
+	/**
+	 * Returns the target vertex of an edge.
+	 *
+	 * @param edge
+	 *            the edge ID.
+	 * @return the vertex ID, <code>-1</code> if there is no such edge.
+	 */
+	int target( final int edge )
+	{
+		return edge < targets.length ? targets[ edge ] : -1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified vertex ID is used.
+	 *
+	 * @param vertex
+	 *            the vertex ID.
+	 * @return whether the graph has a vertex with this ID.
+	 */
+	boolean contains( final int vertex )
+	{
+		return vertices.get( vertex );
+	}
+
+	/**
+	 * Returns the position of the first outgoing edge of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the position of its first outgoing edge, to read with
+	 *         {@link #outEdge(int)}.
+	 */
+	int outStart( final int vertex )
+	{
+		return outOffsets[ vertex ];
+	}
+
+	/**
+	 * Returns the position after the last outgoing edge of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the position after its last outgoing edge.
+	 */
+	int outEnd( final int vertex )
+	{
+		return outOffsets[ vertex + 1 ];
+	}
+
+	/**
+	 * Returns the outgoing edge at the specified position.
+	 *
+	 * @param position
+	 *            the position.
+	 * @return the edge ID.
+	 */
+	int outEdge( final int position )
+	{
+		return outEdges[ position ];
+	}
+
+	/**
+	 * Returns the number of outgoing edges of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the out-degree.
+	 */
+	int outDegree( final int vertex )
+	{
+		return outOffsets[ vertex + 1 ] - outOffsets[ vertex ];
+	}
+
+	/**
+	 * Returns the position of the first incoming edge of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the position of its first incoming edge, to read with
+	 *         {@link #inEdge(int)}.
+	 */
+	int inStart( final int vertex )
+	{
+		return inOffsets[ vertex ];
+	}
+
+	/**
+	 * Returns the position after the last incoming edge of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the position after its last incoming edge.
+	 */
+	int inEnd( final int vertex )
+	{
+		return inOffsets[ vertex + 1 ];
+	}
+
+	/**
+	 * Returns the incoming edge at the specified position.
+	 *
+	 * @param position
+	 *            the position.
+	 * @return the edge ID.
+	 */
+	int inEdge( final int position )
+	{
+		return inEdges[ position ];
+	}
+
+	/**
+	 * Returns the number of incoming edges of a vertex.
+	 *
+	 * @param vertex
+	 *            the vertex ID, smaller than {@link #vertexRange()}.
+	 * @return the in-degree.
+	 */
+	int inDegree( final int vertex )
+	{
+		return inOffsets[ vertex + 1 ] - inOffsets[ vertex ];
+	}
+
+	/**
+	 * Adds the incoming and/or outgoing edges of the specified vertices to a
+	 * bitset, in one pass over the vertices.
+	 *
+	 * @param vertices
+	 *            the vertex IDs.
+	 * @param incoming
+	 *            whether to add the incoming edges.
+	 * @param outgoing
+	 *            whether to add the outgoing edges.
+	 * @param edges
+	 *            the bitset to add edge IDs to.
+	 */
+	void edgesOf( final IdBitmap vertices, final boolean incoming, final boolean outgoing, final BitSet edges )
+	{
+		final int range = vertexRange();
+		for ( int v = vertices.nextSetBit( 0 ); v >= 0 && v < range; v = vertices.nextSetBit( v + 1 ) )
+		{
+			if ( incoming )
+				for ( int i = inOffsets[ v ]; i < inOffsets[ v + 1 ]; i++ )
+					edges.set( inEdges[ i ] );
+			if ( outgoing )
+				for ( int i = outOffsets[ v ]; i < outOffsets[ v + 1 ]; i++ )
+					edges.set( outEdges[ i ] );
+		}
+	}
+
+	/**
+	 * Adds the source and/or target vertices of the specified edges to a
+	 * bitset, in one pass over the edges.
+	 *
+	 * @param edges
+	 *            the edge IDs.
+	 * @param source
+	 *            whether to add the source vertices.
+	 * @param target
+	 *            whether to add the target vertices.
+	 * @param vertices
+	 *            the bitset to add vertex IDs to.
+	 */
+	void endsOf( final IdBitmap edges, final boolean source, final boolean target, final BitSet vertices )
+	{
+		for ( int e = edges.nextSetBit( 0 ); e >= 0 && e < sources.length; e = edges.nextSetBit( e + 1 ) )
+		{
+			if ( sources[ e ] < 0 )
+				continue;
+			if ( source )
+				vertices.set( sources[ e ] );
+			if ( target )
+				vertices.set( targets[ e ] );
+		}
+	}
+
+	/**
+	 * Adds the vertices and edges reached from the specified selection by
+	 * following edges in one direction, up to a number of steps.
+	 * <p>
+	 * The search is level-synchronous: each level is a bitset of vertices,
+	 * and the next level is made of the ends of all their edges, minus the
+	 * vertices already expanded. Each level thus costs in proportion to its
+	 * own size, and large levels are split in chunks expanded concurrently.
+	 * The selected edges count as one step to their end. The selected
+	 * objects are not included, unless they are reached from others.
+	 *
+	 * @param seedVertices
+	 *            the vertex IDs to start from.
+	 * @param seedEdges
+	 *            the edge IDs to start from.
+	 * @param forward
+	 *            if <code>true</code>, follows edges from source to target,
+	 *            otherwise from target to source.
+	 * @param depth
+	 *            the max number of steps.
+	 * @param vertices
+	 *            the bitset to add reached vertex IDs to.
+	 * @param edges
+	 *            the bitset to add followed edge IDs to.
+	 */
+	void reach( final IdBitmap seedVertices, final IdBitmap seedEdges, final boolean forward, final int depth, final BitSet vertices, final BitSet edges )
+	{
+		if ( depth <= 0 )
+			return;
+		final int[] offsets = forward ? outOffsets : inOffsets;
+		final int[] adjacent = forward ? outEdges : inEdges;
+		final int[] ends = forward ? targets : sources;
+
+		final BitSet expanded = new BitSet();
+		BitSet frontier = ( BitSet ) seedVertices.asBitSet().clone();
+		if ( frontier.length() > vertexRange() )
+			frontier.clear( vertexRange(), frontier.length() );
+		BitSet next = new BitSet();
+		endsOf( seedEdges, !forward, forward, next );
+		for ( int level = 0; level < depth; level++ )
+		{
+			expanded.or( frontier );
+			expand( frontier, offsets, adjacent, ends, next, edges );
+			vertices.or( next );
+			next.andNot( expanded );
+			if ( next.isEmpty() )
+				return;
+			frontier = next;
+			next = new BitSet();
+		}
+	}
+
+	/**
+	 * Adds the edges of a level and their ends to the specified bitsets.
+	 */
+	private static void expand( final BitSet frontier, final int[] offsets, final int[] adjacent, final int[] ends, final BitSet next, final BitSet edges )
+	{
+		final int size = frontier.cardinality();
+		final int chunks = Math.min( 4 * ForkJoinPool.getCommonPoolParallelism(), size / MIN_CHUNK );
+		if ( chunks <= 1 )
+		{
+			expand( frontier, 0, frontier.length(), offsets, adjacent, ends, next, edges );
+			return;
+		}
+
+		// Chunks of the ID range, each writing in its own bitsets.
+		final int length = frontier.length();
+		final BitSet[] nexts = new BitSet[ chunks ];
+		final BitSet[] followed = new BitSet[ chunks ];
+		IntStream.range( 0, chunks ).parallel().forEach( c -> {
+			nexts[ c ] = new BitSet();
+			followed[ c ] = new BitSet();
+			expand( frontier,
+					( int ) ( ( long ) length * c / chunks ),
+					( int ) ( ( long ) length * ( c + 1 ) / chunks ),
+					offsets, adjacent, ends, nexts[ c ], followed[ c ] );
+		} );
+		for ( int c = 0; c < chunks; c++ )
+		{
+			next.or( nexts[ c ] );
+			edges.or( followed[ c ] );
+		}
+	}
+
+	private static void expand( final BitSet frontier, final int from, final int to, final int[] offsets, final int[] adjacent, final int[] ends, final BitSet next, final BitSet edges )
+	{
+		for ( int v = frontier.nextSetBit( from ); v >= 0 && v < to; v = frontier.nextSetBit( v + 1 ) )
+		{
+			for ( int i = offsets[ v ]; i < offsets[ v + 1 ]; i++ )
+			{
+				final int e = adjacent[ i ];
+				edges.set( e );
+				next.set( ends[ e ] );
+			}
+		}
+	}
+
+	/**
+	 * Returns the approximate memory footprint of this snapshot.
+	 *
+	 * @return a number of bytes.
+	 */
+	long bytes()
+	{
+		return vertices.size() / 8 + 4l * ( sources.length + targets.length + outOffsets.length + outEdges.length + inOffsets.length + inEdges.length );
+	}
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+/**
+ * Dense {@link IdBitmap}, backed by a {@link BitSet}.
+ */
+final class BitSetIdBitmap extends IdBitmap
+{
+
+	/**
+	 * Bitmaps below this many bits are always kept dense.
+	 */
+	private static final int MIN_COMPRESSED_LENGTH = 1 << 16;
+
+	final BitSet bits;
+
+	BitSetIdBitmap( final BitSet bits )
+	{
+		this.bits = bits;
+	}
+
+	@Override
+	boolean get( final int id )
+	{
+		return bits.get( id );
+	}
+
+	@Override
+	void set( final int id )
+	{
+		bits.set( id );
+	}
+
+	@Override
+	int nextSetBit( final int from )
+	{
+		return bits.nextSetBit( from );
+	}
+
+	@Override
+	int cardinality()
+	{
+		return bits.cardinality();
+	}
+
+	@Override
+	boolean isEmpty()
+	{
+		return bits.isEmpty();
+	}
+
+	@Override
+	void clear()
+	{
+		bits.clear();
+	}
+
+	@Override
+	IdBitmap copy()
+	{
+		return new BitSetIdBitmap( ( BitSet ) bits.clone() );
+	}
+
+	@Override
+	IdBitmap or( final IdBitmap other )
+	{
+		bits.or( other.asBitSet() );
+		return this;
+	}
+
+	@Override
+	IdBitmap and( final IdBitmap other )
+	{
+		if ( other instanceof BitSetIdBitmap )
+		{
+			bits.and( ( ( BitSetIdBitmap ) other ).bits );
+			return this;
+		}
+		// The intersection is at most as large as the sparse operand.
+		return other.copy().and( this );
+	}
+
+	@Override
+	IdBitmap andNot( final IdBitmap other )
+	{
+		bits.andNot( other.asBitSet() );
+		return this;
+	}
+
+	@Override
+	IdBitmap optimize()
+	{
+		final int length = bits.length();
+		if ( length < MIN_COMPRESSED_LENGTH )
+			return this;
+		// Compressed IDs cost about 2 bytes each, dense ones 1 bit of range.
+		if ( 32l * bits.cardinality() >= length )
+			return this;
+		return RoaringIdBitmap.of( bits ).optimize();
+	}
+
+	@Override
+	BitSet asBitSet()
+	{
+		return bits;
+	}
+
+	@Override
+	long bytes()
+	{
+		return bits.size() / 8;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Dense( " + cardinality() + " )";
+	}
+}
@@ -43,7 +43,7 @@ public class BitSetIterator
 
 	private static final int NO_VALUE = Integer.MIN_VALUE;
 
-	private final BitSet set;
+	private final IdBitmap set;
 
 	private int next;
 
@@ -52,6 +52,11 @@ public class BitSetIterator
 	private int index;
 
 	public BitSetIterator( final BitSet set )
+	{
+		this( new BitSetIdBitmap( set ) );
+	}
+
+	BitSetIterator( final IdBitmap set )
 	{
 		this.set = set;
 		this.index = 0;
@@ -0,0 +1,309 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.mastodon.RefPool;
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+import org.mastodon.model.SelectionModel;
+
+/**
+ * Executes a compiled {@link BlockOperator} tree over a graph.
+ * <p>
+ * The vertices then the edges of the graph are read once, in blocks of
+ * {@link IdBlock#SIZE} IDs, and each block is pushed through the whole
+ * operator tree before the next one is read. Passes over vertices or edges
+ * are skipped when the operator tree rejects this kind of objects, and
+ * restricted to the candidate IDs of the operator tree when it can tell them,
+ * for instance from an index or from the selection model.
+ * <p>
+ * An executor holds no state of its own, and can be used concurrently by
+ * several threads.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class BlockExecutor< V extends Vertex< E >, E extends Edge< V > >
+{
+
+	private final ReadOnlyGraph< V, E > graph;
+
+	private final GraphIdBimap< V, E > idmap;
+
+	private final SelectionModel< V, E > selectionModel;
+
+	private final SelectionMorpher< V, E > morpher;
+
+	private final SelectionMirror< V, E > mirror;
+
+	public BlockExecutor( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final SelectionModel< V, E > selectionModel )
+	{
+		this( graph, idmap, selectionModel, EvaluationContext.empty() );
+	}
+
+	/**
+	 * Creates an executor that reads the current selection from the mirror of
+	 * the specified context, and morphs selections with its morpher.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            the graph ID bimap.
+	 * @param selectionModel
+	 *            the selection model.
+	 * @param context
+	 *            the caches and indices of the model.
+	 */
+	public BlockExecutor( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final SelectionModel< V, E > selectionModel, final EvaluationContext< V, E > context )
+	{
+		this.graph = graph;
+		this.idmap = idmap;
+		this.selectionModel = selectionModel;
+		this.mirror = context.mirror;
+		this.morpher = context.morpher == null ? new SelectionMorpher<>( graph, idmap ) : context.morpher;
+	}
+
+	/**
+	 * Executes the specified operator tree over the graph.
+	 *
+	 * @param operator
+	 *            the root of the operator tree.
+	 * @return a new {@link SelectionVariable} containing the vertices and
+	 *         edges accepted by the operator.
+	 */
+	public SelectionVariable execute( final BlockOperator operator )
+	{
+		return new Execution().evaluate( operator );
+	}
+
+	/**
+	 * Updates the result of a local operator tree after some objects changed.
+	 * The IDs of these objects are removed from the previous result, and the
+	 * objects that still exist are tested again and added back if they are
+	 * accepted.
+	 *
+	 * @param operator
+	 *            the root of the operator tree. Must be local.
+	 * @param previous
+	 *            the previous result of the operator tree. Not modified.
+	 * @param vertices
+	 *            the IDs of the vertices that changed.
+	 * @param edges
+	 *            the IDs of the edges that changed.
+	 * @return a new {@link SelectionVariable} containing the updated result.
+	 * @see BlockOperator#isLocal()
+	 */
+	public SelectionVariable update( final BlockOperator operator, final SelectionVariable previous, final BitSet vertices, final BitSet edges )
+	{
+		final Execution execution = new Execution();
+		final BitSet v = ( BitSet ) previous.selectedVertices.asBitSet().clone();
+		v.andNot( vertices );
+		v.or( execution.retest( operator, ObjectKind.VERTEX, vertices, idmap.vertexIdBimap() ) );
+		final BitSet e = ( BitSet ) previous.selectedEdges.asBitSet().clone();
+		e.andNot( edges );
+		e.or( execution.retest( operator, ObjectKind.EDGE, edges, idmap.edgeIdBimap() ) );
+		return new SelectionVariable( v, e );
+	}
+
+	/**
+	 * The state of one execution: the selections built by the
+	 * {@link MaterializedOperator}s reached so far.
+	 */
+	final class Execution
+	{
+
+		private final Map< MaterializedOperator, SelectionVariable > materialized = new IdentityHashMap<>();
+
+		/**
+		 * Returns the full selection accepted by the specified operator.
+		 *
+		 * @param operator
+		 *            the operator.
+		 * @return a new selection.
+		 */
+		SelectionVariable evaluate( final BlockOperator operator )
+		{
+			final BitSet vertices = run( operator, ObjectKind.VERTEX, graph.vertices(), idmap.vertexIdBimap() );
+			final BitSet edges = run( operator, ObjectKind.EDGE, graph.edges(), idmap.edgeIdBimap() );
+			return new SelectionVariable( vertices, edges );
+		}
+
+		/**
+		 * Returns the selection built by the specified operator, building it
+		 * if it was not reached yet during this execution.
+		 *
+		 * @param operator
+		 *            the operator.
+		 * @return the selection. Must not be modified.
+		 */
+		SelectionVariable materialized( final MaterializedOperator operator )
+		{
+			// NB: not computeIfAbsent, materializing may materialize others.
+			SelectionVariable sv = materialized.get( operator );
+			if ( sv == null )
+			{
+				sv = operator.materialize( this );
+				materialized.put( operator, sv );
+			}
+			return sv;
+		}
+
+		/**
+		 * Returns a new selection with the current content of the selection
+		 * model.
+		 *
+		 * @return a new selection.
+		 */
+		SelectionVariable selection()
+		{
+			if ( mirror != null )
+				return mirror.get();
+			return SelectionVariable.fromSelectionModel( selectionModel, idmap );
+		}
+
+		/**
+		 * Morphs the specified selection.
+		 *
+		 * @param selection
+		 *            the selection to morph.
+		 * @param morphers
+		 *            the morphers to apply.
+		 * @return the morphed selection.
+		 */
+		SelectionVariable morph( final SelectionVariable selection, final Collection< Morpher > morphers )
+		{
+			return morpher.morph( selection, morphers );
+		}
+
+		/**
+		 * Returns the objects reached from the specified selection in a
+		 * number of steps along the edges.
+		 *
+		 * @param selection
+		 *            the selection to start from.
+		 * @param forward
+		 *            whether to follow edges from source to target.
+		 * @param depth
+		 *            the max number of steps.
+		 * @return a new selection.
+		 */
+		SelectionVariable traverse( final SelectionVariable selection, final boolean forward, final int depth )
+		{
+			return forward ? morpher.successors( selection, depth ) : morpher.predecessors( selection, depth );
+		}
+
+		/**
+		 * Tests the objects of the specified IDs that still exist.
+		 */
+		private < O > BitSet retest( final BlockOperator operator, final ObjectKind kind, final BitSet ids, final RefPool< O > idMap )
+		{
+			final BitSet result = new BitSet();
+			if ( ids.isEmpty() || !operator.accepts( kind ) )
+				return result;
+
+			final IdBlock block = new IdBlock( kind, this, false );
+			final long[] in = new long[ IdBlock.WORDS ];
+			final long[] out = new long[ IdBlock.WORDS ];
+			final O ref = idMap.createRef();
+			for ( int id = ids.nextSetBit( 0 ); id >= 0; id = ids.nextSetBit( id + 1 ) )
+			{
+				if ( idMap.getObjectIfExists( id, ref ) == null )
+					continue;
+				block.ids[ block.size++ ] = id;
+				if ( block.isFull() )
+					flush( operator, block, in, out, result );
+			}
+			idMap.releaseRef( ref );
+			if ( block.size > 0 )
+				flush( operator, block, in, out, result );
+			return result;
+		}
+
+		private < O > BitSet run( final BlockOperator operator, final ObjectKind kind, final Iterable< O > objects, final RefPool< O > idMap )
+		{
+			final BitSet result = new BitSet();
+			if ( !operator.accepts( kind ) )
+				return result;
+
+			final BitSet candidates = operator.candidates( this, kind );
+			final IdBlock block = new IdBlock( kind, this, candidates == null );
+			final long[] in = new long[ IdBlock.WORDS ];
+			final long[] out = new long[ IdBlock.WORDS ];
+			if ( candidates != null )
+			{
+				// Only visit the objects the operator may accept.
+				for ( int id = candidates.nextSetBit( 0 ); id >= 0; id = candidates.nextSetBit( id + 1 ) )
+				{
+					block.ids[ block.size++ ] = id;
+					if ( block.isFull() )
+						flush( operator, block, in, out, result );
+				}
+			}
+			else
+			{
+				for ( final O o : objects )
+				{
+					block.ids[ block.size++ ] = idMap.getId( o );
+					if ( block.isFull() )
+						flush( operator, block, in, out, result );
+				}
+			}
+			if ( block.size > 0 )
+				flush( operator, block, in, out, result );
+			return result;
+		}
+	}
+
+	private static void flush( final BlockOperator operator, final IdBlock block, final long[] in, final long[] out, final BitSet result )
+	{
+		block.all( in );
+		operator.test( block, in, out );
+		for ( int w = 0; w < out.length; w++ )
+		{
+			long word = out[ w ];
+			while ( word != 0l )
+			{
+				final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+				word &= word - 1;
+				result.set( block.ids[ i ] );
+			}
+		}
+		block.size = 0;
+	}
+}
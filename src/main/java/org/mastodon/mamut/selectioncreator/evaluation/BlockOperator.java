@@ -0,0 +1,436 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+/**
+ * A node of a compiled selection expression.
+ * <p>
+ * Operators do not produce full selections. Instead, blocks of object IDs are
+ * pushed through the whole operator tree, and each operator tests the objects
+ * of the block flagged in an input mask, and flags the ones it accepts in an
+ * output mask. Combining operators only pass on the survivors of their first
+ * operand to the second one, so a compound predicate reads each object once
+ * and keeps intermediate results in small, cache-resident masks.
+ * <p>
+ * Operators are immutable and can be shared between threads. Per-execution
+ * state is stored in the {@link IdBlock} and its execution.
+ *
+ * @see SelectionCompiler
+ * @see BlockExecutor
+ */
+public abstract class BlockOperator
+{
+
+	BlockOperator()
+	{}
+
+	/**
+	 * Tests the objects of the block flagged in the <code>in</code> mask, and
+	 * writes in the <code>out</code> mask the ones that are accepted by this
+	 * operator. The <code>out</code> mask is entirely overwritten, and is
+	 * always a subset of the <code>in</code> mask.
+	 *
+	 * @param block
+	 *            the block of object IDs.
+	 * @param in
+	 *            the mask of the objects to test.
+	 * @param out
+	 *            the mask to write the result to.
+	 */
+	abstract void test( IdBlock block, long[] in, long[] out );
+
+	/**
+	 * Returns <code>false</code> if this operator is guaranteed to reject all
+	 * the objects of the specified kind. Executors use it to skip whole passes
+	 * over the vertices or the edges.
+	 *
+	 * @param kind
+	 *            the kind of objects.
+	 * @return whether objects of this kind may be accepted.
+	 */
+	abstract boolean accepts( ObjectKind kind );
+
+	/**
+	 * Returns the IDs of the objects of the specified kind that this operator
+	 * may accept, if it can tell them without testing all the objects. The
+	 * executor then only pushes these IDs through the operator tree.
+	 *
+	 * @param execution
+	 *            the current execution.
+	 * @param kind
+	 *            the kind of objects.
+	 * @return a superset of the IDs accepted by this operator, or
+	 *         <code>null</code> if all the objects must be tested. Must not be
+	 *         modified.
+	 */
+	BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+	{
+		return null;
+	}
+
+	/**
+	 * Estimates the fraction of the objects of the specified kind accepted by
+	 * this operator, before executing it. Used by the {@link QueryPlanner} to
+	 * order the operands of 'and' and 'or'.
+	 *
+	 * @param planner
+	 *            the planner, that knows the size of the graph and the
+	 *            current selection.
+	 * @param kind
+	 *            the kind of objects.
+	 * @return a number between 0 and 1.
+	 */
+	double selectivity( final QueryPlanner planner, final ObjectKind kind )
+	{
+		return accepts( kind ) ? QueryPlanner.DEFAULT_SELECTIVITY : 0.;
+	}
+
+	/**
+	 * Describes how this operator reads the objects it tests, for instance
+	 * through a column or an index.
+	 *
+	 * @return a short description, or <code>null</code> for operators that
+	 *         only combine other operators.
+	 */
+	String access()
+	{
+		return null;
+	}
+
+	/**
+	 * Returns whether this operator decides on an object by looking at this
+	 * object alone. The result of a local operator only changes for the
+	 * objects whose features or tags changed, so it can be updated by testing
+	 * these objects again.
+	 *
+	 * @return <code>true</code> if this operator is local.
+	 */
+	public boolean isLocal()
+	{
+		return true;
+	}
+
+	/**
+	 * Returns whether every property this operator reads only changes with an
+	 * event that says which objects changed: objects added, removed or
+	 * moved. Tags, and feature projections that read other properties of the
+	 * objects, change with nothing more than a graph change notification.
+	 *
+	 * @return <code>true</code> if the changes of the objects this operator
+	 *         accepts can be traced from the graph events.
+	 * @see FeatureColumn#isTracked(org.mastodon.feature.FeatureSpec,
+	 *      org.mastodon.feature.FeatureProjection)
+	 */
+	public boolean isTracked()
+	{
+		return true;
+	}
+
+	/**
+	 * Returns an operator that accepts no object.
+	 *
+	 * @return an operator.
+	 */
+	static BlockOperator nothing()
+	{
+		return NOTHING;
+	}
+
+	/**
+	 * Returns an operator that accepts objects accepted by both operands.
+	 *
+	 * @param a
+	 *            the first operand, evaluated first.
+	 * @param b
+	 *            the second operand, only evaluated on the survivors of the
+	 *            first one.
+	 * @return a new operator.
+	 */
+	static BlockOperator and( final BlockOperator a, final BlockOperator b )
+	{
+		return new And( a, b );
+	}
+
+	/**
+	 * Returns an operator that accepts objects accepted by any of the two
+	 * operands.
+	 *
+	 * @param a
+	 *            the first operand, evaluated first.
+	 * @param b
+	 *            the second operand, only evaluated on the objects rejected by
+	 *            the first one.
+	 * @return a new operator.
+	 */
+	static BlockOperator or( final BlockOperator a, final BlockOperator b )
+	{
+		return new Or( a, b );
+	}
+
+	/**
+	 * Returns an operator that accepts objects accepted by the first operand
+	 * but not by the second one.
+	 *
+	 * @param a
+	 *            the first operand.
+	 * @param b
+	 *            the operand to subtract, only evaluated on the survivors of
+	 *            the first one.
+	 * @return a new operator.
+	 */
+	static BlockOperator sub( final BlockOperator a, final BlockOperator b )
+	{
+		return new Sub( a, b );
+	}
+
+	private static final BlockOperator NOTHING = new BlockOperator()
+	{
+
+		@Override
+		void test( final IdBlock block, final long[] in, final long[] out )
+		{
+			for ( int w = 0; w < out.length; w++ )
+				out[ w ] = 0l;
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return false;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Nothing";
+		}
+	};
+
+	static final class And extends BlockOperator
+	{
+
+		final BlockOperator a;
+
+		final BlockOperator b;
+
+		private And( final BlockOperator a, final BlockOperator b )
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		void test( final IdBlock block, final long[] in, final long[] out )
+		{
+			final long[] tmp = block.borrow();
+			a.test( block, in, tmp );
+			b.test( block, tmp, out );
+			block.release( tmp );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return a.accepts( kind ) && b.accepts( kind );
+		}
+
+		@Override
+		BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+		{
+			// The first operand is the cheapest one.
+			final BitSet candidates = a.candidates( execution, kind );
+			return candidates != null ? candidates : b.candidates( execution, kind );
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			// Operands are assumed independent.
+			return a.selectivity( planner, kind ) * b.selectivity( planner, kind );
+		}
+
+		@Override
+		public boolean isLocal()
+		{
+			return a.isLocal() && b.isLocal();
+		}
+
+		@Override
+		public boolean isTracked()
+		{
+			return a.isTracked() && b.isTracked();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "And( " + a + ", " + b + " )";
+		}
+	}
+
+	static final class Or extends BlockOperator
+	{
+
+		final BlockOperator a;
+
+		final BlockOperator b;
+
+		private Or( final BlockOperator a, final BlockOperator b )
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		void test( final IdBlock block, final long[] in, final long[] out )
+		{
+			final long[] ra = block.borrow();
+			final long[] rest = block.borrow();
+			a.test( block, in, ra );
+			for ( int w = 0; w < rest.length; w++ )
+				rest[ w ] = in[ w ] & ~ra[ w ];
+			b.test( block, rest, out );
+			for ( int w = 0; w < out.length; w++ )
+				out[ w ] |= ra[ w ];
+			block.release( rest );
+			block.release( ra );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return a.accepts( kind ) || b.accepts( kind );
+		}
+
+		@Override
+		BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+		{
+			final BitSet ca = a.candidates( execution, kind );
+			if ( ca == null )
+				return null;
+			final BitSet cb = b.candidates( execution, kind );
+			if ( cb == null )
+				return null;
+			final BitSet candidates = ( BitSet ) ca.clone();
+			candidates.or( cb );
+			return candidates;
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			final double sa = a.selectivity( planner, kind );
+			final double sb = b.selectivity( planner, kind );
+			return sa + sb - sa * sb;
+		}
+
+		@Override
+		public boolean isLocal()
+		{
+			return a.isLocal() && b.isLocal();
+		}
+
+		@Override
+		public boolean isTracked()
+		{
+			return a.isTracked() && b.isTracked();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Or( " + a + ", " + b + " )";
+		}
+	}
+
+	static final class Sub extends BlockOperator
+	{
+
+		final BlockOperator a;
+
+		final BlockOperator b;
+
+		private Sub( final BlockOperator a, final BlockOperator b )
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		void test( final IdBlock block, final long[] in, final long[] out )
+		{
+			final long[] ra = block.borrow();
+			final long[] rb = block.borrow();
+			a.test( block, in, ra );
+			b.test( block, ra, rb );
+			for ( int w = 0; w < out.length; w++ )
+				out[ w ] = ra[ w ] & ~rb[ w ];
+			block.release( rb );
+			block.release( ra );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return a.accepts( kind );
+		}
+
+		@Override
+		BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+		{
+			return a.candidates( execution, kind );
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			return a.selectivity( planner, kind ) * ( 1. - b.selectivity( planner, kind ) );
+		}
+
+		@Override
+		public boolean isLocal()
+		{
+			return a.isLocal() && b.isLocal();
+		}
+
+		@Override
+		public boolean isTracked()
+		{
+			return a.isTracked() && b.isTracked();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Sub( " + a + ", " + b + " )";
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureProjection;
+
+/**
+ * A feature of the branches of the graph, computed from the
+ * {@link BranchIndex}. Comparisons test each branch once, and select the
+ * vertices and the inner edges of the branches whose value matches, like the
+ * 'wholeBranch' morph does.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ */
+final class BranchFeatureVariable< V > implements FeatureVariable< V >
+{
+
+	/**
+	 * The branch features.
+	 */
+	enum BranchFeature
+	{
+		/**
+		 * The number of vertices of the branch.
+		 */
+		N_SPOTS( "Branch N spots" ),
+		/**
+		 * The number of frames between the first and the last vertex of the
+		 * branch, read from the frame feature of the vertices.
+		 */
+		DURATION( "Branch duration" );
+
+		private final String key;
+
+		private BranchFeature( final String key )
+		{
+			this.key = key;
+		}
+
+		/**
+		 * Returns the branch feature with the specified key.
+		 *
+		 * @param key
+		 *            the key.
+		 * @return the branch feature, or <code>null</code> if there is none.
+		 */
+		static BranchFeature forKey( final String key )
+		{
+			for ( final BranchFeature feature : values() )
+				if ( feature.key.equals( key ) )
+					return feature;
+			return null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return key;
+		}
+	}
+
+	private final BranchFeature feature;
+
+	private final SelectionMorpher< ?, ? > morpher;
+
+	/**
+	 * The frame of the vertices, <code>null</code> if not needed.
+	 */
+	private final FeatureProjection< V > frames;
+
+	private final RefPool< V > vertices;
+
+	/**
+	 * Creates a branch feature variable.
+	 *
+	 * @param feature
+	 *            the branch feature.
+	 * @param morpher
+	 *            the morpher that holds the branches of the graph.
+	 * @param frames
+	 *            the frame of the vertices, required for the duration.
+	 * @param vertices
+	 *            the vertex pool, to get vertices from their IDs.
+	 */
+	BranchFeatureVariable( final BranchFeature feature, final SelectionMorpher< ?, ? > morpher, final FeatureProjection< V > frames, final RefPool< V > vertices )
+	{
+		this.feature = feature;
+		this.morpher = morpher;
+		this.frames = frames;
+		this.vertices = vertices;
+	}
+
+	/**
+	 * Returns a {@link BlockOperator} that accepts the objects of the branches
+	 * whose value is in the specified intervals.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @return a new operator.
+	 */
+	BlockOperator compare( final IntervalSet intervals )
+	{
+		return new MaterializedOperator.BranchFeatureOperator( this, intervals );
+	}
+
+	/**
+	 * Selects the vertices and the inner edges of the branches whose value is
+	 * in the specified intervals.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @param domain
+	 *            the domain, or <code>null</code> for the whole graph.
+	 * @return a new selection.
+	 */
+	SelectionVariable select( final IntervalSet intervals, final SelectionVariable domain )
+	{
+		final BranchIndex index = morpher.branches();
+		final BitSet selected = new BitSet();
+		final V ref = frames == null ? null : vertices.createRef();
+		for ( int b = 0; b < index.size(); b++ )
+			if ( intervals.test( value( index, b, ref ) ) )
+				selected.set( b );
+		if ( ref != null )
+			vertices.releaseRef( ref );
+
+		final BitSet selectedVertices = new BitSet();
+		final BitSet selectedEdges = new BitSet();
+		index.expand( selected, selectedVertices, selectedEdges );
+		final SelectionVariable result = new SelectionVariable( selectedVertices, selectedEdges );
+		if ( domain != null )
+			result.inPlaceAnd( domain );
+		return result;
+	}
+
+	private double value( final BranchIndex index, final int branch, final V ref )
+	{
+		switch ( feature )
+		{
+		case N_SPOTS:
+			return index.length( branch );
+		case DURATION:
+		{
+			final V first = vertices.getObject( index.first( branch ), ref );
+			if ( !frames.isSet( first ) )
+				return Double.NaN;
+			final double start = frames.value( first );
+			final V last = vertices.getObject( index.last( branch ), ref );
+			if ( !frames.isSet( last ) )
+				return Double.NaN;
+			return frames.value( last ) - start;
+		}
+		default:
+			throw new IllegalArgumentException( "Unknown branch feature: " + feature );
+		}
+	}
+
+	@Override
+	public SelectionVariable lessThan( final double threshold )
+	{
+		return lessThan( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable lessThan( final double threshold, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.LESS_THAN, threshold ), domain );
+	}
+
+	@Override
+	public SelectionVariable greaterThan( final double threshold )
+	{
+		return greaterThan( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable greaterThan( final double threshold, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.GREATER_THAN, threshold ), domain );
+	}
+
+	@Override
+	public SelectionVariable lessThanOrEqual( final double threshold )
+	{
+		return lessThanOrEqual( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable lessThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.LESS_THAN_OR_EQUAL, threshold ), domain );
+	}
+
+	@Override
+	public SelectionVariable greaterThanOrEqual( final double threshold )
+	{
+		return greaterThanOrEqual( threshold, null );
+	}
+
+	@Override
+	public SelectionVariable greaterThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, threshold ), domain );
+	}
+
+	@Override
+	public SelectionVariable equal( final double value )
+	{
+		return equal( value, null );
+	}
+
+	@Override
+	public SelectionVariable equal( final double value, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.EQUAL, value ), domain );
+	}
+
+	@Override
+	public SelectionVariable notEqual( final double value )
+	{
+		return notEqual( value, null );
+	}
+
+	@Override
+	public SelectionVariable notEqual( final double value, final SelectionVariable domain )
+	{
+		return select( IntervalSet.of( Comparison.NOT_EQUAL, value ), domain );
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max )
+	{
+		return between( min, max, null );
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max, final SelectionVariable domain )
+	{
+		return select( IntervalSet.between( min, max ), domain );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BranchFeature( " + feature + " )";
+	}
+}
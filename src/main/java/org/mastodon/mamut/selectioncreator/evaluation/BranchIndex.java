@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A decomposition of the graph in branches: maximal chains of vertices linked
+ * one to one, between divisions and merges.
+ * <p>
+ * A branch starts at a vertex that does not have exactly one incoming edge,
+ * or whose parent has several outgoing edges, and follows the edges as long
+ * as they link one vertex to one vertex. The edges inside a branch belong to
+ * it; the edges of divisions and merges link two branches.
+ * <p>
+ * Branch operations then work on the branches touched by a selection, that
+ * are typically much fewer than its vertices, and expand the result back to
+ * the vertices and edges of the branches in one pass. The decomposition is
+ * immutable and built from one {@link Adjacency} snapshot, in the same way as
+ * the branch graph of Mastodon models.
+ * <p>
+ * The index does not use the branch graph itself, which only exists for
+ * Mastodon models and is synchronized with the graph on demand. The features
+ * declared for the branch graph are therefore not available to expressions.
+ * The branch features that only depend on the structure and on the frames,
+ * the number of vertices and the duration of the branches, are computed from
+ * this index by {@link BranchFeatureVariable}.
+ */
+final class BranchIndex
+{
+
+	/**
+	 * The snapshot this index was built from.
+	 */
+	final Adjacency adjacency;
+
+	/**
+	 * The branch of each vertex ID, <code>-1</code> for unused IDs.
+	 */
+	private final int[] branches;
+
+	/**
+	 * The vertices of the branch <code>b</code> are stored in chain order in
+	 * <code>members</code> from <code>offsets[b]</code> to
+	 * <code>offsets[b + 1]</code>.
+	 */
+	private final int[] offsets;
+
+	private final int[] members;
+
+	/**
+	 * The edge from the previous vertex of the branch to the vertex at each
+	 * position of <code>members</code>, <code>-1</code> for the first one.
+	 */
+	private final int[] links;
+
+	private BranchIndex( final Adjacency adjacency, final int[] branches, final int[] offsets, final int[] members, final int[] links )
+	{
+		this.adjacency = adjacency;
+		this.branches = branches;
+		this.offsets = offsets;
+		this.members = members;
+		this.links = links;
+	}
+
+	/**
+	 * Decomposes a snapshot of the graph in branches.
+	 *
+	 * @param adjacency
+	 *            the snapshot.
+	 * @return a new index.
+	 */
+	static BranchIndex build( final Adjacency adjacency )
+	{
+		final int n = adjacency.vertexRange();
+		final int[] branches = new int[ n ];
+		Arrays.fill( branches, -1 );
+		final int[] members = new int[ n ];
+		final int[] links = new int[ n ];
+		int[] offsets = new int[ 16 ];
+		int nBranches = 0;
+		int position = 0;
+		// Chains from the branch starts first, then from the vertices left,
+		// that are in cycles of one to one links.
+		for ( int pass = 0; pass < 2; pass++ )
+		{
+			for ( int v = 0; v < n; v++ )
+			{
+				if ( !adjacency.contains( v ) || branches[ v ] >= 0 || ( pass == 0 && !isStart( adjacency, v ) ) )
+					continue;
+				if ( nBranches + 2 > offsets.length )
+					offsets = Arrays.copyOf( offsets, 2 * offsets.length );
+				offsets[ nBranches ] = position;
+				int vertex = v;
+				int link = -1;
+				while ( true )
+				{
+					branches[ vertex ] = nBranches;
+					members[ position ] = vertex;
+					links[ position++ ] = link;
+					if ( adjacency.outDegree( vertex ) != 1 )
+						break;
+					link = adjacency.outEdge( adjacency.outStart( vertex ) );
+					vertex = adjacency.target( link );
+					if ( adjacency.inDegree( vertex ) != 1 || branches[ vertex ] >= 0 )
+						break;
+				}
+				nBranches++;
+			}
+		}
+		offsets[ nBranches ] = position;
+		return new BranchIndex( adjacency, branches, Arrays.copyOf( offsets, nBranches + 1 ), members, links );
+	}
+
+	/**
+	 * Whether a vertex starts a branch: it is a root, follows a division or
+	 * is a merge.
+	 */
+	private static boolean isStart( final Adjacency adjacency, final int vertex )
+	{
+		if ( adjacency.inDegree( vertex ) != 1 )
+			return true;
+		final int parent = adjacency.source( adjacency.inEdge( adjacency.inStart( vertex ) ) );
+		return adjacency.outDegree( parent ) != 1;
+	}
+
+	/**
+	 * Returns the number of branches.
+	 *
+	 * @return the number of branches.
+	 */
+	int size()
+	{
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Returns the ID of the first vertex of a branch.
+	 *
+	 * @param branch
+	 *            the branch.
+	 * @return a vertex ID.
+	 */
+	int first( final int branch )
+	{
+		return members[ offsets[ branch ] ];
+	}
+
+	/**
+	 * Returns the ID of the last vertex of a branch.
+	 *
+	 * @param branch
+	 *            the branch.
+	 * @return a vertex ID.
+	 */
+	int last( final int branch )
+	{
+		return members[ offsets[ branch + 1 ] - 1 ];
+	}
+
+	/**
+	 * Returns the number of vertices of a branch.
+	 *
+	 * @param branch
+	 *            the branch.
+	 * @return the number of vertices.
+	 */
+	int length( final int branch )
+	{
+		return offsets[ branch + 1 ] - offsets[ branch ];
+	}
+
+	/**
+	 * Returns the branches of the specified objects. The edges of a
+	 * division or of a merge touch the branches of both their ends.
+	 *
+	 * @param vertices
+	 *            the vertex IDs.
+	 * @param edges
+	 *            the edge IDs.
+	 * @return a new bitset of branches.
+	 */
+	BitSet branchesOf( final IdBitmap vertices, final IdBitmap edges )
+	{
+		final BitSet result = new BitSet();
+		for ( int v = vertices.nextSetBit( 0 ); v >= 0 && v < branches.length; v = vertices.nextSetBit( v + 1 ) )
+			if ( branches[ v ] >= 0 )
+				result.set( branches[ v ] );
+		for ( int e = edges.nextSetBit( 0 ); e >= 0 && e < adjacency.edgeRange(); e = edges.nextSetBit( e + 1 ) )
+		{
+			final int source = adjacency.source( e );
+			if ( source < 0 )
+				continue;
+			result.set( branches[ source ] );
+			result.set( branches[ adjacency.target( e ) ] );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the branches that follow the specified branches, after a
+	 * division or a merge.
+	 *
+	 * @param selected
+	 *            the branches.
+	 * @return a new bitset of branches.
+	 */
+	BitSet daughters( final BitSet selected )
+	{
+		final BitSet result = new BitSet();
+		for ( int b = selected.nextSetBit( 0 ); b >= 0; b = selected.nextSetBit( b + 1 ) )
+		{
+			final int last = last( b );
+			for ( int i = adjacency.outStart( last ); i < adjacency.outEnd( last ); i++ )
+			{
+				final int daughter = branches[ adjacency.target( adjacency.outEdge( i ) ) ];
+				if ( daughter != b )
+					result.set( daughter );
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the other branches that follow the same parent vertex as the
+	 * specified branches.
+	 *
+	 * @param selected
+	 *            the branches.
+	 * @return a new bitset of branches.
+	 */
+	BitSet siblings( final BitSet selected )
+	{
+		final BitSet result = new BitSet();
+		for ( int b = selected.nextSetBit( 0 ); b >= 0; b = selected.nextSetBit( b + 1 ) )
+		{
+			final int first = first( b );
+			for ( int i = adjacency.inStart( first ); i < adjacency.inEnd( first ); i++ )
+			{
+				final int parent = adjacency.source( adjacency.inEdge( i ) );
+				for ( int j = adjacency.outStart( parent ); j < adjacency.outEnd( parent ); j++ )
+				{
+					final int sibling = branches[ adjacency.target( adjacency.outEdge( j ) ) ];
+					if ( sibling != b )
+						result.set( sibling );
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the vertices of the specified branches and the edges inside them
+	 * to the specified bitsets.
+	 *
+	 * @param selected
+	 *            the branches.
+	 * @param vertices
+	 *            the bitset to add vertex IDs to.
+	 * @param edges
+	 *            the bitset to add edge IDs to.
+	 */
+	void expand( final BitSet selected, final BitSet vertices, final BitSet edges )
+	{
+		for ( int b = selected.nextSetBit( 0 ); b >= 0; b = selected.nextSetBit( b + 1 ) )
+		{
+			vertices.set( members[ offsets[ b ] ] );
+			for ( int p = offsets[ b ] + 1; p < offsets[ b + 1 ]; p++ )
+			{
+				vertices.set( members[ p ] );
+				edges.set( links[ p ] );
+			}
+			// The edge that closes a cycle of one to one links.
+			final int last = last( b );
+			if ( adjacency.outDegree( last ) == 1 )
+			{
+				final int e = adjacency.outEdge( adjacency.outStart( last ) );
+				if ( branches[ adjacency.target( e ) ] == b && adjacency.inDegree( adjacency.target( e ) ) == 1 )
+					edges.set( e );
+			}
+		}
+	}
+
+	/**
+	 * Returns the approximate memory footprint of this index, not counting
+	 * the snapshot it was built from.
+	 *
+	 * @return a number of bytes.
+	 */
+	long bytes()
+	{
+		return 4l * ( branches.length + offsets.length + members.length + links.length );
+	}
+}
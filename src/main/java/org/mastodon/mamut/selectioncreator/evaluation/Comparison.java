@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+/**
+ * The comparison operators that can be applied to a feature value.
+ */
+enum Comparison
+{
+	LESS_THAN( "<" ),
+	LESS_THAN_OR_EQUAL( "<=" ),
+	GREATER_THAN( ">" ),
+	GREATER_THAN_OR_EQUAL( ">=" ),
+	EQUAL( "==" ),
+	NOT_EQUAL( "!=" );
+
+	private final String symbol;
+
+	private Comparison( final String symbol )
+	{
+		this.symbol = symbol;
+	}
+
+	/**
+	 * Returns the comparison to use when the operands are swapped, so that
+	 * <code>a op b</code> is equivalent to <code>b op.mirror() a</code>.
+	 *
+	 * @return the mirrored comparison.
+	 */
+	Comparison mirror()
+	{
+		switch ( this )
+		{
+		case LESS_THAN:
+			return GREATER_THAN;
+		case LESS_THAN_OR_EQUAL:
+			return GREATER_THAN_OR_EQUAL;
+		case GREATER_THAN:
+			return LESS_THAN;
+		case GREATER_THAN_OR_EQUAL:
+			return LESS_THAN_OR_EQUAL;
+		default:
+			return this;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return symbol;
+	}
+}
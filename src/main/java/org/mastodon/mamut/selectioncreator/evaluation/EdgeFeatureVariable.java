@@ -50,12 +50,29 @@ public class EdgeFeatureVariable< E extends Edge< ? > > extends AbstractFeatureV
 		super( featureSpec, projectionKey, projection, collection, idMap );
 	}
 
+	public EdgeFeatureVariable(
+			final FeatureSpec< ?, ? > featureSpec,
+			final FeatureProjectionKey projectionKey,
+			final FeatureProjection< E > projection,
+			final RefCollection< E > collection,
+			final RefPool< E > idMap,
+			final FeatureColumnCache cache )
+	{
+		super( featureSpec, projectionKey, projection, collection, idMap, cache, null );
+	}
+
 	@Override
 	protected SelectionVariable make( final BitSet mainBitSet )
 	{
 		return new SelectionVariable( new BitSet(), mainBitSet );
 	}
 
+	@Override
+	ObjectKind kind()
+	{
+		return ObjectKind.EDGE;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -44,9 +44,20 @@ public class EdgeTagSetVariable< E > extends AbstractTagSetVariable< E >
 		super( tagSet, tags, collection, idMap );
 	}
 
+	public EdgeTagSetVariable( final TagSet tagSet, final ObjTagMap< E, Tag > tags, final RefCollection< E > collection, final RefPool< E > idMap, final TagIndexCache cache )
+	{
+		super( tagSet, tags, collection, idMap, cache );
+	}
+
 	@Override
 	protected SelectionVariable make( final BitSet bitset )
 	{
 		return new SelectionVariable( new BitSet(), bitset );
 	}
+
+	@Override
+	ObjectKind kind()
+	{
+		return ObjectKind.EDGE;
+	}
 }
@@ -67,6 +67,54 @@ public class EmptyFeatureVariable< O > implements FeatureVariable< O >
 		return new SelectionVariable();
 	}
 
+	@Override
+	public SelectionVariable notEqual( final double value, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable equal( final double value, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable greaterThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable lessThanOrEqual( final double threshold, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable greaterThan( final double threshold, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable lessThan( final double threshold, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable between( final double min, final double max, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
 	@Override
 	public String toString()
 	{
@@ -64,4 +64,28 @@ public class EmptyTagSetVariable implements TagSetVariable
 		return new SelectionVariable();
 	}
 
+	@Override
+	public SelectionVariable equal( final Tag tag, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable notEqual( final Tag tag, final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable unset( final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
+	@Override
+	public SelectionVariable set( final SelectionVariable domain )
+	{
+		return new SelectionVariable();
+	}
+
 }
@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.Vertex;
+
+/**
+ * The caches and indices shared by the evaluators and executors of a model.
+ * <p>
+ * All of them are optional. Without them, feature values and tags are read
+ * from the model, frames from the frame feature, the selection from the
+ * selection model, and a new morpher is created for each evaluator.
+ * Instances are made with a {@link Builder}:
+ *
+ * <pre>
+ * EvaluationContext&lt; V, E &gt; context = EvaluationContext.&lt; V, E &gt;builder()
+ * 		.columns( columns )
+ * 		.mirror( mirror )
+ * 		.build();
+ * </pre>
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public final class EvaluationContext< V extends Vertex< E >, E extends Edge< V > >
+{
+
+	final FeatureColumnCache columns;
+
+	final TagIndexCache tagIndices;
+
+	final FrameIndex< V > frames;
+
+	final SelectionMorpher< V, E > morpher;
+
+	final SelectionMirror< V, E > mirror;
+
+	private EvaluationContext( final Builder< V, E > builder )
+	{
+		this.columns = builder.columns;
+		this.tagIndices = builder.tagIndices;
+		this.frames = builder.frames;
+		this.morpher = builder.morpher;
+		this.mirror = builder.mirror;
+	}
+
+	/**
+	 * Returns a context with none of the caches and indices.
+	 *
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 * @return an empty context.
+	 */
+	public static < V extends Vertex< E >, E extends Edge< V > > EvaluationContext< V, E > empty()
+	{
+		return new Builder< V, E >().build();
+	}
+
+	/**
+	 * Returns a new builder, with none of the caches and indices set.
+	 *
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 * @return a new builder.
+	 */
+	public static < V extends Vertex< E >, E extends Edge< V > > Builder< V, E > builder()
+	{
+		return new Builder<>();
+	}
+
+	/**
+	 * Builds an {@link EvaluationContext}. Every setter accepts
+	 * <code>null</code>, for a collaborator that is not available.
+	 *
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 */
+	public static final class Builder< V extends Vertex< E >, E extends Edge< V > >
+	{
+
+		private FeatureColumnCache columns;
+
+		private TagIndexCache tagIndices;
+
+		private FrameIndex< V > frames;
+
+		private SelectionMorpher< V, E > morpher;
+
+		private SelectionMirror< V, E > mirror;
+
+		private Builder()
+		{}
+
+		/**
+		 * Sets the cache the feature values are read from.
+		 *
+		 * @param columns
+		 *            the cache of feature values.
+		 * @return this builder.
+		 */
+		public Builder< V, E > columns( final FeatureColumnCache columns )
+		{
+			this.columns = columns;
+			return this;
+		}
+
+		/**
+		 * Sets the cache the tags are read from.
+		 *
+		 * @param tagIndices
+		 *            the cache of tag indices.
+		 * @return this builder.
+		 */
+		public Builder< V, E > tagIndices( final TagIndexCache tagIndices )
+		{
+			this.tagIndices = tagIndices;
+			return this;
+		}
+
+		/**
+		 * Sets the index the vertices of given timepoints are read from.
+		 *
+		 * @param frames
+		 *            the frame index.
+		 * @return this builder.
+		 */
+		public Builder< V, E > frames( final FrameIndex< V > frames )
+		{
+			this.frames = frames;
+			return this;
+		}
+
+		/**
+		 * Sets the morpher selections are morphed and traversed with.
+		 *
+		 * @param morpher
+		 *            the morpher.
+		 * @return this builder.
+		 */
+		public Builder< V, E > morpher( final SelectionMorpher< V, E > morpher )
+		{
+			this.morpher = morpher;
+			return this;
+		}
+
+		/**
+		 * Sets the mirror the current selection is read from.
+		 *
+		 * @param mirror
+		 *            the mirror of the selection model.
+		 * @return this builder.
+		 */
+		public Builder< V, E > mirror( final SelectionMirror< V, E > mirror )
+		{
+			this.mirror = mirror;
+			return this;
+		}
+
+		/**
+		 * Creates the context.
+		 *
+		 * @return a new context.
+		 */
+		public EvaluationContext< V, E > build()
+		{
+			return new EvaluationContext<>( this );
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.MorphOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.TraversalOperator;
+
+/**
+ * Measures the execution of a planned operator tree, operator by operator.
+ * <p>
+ * Every operator of the tree is wrapped in an operator that records the
+ * time spent in it, the number of objects it tested and accepted, and the
+ * bytes allocated meanwhile. Measures are inclusive: the time of an operator
+ * includes the time of its operands, and the time of a morph or a traversal
+ * includes building its selection. Allocated bytes are only measured on JVMs
+ * that report them per thread.
+ * <p>
+ * A profile is meant for one execution, on one thread.
+ */
+public class ExecutionProfile
+{
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private final QueryPlanner planner;
+
+	private final BlockOperator planned;
+
+	private final BlockOperator root;
+
+	private final Map< BlockOperator, Node > nodes = new IdentityHashMap<>();
+
+	/**
+	 * The number of candidates of the vertices and edges, -1 when all the
+	 * objects were scanned, -2 when none were.
+	 */
+	private final long[] candidates = { -2, -2 };
+
+	private final int[] sizes;
+
+	private long nanos = -1;
+
+	private long bytes;
+
+	private SelectionVariable result;
+
+	/**
+	 * Prepares the profiling of the specified plan.
+	 *
+	 * @param planner
+	 *            the planner the plan was made by, used to report the
+	 *            estimates.
+	 * @param plan
+	 *            the plan to execute.
+	 */
+	public ExecutionProfile( final QueryPlanner planner, final QueryPlanner.Plan plan )
+	{
+		this.planner = planner;
+		this.planned = plan.operator();
+		this.sizes = new int[] { planner.size( ObjectKind.VERTEX ), planner.size( ObjectKind.EDGE ) };
+		this.root = wrap( planned, new IdentityHashMap<>() );
+	}
+
+	/**
+	 * Executes the plan with the specified executor, measuring each
+	 * operator.
+	 *
+	 * @param executor
+	 *            the executor.
+	 * @return the result of the execution.
+	 */
+	public SelectionVariable execute( final BlockExecutor< ?, ? > executor )
+	{
+		final long b0 = allocated();
+		final long t0 = System.nanoTime();
+		result = executor.execute( root );
+		nanos = System.nanoTime() - t0;
+		bytes = allocated() - b0;
+		return result;
+	}
+
+	/**
+	 * Returns the report of the execution: one line per operator, with its
+	 * estimates and its measures, followed by the totals.
+	 */
+	@Override
+	public String toString()
+	{
+		if ( result == null )
+			return planner.describe( planned, op -> "" );
+
+		final StringBuilder str = new StringBuilder();
+		str.append( pass( "Vertices", ObjectKind.VERTEX ) ).append( ' ' ).append( pass( "Edges", ObjectKind.EDGE ) ).append( '\n' );
+		str.append( planner.describe( planned, op -> nodes.get( op ).toString() ) ).append( '\n' );
+		str.append( String.format( Locale.ROOT, "Total: %s, %d vertices and %d edges selected",
+				time( nanos ), result.selectedVertices.cardinality(), result.selectedEdges.cardinality() ) );
+		if ( THREADS != null )
+			str.append( ", " ).append( size( bytes ) ).append( " allocated" );
+		return str.append( '.' ).toString();
+	}
+
+	private String pass( final String name, final ObjectKind kind )
+	{
+		final long c = candidates[ kind.ordinal() ];
+		if ( c == -2 )
+			return name + ": skipped.";
+		if ( c == -1 )
+			return name + ": scanned all " + sizes[ kind.ordinal() ] + ".";
+		return name + ": tested " + c + " candidates of " + sizes[ kind.ordinal() ] + ".";
+	}
+
+	/**
+	 * Wraps an operator and its operands. Operators reached more than once
+	 * are wrapped once, so that they are still materialized once.
+	 */
+	private BlockOperator wrap( final BlockOperator operator, final Map< BlockOperator, BlockOperator > wrapped )
+	{
+		final BlockOperator previous = wrapped.get( operator );
+		if ( previous != null )
+			return previous;
+
+		final BlockOperator inner;
+		if ( operator instanceof BlockOperator.And )
+		{
+			final BlockOperator.And and = ( BlockOperator.And ) operator;
+			inner = BlockOperator.and( wrap( and.a, wrapped ), wrap( and.b, wrapped ) );
+		}
+		else if ( operator instanceof BlockOperator.Or )
+		{
+			final BlockOperator.Or or = ( BlockOperator.Or ) operator;
+			inner = BlockOperator.or( wrap( or.a, wrapped ), wrap( or.b, wrapped ) );
+		}
+		else if ( operator instanceof BlockOperator.Sub )
+		{
+			final BlockOperator.Sub sub = ( BlockOperator.Sub ) operator;
+			inner = BlockOperator.sub( wrap( sub.a, wrapped ), wrap( sub.b, wrapped ) );
+		}
+		else if ( operator instanceof MorphOperator )
+		{
+			final MorphOperator morph = ( MorphOperator ) operator;
+			inner = new MorphOperator( wrap( morph.child, wrapped ), morph.morphers );
+		}
+		else if ( operator instanceof TraversalOperator )
+		{
+			final TraversalOperator traversal = ( TraversalOperator ) operator;
+			inner = new TraversalOperator( wrap( traversal.child, wrapped ), traversal.forward, traversal.depth );
+		}
+		else
+		{
+			inner = operator;
+		}
+
+		final Node node = new Node();
+		nodes.put( operator, node );
+		final BlockOperator profiled = new ProfiledOperator( inner, node, operator == planned );
+		wrapped.put( operator, profiled );
+		return profiled;
+	}
+
+	private static com.sun.management.ThreadMXBean threads()
+	{
+		try
+		{
+			final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if ( threads instanceof com.sun.management.ThreadMXBean )
+			{
+				final com.sun.management.ThreadMXBean t = ( com.sun.management.ThreadMXBean ) threads;
+				if ( t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled() )
+					return t;
+			}
+		}
+		catch ( final LinkageError | UnsupportedOperationException e )
+		{
+			// Not a HotSpot JVM: allocations are not measured.
+		}
+		return null;
+	}
+
+	private static long allocated()
+	{
+		return THREADS == null ? 0l : THREADS.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	private static String time( final long nanos )
+	{
+		return String.format( Locale.ROOT, "%.2f ms", nanos / 1e6 );
+	}
+
+	private static String size( final long bytes )
+	{
+		if ( bytes < 1024 )
+			return bytes + " B";
+		if ( bytes < 1024 * 1024 )
+			return String.format( Locale.ROOT, "%.1f kB", bytes / 1024. );
+		return String.format( Locale.ROOT, "%.1f MB", bytes / ( 1024. * 1024. ) );
+	}
+
+	/**
+	 * The measures of one operator.
+	 */
+	private static final class Node
+	{
+
+		private long nanos;
+
+		private long bytes;
+
+		private long tested;
+
+		private long accepted;
+
+		@Override
+		public String toString()
+		{
+			return "  [tested " + tested + ", accepted " + accepted + ", " + time( nanos )
+					+ ( THREADS == null ? "" : ", " + size( bytes ) ) + "]";
+		}
+	}
+
+	/**
+	 * Measures the calls made to an operator.
+	 */
+	private final class ProfiledOperator extends BlockOperator
+	{
+
+		private final BlockOperator operator;
+
+		private final Node node;
+
+		private final boolean isRoot;
+
+		private ProfiledOperator( final BlockOperator operator, final Node node, final boolean isRoot )
+		{
+			this.operator = operator;
+			this.node = node;
+			this.isRoot = isRoot;
+		}
+
+		@Override
+		void test( final IdBlock block, final long[] in, final long[] out )
+		{
+			final long b0 = allocated();
+			final long t0 = System.nanoTime();
+			operator.test( block, in, out );
+			node.nanos += System.nanoTime() - t0;
+			node.bytes += allocated() - b0;
+			node.tested += IdBlock.cardinality( in );
+			node.accepted += IdBlock.cardinality( out );
+		}
+
+		@Override
+		BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+		{
+			final long b0 = allocated();
+			final long t0 = System.nanoTime();
+			final BitSet c = operator.candidates( execution, kind );
+			node.nanos += System.nanoTime() - t0;
+			node.bytes += allocated() - b0;
+			if ( isRoot )
+				candidates[ kind.ordinal() ] = c == null ? -1 : c.cardinality();
+			return c;
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return operator.accepts( kind );
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			return operator.selectivity( planner, kind );
+		}
+
+		@Override
+		String access()
+		{
+			return operator.access();
+		}
+
+		@Override
+		public boolean isLocal()
+		{
+			return operator.isLocal();
+		}
+
+		@Override
+		public boolean isTracked()
+		{
+			return operator.isTracked();
+		}
+
+		@Override
+		public String toString()
+		{
+			return operator.toString();
+		}
+	}
+}
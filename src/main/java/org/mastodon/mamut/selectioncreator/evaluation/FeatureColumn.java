@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureSpec;
+
+/**
+ * A snapshot of the values of a feature projection, stored in a primitive
+ * array indexed by object ID.
+ * <p>
+ * Objects for which the projection is not set have a <code>NaN</code> value,
+ * so that all the comparisons but 'not equal' reject them without looking at
+ * the validity bitset.
+ * <p>
+ * A {@link SortedIndex} of the values is built the first time a set of
+ * intervals that rejects <code>NaN</code> is selected over the whole column,
+ * and lives as long as the column. The {@link FeatureStatistics} of the
+ * values are collected when the column is built.
+ * <p>
+ * A column stays valid across graph change notifications only if its values
+ * cannot change without another event saying so. That is the case of:
+ * <ul>
+ * <li>projections backed by values stored in the feature model, that are
+ * only changed when the features are computed again;
+ * <li>the Mastodon features that read their values from the spots but only
+ * depend on their position, frame or links: {@value #SPOT_POSITION},
+ * {@value FrameIndex#FEATURE_KEY} and {@value #SPOT_N_LINKS}. They change when spots
+ * are moved, added or removed.
+ * </ul>
+ * Other projections may read properties that are edited with no more than a
+ * graph change notification, such as the spot radius or shape. Their columns
+ * are dropped after every graph change.
+ */
+final class FeatureColumn
+{
+
+	static final String SPOT_POSITION = "Spot position";
+
+	static final String SPOT_N_LINKS = "Spot N links";
+
+	private static final Set< String > TRACKED_FEATURES = new HashSet<>( Arrays.asList( SPOT_POSITION, FrameIndex.FEATURE_KEY, SPOT_N_LINKS ) );
+
+	/**
+	 * The feature values, indexed by object ID.
+	 */
+	final double[] values;
+
+	/**
+	 * The IDs of objects for which the projection is set.
+	 */
+	final BitSet valid;
+
+	/**
+	 * The feature version this column was built at.
+	 */
+	final long featureVersion;
+
+	/**
+	 * The structure version this column was built at.
+	 */
+	final long structureVersion;
+
+	/**
+	 * The position version this column was built at.
+	 */
+	final long positionVersion;
+
+	/**
+	 * The graph version this column was built at, or <code>-1</code> if its
+	 * values do not change on graph change notifications.
+	 */
+	final long graphVersion;
+
+	/**
+	 * The statistics of the values.
+	 */
+	final FeatureStatistics statistics;
+
+	private volatile SortedIndex index;
+
+	private FeatureColumn( final double[] values, final BitSet valid, final int objects, final long featureVersion, final long structureVersion, final long positionVersion, final long graphVersion )
+	{
+		this.values = values;
+		this.valid = valid;
+		this.statistics = new FeatureStatistics( values, objects );
+		this.featureVersion = featureVersion;
+		this.structureVersion = structureVersion;
+		this.positionVersion = positionVersion;
+		this.graphVersion = graphVersion;
+	}
+
+	/**
+	 * Returns whether the values of the specified projection can only change
+	 * with an event that says so: a new computation of the features, or
+	 * objects added, removed or moved. Projections whose values are stored by
+	 * the feature model are implemented in the <code>org.mastodon.feature</code>
+	 * package.
+	 *
+	 * @param spec
+	 *            the feature spec.
+	 * @param projection
+	 *            the projection.
+	 * @return <code>true</code> if the values do not change on other graph
+	 *         changes.
+	 */
+	static boolean isTracked( final FeatureSpec< ?, ? > spec, final FeatureProjection< ? > projection )
+	{
+		return projection.getClass().getName().startsWith( "org.mastodon.feature." )
+				|| TRACKED_FEATURES.contains( spec.getKey() );
+	}
+
+	/**
+	 * Reads the values of a projection for all the specified objects.
+	 *
+	 * @param projection
+	 *            the projection to read.
+	 * @param objects
+	 *            the objects.
+	 * @param idMap
+	 *            the map from objects to their IDs.
+	 * @param version
+	 *            the current model version.
+	 * @param tracked
+	 *            whether the values only change with the events listed by
+	 *            {@link #isTracked(FeatureSpec, FeatureProjection)}.
+	 * @return a new column.
+	 */
+	static < O > FeatureColumn build( final FeatureProjection< O > projection, final Iterable< O > objects, final RefPool< O > idMap, final ModelVersion version, final boolean tracked )
+	{
+		// Read versions first: a change during the build makes it stale.
+		final long featureVersion = version.features();
+		final long structureVersion = version.structure();
+		final long positionVersion = version.positions();
+		final long graphVersion = tracked ? -1l : version.graph();
+		double[] values = new double[ 1024 ];
+		int size = 0;
+		int count = 0;
+		final BitSet valid = new BitSet();
+		for ( final O o : objects )
+		{
+			count++;
+			final int id = idMap.getId( o );
+			if ( id >= values.length )
+				values = Arrays.copyOf( values, Math.max( id + 1, 2 * values.length ) );
+			if ( id >= size )
+			{
+				Arrays.fill( values, size, id + 1, Double.NaN );
+				size = id + 1;
+			}
+			if ( projection.isSet( o ) )
+			{
+				values[ id ] = projection.value( o );
+				valid.set( id );
+			}
+		}
+		return new FeatureColumn( Arrays.copyOf( values, size ), valid, count, featureVersion, structureVersion, positionVersion, graphVersion );
+	}
+
+	/**
+	 * Returns <code>true</code> if the features were not recomputed and no
+	 * object was added, removed or moved since this column was built. Moves
+	 * count because some projections, like the spot position, read their
+	 * values from the objects. Other graph changes, such as tagging spots, do
+	 * not change the values of tracked projections, but make the columns of
+	 * the other ones stale.
+	 *
+	 * @param version
+	 *            the current model version.
+	 * @return whether this column is still valid.
+	 */
+	boolean isCurrent( final ModelVersion version )
+	{
+		return featureVersion == version.features()
+				&& structureVersion == version.structure()
+				&& positionVersion == version.positions()
+				&& ( graphVersion < 0 || graphVersion == version.graph() );
+	}
+
+	/**
+	 * Tests the value of one object.
+	 *
+	 * @param id
+	 *            the object ID.
+	 * @param intervals
+	 *            the accepted values.
+	 * @return <code>true</code> if the projection is set for this object and
+	 *         its value is in the intervals.
+	 */
+	boolean test( final int id, final IntervalSet intervals )
+	{
+		if ( id >= values.length )
+			return false;
+		final double v = values[ id ];
+		if ( Double.isNaN( v ) )
+			return intervals.acceptsNaN() && valid.get( id );
+		return intervals.test( v );
+	}
+
+	/**
+	 * Adds to the target bitset the IDs of objects whose value is in the
+	 * specified intervals.
+	 *
+	 * @param intervals
+	 *            the accepted values.
+	 * @param domain
+	 *            the IDs to test, or <code>null</code> to test all of them.
+	 * @param target
+	 *            the bitset to write to.
+	 */
+	void select( final IntervalSet intervals, final BitSet domain, final BitSet target )
+	{
+		if ( domain != null )
+		{
+			for ( int id = domain.nextSetBit( 0 ); id >= 0 && id < values.length; id = domain.nextSetBit( id + 1 ) )
+				if ( test( id, intervals ) )
+					target.set( id );
+			return;
+		}
+
+		if ( !intervals.acceptsNaN() )
+		{
+			index().select( intervals, target );
+			return;
+		}
+
+		for ( int id = valid.nextSetBit( 0 ); id >= 0; id = valid.nextSetBit( id + 1 ) )
+			if ( intervals.test( values[ id ] ) )
+				target.set( id );
+	}
+
+	/**
+	 * Returns the sorted index of this column, building it if needed.
+	 *
+	 * @return the sorted index.
+	 */
+	SortedIndex index()
+	{
+		SortedIndex i = index;
+		if ( i == null )
+		{
+			synchronized ( this )
+			{
+				i = index;
+				if ( i == null )
+				{
+					i = new SortedIndex( values );
+					index = i;
+				}
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Returns <code>true</code> if the sorted index of this column is built.
+	 *
+	 * @return whether the column is indexed.
+	 */
+	boolean isIndexed()
+	{
+		return index != null;
+	}
+
+	/**
+	 * Approximate memory footprint of this column, in bytes.
+	 *
+	 * @return the size in bytes.
+	 */
+	long bytes()
+	{
+		final SortedIndex i = index;
+		return 8l * values.length + valid.size() / 8 + ( i == null ? 0 : i.bytes() );
+	}
+}
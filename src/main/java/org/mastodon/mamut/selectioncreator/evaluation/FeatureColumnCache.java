@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.feature.FeatureSpec;
+
+/**
+ * Caches the values of the feature projections used in expressions as
+ * primitive columns, so that comparisons become loops over arrays.
+ * <p>
+ * A column is built the first time a projection is compared over the whole
+ * graph, and rebuilt when the {@link ModelVersion} says that features were
+ * recomputed, that vertices or edges were added or removed, or that spots
+ * were moved. The columns of projections that may read other properties of
+ * the objects are also rebuilt after any graph change, see
+ * {@link FeatureColumn}. Comparisons restricted to a small domain use a
+ * column if there is a valid one, but never build one.
+ * <p>
+ * The cache is bounded by a budget on the memory used by the columns and
+ * their sorted indices, and evicts the least recently used columns first. It
+ * can be used concurrently by several threads.
+ */
+public class FeatureColumnCache
+{
+
+	/**
+	 * The default memory budget, in bytes.
+	 */
+	public static final long DEFAULT_BUDGET = 256l << 20;
+
+	private final ModelVersion version;
+
+	private final Map< List< Object >, FeatureColumn > columns = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long budget = DEFAULT_BUDGET;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param version
+	 *            the version of the model the columns are built from.
+	 */
+	public FeatureColumnCache( final ModelVersion version )
+	{
+		this.version = version;
+	}
+
+	/**
+	 * Returns a valid column for the specified projection, building it if
+	 * needed.
+	 */
+	< O > FeatureColumn get(
+			final FeatureSpec< ?, ? > spec,
+			final FeatureProjectionKey key,
+			final FeatureProjection< O > projection,
+			final Iterable< O > objects,
+			final RefPool< O > idMap )
+	{
+		final FeatureColumn current = getIfPresent( spec, key );
+		if ( current != null )
+			return current;
+
+		// Build outside of the lock, so that threads can build different
+		// columns at the same time.
+		final FeatureColumn column = FeatureColumn.build( projection, objects, idMap, version, FeatureColumn.isTracked( spec, projection ) );
+		synchronized ( this )
+		{
+			columns.put( key( spec, key ), column );
+			evict();
+		}
+		return column;
+	}
+
+	/**
+	 * Returns a valid column for the specified projection, or
+	 * <code>null</code> if there is none.
+	 */
+	synchronized FeatureColumn getIfPresent( final FeatureSpec< ?, ? > spec, final FeatureProjectionKey key )
+	{
+		final List< Object > k = key( spec, key );
+		final FeatureColumn column = columns.get( k );
+		if ( column == null )
+			return null;
+		if ( column.isCurrent( version ) )
+			return column;
+		columns.remove( k );
+		return null;
+	}
+
+	/**
+	 * Returns the version of the model the columns are built from.
+	 *
+	 * @return the model version.
+	 */
+	public ModelVersion version()
+	{
+		return version;
+	}
+
+	/**
+	 * Sets the memory budget of this cache, evicting columns if needed.
+	 *
+	 * @param budget
+	 *            the budget, in bytes.
+	 */
+	public synchronized void setBudget( final long budget )
+	{
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * Returns the memory used by the cached columns and their sorted indices.
+	 *
+	 * @return a number of bytes.
+	 */
+	public synchronized long bytes()
+	{
+		long bytes = 0;
+		for ( final FeatureColumn column : columns.values() )
+			bytes += column.bytes();
+		return bytes;
+	}
+
+	/**
+	 * Removes all the columns from the cache.
+	 */
+	public synchronized void clear()
+	{
+		columns.clear();
+	}
+
+	/**
+	 * Drops the stale columns, then the least recently used ones until the
+	 * cache fits in its budget. Sizes are read again because sorted indices
+	 * are built after the columns are stored.
+	 */
+	private void evict()
+	{
+		columns.values().removeIf( column -> !column.isCurrent( version ) );
+		long bytes = bytes();
+		final Iterator< FeatureColumn > it = columns.values().iterator();
+		while ( bytes > budget && it.hasNext() )
+		{
+			bytes -= it.next().bytes();
+			it.remove();
+		}
+	}
+
+	private static List< Object > key( final FeatureSpec< ?, ? > spec, final FeatureProjectionKey key )
+	{
+		return Arrays.asList( spec, key );
+	}
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureProjection;
+
+/**
+ * Leaf operator that accepts the objects whose feature value is in a set of
+ * intervals. A single comparison is one or two intervals; comparisons on the
+ * same projection combined with 'and' or 'or' are fused into one operator by
+ * the {@link SelectionCompiler}.
+ *
+ * @param <O>
+ *            the type of objects the feature is defined for.
+ */
+class FeatureComparisonOperator< O > extends BlockOperator
+{
+
+	final AbstractFeatureVariable< O > feature;
+
+	final FeatureProjection< O > projection;
+
+	final RefPool< O > idMap;
+
+	final ObjectKind kind;
+
+	final IntervalSet intervals;
+
+	FeatureComparisonOperator(
+			final AbstractFeatureVariable< O > feature,
+			final IntervalSet intervals )
+	{
+		this.feature = feature;
+		this.projection = feature.projection;
+		this.idMap = feature.idMap;
+		this.kind = feature.kind();
+		this.intervals = intervals;
+	}
+
+	/**
+	 * Returns <code>true</code> if this operator and the other one test the
+	 * same feature projection, and can be fused.
+	 *
+	 * @param other
+	 *            the other operator.
+	 * @return whether the operators can be fused.
+	 */
+	boolean canFuse( final FeatureComparisonOperator< ? > other )
+	{
+		return feature.sameProjection( other.feature );
+	}
+
+	/**
+	 * Returns an operator that accepts the objects accepted by this operator
+	 * and, or or, the other one. The operators must test the same projection.
+	 *
+	 * @param other
+	 *            the other operator.
+	 * @param and
+	 *            whether to combine with 'and' rather than 'or'.
+	 * @return a new operator.
+	 */
+	FeatureComparisonOperator< O > fuse( final FeatureComparisonOperator< ? > other, final boolean and )
+	{
+		return new FeatureComparisonOperator<>( feature, and ? intervals.and( other.intervals ) : intervals.or( other.intervals ) );
+	}
+
+	@Override
+	void test( final IdBlock block, final long[] in, final long[] out )
+	{
+		if ( block.kind != kind )
+		{
+			for ( int w = 0; w < out.length; w++ )
+				out[ w ] = 0l;
+			return;
+		}
+
+		// Build a column only if a good part of all the objects reach us.
+		FeatureColumn column = feature.column( false );
+		if ( column == null && block.scan && 4 * IdBlock.cardinality( in ) >= block.size )
+			column = feature.column( true );
+		if ( column != null )
+		{
+			for ( int w = 0; w < in.length; w++ )
+			{
+				long word = in[ w ];
+				long accepted = 0l;
+				while ( word != 0l )
+				{
+					final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+					word &= word - 1;
+					if ( column.test( block.ids[ i ], intervals ) )
+						accepted |= 1l << i;
+				}
+				out[ w ] = accepted;
+			}
+			return;
+		}
+
+		final O ref = idMap.createRef();
+		for ( int w = 0; w < in.length; w++ )
+		{
+			long word = in[ w ];
+			long accepted = 0l;
+			while ( word != 0l )
+			{
+				final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+				word &= word - 1;
+				final O o = idMap.getObject( block.ids[ i ], ref );
+				if ( projection.isSet( o ) && intervals.test( projection.value( o ) ) )
+					accepted |= 1l << i;
+			}
+			out[ w ] = accepted;
+		}
+		idMap.releaseRef( ref );
+	}
+
+	@Override
+	BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+	{
+		if ( kind != this.kind )
+			return new BitSet();
+		if ( intervals.isEmpty() )
+			return new BitSet();
+		// Each interval is a slice of the sorted index. Sets that accept NaN
+		// come from 'not equal' and select almost everything.
+		if ( intervals.acceptsNaN() )
+			return null;
+		FeatureColumn column = feature.column( false );
+		if ( column == null )
+		{
+			// Frame comparisons can read the vertices of a few timepoints.
+			final BitSet frames = feature.frameCandidates( intervals );
+			if ( frames != null )
+				return frames;
+			column = feature.column( true );
+			if ( column == null )
+				return null;
+		}
+		final BitSet candidates = new BitSet();
+		column.index().select( intervals, candidates );
+		return candidates;
+	}
+
+	@Override
+	double selectivity( final QueryPlanner planner, final ObjectKind kind )
+	{
+		if ( kind != this.kind || intervals.isEmpty() )
+			return 0.;
+		final double selectivity = feature.selectivity( intervals );
+		if ( !Double.isNaN( selectivity ) )
+			return selectivity;
+
+		// No statistics yet: 'not equal' accepts almost everything, an
+		// equality few objects, and a range a third of them.
+		if ( intervals.acceptsNaN() )
+			return 0.9;
+		double guess = 0.;
+		for ( int k = 0; k < intervals.size(); k++ )
+			guess += intervals.get( k ).min == intervals.get( k ).max ? 0.1 : 1. / 3.;
+		return Math.min( 1., guess );
+	}
+
+	@Override
+	String access()
+	{
+		return feature.access();
+	}
+
+	@Override
+	boolean accepts( final ObjectKind kind )
+	{
+		return this.kind == kind;
+	}
+
+	@Override
+	public boolean isTracked()
+	{
+		return feature.isTracked();
+	}
+
+	@Override
+	public String toString()
+	{
+		return kind == ObjectKind.VERTEX
+				? "VertexFeature( " + projection.getKey() + " in " + intervals + " )"
+				: "EdgeFeature( " + projection.getKey() + " in " + intervals + " )";
+	}
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+
+import org.mastodon.mamut.selectioncreator.evaluation.IntervalSet.Interval;
+
+/**
+ * Summary statistics of the values of a feature projection: the range of the
+ * values, the number of objects without a value, and an equi-depth histogram,
+ * used to estimate how many objects a comparison accepts.
+ * <p>
+ * The statistics are collected when a {@link FeatureColumn} is built, and
+ * live as long as the column. The histogram is built from a regular sample of
+ * the values, so its estimates are approximate for large graphs.
+ */
+final class FeatureStatistics
+{
+
+	/**
+	 * Number of buckets of the histogram.
+	 */
+	static final int BUCKETS = 32;
+
+	/**
+	 * Maximal number of values the histogram is built from.
+	 */
+	private static final int SAMPLE_SIZE = 4096;
+
+	/**
+	 * The number of objects that have a value.
+	 */
+	final int count;
+
+	/**
+	 * The number of objects for which the projection is not set.
+	 */
+	final int nullCount;
+
+	/**
+	 * The smallest value, <code>NaN</code> if no object has a value.
+	 */
+	final double min;
+
+	/**
+	 * The largest value, <code>NaN</code> if no object has a value.
+	 */
+	final double max;
+
+	/**
+	 * The bounds of the buckets: bucket <code>k</code> holds the values
+	 * between <code>bounds[k]</code> and <code>bounds[k+1]</code>, and all the
+	 * buckets hold the same number of values. Bounds repeat for values shared
+	 * by more than one bucket.
+	 */
+	private final double[] bounds;
+
+	/**
+	 * The number of distinct values in the sample.
+	 */
+	private final int distinct;
+
+	/**
+	 * Collects the statistics of the values of a column.
+	 *
+	 * @param values
+	 *            the values, indexed by object ID, <code>NaN</code> for
+	 *            objects without a value and for unused IDs.
+	 * @param objects
+	 *            the number of objects the values were read from.
+	 */
+	FeatureStatistics( final double[] values, final int objects )
+	{
+		int n = 0;
+		double lo = Double.POSITIVE_INFINITY;
+		double hi = Double.NEGATIVE_INFINITY;
+		for ( final double v : values )
+		{
+			if ( Double.isNaN( v ) )
+				continue;
+			n++;
+			lo = Math.min( lo, v );
+			hi = Math.max( hi, v );
+		}
+		this.count = n;
+		this.nullCount = Math.max( 0, objects - n );
+		if ( n == 0 )
+		{
+			this.min = Double.NaN;
+			this.max = Double.NaN;
+			this.bounds = new double[ 0 ];
+			this.distinct = 0;
+			return;
+		}
+		this.min = lo;
+		this.max = hi;
+
+		// Every step-th value.
+		final int step = ( n + SAMPLE_SIZE - 1 ) / SAMPLE_SIZE;
+		final double[] sample = new double[ ( n + step - 1 ) / step ];
+		int i = 0;
+		int k = 0;
+		for ( final double v : values )
+		{
+			if ( Double.isNaN( v ) )
+				continue;
+			if ( k++ % step == 0 )
+				sample[ i++ ] = v;
+		}
+		Arrays.sort( sample, 0, i );
+		int d = 1;
+		for ( int j = 1; j < i; j++ )
+			if ( sample[ j ] != sample[ j - 1 ] )
+				d++;
+		this.distinct = d;
+
+		final int buckets = Math.min( BUCKETS, i );
+		this.bounds = new double[ buckets + 1 ];
+		for ( int b = 0; b <= buckets; b++ )
+			bounds[ b ] = sample[ ( int ) ( ( long ) b * ( i - 1 ) / buckets ) ];
+		bounds[ 0 ] = lo;
+		bounds[ buckets ] = hi;
+	}
+
+	/**
+	 * Estimates the fraction of the objects whose value is in the specified
+	 * intervals.
+	 *
+	 * @param intervals
+	 *            the intervals.
+	 * @return a number between 0 and 1.
+	 */
+	double selectivity( final IntervalSet intervals )
+	{
+		final int objects = count + nullCount;
+		if ( objects == 0 )
+			return 0.;
+		double fraction = 0.;
+		for ( int k = 0; k < intervals.size(); k++ )
+			fraction += fraction( intervals.get( k ) );
+		return Math.min( 1., fraction ) * count / objects;
+	}
+
+	/**
+	 * Estimates the fraction of the values in one interval.
+	 */
+	private double fraction( final Interval interval )
+	{
+		if ( count == 0 || interval.isEmpty() || interval.max < min || interval.min > max )
+			return 0.;
+		final double fraction = below( interval.max, !interval.maxOpen ) - below( interval.min, interval.minOpen );
+		// A single value inside a bucket: assume the values are equally frequent.
+		if ( interval.min == interval.max )
+			return Math.max( fraction, 1. / distinct );
+		return Math.max( 0., fraction );
+	}
+
+	/**
+	 * Estimates the fraction of the values below x, with or without x
+	 * itself.
+	 */
+	private double below( final double x, final boolean inclusive )
+	{
+		final int buckets = bounds.length - 1;
+		if ( x < bounds[ 0 ] || ( x == bounds[ 0 ] && !inclusive ) )
+			return 0.;
+		if ( x > bounds[ buckets ] || ( x == bounds[ buckets ] && inclusive ) )
+			return 1.;
+		// First bound greater than x, or than or equal to x.
+		int lo = 0;
+		int hi = bounds.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( inclusive ? bounds[ mid ] <= x : bounds[ mid ] < x )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		// x is in the bucket ending at bound lo.
+		final double from = bounds[ lo - 1 ];
+		final double to = bounds[ lo ];
+		final double within = to > from ? ( x - from ) / ( to - from ) : 0.;
+		return ( lo - 1 + within ) / buckets;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Statistics( " + count + " values in [" + min + ", " + max + "], " + nullCount + " not set, "
+				+ ( bounds.length - 1 ) + " buckets )";
+	}
+}
@@ -46,8 +46,13 @@ public interface FeatureVariable< O >
 		return new EmptyFeatureVariable<>();
 	}
 
-	@SuppressWarnings( "unchecked" )
 	public static < V extends Vertex< E >, E extends Edge< V > > FeatureVariable< V > vertexFeature( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final FeatureModel featureModel, final FeatureSpec< ?, ? > featureSpec, final FeatureProjectionKey projectionKey )
+	{
+		return vertexFeature( graph, idmap, featureModel, featureSpec, projectionKey, null, null );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static < V extends Vertex< E >, E extends Edge< V > > FeatureVariable< V > vertexFeature( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final FeatureModel featureModel, final FeatureSpec< ?, ? > featureSpec, final FeatureProjectionKey projectionKey, final FeatureColumnCache cache, final FrameIndex< V > frames )
 	{
 		if ( !featureSpec.getTargetClass().isAssignableFrom( graph.vertexRef().getClass() ) )
 			return emptyFeature();
@@ -56,11 +61,16 @@ public interface FeatureVariable< O >
 			return emptyFeature();
 
 		final FeatureProjection< ? > projection = feature.project( projectionKey );
-		return new VertexFeatureVariable< V >( featureSpec, projectionKey, ( FeatureProjection< V > ) projection, graph.vertices(), idmap.vertexIdBimap() );
+		return new VertexFeatureVariable< V >( featureSpec, projectionKey, ( FeatureProjection< V > ) projection, graph.vertices(), idmap.vertexIdBimap(), cache, frames );
 	}
 
-	@SuppressWarnings( "unchecked" )
 	public static < V extends Vertex< E >, E extends Edge< V > > FeatureVariable< E > edgeFeature( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final FeatureModel featureModel, final FeatureSpec< ?, ? > featureSpec, final FeatureProjectionKey projectionKey )
+	{
+		return edgeFeature( graph, idmap, featureModel, featureSpec, projectionKey, null );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public static < V extends Vertex< E >, E extends Edge< V > > FeatureVariable< E > edgeFeature( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final FeatureModel featureModel, final FeatureSpec< ?, ? > featureSpec, final FeatureProjectionKey projectionKey, final FeatureColumnCache cache )
 	{
 		if ( !featureSpec.getTargetClass().isAssignableFrom( graph.edgeRef().getClass() ) )
 			return emptyFeature();
@@ -69,7 +79,7 @@ public interface FeatureVariable< O >
 			return emptyFeature();
 
 		final FeatureProjection< ? > projection = feature.project( projectionKey );
-		return new EdgeFeatureVariable<>( featureSpec, projectionKey, ( FeatureProjection< E > ) projection, graph.edges(), idmap.edgeIdBimap() );
+		return new EdgeFeatureVariable<>( featureSpec, projectionKey, ( FeatureProjection< E > ) projection, graph.edges(), idmap.edgeIdBimap(), cache );
 	}
 
 	public SelectionVariable notEqual( double value );
@@ -84,4 +94,30 @@ public interface FeatureVariable< O >
 
 	public SelectionVariable lessThan( double threshold );
 
+	/*
+	 * Objects whose value is between min and max, both included.
+	 */
+
+	public SelectionVariable between( double min, double max );
+
+	/*
+	 * Comparisons restricted to a domain. Objects outside the domain are not
+	 * tested and are never part of the result. A null domain stands for the
+	 * whole graph.
+	 */
+
+	public SelectionVariable notEqual( double value, SelectionVariable domain );
+
+	public SelectionVariable equal( double value, SelectionVariable domain );
+
+	public SelectionVariable greaterThanOrEqual( double threshold, SelectionVariable domain );
+
+	public SelectionVariable lessThanOrEqual( double threshold, SelectionVariable domain );
+
+	public SelectionVariable greaterThan( double threshold, SelectionVariable domain );
+
+	public SelectionVariable lessThan( double threshold, SelectionVariable domain );
+
+	public SelectionVariable between( double min, double max, SelectionVariable domain );
+
 }
@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.RefPool;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.mamut.selectioncreator.evaluation.IntervalSet.Interval;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.spatial.SpatioTemporalIndex;
+
+/**
+ * Reads the vertices of a range of timepoints from the
+ * {@link SpatioTemporalIndex} of the model, instead of scanning the whole
+ * graph.
+ * <p>
+ * Comparisons made on the frame feature of the vertices, and the
+ * <code>frame</code> function, only visit the vertices of the timepoints they
+ * accept. On a movie of <code>T</code> timepoints, selecting one timepoint
+ * visits about <code>1/T</code> of the vertices.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ */
+public class FrameIndex< V >
+{
+
+	/**
+	 * The key of the feature whose value is the timepoint of a vertex.
+	 */
+	public static final String FEATURE_KEY = "Spot frame";
+
+	private final SpatioTemporalIndex< V > index;
+
+	private final RefPool< V > idMap;
+
+	private final int minTimepoint;
+
+	private final int maxTimepoint;
+
+	/**
+	 * Creates a frame index.
+	 *
+	 * @param index
+	 *            the spatio-temporal index of the model.
+	 * @param idMap
+	 *            the map from vertices to their IDs.
+	 * @param minTimepoint
+	 *            the first timepoint of the data.
+	 * @param maxTimepoint
+	 *            the last timepoint of the data, included. Vertices beyond
+	 *            these bounds are never selected through this index.
+	 */
+	public FrameIndex( final SpatioTemporalIndex< V > index, final RefPool< V > idMap, final int minTimepoint, final int maxTimepoint )
+	{
+		this.index = index;
+		this.idMap = idMap;
+		this.minTimepoint = minTimepoint;
+		this.maxTimepoint = maxTimepoint;
+	}
+
+	/**
+	 * Returns <code>true</code> if the values of the specified feature are the
+	 * timepoints of the vertices.
+	 *
+	 * @param featureSpec
+	 *            the feature specification.
+	 * @return whether this index can answer comparisons on the feature.
+	 */
+	boolean isFrameFeature( final FeatureSpec< ?, ? > featureSpec )
+	{
+		return FEATURE_KEY.equals( featureSpec.getKey() );
+	}
+
+	/**
+	 * Returns the number of vertices at the timepoints in the specified
+	 * intervals.
+	 *
+	 * @param timepoints
+	 *            the timepoints. Whether they accept <code>NaN</code> is
+	 *            ignored.
+	 * @return the number of vertices.
+	 */
+	long count( final IntervalSet timepoints )
+	{
+		final Lock lock = index.readLock();
+		lock.lock();
+		try
+		{
+			long count = 0;
+			for ( int k = 0; k < timepoints.size(); k++ )
+			{
+				final Interval interval = timepoints.get( k );
+				final int to = to( interval );
+				for ( int t = from( interval ); t <= to; t++ )
+					count += index.getSpatialIndex( t ).size();
+			}
+			return count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds to the target bitset the IDs of the vertices at the timepoints in
+	 * the specified intervals.
+	 *
+	 * @param timepoints
+	 *            the timepoints. Whether they accept <code>NaN</code> is
+	 *            ignored.
+	 * @param target
+	 *            the bitset to write to.
+	 */
+	void select( final IntervalSet timepoints, final BitSet target )
+	{
+		final Lock lock = index.readLock();
+		lock.lock();
+		try
+		{
+			for ( int k = 0; k < timepoints.size(); k++ )
+			{
+				final Interval interval = timepoints.get( k );
+				final int to = to( interval );
+				for ( int t = from( interval ); t <= to; t++ )
+				{
+					final SpatialIndex< V > vertices = index.getSpatialIndex( t );
+					for ( final V v : vertices )
+						target.set( idMap.getId( v ) );
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * First timepoint in the interval, clamped to the timepoints of the data.
+	 */
+	private int from( final Interval interval )
+	{
+		final double t = interval.minOpen ? Math.floor( interval.min ) + 1 : Math.ceil( interval.min );
+		return ( int ) Math.max( minTimepoint, Math.min( t, maxTimepoint + 1. ) );
+	}
+
+	/**
+	 * Last timepoint in the interval, clamped to the timepoints of the data.
+	 */
+	private int to( final Interval interval )
+	{
+		final double t = interval.maxOpen ? Math.ceil( interval.max ) - 1 : Math.floor( interval.max );
+		return ( int ) Math.min( maxTimepoint, Math.max( t, minTimepoint - 1. ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FrameIndex( " + minTimepoint + " - " + maxTimepoint + " )";
+	}
+}
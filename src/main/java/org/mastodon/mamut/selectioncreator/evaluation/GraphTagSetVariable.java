@@ -30,6 +30,7 @@ package org.mastodon.mamut.selectioncreator.evaluation;
 
 import org.mastodon.collection.RefCollection;
 import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.selectioncreator.evaluation.TagComparisonOperator.TagTest;
 import org.mastodon.model.tag.ObjTagMap;
 import org.mastodon.model.tag.TagSetStructure.Tag;
 import org.mastodon.model.tag.TagSetStructure.TagSet;
@@ -43,8 +44,13 @@ public class GraphTagSetVariable< V, E > implements TagSetVariable
 
 	public GraphTagSetVariable( final TagSet tagSet, final ObjTagMap< V, Tag > vertexTags, final ObjTagMap< E, Tag > edgeTags, final RefCollection< V > vertices, final RefCollection< E > edges, final GraphIdBimap< V, E > graphIdBimap )
 	{
-		this.vertexTagSetVariable = new VertexTagSetVariable<>( tagSet, vertexTags, vertices, graphIdBimap.vertexIdBimap() );
-		this.edgeTagSetVariable = new EdgeTagSetVariable<>( tagSet, edgeTags, edges, graphIdBimap.edgeIdBimap() );
+		this( tagSet, vertexTags, edgeTags, vertices, edges, graphIdBimap, null );
+	}
+
+	public GraphTagSetVariable( final TagSet tagSet, final ObjTagMap< V, Tag > vertexTags, final ObjTagMap< E, Tag > edgeTags, final RefCollection< V > vertices, final RefCollection< E > edges, final GraphIdBimap< V, E > graphIdBimap, final TagIndexCache cache )
+	{
+		this.vertexTagSetVariable = new VertexTagSetVariable<>( tagSet, vertexTags, vertices, graphIdBimap.vertexIdBimap(), cache );
+		this.edgeTagSetVariable = new EdgeTagSetVariable<>( tagSet, edgeTags, edges, graphIdBimap.edgeIdBimap(), cache );
 	}
 
 	@Override
@@ -56,32 +62,72 @@ public class GraphTagSetVariable< V, E > implements TagSetVariable
 	@Override
 	public SelectionVariable equal( final Tag tag )
 	{
-		final SelectionVariable variable = vertexTagSetVariable.equal( tag );
-		variable.inPlaceAdd( edgeTagSetVariable.equal( tag ) );
-		return variable;
+		return equal( tag, null );
 	}
 
 	@Override
 	public SelectionVariable notEqual( final Tag tag )
 	{
-		final SelectionVariable variable = vertexTagSetVariable.notEqual( tag );
-		variable.inPlaceAdd( edgeTagSetVariable.notEqual( tag ) );
-		return variable;
+		return notEqual( tag, null );
 	}
 
 	@Override
 	public SelectionVariable unset()
 	{
-		final SelectionVariable variable = vertexTagSetVariable.unset();
-		variable.inPlaceAdd( edgeTagSetVariable.unset() );
-		return variable;
+		return unset( null );
 	}
 
 	@Override
 	public SelectionVariable set()
 	{
-		final SelectionVariable variable = vertexTagSetVariable.set();
-		variable.inPlaceAdd( edgeTagSetVariable.set() );
+		return set( null );
+	}
+
+	@Override
+	public SelectionVariable equal( final Tag tag, final SelectionVariable domain )
+	{
+		final SelectionVariable variable = vertexTagSetVariable.equal( tag, domain );
+		variable.inPlaceAdd( edgeTagSetVariable.equal( tag, domain ) );
+		return variable;
+	}
+
+	@Override
+	public SelectionVariable notEqual( final Tag tag, final SelectionVariable domain )
+	{
+		final SelectionVariable variable = vertexTagSetVariable.notEqual( tag, domain );
+		variable.inPlaceAdd( edgeTagSetVariable.notEqual( tag, domain ) );
+		return variable;
+	}
+
+	@Override
+	public SelectionVariable unset( final SelectionVariable domain )
+	{
+		final SelectionVariable variable = vertexTagSetVariable.unset( domain );
+		variable.inPlaceAdd( edgeTagSetVariable.unset( domain ) );
+		return variable;
+	}
+
+	@Override
+	public SelectionVariable set( final SelectionVariable domain )
+	{
+		final SelectionVariable variable = vertexTagSetVariable.set( domain );
+		variable.inPlaceAdd( edgeTagSetVariable.set( domain ) );
 		return variable;
 	}
+
+	/**
+	 * Returns a {@link BlockOperator} that accepts the vertices and edges
+	 * according to their tag in this tag-set.
+	 *
+	 * @param tagTest
+	 *            the test to perform on the tag of objects.
+	 * @param tag
+	 *            the tag to compare with, ignored for {@link TagTest#SET} and
+	 *            {@link TagTest#UNSET}.
+	 * @return a new operator.
+	 */
+	BlockOperator compare( final TagTest tagTest, final Tag tag )
+	{
+		return BlockOperator.or( vertexTagSetVariable.compare( tagTest, tag ), edgeTagSetVariable.compare( tagTest, tag ) );
+	}
 }
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+/**
+ * A set of object IDs, stored in the form that best fits its density.
+ * <p>
+ * Dense sets are stored in a plain {@link BitSet}, whose memory footprint
+ * grows with the largest ID. Sparse sets are stored in a compressed bitmap,
+ * whose footprint grows with the number of IDs. The set operations return the
+ * bitmap that holds the result, which may be a different instance than the one
+ * the operation was called on, when the result is better stored in the other
+ * form. Callers must therefore always keep the returned instance.
+ */
+abstract class IdBitmap
+{
+
+	/**
+	 * Returns a new, empty bitmap, meant to receive IDs with
+	 * {@link #set(int)}.
+	 *
+	 * @return a new bitmap.
+	 */
+	static IdBitmap create()
+	{
+		return new RoaringIdBitmap();
+	}
+
+	/**
+	 * Returns a bitmap with the IDs set in the specified bitset, in the form
+	 * that best fits their density. The bitset is used as is by the dense form
+	 * and must not be modified afterwards.
+	 *
+	 * @param bits
+	 *            the IDs.
+	 * @return a bitmap.
+	 */
+	static IdBitmap of( final BitSet bits )
+	{
+		return new BitSetIdBitmap( bits ).optimize();
+	}
+
+	/**
+	 * Returns whether the specified ID is in this bitmap.
+	 *
+	 * @param id
+	 *            the ID.
+	 * @return <code>true</code> if the ID is in this bitmap.
+	 */
+	abstract boolean get( int id );
+
+	/**
+	 * Adds the specified ID to this bitmap.
+	 *
+	 * @param id
+	 *            the ID.
+	 */
+	abstract void set( int id );
+
+	/**
+	 * Returns the first ID in this bitmap that is greater than or equal to the
+	 * specified one.
+	 *
+	 * @param from
+	 *            the ID to start from.
+	 * @return the next ID, or <code>-1</code> if there is none.
+	 */
+	abstract int nextSetBit( int from );
+
+	/**
+	 * Returns the number of IDs in this bitmap.
+	 *
+	 * @return the number of IDs.
+	 */
+	abstract int cardinality();
+
+	abstract boolean isEmpty();
+
+	abstract void clear();
+
+	/**
+	 * Returns a deep copy of this bitmap.
+	 *
+	 * @return a new bitmap.
+	 */
+	abstract IdBitmap copy();
+
+	/**
+	 * Adds the IDs of the specified bitmap to this one.
+	 *
+	 * @param other
+	 *            the other bitmap.
+	 * @return the bitmap holding the union.
+	 */
+	abstract IdBitmap or( IdBitmap other );
+
+	/**
+	 * Keeps only the IDs of this bitmap that are in the specified one.
+	 *
+	 * @param other
+	 *            the other bitmap.
+	 * @return the bitmap holding the intersection.
+	 */
+	abstract IdBitmap and( IdBitmap other );
+
+	/**
+	 * Removes the IDs of the specified bitmap from this one.
+	 *
+	 * @param other
+	 *            the other bitmap.
+	 * @return the bitmap holding the difference.
+	 */
+	abstract IdBitmap andNot( IdBitmap other );
+
+	/**
+	 * Returns this bitmap in the form that best fits its current density.
+	 *
+	 * @return this bitmap, or a new one with the same IDs.
+	 */
+	abstract IdBitmap optimize();
+
+	/**
+	 * Returns the IDs of this bitmap as a bitset. The dense form returns its
+	 * backing bitset, which must not be modified.
+	 *
+	 * @return a bitset.
+	 */
+	abstract BitSet asBitSet();
+
+	/**
+	 * Returns the approximate memory footprint of this bitmap.
+	 *
+	 * @return a number of bytes.
+	 */
+	abstract long bytes();
+
+	/**
+	 * Returns the memory footprint of a bitset able to store the specified
+	 * largest ID.
+	 *
+	 * @param last
+	 *            the largest ID, or <code>-1</code>.
+	 * @return a number of bytes.
+	 */
+	static long denseBytes( final int last )
+	{
+		return ( ( long ) last + 64 ) / 64 * 8;
+	}
+}
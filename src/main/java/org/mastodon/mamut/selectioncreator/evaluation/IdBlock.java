@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A block of object IDs pushed at once through a {@link BlockOperator} tree.
+ * <p>
+ * Operators exchange masks over the block, as <code>long[]</code> arrays of
+ * {@link #WORDS} words where the bit <code>i</code> stands for the object
+ * <code>ids[i]</code>. Masks are small enough to stay in cache while the whole
+ * tree processes the block. Scratch masks are recycled through
+ * {@link #borrow()} and {@link #release(long[])}.
+ */
+final class IdBlock
+{
+
+	/**
+	 * Max number of objects in a block.
+	 */
+	static final int SIZE = 4096;
+
+	/**
+	 * Number of 64-bit words in a block mask.
+	 */
+	static final int WORDS = SIZE / 64;
+
+	/**
+	 * The kind of objects whose IDs are stored in this block.
+	 */
+	final ObjectKind kind;
+
+	/**
+	 * The execution this block belongs to.
+	 */
+	final BlockExecutor< ?, ? >.Execution execution;
+
+	/**
+	 * Whether the blocks of this pass are read from all the objects of the
+	 * graph, or only from candidate IDs.
+	 */
+	final boolean scan;
+
+	/**
+	 * The object IDs.
+	 */
+	final int[] ids;
+
+	/**
+	 * The number of IDs currently stored in the block.
+	 */
+	int size;
+
+	private final ArrayDeque< long[] > scratch;
+
+	IdBlock( final ObjectKind kind, final BlockExecutor< ?, ? >.Execution execution, final boolean scan )
+	{
+		this.kind = kind;
+		this.execution = execution;
+		this.scan = scan;
+		this.ids = new int[ SIZE ];
+		this.scratch = new ArrayDeque<>();
+	}
+
+	boolean isFull()
+	{
+		return size == SIZE;
+	}
+
+	/**
+	 * Writes in the specified mask the bits of all the objects currently in
+	 * the block.
+	 *
+	 * @param mask
+	 *            the mask to write.
+	 */
+	void all( final long[] mask )
+	{
+		Arrays.fill( mask, 0l );
+		final int full = size >>> 6;
+		Arrays.fill( mask, 0, full, -1l );
+		final int rem = size & 63;
+		if ( rem != 0 )
+			mask[ full ] = ( 1l << rem ) - 1;
+	}
+
+	/**
+	 * Returns the number of bits set in a mask.
+	 *
+	 * @param mask
+	 *            the mask.
+	 * @return the number of bits set.
+	 */
+	static int cardinality( final long[] mask )
+	{
+		int n = 0;
+		for ( final long word : mask )
+			n += Long.bitCount( word );
+		return n;
+	}
+
+	/**
+	 * Returns a cleared scratch mask.
+	 *
+	 * @return a mask of {@link #WORDS} words.
+	 */
+	long[] borrow()
+	{
+		final long[] mask = scratch.poll();
+		if ( mask == null )
+			return new long[ WORDS ];
+		Arrays.fill( mask, 0l );
+		return mask;
+	}
+
+	/**
+	 * Gives back a mask obtained with {@link #borrow()}.
+	 *
+	 * @param mask
+	 *            the mask.
+	 */
+	void release( final long[] mask )
+	{
+		scratch.push( mask );
+	}
+}
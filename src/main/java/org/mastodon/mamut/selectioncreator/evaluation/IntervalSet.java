@@ -0,0 +1,335 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of disjoint intervals of feature values, used as a single predicate
+ * for all the comparisons made on the same feature projection.
+ * <p>
+ * Comparisons combined with 'and' or 'or' on the same projection are fused
+ * into one interval set, tested in one pass or answered with one slice of
+ * the sorted index per interval.
+ * <p>
+ * Bounds may be infinite. <code>NaN</code> values are accepted or not as a
+ * whole, since the only comparison that accepts them is 'not equal'.
+ * Instances are immutable.
+ */
+final class IntervalSet
+{
+
+	private static final Interval[] NO_INTERVAL = new Interval[ 0 ];
+
+	/**
+	 * Sorted, disjoint, non-empty intervals.
+	 */
+	private final Interval[] intervals;
+
+	/**
+	 * Whether <code>NaN</code> values are accepted.
+	 */
+	private final boolean nan;
+
+	private IntervalSet( final Interval[] intervals, final boolean nan )
+	{
+		this.intervals = intervals;
+		this.nan = nan;
+	}
+
+	/**
+	 * Returns the values that compare with a threshold.
+	 *
+	 * @param comparison
+	 *            the comparison.
+	 * @param threshold
+	 *            the threshold.
+	 * @return a new interval set.
+	 */
+	static IntervalSet of( final Comparison comparison, final double threshold )
+	{
+		final double inf = Double.POSITIVE_INFINITY;
+		if ( Double.isNaN( threshold ) )
+			return comparison == Comparison.NOT_EQUAL
+					? create( true, new Interval( -inf, false, inf, false ) )
+					: create( false );
+
+		switch ( comparison )
+		{
+		case LESS_THAN:
+			return create( false, new Interval( -inf, false, threshold, true ) );
+		case LESS_THAN_OR_EQUAL:
+			return create( false, new Interval( -inf, false, threshold, false ) );
+		case GREATER_THAN:
+			return create( false, new Interval( threshold, true, inf, false ) );
+		case GREATER_THAN_OR_EQUAL:
+			return create( false, new Interval( threshold, false, inf, false ) );
+		case EQUAL:
+			return create( false, new Interval( threshold, false, threshold, false ) );
+		case NOT_EQUAL:
+			return create( true,
+					new Interval( -inf, false, threshold, true ),
+					new Interval( threshold, true, inf, false ) );
+		default:
+			throw new IllegalArgumentException( "Unknown comparison: " + comparison );
+		}
+	}
+
+	/**
+	 * Returns the values between two bounds, inclusive.
+	 *
+	 * @param min
+	 *            the lower bound.
+	 * @param max
+	 *            the upper bound.
+	 * @return a new interval set.
+	 */
+	static IntervalSet between( final double min, final double max )
+	{
+		if ( Double.isNaN( min ) || Double.isNaN( max ) )
+			return create( false );
+		return create( false, new Interval( min, false, max, false ) );
+	}
+
+	/**
+	 * Returns the values accepted by this set and the other one.
+	 *
+	 * @param other
+	 *            the other set.
+	 * @return a new interval set.
+	 */
+	IntervalSet and( final IntervalSet other )
+	{
+		final List< Interval > list = new ArrayList<>();
+		for ( final Interval a : intervals )
+			for ( final Interval b : other.intervals )
+				list.add( a.intersect( b ) );
+		return create( nan && other.nan, list.toArray( NO_INTERVAL ) );
+	}
+
+	/**
+	 * Returns the values accepted by this set or the other one.
+	 *
+	 * @param other
+	 *            the other set.
+	 * @return a new interval set.
+	 */
+	IntervalSet or( final IntervalSet other )
+	{
+		final Interval[] all = Arrays.copyOf( intervals, intervals.length + other.intervals.length );
+		System.arraycopy( other.intervals, 0, all, intervals.length, other.intervals.length );
+		return create( nan || other.nan, all );
+	}
+
+	/**
+	 * Tests a value.
+	 *
+	 * @param value
+	 *            the value.
+	 * @return whether the value is in this set.
+	 */
+	boolean test( final double value )
+	{
+		if ( Double.isNaN( value ) )
+			return nan;
+		for ( final Interval interval : intervals )
+			if ( interval.test( value ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Whether <code>NaN</code> values are accepted.
+	 *
+	 * @return <code>true</code> if they are.
+	 */
+	boolean acceptsNaN()
+	{
+		return nan;
+	}
+
+	/**
+	 * Returns <code>true</code> if no value is accepted.
+	 *
+	 * @return whether this set is empty.
+	 */
+	boolean isEmpty()
+	{
+		return intervals.length == 0 && !nan;
+	}
+
+	/**
+	 * Returns the number of intervals.
+	 *
+	 * @return the number of intervals.
+	 */
+	int size()
+	{
+		return intervals.length;
+	}
+
+	/**
+	 * Returns the interval with the specified index, in increasing order.
+	 *
+	 * @param i
+	 *            the index.
+	 * @return the interval.
+	 */
+	Interval get( final int i )
+	{
+		return intervals[ i ];
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( isEmpty() )
+			return "none";
+		final StringBuilder str = new StringBuilder();
+		for ( final Interval interval : intervals )
+		{
+			if ( str.length() > 0 )
+				str.append( " or " );
+			str.append( interval );
+		}
+		if ( nan )
+			str.append( str.length() > 0 ? " or NaN" : "NaN" );
+		return str.toString();
+	}
+
+	/**
+	 * Sorts the intervals, drops the empty ones and merges the ones that
+	 * overlap or touch.
+	 */
+	private static IntervalSet create( final boolean nan, final Interval... intervals )
+	{
+		final List< Interval > list = new ArrayList<>();
+		for ( final Interval interval : intervals )
+			if ( !interval.isEmpty() )
+				list.add( interval );
+		list.sort( ( a, b ) -> a.min < b.min ? -1 : a.min > b.min ? 1 : Boolean.compare( a.minOpen, b.minOpen ) );
+
+		final List< Interval > merged = new ArrayList<>();
+		Interval current = null;
+		for ( final Interval next : list )
+		{
+			if ( current == null )
+			{
+				current = next;
+				continue;
+			}
+			final boolean connected = next.min < current.max || ( next.min == current.max && !( next.minOpen && current.maxOpen ) );
+			if ( !connected )
+			{
+				merged.add( current );
+				current = next;
+				continue;
+			}
+			if ( next.max > current.max )
+				current = new Interval( current.min, current.minOpen, next.max, next.maxOpen );
+			else if ( next.max == current.max && current.maxOpen && !next.maxOpen )
+				current = new Interval( current.min, current.minOpen, current.max, false );
+		}
+		if ( current != null )
+			merged.add( current );
+		return new IntervalSet( merged.toArray( NO_INTERVAL ), nan );
+	}
+
+	/**
+	 * An interval of values, each bound being inclusive or exclusive.
+	 */
+	static final class Interval
+	{
+
+		final double min;
+
+		final boolean minOpen;
+
+		final double max;
+
+		final boolean maxOpen;
+
+		Interval( final double min, final boolean minOpen, final double max, final boolean maxOpen )
+		{
+			this.min = min;
+			this.minOpen = minOpen;
+			this.max = max;
+			this.maxOpen = maxOpen;
+		}
+
+		boolean test( final double value )
+		{
+			return ( minOpen ? value > min : value >= min ) && ( maxOpen ? value < max : value <= max );
+		}
+
+		boolean isEmpty()
+		{
+			return min > max || ( min == max && ( minOpen || maxOpen ) );
+		}
+
+		Interval intersect( final Interval other )
+		{
+			final double lo;
+			final boolean loOpen;
+			if ( min > other.min || ( min == other.min && minOpen ) )
+			{
+				lo = min;
+				loOpen = minOpen;
+			}
+			else
+			{
+				lo = other.min;
+				loOpen = other.minOpen;
+			}
+			final double hi;
+			final boolean hiOpen;
+			if ( max < other.max || ( max == other.max && maxOpen ) )
+			{
+				hi = max;
+				hiOpen = maxOpen;
+			}
+			else
+			{
+				hi = other.max;
+				hiOpen = other.maxOpen;
+			}
+			return new Interval( lo, loOpen, hi, hiOpen );
+		}
+
+		@Override
+		public String toString()
+		{
+			if ( min == max && !minOpen && !maxOpen )
+				return "{" + min + "}";
+			return ( minOpen ? "(" : "[" ) + min + ", " + max + ( maxOpen ? ")" : "]" );
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An index of the lineages of the graph, for the selection of the
+ * descendants and ancestors of objects without searching the graph.
+ * <p>
+ * A depth-first search from each vertex without incoming edges numbers the
+ * vertices in pre-order. The descendants of a vertex are then the vertices
+ * numbered after it, up to the last one of its sub-tree: a contiguous range of
+ * positions. Divisions only open new sub-trees, but a merge gives a vertex
+ * several parents and breaks this property. The trees that contain a vertex
+ * with several incoming edges, and the vertices not reached from a root, are
+ * flagged as merged. The lineages of the objects they contain are searched in
+ * the {@link Adjacency} snapshot instead.
+ * <p>
+ * The index is immutable, and built from one snapshot of the graph.
+ */
+final class LineageIndex
+{
+
+	/**
+	 * The snapshot this index was built from.
+	 */
+	final Adjacency adjacency;
+
+	/**
+	 * The pre-order position of each vertex ID, <code>-1</code> if the vertex
+	 * was not reached from a root.
+	 */
+	private final int[] positions;
+
+	/**
+	 * The position of the last vertex in the sub-tree of each vertex ID.
+	 */
+	private final int[] last;
+
+	/**
+	 * The vertex ID at each position.
+	 */
+	private final int[] order;
+
+	/**
+	 * The incoming edge of the vertex at each position, <code>-1</code> for
+	 * roots.
+	 */
+	private final int[] parentEdges;
+
+	/**
+	 * The positions of the vertices that belong to a tree with a merge.
+	 */
+	private final BitSet merged;
+
+	private LineageIndex( final Adjacency adjacency, final int[] positions, final int[] last, final int[] order, final int[] parentEdges, final BitSet merged )
+	{
+		this.adjacency = adjacency;
+		this.positions = positions;
+		this.last = last;
+		this.order = order;
+		this.parentEdges = parentEdges;
+		this.merged = merged;
+	}
+
+	/**
+	 * Builds the lineage index of a snapshot of the graph.
+	 *
+	 * @param adjacency
+	 *            the snapshot.
+	 * @return a new index.
+	 */
+	static LineageIndex build( final Adjacency adjacency )
+	{
+		final int n = adjacency.vertexRange();
+		final int[] positions = new int[ n ];
+		Arrays.fill( positions, -1 );
+		final int[] last = new int[ n ];
+		final int[] order = new int[ n ];
+		final int[] parentEdges = new int[ n ];
+		final BitSet merged = new BitSet();
+
+		// Iterative DFS: the stack holds vertices and their next edge.
+		final int[] stack = new int[ n ];
+		final int[] cursors = new int[ n ];
+		int position = 0;
+		for ( int root = 0; root < n; root++ )
+		{
+			if ( adjacency.inDegree( root ) != 0 )
+				continue;
+			final int start = position;
+			boolean merge = false;
+			int top = 0;
+			stack[ 0 ] = root;
+			cursors[ 0 ] = adjacency.outStart( root );
+			positions[ root ] = position;
+			order[ position ] = root;
+			parentEdges[ position++ ] = -1;
+			while ( top >= 0 )
+			{
+				final int v = stack[ top ];
+				if ( cursors[ top ] == adjacency.outEnd( v ) )
+				{
+					last[ v ] = position - 1;
+					top--;
+					continue;
+				}
+				final int e = adjacency.outEdge( cursors[ top ]++ );
+				final int child = adjacency.target( e );
+				if ( adjacency.inDegree( child ) > 1 )
+					merge = true;
+				if ( positions[ child ] >= 0 )
+					continue;
+				positions[ child ] = position;
+				order[ position ] = child;
+				parentEdges[ position++ ] = e;
+				stack[ ++top ] = child;
+				cursors[ top ] = adjacency.outStart( child );
+			}
+			if ( merge )
+				merged.set( start, position );
+		}
+		return new LineageIndex( adjacency, positions, last, order, parentEdges, merged );
+	}
+
+	/**
+	 * Returns <code>true</code> if the first vertex is a strict ancestor of
+	 * the second one. Only valid if both are in a tree without merges.
+	 */
+	private boolean isAncestorInTree( final int ancestor, final int vertex )
+	{
+		final int p = positions[ vertex ];
+		return positions[ ancestor ] < p && p <= last[ ancestor ];
+	}
+
+	/**
+	 * Returns <code>true</code> if the first vertex precedes the second one
+	 * along the edges.
+	 *
+	 * @param ancestor
+	 *            the ID of the possible ancestor.
+	 * @param vertex
+	 *            the vertex ID.
+	 * @return whether <code>vertex</code> is a descendant of
+	 *         <code>ancestor</code>.
+	 */
+	boolean isAncestor( final int ancestor, final int vertex )
+	{
+		if ( ancestor >= positions.length || vertex >= positions.length )
+			return false;
+		if ( inTree( ancestor ) && inTree( vertex ) )
+			return isAncestorInTree( ancestor, vertex );
+		final IdBitmap seed = IdBitmap.create();
+		seed.set( vertex );
+		final BitSet ancestors = new BitSet();
+		adjacency.reach( seed, IdBitmap.create(), false, Integer.MAX_VALUE, ancestors, new BitSet() );
+		return ancestors.get( ancestor );
+	}
+
+	/**
+	 * Whether a vertex belongs to a tree without merges.
+	 */
+	private boolean inTree( final int vertex )
+	{
+		final int p = positions[ vertex ];
+		return p >= 0 && !merged.get( p );
+	}
+
+	/**
+	 * Adds the descendants of the specified objects to the specified bitsets,
+	 * with the same semantics as {@link Adjacency#reach}.
+	 *
+	 * @param seedVertices
+	 *            the vertex IDs to start from.
+	 * @param seedEdges
+	 *            the edge IDs to start from.
+	 * @param vertices
+	 *            the bitset to add the descendant vertex IDs to.
+	 * @param edges
+	 *            the bitset to add the edge IDs between them to.
+	 */
+	void descendants( final IdBitmap seedVertices, final IdBitmap seedEdges, final BitSet vertices, final BitSet edges )
+	{
+		// Positions of the vertices, and of the vertices whose incoming edge
+		// is included.
+		final BitSet vertexPositions = new BitSet();
+		final BitSet edgePositions = new BitSet();
+		final IdBitmap mergedVertices = IdBitmap.create();
+		final IdBitmap mergedEdges = IdBitmap.create();
+		final int n = positions.length;
+		for ( int v = seedVertices.nextSetBit( 0 ); v >= 0 && v < n; v = seedVertices.nextSetBit( v + 1 ) )
+		{
+			if ( !inTree( v ) )
+			{
+				mergedVertices.set( v );
+				continue;
+			}
+			vertexPositions.set( positions[ v ] + 1, last[ v ] + 1 );
+			edgePositions.set( positions[ v ] + 1, last[ v ] + 1 );
+		}
+		for ( int e = seedEdges.nextSetBit( 0 ); e >= 0 && e < adjacency.edgeRange(); e = seedEdges.nextSetBit( e + 1 ) )
+		{
+			final int t = adjacency.target( e );
+			if ( t < 0 )
+				continue;
+			if ( !inTree( t ) )
+			{
+				mergedEdges.set( e );
+				continue;
+			}
+			vertexPositions.set( positions[ t ], last[ t ] + 1 );
+			edgePositions.set( positions[ t ] + 1, last[ t ] + 1 );
+		}
+
+		for ( int p = vertexPositions.nextSetBit( 0 ); p >= 0; p = vertexPositions.nextSetBit( p + 1 ) )
+			vertices.set( order[ p ] );
+		for ( int p = edgePositions.nextSetBit( 0 ); p >= 0; p = edgePositions.nextSetBit( p + 1 ) )
+			edges.set( parentEdges[ p ] );
+		if ( !mergedVertices.isEmpty() || !mergedEdges.isEmpty() )
+			adjacency.reach( mergedVertices, mergedEdges, true, Integer.MAX_VALUE, vertices, edges );
+	}
+
+	/**
+	 * Adds the ancestors of the specified objects to the specified bitsets,
+	 * with the same semantics as {@link Adjacency#reach}.
+	 *
+	 * @param seedVertices
+	 *            the vertex IDs to start from.
+	 * @param seedEdges
+	 *            the edge IDs to start from.
+	 * @param vertices
+	 *            the bitset to add the ancestor vertex IDs to.
+	 * @param edges
+	 *            the bitset to add the edge IDs between them to.
+	 */
+	void ancestors( final IdBitmap seedVertices, final IdBitmap seedEdges, final BitSet vertices, final BitSet edges )
+	{
+		// In a tree, the ancestors are the path to the root. Paths already
+		// walked from another seed are not walked again.
+		final BitSet walked = new BitSet();
+		final IdBitmap mergedVertices = IdBitmap.create();
+		final IdBitmap mergedEdges = IdBitmap.create();
+		final int n = positions.length;
+		for ( int v = seedVertices.nextSetBit( 0 ); v >= 0 && v < n; v = seedVertices.nextSetBit( v + 1 ) )
+		{
+			if ( inTree( v ) )
+				walkUp( v, walked, vertices, edges );
+			else
+				mergedVertices.set( v );
+		}
+		for ( int e = seedEdges.nextSetBit( 0 ); e >= 0 && e < adjacency.edgeRange(); e = seedEdges.nextSetBit( e + 1 ) )
+		{
+			final int s = adjacency.source( e );
+			if ( s < 0 )
+				continue;
+			if ( inTree( s ) )
+			{
+				vertices.set( s );
+				walkUp( s, walked, vertices, edges );
+			}
+			else
+				mergedEdges.set( e );
+		}
+		if ( !mergedVertices.isEmpty() || !mergedEdges.isEmpty() )
+			adjacency.reach( mergedVertices, mergedEdges, false, Integer.MAX_VALUE, vertices, edges );
+	}
+
+	private void walkUp( final int vertex, final BitSet walked, final BitSet vertices, final BitSet edges )
+	{
+		int p = positions[ vertex ];
+		while ( !walked.get( p ) )
+		{
+			walked.set( p );
+			final int e = parentEdges[ p ];
+			if ( e < 0 )
+				return;
+			edges.set( e );
+			final int parent = adjacency.source( e );
+			vertices.set( parent );
+			p = positions[ parent ];
+		}
+	}
+
+	/**
+	 * Returns the approximate memory footprint of this index, not counting
+	 * the snapshot it was built from.
+	 *
+	 * @return a number of bytes.
+	 */
+	long bytes()
+	{
+		return 4l * ( positions.length + last.length + order.length + parentEdges.length ) + merged.size() / 8;
+	}
+}
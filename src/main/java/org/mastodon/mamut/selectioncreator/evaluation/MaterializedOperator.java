@@ -0,0 +1,317 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+
+/**
+ * Operators that cannot decide on an object by looking at it alone, and that
+ * need to build a full selection before the blocks can be tested against it.
+ * The selection is built once per execution, the first time the operator is
+ * reached.
+ */
+abstract class MaterializedOperator extends BlockOperator
+{
+
+	/**
+	 * Builds the full selection of this operator.
+	 *
+	 * @param execution
+	 *            the current execution.
+	 * @return a new selection.
+	 */
+	abstract SelectionVariable materialize( BlockExecutor< ?, ? >.Execution execution );
+
+	@Override
+	BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+	{
+		return kind.of( execution.materialized( this ) ).asBitSet();
+	}
+
+	@Override
+	public boolean isLocal()
+	{
+		return false;
+	}
+
+	@Override
+	String access()
+	{
+		return "materialized";
+	}
+
+	@Override
+	void test( final IdBlock block, final long[] in, final long[] out )
+	{
+		final IdBitmap bits = block.kind.of( block.execution.materialized( this ) );
+		for ( int w = 0; w < in.length; w++ )
+		{
+			long word = in[ w ];
+			long accepted = 0l;
+			while ( word != 0l )
+			{
+				final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+				word &= word - 1;
+				if ( bits.get( block.ids[ i ] ) )
+					accepted |= 1l << i;
+			}
+			out[ w ] = accepted;
+		}
+	}
+
+	/**
+	 * The current content of the selection model, or only its vertices or
+	 * edges.
+	 */
+	static final class SelectionModelOperator extends MaterializedOperator
+	{
+
+		private final boolean vertices;
+
+		private final boolean edges;
+
+		SelectionModelOperator( final boolean vertices, final boolean edges )
+		{
+			this.vertices = vertices;
+			this.edges = edges;
+		}
+
+		@Override
+		SelectionVariable materialize( final BlockExecutor< ?, ? >.Execution execution )
+		{
+			final SelectionVariable sv = execution.selection();
+			if ( !vertices )
+				sv.clearVertices();
+			if ( !edges )
+				sv.clearEdges();
+			return sv;
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return kind == ObjectKind.VERTEX ? vertices : edges;
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			final SelectionVariable selection = planner.selection();
+			if ( !accepts( kind ) || selection == null )
+				return super.selectivity( planner, kind );
+			final int size = planner.size( kind );
+			return size == 0 ? 0. : Math.min( 1., ( double ) kind.of( selection ).cardinality() / size );
+		}
+
+		@Override
+		String access()
+		{
+			return "selection model";
+		}
+
+		@Override
+		public String toString()
+		{
+			if ( vertices && edges )
+				return "Selection";
+			return vertices ? "VertexSelection" : "EdgeSelection";
+		}
+	}
+
+	/**
+	 * The result of morphing the selection of a child operator.
+	 */
+	static final class MorphOperator extends MaterializedOperator
+	{
+
+		final BlockOperator child;
+
+		final List< Morpher > morphers;
+
+		MorphOperator( final BlockOperator child, final List< Morpher > morphers )
+		{
+			this.child = child;
+			this.morphers = morphers;
+		}
+
+		@Override
+		SelectionVariable materialize( final BlockExecutor< ?, ? >.Execution execution )
+		{
+			return execution.morph( execution.evaluate( child ), morphers );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return true;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Morph( " + child + ", " + morphers + " )";
+		}
+	}
+
+	/**
+	 * The objects reached from the selection of a child operator in a number
+	 * of steps along the edges.
+	 */
+	static final class TraversalOperator extends MaterializedOperator
+	{
+
+		final BlockOperator child;
+
+		final boolean forward;
+
+		final int depth;
+
+		TraversalOperator( final BlockOperator child, final boolean forward, final int depth )
+		{
+			this.child = child;
+			this.forward = forward;
+			this.depth = depth;
+		}
+
+		@Override
+		SelectionVariable materialize( final BlockExecutor< ?, ? >.Execution execution )
+		{
+			return execution.traverse( execution.evaluate( child ), forward, depth );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return true;
+		}
+
+		@Override
+		public String toString()
+		{
+			return ( forward ? "Successors( " : "Predecessors( " ) + child + ", " + depth + " )";
+		}
+	}
+
+	/**
+	 * The vertices and inner edges of the branches whose feature value is in
+	 * some intervals.
+	 */
+	static final class BranchFeatureOperator extends MaterializedOperator
+	{
+
+		private final BranchFeatureVariable< ? > feature;
+
+		private final IntervalSet intervals;
+
+		BranchFeatureOperator( final BranchFeatureVariable< ? > feature, final IntervalSet intervals )
+		{
+			this.feature = feature;
+			this.intervals = intervals;
+		}
+
+		@Override
+		SelectionVariable materialize( final BlockExecutor< ?, ? >.Execution execution )
+		{
+			return feature.select( intervals, null );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return true;
+		}
+
+		@Override
+		String access()
+		{
+			return "branch index";
+		}
+
+		@Override
+		public String toString()
+		{
+			return feature + " in " + intervals;
+		}
+	}
+
+	/**
+	 * The vertices of a range of timepoints, read from the frame index.
+	 */
+	static final class FrameOperator extends MaterializedOperator
+	{
+
+		private final FrameIndex< ? > frames;
+
+		private final IntervalSet timepoints;
+
+		FrameOperator( final FrameIndex< ? > frames, final IntervalSet timepoints )
+		{
+			this.frames = frames;
+			this.timepoints = timepoints;
+		}
+
+		@Override
+		SelectionVariable materialize( final BlockExecutor< ?, ? >.Execution execution )
+		{
+			final BitSet vertices = new BitSet();
+			frames.select( timepoints, vertices );
+			return new SelectionVariable( vertices, new BitSet() );
+		}
+
+		@Override
+		boolean accepts( final ObjectKind kind )
+		{
+			return kind == ObjectKind.VERTEX;
+		}
+
+		@Override
+		double selectivity( final QueryPlanner planner, final ObjectKind kind )
+		{
+			final int size = planner.size( kind );
+			if ( kind != ObjectKind.VERTEX || size == 0 )
+				return 0.;
+			return Math.min( 1., ( double ) frames.count( timepoints ) / size );
+		}
+
+		@Override
+		String access()
+		{
+			return "frame index";
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Frame( " + timepoints + " )";
+		}
+	}
+}
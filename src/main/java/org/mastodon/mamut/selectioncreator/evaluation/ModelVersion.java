@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureModel.FeatureModelListener;
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphChangeListener;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.graph.ListenableReadOnlyGraph;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetModel.TagSetModelListener;
+import org.mastodon.spatial.VertexPositionChangeProvider;
+import org.mastodon.spatial.VertexPositionListener;
+
+/**
+ * Counters incremented when the model changes, used to tell whether caches
+ * and indices built from the model are still valid.
+ * <p>
+ * The counters only increase. A cache records the counters it depends on
+ * when it is built, and is stale as soon as one of them differs.
+ * <p>
+ * The counters stop following the model after {@link #close()}.
+ */
+public class ModelVersion
+{
+
+	private final AtomicLong structure = new AtomicLong();
+
+	private final AtomicLong graph = new AtomicLong();
+
+	private final AtomicLong features = new AtomicLong();
+
+	private final AtomicLong tags = new AtomicLong();
+
+	private final AtomicLong positions = new AtomicLong();
+
+	private final FeatureModel featureModel;
+
+	private final FeatureModelListener featureListener = () -> features.incrementAndGet();
+
+	private final TagSetModel< ?, ? > tagSetModel;
+
+	private final TagSetModelListener tagListener = () -> tags.incrementAndGet();
+
+	private final ListenableReadOnlyGraph< ?, ? > lgraph;
+
+	private final StructureListener< ?, ? > structureListener = new StructureListener<>();
+
+	private final ChangeListener changeListener = new ChangeListener();
+
+	private final VertexPositionChangeProvider< ? > positionProvider;
+
+	private final VertexPositionListener< Object > positionListener = vertex -> positions.incrementAndGet();
+
+	/**
+	 * Creates a new version tracker and registers it as a listener of the
+	 * specified models. Graph changes can only be tracked if the graph is a
+	 * {@link ListenableReadOnlyGraph}, and spot moves if it is a
+	 * {@link VertexPositionChangeProvider}.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param featureModel
+	 *            the feature model.
+	 * @param tagSetModel
+	 *            the tag-set model.
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < V extends Vertex< E >, E extends Edge< V > > ModelVersion(
+			final ReadOnlyGraph< V, E > graph,
+			final FeatureModel featureModel,
+			final TagSetModel< V, E > tagSetModel )
+	{
+		this.featureModel = featureModel;
+		this.tagSetModel = tagSetModel;
+		featureModel.listeners().add( featureListener );
+		tagSetModel.listeners().add( tagListener );
+		if ( graph instanceof ListenableReadOnlyGraph )
+		{
+			final ListenableReadOnlyGraph< V, E > lgraph = ( ListenableReadOnlyGraph< V, E > ) graph;
+			lgraph.addGraphListener( structureListener() );
+			lgraph.addGraphChangeListener( changeListener );
+			this.lgraph = lgraph;
+		}
+		else
+		{
+			this.lgraph = null;
+		}
+		if ( graph instanceof VertexPositionChangeProvider )
+		{
+			final VertexPositionChangeProvider< V > provider = ( VertexPositionChangeProvider< V > ) graph;
+			provider.addVertexPositionListener( positionListener() );
+			this.positionProvider = provider;
+		}
+		else
+		{
+			this.positionProvider = null;
+		}
+	}
+
+	/**
+	 * Stops listening to the models. The counters keep their last values.
+	 */
+	public void close()
+	{
+		featureModel.listeners().remove( featureListener );
+		tagSetModel.listeners().remove( tagListener );
+		if ( lgraph != null )
+		{
+			lgraph.removeGraphListener( structureListener() );
+			lgraph.removeGraphChangeListener( changeListener );
+		}
+		if ( positionProvider != null )
+			positionProvider.removeVertexPositionListener( positionListener() );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private < V, E > GraphListener< V, E > structureListener()
+	{
+		return ( GraphListener< V, E > ) structureListener;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private < V > VertexPositionListener< V > positionListener()
+	{
+		return ( VertexPositionListener< V > ) ( VertexPositionListener< ? > ) positionListener;
+	}
+
+	/**
+	 * Incremented when vertices or edges are added or removed.
+	 *
+	 * @return the structure version.
+	 */
+	public long structure()
+	{
+		return structure.get();
+	}
+
+	/**
+	 * Incremented when vertices or edges are added or removed, and when the
+	 * graph notifies that it changed, for instance after spots were moved or
+	 * tagged.
+	 *
+	 * @return the graph version.
+	 */
+	public long graph()
+	{
+		return graph.get();
+	}
+
+	/**
+	 * Incremented when a vertex is moved.
+	 *
+	 * @return the position version.
+	 */
+	public long positions()
+	{
+		return positions.get();
+	}
+
+	/**
+	 * Incremented when features are declared or cleared in the feature
+	 * model.
+	 *
+	 * @return the feature version.
+	 */
+	public long features()
+	{
+		return features.get();
+	}
+
+	/**
+	 * Incremented when the tag-set structure changes.
+	 *
+	 * @return the tag-set version.
+	 */
+	public long tags()
+	{
+		return tags.get();
+	}
+
+	private void structureChanged()
+	{
+		structure.incrementAndGet();
+		graph.incrementAndGet();
+	}
+
+	private final class StructureListener< V, E > implements GraphListener< V, E >
+	{
+
+		@Override
+		public void graphRebuilt()
+		{
+			structureChanged();
+		}
+
+		@Override
+		public void vertexAdded( final V vertex )
+		{
+			structureChanged();
+		}
+
+		@Override
+		public void vertexRemoved( final V vertex )
+		{
+			structureChanged();
+		}
+
+		@Override
+		public void edgeAdded( final E edge )
+		{
+			structureChanged();
+		}
+
+		@Override
+		public void edgeRemoved( final E edge )
+		{
+			structureChanged();
+		}
+	}
+
+	private final class ChangeListener implements GraphChangeListener
+	{
+
+		@Override
+		public void graphChanged()
+		{
+			graph.incrementAndGet();
+		}
+	}
+}
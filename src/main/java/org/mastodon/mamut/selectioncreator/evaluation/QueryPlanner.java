@@ -0,0 +1,403 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.MorphOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.TraversalOperator;
+
+/**
+ * Orders the operands of the 'and' and 'or' operators of a
+ * {@link BlockOperator} tree, so that the objects are rejected, or accepted,
+ * as early as possible.
+ * <p>
+ * Each operator estimates the fraction of the objects it accepts, from the
+ * {@link FeatureStatistics} of the feature columns, from the tag indices and
+ * from the current selection. When none is available yet, it falls back on a
+ * guess from the kind of comparison. The cost of an operator is the expected
+ * number of leaf tests per object. The operands of a chain of 'and' are then
+ * sorted by increasing <code>cost / (1 - selectivity)</code>, and those of a
+ * chain of 'or' by increasing <code>cost / selectivity</code>, which minimizes
+ * the expected cost of the chain when operands are independent. Ties keep the
+ * order of the expression.
+ * <p>
+ * A planner is meant for one execution: it reads the current selection once.
+ */
+public class QueryPlanner
+{
+
+	/**
+	 * The selectivity assumed for operators that cannot estimate theirs.
+	 */
+	static final double DEFAULT_SELECTIVITY = 0.5;
+
+	private final int vertices;
+
+	private final int edges;
+
+	private final SelectionMirror< ?, ? > mirror;
+
+	private SelectionVariable selection;
+
+	/**
+	 * Creates a planner for the specified graph.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param mirror
+	 *            the mirror of the selection model, used to estimate the size
+	 *            of the selection. May be <code>null</code>.
+	 */
+	public QueryPlanner( final ReadOnlyGraph< ?, ? > graph, final SelectionMirror< ?, ? > mirror )
+	{
+		this.vertices = graph.vertices().size();
+		this.edges = graph.edges().size();
+		this.mirror = mirror;
+	}
+
+	/**
+	 * Plans the execution of the specified operator tree.
+	 *
+	 * @param operator
+	 *            the root of the operator tree.
+	 * @return the plan.
+	 */
+	public Plan plan( final BlockOperator operator )
+	{
+		final Map< BlockOperator, BlockOperator > planned = new IdentityHashMap<>();
+		final BlockOperator root = reorder( operator, planned );
+		return new Plan( root, !sameOrder( operator, root ), describe( root, op -> "" ) );
+	}
+
+	/**
+	 * Returns the number of objects of the specified kind in the graph.
+	 *
+	 * @param kind
+	 *            the kind of objects.
+	 * @return the number of objects.
+	 */
+	int size( final ObjectKind kind )
+	{
+		return kind == ObjectKind.VERTEX ? vertices : edges;
+	}
+
+	/**
+	 * Returns the current selection, or <code>null</code> if it cannot be
+	 * read cheaply.
+	 *
+	 * @return the selection, not to be modified.
+	 */
+	SelectionVariable selection()
+	{
+		if ( selection == null && mirror != null )
+			selection = mirror.get();
+		return selection;
+	}
+
+	/**
+	 * Estimates the fraction of all the objects, vertices and edges, accepted
+	 * by the specified operator.
+	 */
+	double selectivity( final BlockOperator operator )
+	{
+		final int size = vertices + edges;
+		if ( size == 0 )
+			return 0.;
+		return ( vertices * operator.selectivity( this, ObjectKind.VERTEX )
+				+ edges * operator.selectivity( this, ObjectKind.EDGE ) ) / size;
+	}
+
+	/**
+	 * Estimates the number of leaf tests per object made by the specified
+	 * operator.
+	 */
+	double cost( final BlockOperator operator )
+	{
+		if ( operator instanceof BlockOperator.And )
+		{
+			final BlockOperator.And and = ( BlockOperator.And ) operator;
+			return cost( and.a ) + selectivity( and.a ) * cost( and.b );
+		}
+		if ( operator instanceof BlockOperator.Or )
+		{
+			final BlockOperator.Or or = ( BlockOperator.Or ) operator;
+			return cost( or.a ) + ( 1. - selectivity( or.a ) ) * cost( or.b );
+		}
+		if ( operator instanceof BlockOperator.Sub )
+		{
+			final BlockOperator.Sub sub = ( BlockOperator.Sub ) operator;
+			return cost( sub.a ) + selectivity( sub.a ) * cost( sub.b );
+		}
+		return 1.;
+	}
+
+	/**
+	 * Returns the operator tree with its chains of 'and' and 'or' reordered.
+	 * Operators reached more than once are planned once, so that repeated
+	 * materialized operators stay shared.
+	 */
+	private BlockOperator reorder( final BlockOperator operator, final Map< BlockOperator, BlockOperator > planned )
+	{
+		final BlockOperator previous = planned.get( operator );
+		if ( previous != null )
+			return previous;
+
+		final BlockOperator result;
+		if ( operator instanceof BlockOperator.And || operator instanceof BlockOperator.Or )
+		{
+			final boolean and = operator instanceof BlockOperator.And;
+			final List< BlockOperator > terms = new ArrayList<>();
+			flatten( and, operator, terms );
+			final List< BlockOperator > ordered = new ArrayList<>( terms.size() );
+			for ( final BlockOperator term : terms )
+				ordered.add( reorder( term, planned ) );
+			ordered.sort( Comparator.comparingDouble( term -> rank( and, term ) ) );
+			BlockOperator combined = ordered.get( 0 );
+			for ( int i = 1; i < ordered.size(); i++ )
+				combined = and ? BlockOperator.and( combined, ordered.get( i ) ) : BlockOperator.or( combined, ordered.get( i ) );
+			result = combined;
+		}
+		else if ( operator instanceof BlockOperator.Sub )
+		{
+			final BlockOperator.Sub sub = ( BlockOperator.Sub ) operator;
+			final BlockOperator a = reorder( sub.a, planned );
+			final BlockOperator b = reorder( sub.b, planned );
+			result = ( a == sub.a && b == sub.b ) ? sub : BlockOperator.sub( a, b );
+		}
+		else if ( operator instanceof MorphOperator )
+		{
+			final MorphOperator morph = ( MorphOperator ) operator;
+			final BlockOperator child = reorder( morph.child, planned );
+			result = child == morph.child ? morph : new MorphOperator( child, morph.morphers );
+		}
+		else if ( operator instanceof TraversalOperator )
+		{
+			final TraversalOperator traversal = ( TraversalOperator ) operator;
+			final BlockOperator child = reorder( traversal.child, planned );
+			result = child == traversal.child ? traversal : new TraversalOperator( child, traversal.forward, traversal.depth );
+		}
+		else
+		{
+			result = operator;
+		}
+		planned.put( operator, result );
+		return result;
+	}
+
+	private double rank( final boolean and, final BlockOperator term )
+	{
+		final double selectivity = selectivity( term );
+		final double gain = and ? 1. - selectivity : selectivity;
+		return gain <= 0. ? Double.POSITIVE_INFINITY : cost( term ) / gain;
+	}
+
+	private static void flatten( final boolean and, final BlockOperator op, final List< BlockOperator > terms )
+	{
+		if ( and && op instanceof BlockOperator.And )
+		{
+			flatten( and, ( ( BlockOperator.And ) op ).a, terms );
+			flatten( and, ( ( BlockOperator.And ) op ).b, terms );
+		}
+		else if ( !and && op instanceof BlockOperator.Or )
+		{
+			flatten( and, ( ( BlockOperator.Or ) op ).a, terms );
+			flatten( and, ( ( BlockOperator.Or ) op ).b, terms );
+		}
+		else
+			terms.add( op );
+	}
+
+	/**
+	 * Returns <code>true</code> if the planned tree tests the leaves in the
+	 * same order as the original one.
+	 */
+	private static boolean sameOrder( final BlockOperator original, final BlockOperator planned )
+	{
+		final List< BlockOperator > a = new ArrayList<>();
+		final List< BlockOperator > b = new ArrayList<>();
+		leaves( original, a );
+		leaves( planned, b );
+		if ( a.size() != b.size() )
+			return false;
+		for ( int i = 0; i < a.size(); i++ )
+			if ( a.get( i ) != b.get( i ) )
+				return false;
+		return true;
+	}
+
+	private static void leaves( final BlockOperator operator, final List< BlockOperator > leaves )
+	{
+		for ( final BlockOperator child : children( operator ) )
+			leaves( child, leaves );
+		if ( children( operator ).isEmpty() )
+			leaves.add( operator );
+	}
+
+	/**
+	 * Returns the operands of the specified operator.
+	 */
+	static List< BlockOperator > children( final BlockOperator operator )
+	{
+		final List< BlockOperator > children = new ArrayList<>( 2 );
+		if ( operator instanceof BlockOperator.And )
+		{
+			children.add( ( ( BlockOperator.And ) operator ).a );
+			children.add( ( ( BlockOperator.And ) operator ).b );
+		}
+		else if ( operator instanceof BlockOperator.Or )
+		{
+			children.add( ( ( BlockOperator.Or ) operator ).a );
+			children.add( ( ( BlockOperator.Or ) operator ).b );
+		}
+		else if ( operator instanceof BlockOperator.Sub )
+		{
+			children.add( ( ( BlockOperator.Sub ) operator ).a );
+			children.add( ( ( BlockOperator.Sub ) operator ).b );
+		}
+		else if ( operator instanceof MorphOperator )
+			children.add( ( ( MorphOperator ) operator ).child );
+		else if ( operator instanceof TraversalOperator )
+			children.add( ( ( TraversalOperator ) operator ).child );
+		return children;
+	}
+
+	/**
+	 * Returns the name of the specified operator, without its operands.
+	 */
+	static String label( final BlockOperator operator )
+	{
+		if ( operator instanceof BlockOperator.And )
+			return "And";
+		if ( operator instanceof BlockOperator.Or )
+			return "Or";
+		if ( operator instanceof BlockOperator.Sub )
+			return "Sub";
+		if ( operator instanceof MorphOperator )
+			return "Morph( " + ( ( MorphOperator ) operator ).morphers + " )";
+		if ( operator instanceof TraversalOperator )
+		{
+			final TraversalOperator traversal = ( TraversalOperator ) operator;
+			return ( traversal.forward ? "Successors( " : "Predecessors( " ) + traversal.depth + " )";
+		}
+		return operator.toString();
+	}
+
+	/**
+	 * Describes an operator tree, one operator per line, with the estimated
+	 * number of vertices and edges it accepts and how it reads the objects.
+	 *
+	 * @param root
+	 *            the root of the operator tree.
+	 * @param details
+	 *            the text to append to the line of each operator.
+	 * @return the description.
+	 */
+	String describe( final BlockOperator root, final Function< BlockOperator, String > details )
+	{
+		final StringBuilder str = new StringBuilder();
+		describe( root, "", details, str );
+		str.setLength( str.length() - 1 );
+		return str.toString();
+	}
+
+	private void describe( final BlockOperator operator, final String indent, final Function< BlockOperator, String > details, final StringBuilder str )
+	{
+		str.append( indent ).append( label( operator ) ).append( String.format( Locale.ROOT,
+				"  [est. %d vertices, %d edges]",
+				Math.round( vertices * operator.selectivity( this, ObjectKind.VERTEX ) ),
+				Math.round( edges * operator.selectivity( this, ObjectKind.EDGE ) ) ) );
+		final String access = operator.access();
+		if ( access != null )
+			str.append( " via " ).append( access );
+		str.append( details.apply( operator ) ).append( '\n' );
+		for ( final BlockOperator child : children( operator ) )
+			describe( child, indent + "  ", details, str );
+	}
+
+	/**
+	 * An operator tree ready to be executed, and the estimates it was planned
+	 * with.
+	 */
+	public static final class Plan
+	{
+
+		private final BlockOperator operator;
+
+		private final boolean reordered;
+
+		private final String description;
+
+		private Plan( final BlockOperator operator, final boolean reordered, final String description )
+		{
+			this.operator = operator;
+			this.reordered = reordered;
+			this.description = description;
+		}
+
+		/**
+		 * Returns the root of the planned operator tree.
+		 *
+		 * @return the operator.
+		 */
+		public BlockOperator operator()
+		{
+			return operator;
+		}
+
+		/**
+		 * Returns <code>true</code> if the planner changed the order in which
+		 * the operands are tested.
+		 *
+		 * @return whether operands were reordered.
+		 */
+		public boolean isReordered()
+		{
+			return reordered;
+		}
+
+		/**
+		 * Returns the planned operator tree, one operator per line, with the
+		 * estimated number of vertices and edges each operator accepts and
+		 * how it reads the objects.
+		 */
+		@Override
+		public String toString()
+		{
+			return description;
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.scijava.parsington.Function;
+import org.scijava.parsington.Operator;
+import org.scijava.parsington.Operators;
+import org.scijava.parsington.SyntaxTree;
+import org.scijava.parsington.Tokens;
+import org.scijava.parsington.Variable;
+
+/**
+ * Caches the results of selection expressions, so that running an expression
+ * again on a model that did not change skips its evaluation.
+ * <p>
+ * Results are stored under a normalized fingerprint of the syntax tree of the
+ * expression, that ignores spaces, redundant brackets and the capitalisation
+ * of functions and variables, and under the {@link ModelVersion} counters of
+ * the graph, the spot positions, the features and the tag-sets when the
+ * evaluation started. Positions are part of the key because a move is not
+ * always followed by a graph change notification. The generation of the
+ * {@link SelectionMirror} is also part of the key of the expressions that
+ * read the current selection. Since the counters only
+ * increase, entries recorded under older counters can never be hit again.
+ * They are dropped lazily: when a lookup finds one, and first in line when
+ * the budget is exceeded.
+ * <p>
+ * The cache is bounded by a budget on the memory used by the stored bitmaps,
+ * and evicts the least recently used results first. It can be used
+ * concurrently by several threads.
+ */
+public class ResultCache
+{
+
+	/**
+	 * The default memory budget, in bytes.
+	 */
+	public static final long DEFAULT_BUDGET = 64l << 20;
+
+	private final ModelVersion version;
+
+	private final SelectionMirror< ?, ? > mirror;
+
+	private final Map< Key, Entry > results = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private long budget = DEFAULT_BUDGET;
+
+	private long bytes;
+
+	private int hits;
+
+	private int misses;
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param version
+	 *            the version of the model.
+	 * @param mirror
+	 *            the mirror of the selection model.
+	 */
+	public ResultCache( final ModelVersion version, final SelectionMirror< ?, ? > mirror )
+	{
+		this.version = version;
+		this.mirror = mirror;
+	}
+
+	/**
+	 * Returns the key of the result of the specified expression on the
+	 * current content of the model. Must be called before the evaluation, so
+	 * that a change during the evaluation makes the result stale.
+	 *
+	 * @param tree
+	 *            the syntax tree of the expression.
+	 * @return a new key.
+	 */
+	public Key key( final SyntaxTree tree )
+	{
+		final StringBuilder str = new StringBuilder();
+		final boolean selection = fingerprint( tree, str );
+		return key( str.toString(), selection );
+	}
+
+	Key key( final String fingerprint, final boolean selection )
+	{
+		return new Key( fingerprint, selection, versions( selection ) );
+	}
+
+	/**
+	 * Returns the result stored under the specified key.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return a selection sharing its bitmaps with the cache, or
+	 *         <code>null</code> if there is none.
+	 */
+	public synchronized SelectionVariable get( final Key key )
+	{
+		final Entry entry = results.get( key );
+		if ( entry == null )
+		{
+			misses++;
+			return null;
+		}
+		if ( !isCurrent( key ) )
+		{
+			// The model changed since the key was made: the entry cannot be
+			// hit anymore.
+			remove( key );
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result.share();
+	}
+
+	/**
+	 * Returns whether a result is stored under the specified key. Unlike
+	 * {@link #get(Key)}, does not count as a hit or a miss.
+	 *
+	 * @param key
+	 *            the key.
+	 * @return <code>true</code> if the next {@link #get(Key)} with this key
+	 *         would be a hit.
+	 */
+	public synchronized boolean contains( final Key key )
+	{
+		return results.containsKey( key ) && isCurrent( key );
+	}
+
+	/**
+	 * Stores the result of an expression. The result is shared with the
+	 * cache, and copies its bitmaps before its next modification.
+	 *
+	 * @param key
+	 *            the key returned before the evaluation.
+	 * @param result
+	 *            the result of the evaluation.
+	 */
+	public synchronized void put( final Key key, final SelectionVariable result )
+	{
+		if ( !isCurrent( key ) )
+			return;
+
+		final Entry entry = new Entry( result.share() );
+		if ( entry.bytes > budget )
+			return;
+		final Entry previous = results.put( key, entry );
+		if ( previous != null )
+			bytes -= previous.bytes;
+		bytes += entry.bytes;
+		evict();
+	}
+
+	/**
+	 * Sets the memory budget of this cache, evicting results if needed.
+	 *
+	 * @param budget
+	 *            the budget, in bytes.
+	 */
+	public synchronized void setBudget( final long budget )
+	{
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * Returns the memory used by the stored results.
+	 *
+	 * @return a number of bytes.
+	 */
+	public synchronized long bytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Returns how many times a result was found in this cache.
+	 *
+	 * @return the number of hits.
+	 */
+	public synchronized int getHitCount()
+	{
+		return hits;
+	}
+
+	/**
+	 * Returns how many times a result was not found in this cache.
+	 *
+	 * @return the number of misses.
+	 */
+	public synchronized int getMissCount()
+	{
+		return misses;
+	}
+
+	/**
+	 * Drops entries until the cache fits in its budget: the entries of older
+	 * versions first, since they cannot be hit anymore, then the least
+	 * recently used ones. Does nothing while the budget is not exceeded.
+	 */
+	private void evict()
+	{
+		if ( bytes <= budget )
+			return;
+		for ( final Iterator< Map.Entry< Key, Entry > > it = results.entrySet().iterator(); it.hasNext() && bytes > budget; )
+		{
+			final Map.Entry< Key, Entry > entry = it.next();
+			if ( !isCurrent( entry.getKey() ) )
+			{
+				bytes -= entry.getValue().bytes;
+				it.remove();
+			}
+		}
+		final Iterator< Entry > it = results.values().iterator();
+		while ( bytes > budget && it.hasNext() )
+		{
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	private void remove( final Key key )
+	{
+		bytes -= results.remove( key ).bytes;
+	}
+
+	private boolean isCurrent( final Key key )
+	{
+		return Arrays.equals( versions( key.selection ), key.versions );
+	}
+
+	private long[] versions( final boolean selection )
+	{
+		return new long[] {
+				version.graph(),
+				version.positions(),
+				version.features(),
+				version.tags(),
+				selection ? mirror.generation() : -1l };
+	}
+
+	/**
+	 * Returns the normalized form of the specified syntax tree. Trees with
+	 * the same fingerprint have the same result.
+	 *
+	 * @param tree
+	 *            the syntax tree.
+	 * @return the fingerprint.
+	 */
+	static String fingerprint( final SyntaxTree tree )
+	{
+		final StringBuilder str = new StringBuilder();
+		fingerprint( tree, str );
+		return str.toString();
+	}
+
+	/**
+	 * Appends the normalized form of the specified syntax tree.
+	 *
+	 * @return whether the tree reads the current selection.
+	 */
+	private static boolean fingerprint( final SyntaxTree tree, final StringBuilder str )
+	{
+		final Object token = tree.token();
+		// Brackets around a single term do not change the result.
+		if ( Tokens.isMatchingGroup( token, Operators.PARENS ) && tree.count() == 1 )
+			return fingerprint( tree.child( 0 ), str );
+
+		boolean selection = false;
+		if ( Tokens.isVariable( token ) )
+		{
+			final String name = ( ( Variable ) token ).getToken().trim().toLowerCase();
+			str.append( name );
+			selection = name.equals( "selection" ) || name.equals( "vertexselection" ) || name.equals( "edgeselection" );
+		}
+		else if ( token instanceof Operator )
+		{
+			str.append( ( ( Operator ) token ).getToken() );
+		}
+		else if ( token instanceof String )
+		{
+			str.append( '\'' ).append( ( ( String ) token ).replace( "\\", "\\\\" ).replace( "'", "\\'" ) ).append( '\'' );
+		}
+		else
+		{
+			str.append( token );
+		}
+
+		if ( token instanceof Function )
+		{
+			// Keep the arguments together, even if there is only one.
+			selection |= fingerprint( tree.child( 0 ), str );
+			return arguments( tree.child( 1 ), str ) | selection;
+		}
+		if ( tree.count() > 0 )
+			selection |= arguments( tree, str );
+		return selection;
+	}
+
+	private static boolean arguments( final SyntaxTree tree, final StringBuilder str )
+	{
+		boolean selection = false;
+		str.append( '(' );
+		for ( int i = 0; i < tree.count(); i++ )
+		{
+			if ( i > 0 )
+				str.append( ',' );
+			selection |= fingerprint( tree.child( i ), str );
+		}
+		str.append( ')' );
+		return selection;
+	}
+
+	/**
+	 * A stored result, and its size when it was stored.
+	 */
+	private static final class Entry
+	{
+
+		private final SelectionVariable result;
+
+		private final long bytes;
+
+		private Entry( final SelectionVariable result )
+		{
+			this.result = result;
+			this.bytes = result.selectedVertices.bytes() + result.selectedEdges.bytes();
+		}
+	}
+
+	/**
+	 * The key of a result: the fingerprint of the expression and the
+	 * versions of the model when its evaluation started.
+	 */
+	public static final class Key
+	{
+
+		private final String fingerprint;
+
+		private final boolean selection;
+
+		private final long[] versions;
+
+		private Key( final String fingerprint, final boolean selection, final long[] versions )
+		{
+			this.fingerprint = fingerprint;
+			this.selection = selection;
+			this.versions = versions;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key ) o;
+			return fingerprint.equals( k.fingerprint ) && Arrays.equals( versions, k.versions );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * fingerprint.hashCode() + Arrays.hashCode( versions );
+		}
+
+		@Override
+		public String toString()
+		{
+			return fingerprint;
+		}
+	}
+}
@@ -0,0 +1,885 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Compressed {@link IdBitmap}, after the layout of Roaring bitmaps.
+ * <p>
+ * IDs are split in chunks of 2<sup>16</sup> IDs sharing the same high 16 bits.
+ * Each non-empty chunk is stored in a container that holds the low 16 bits of
+ * its IDs in the smallest of three forms:
+ * <ul>
+ * <li>a sorted array, for chunks with at most {@value #ARRAY_MAX} IDs;
+ * <li>a bitmap of 2<sup>16</sup> bits, for denser chunks;
+ * <li>a list of runs of consecutive IDs, for chunks made of a few contiguous
+ * ranges.
+ * </ul>
+ * The memory footprint is proportional to the number of IDs rather than to
+ * the largest ID, and chunks with no ID cost nothing.
+ */
+final class RoaringIdBitmap extends IdBitmap
+{
+
+	/**
+	 * Max number of IDs in an array container.
+	 */
+	static final int ARRAY_MAX = 4096;
+
+	/**
+	 * Number of 64-bit words in a bitmap container.
+	 */
+	private static final int WORDS = 1 << 10;
+
+	/**
+	 * The high 16 bits of the IDs of each container, sorted.
+	 */
+	private char[] keys;
+
+	private Container[] containers;
+
+	/**
+	 * The number of containers. None of them is empty.
+	 */
+	private int size;
+
+	RoaringIdBitmap()
+	{
+		this( new char[ 4 ], new Container[ 4 ], 0 );
+	}
+
+	private RoaringIdBitmap( final char[] keys, final Container[] containers, final int size )
+	{
+		this.keys = keys;
+		this.containers = containers;
+		this.size = size;
+	}
+
+	/**
+	 * Returns a new compressed bitmap with the IDs set in the specified
+	 * bitset.
+	 *
+	 * @param bits
+	 *            the IDs.
+	 * @return a new bitmap.
+	 */
+	static RoaringIdBitmap of( final BitSet bits )
+	{
+		final RoaringIdBitmap bitmap = new RoaringIdBitmap();
+		for ( int id = bits.nextSetBit( 0 ); id >= 0; id = bits.nextSetBit( id + 1 ) )
+		{
+			bitmap.set( id );
+			if ( id == Integer.MAX_VALUE )
+				break;
+		}
+		return bitmap;
+	}
+
+	private int index( final int key )
+	{
+		// Fast path for IDs appended in increasing order.
+		if ( size > 0 && keys[ size - 1 ] == key )
+			return size - 1;
+		return Arrays.binarySearch( keys, 0, size, ( char ) key );
+	}
+
+	@Override
+	boolean get( final int id )
+	{
+		if ( id < 0 )
+			return false;
+		final int i = index( id >>> 16 );
+		return i >= 0 && containers[ i ].contains( ( char ) id );
+	}
+
+	@Override
+	void set( final int id )
+	{
+		if ( id < 0 )
+			throw new IndexOutOfBoundsException( "id < 0: " + id );
+		int i = index( id >>> 16 );
+		if ( i < 0 )
+		{
+			i = -i - 1;
+			if ( size == keys.length )
+			{
+				keys = Arrays.copyOf( keys, 2 * size );
+				containers = Arrays.copyOf( containers, 2 * size );
+			}
+			System.arraycopy( keys, i, keys, i + 1, size - i );
+			System.arraycopy( containers, i, containers, i + 1, size - i );
+			keys[ i ] = ( char ) ( id >>> 16 );
+			containers[ i ] = new ArrayContainer();
+			size++;
+		}
+		containers[ i ] = containers[ i ].add( ( char ) id );
+	}
+
+	@Override
+	int nextSetBit( final int from )
+	{
+		if ( from < 0 )
+			throw new IndexOutOfBoundsException( "from < 0: " + from );
+		int i = Arrays.binarySearch( keys, 0, size, ( char ) ( from >>> 16 ) );
+		if ( i >= 0 )
+		{
+			final int low = containers[ i ].next( from & 0xFFFF );
+			if ( low >= 0 )
+				return keys[ i ] << 16 | low;
+			i++;
+		}
+		else
+		{
+			i = -i - 1;
+		}
+		return i < size ? keys[ i ] << 16 | containers[ i ].next( 0 ) : -1;
+	}
+
+	@Override
+	int cardinality()
+	{
+		int n = 0;
+		for ( int i = 0; i < size; i++ )
+			n += containers[ i ].cardinality();
+		return n;
+	}
+
+	@Override
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	@Override
+	void clear()
+	{
+		Arrays.fill( containers, 0, size, null );
+		size = 0;
+	}
+
+	/**
+	 * Returns the largest ID in this bitmap.
+	 *
+	 * @return the largest ID, or <code>-1</code> if the bitmap is empty.
+	 */
+	int last()
+	{
+		return size == 0 ? -1 : keys[ size - 1 ] << 16 | containers[ size - 1 ].last();
+	}
+
+	@Override
+	IdBitmap copy()
+	{
+		final Container[] copies = new Container[ Math.max( 4, size ) ];
+		for ( int i = 0; i < size; i++ )
+			copies[ i ] = containers[ i ].copy();
+		return new RoaringIdBitmap( Arrays.copyOf( keys, copies.length ), copies, size );
+	}
+
+	@Override
+	IdBitmap or( final IdBitmap other )
+	{
+		if ( !( other instanceof RoaringIdBitmap ) )
+			return other.copy().or( this );
+
+		final RoaringIdBitmap o = ( RoaringIdBitmap ) other;
+		final char[] k = new char[ Math.max( 4, size + o.size ) ];
+		final Container[] c = new Container[ k.length ];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while ( i < size || j < o.size )
+		{
+			if ( j == o.size || ( i < size && keys[ i ] < o.keys[ j ] ) )
+			{
+				k[ n ] = keys[ i ];
+				c[ n++ ] = containers[ i++ ];
+			}
+			else if ( i == size || o.keys[ j ] < keys[ i ] )
+			{
+				k[ n ] = o.keys[ j ];
+				c[ n++ ] = o.containers[ j++ ].copy();
+			}
+			else
+			{
+				k[ n ] = keys[ i ];
+				c[ n++ ] = Container.or( containers[ i++ ], o.containers[ j++ ] );
+			}
+		}
+		return set( k, c, n );
+	}
+
+	@Override
+	IdBitmap and( final IdBitmap other )
+	{
+		if ( !( other instanceof RoaringIdBitmap ) )
+			return retain( other.asBitSet(), true );
+
+		final RoaringIdBitmap o = ( RoaringIdBitmap ) other;
+		int n = 0;
+		int j = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			while ( j < o.size && o.keys[ j ] < keys[ i ] )
+				j++;
+			if ( j == o.size )
+				break;
+			if ( o.keys[ j ] != keys[ i ] )
+				continue;
+			final Container c = Container.and( containers[ i ], o.containers[ j ] );
+			if ( c != null )
+			{
+				keys[ n ] = keys[ i ];
+				containers[ n++ ] = c;
+			}
+		}
+		return set( keys, containers, n );
+	}
+
+	@Override
+	IdBitmap andNot( final IdBitmap other )
+	{
+		if ( !( other instanceof RoaringIdBitmap ) )
+			return retain( other.asBitSet(), false );
+
+		final RoaringIdBitmap o = ( RoaringIdBitmap ) other;
+		int n = 0;
+		int j = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			while ( j < o.size && o.keys[ j ] < keys[ i ] )
+				j++;
+			final Container c = ( j < o.size && o.keys[ j ] == keys[ i ] )
+					? Container.andNot( containers[ i ], o.containers[ j ] )
+					: containers[ i ];
+			if ( c != null )
+			{
+				keys[ n ] = keys[ i ];
+				containers[ n++ ] = c;
+			}
+		}
+		return set( keys, containers, n );
+	}
+
+	/**
+	 * Keeps only the IDs of this bitmap that are, or that are not, in the
+	 * specified bitset.
+	 */
+	private IdBitmap retain( final BitSet bits, final boolean keep )
+	{
+		int n = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			final Container c = containers[ i ].retain( keys[ i ] << 16, bits, keep );
+			if ( c != null )
+			{
+				keys[ n ] = keys[ i ];
+				containers[ n++ ] = c;
+			}
+		}
+		return set( keys, containers, n );
+	}
+
+	private RoaringIdBitmap set( final char[] keys, final Container[] containers, final int size )
+	{
+		Arrays.fill( containers, size, containers.length, null );
+		this.keys = keys;
+		this.containers = containers;
+		this.size = size;
+		return this;
+	}
+
+	@Override
+	IdBitmap optimize()
+	{
+		for ( int i = 0; i < size; i++ )
+			containers[ i ] = containers[ i ].optimize();
+		// Switch back to a bitset well after the point where it is smaller.
+		final int last = last();
+		if ( last < ( 1 << 16 ) || 4 * bytes() > denseBytes( last ) )
+			return new BitSetIdBitmap( asBitSet() );
+		return this;
+	}
+
+	@Override
+	BitSet asBitSet()
+	{
+		final long[] words = new long[ ( last() + 64 ) >>> 6 ];
+		for ( int i = 0; i < size; i++ )
+			containers[ i ].toWords( words, keys[ i ] * WORDS );
+		return BitSet.valueOf( words );
+	}
+
+	@Override
+	long bytes()
+	{
+		long bytes = 16 + 10l * keys.length;
+		for ( int i = 0; i < size; i++ )
+			bytes += containers[ i ].bytes();
+		return bytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Compressed( " + cardinality() + " in " + size + " containers )";
+	}
+
+	/**
+	 * The low 16 bits of the IDs of a chunk.
+	 */
+	private static abstract class Container
+	{
+
+		abstract boolean contains( char v );
+
+		/**
+		 * Adds a value.
+		 *
+		 * @return the container holding the result, possibly a new one.
+		 */
+		abstract Container add( char v );
+
+		abstract int cardinality();
+
+		/**
+		 * Returns the first value greater than or equal to the specified one,
+		 * or <code>-1</code>.
+		 */
+		abstract int next( int from );
+
+		abstract int last();
+
+		abstract Container copy();
+
+		abstract long bytes();
+
+		/**
+		 * Sets the bits of the values of this container in the specified
+		 * words, starting at the specified word.
+		 */
+		abstract void toWords( long[] words, int offset );
+
+		/**
+		 * Returns this container in its smallest form.
+		 */
+		abstract Container optimize();
+
+		/**
+		 * Returns a new container with the values whose ID is, or is not, in
+		 * the specified bitset, or <code>null</code> if there are none.
+		 */
+		Container retain( final int offset, final BitSet bits, final boolean keep )
+		{
+			final long[] words = words();
+			final long[] chunk = bits.get( offset, offset + ( WORDS << 6 ) ).toLongArray();
+			for ( int w = 0; w < chunk.length; w++ )
+				words[ w ] &= keep ? chunk[ w ] : ~chunk[ w ];
+			if ( keep )
+				Arrays.fill( words, chunk.length, WORDS, 0l );
+			return fromWords( words );
+		}
+
+		long[] words()
+		{
+			final long[] words = new long[ WORDS ];
+			toWords( words, 0 );
+			return words;
+		}
+
+		static Container or( final Container a, final Container b )
+		{
+			if ( a instanceof ArrayContainer && b instanceof ArrayContainer
+					&& a.cardinality() + b.cardinality() <= ARRAY_MAX )
+				return ArrayContainer.merge( ( ArrayContainer ) a, ( ArrayContainer ) b );
+			final long[] words = a.words();
+			b.toWords( words, 0 );
+			return fromWords( words );
+		}
+
+		static Container and( final Container a, final Container b )
+		{
+			if ( a instanceof ArrayContainer )
+				return ( ( ArrayContainer ) a ).filter( b, true );
+			if ( b instanceof ArrayContainer )
+				return ( ( ArrayContainer ) b ).filter( a, true );
+			final long[] words = a.words();
+			final long[] other = b.words();
+			for ( int w = 0; w < WORDS; w++ )
+				words[ w ] &= other[ w ];
+			return fromWords( words );
+		}
+
+		static Container andNot( final Container a, final Container b )
+		{
+			if ( a instanceof ArrayContainer )
+				return ( ( ArrayContainer ) a ).filter( b, false );
+			final long[] words = a.words();
+			final long[] other = b.words();
+			for ( int w = 0; w < WORDS; w++ )
+				words[ w ] &= ~other[ w ];
+			return fromWords( words );
+		}
+
+		/**
+		 * Returns the smallest container holding the bits set in the
+		 * specified words, or <code>null</code> if there are none. The words
+		 * may be used by the returned container.
+		 */
+		static Container fromWords( final long[] words )
+		{
+			int card = 0;
+			int runs = 0;
+			long previous = 0l;
+			for ( final long word : words )
+			{
+				card += Long.bitCount( word );
+				runs += Long.bitCount( word & ~( word << 1 | previous >>> 63 ) );
+				previous = word;
+			}
+			if ( card == 0 )
+				return null;
+			if ( 4 * runs < Math.min( 2 * card, 8 * WORDS ) )
+				return RunContainer.of( words, runs );
+			if ( card <= ARRAY_MAX )
+				return ArrayContainer.of( words, card );
+			return new BitmapContainer( words, card );
+		}
+
+		static int nextSet( final long[] words, final int from )
+		{
+			int w = from >>> 6;
+			if ( w >= WORDS )
+				return -1;
+			long word = words[ w ] & ( -1l << from );
+			while ( word == 0l )
+			{
+				if ( ++w == WORDS )
+					return -1;
+				word = words[ w ];
+			}
+			return ( w << 6 ) + Long.numberOfTrailingZeros( word );
+		}
+
+		static int nextClear( final long[] words, final int from )
+		{
+			int w = from >>> 6;
+			if ( w >= WORDS )
+				return WORDS << 6;
+			long word = ~words[ w ] & ( -1l << from );
+			while ( word == 0l )
+			{
+				if ( ++w == WORDS )
+					return WORDS << 6;
+				word = ~words[ w ];
+			}
+			return ( w << 6 ) + Long.numberOfTrailingZeros( word );
+		}
+	}
+
+	private static final class ArrayContainer extends Container
+	{
+
+		private char[] values;
+
+		private int size;
+
+		ArrayContainer()
+		{
+			this( new char[ 4 ], 0 );
+		}
+
+		ArrayContainer( final char[] values, final int size )
+		{
+			this.values = values;
+			this.size = size;
+		}
+
+		static ArrayContainer of( final long[] words, final int card )
+		{
+			final char[] values = new char[ card ];
+			int n = 0;
+			for ( int v = nextSet( words, 0 ); v >= 0; v = nextSet( words, v + 1 ) )
+				values[ n++ ] = ( char ) v;
+			return new ArrayContainer( values, n );
+		}
+
+		static ArrayContainer merge( final ArrayContainer a, final ArrayContainer b )
+		{
+			final char[] values = new char[ a.size + b.size ];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while ( i < a.size && j < b.size )
+			{
+				final char va = a.values[ i ];
+				final char vb = b.values[ j ];
+				values[ n++ ] = va <= vb ? va : vb;
+				if ( va <= vb )
+					i++;
+				if ( vb <= va )
+					j++;
+			}
+			while ( i < a.size )
+				values[ n++ ] = a.values[ i++ ];
+			while ( j < b.size )
+				values[ n++ ] = b.values[ j++ ];
+			return new ArrayContainer( values, n );
+		}
+
+		@Override
+		Container retain( final int offset, final BitSet bits, final boolean keep )
+		{
+			final char[] kept = new char[ size ];
+			int n = 0;
+			for ( int i = 0; i < size; i++ )
+				if ( bits.get( offset | values[ i ] ) == keep )
+					kept[ n++ ] = values[ i ];
+			return n == 0 ? null : new ArrayContainer( kept, n );
+		}
+
+		/**
+		 * Returns a new container with the values that are, or are not, in
+		 * the other container, or <code>null</code> if there are none.
+		 */
+		ArrayContainer filter( final Container other, final boolean keep )
+		{
+			final char[] kept = new char[ size ];
+			int n = 0;
+			for ( int i = 0; i < size; i++ )
+				if ( other.contains( values[ i ] ) == keep )
+					kept[ n++ ] = values[ i ];
+			return n == 0 ? null : new ArrayContainer( kept, n );
+		}
+
+		@Override
+		boolean contains( final char v )
+		{
+			return Arrays.binarySearch( values, 0, size, v ) >= 0;
+		}
+
+		@Override
+		Container add( final char v )
+		{
+			int i;
+			if ( size == 0 || values[ size - 1 ] < v )
+			{
+				i = size;
+			}
+			else
+			{
+				i = Arrays.binarySearch( values, 0, size, v );
+				if ( i >= 0 )
+					return this;
+				i = -i - 1;
+			}
+			if ( size == ARRAY_MAX )
+			{
+				final long[] words = words();
+				words[ v >>> 6 ] |= 1l << v;
+				return new BitmapContainer( words, size + 1 );
+			}
+			if ( size == values.length )
+				values = Arrays.copyOf( values, Math.min( ARRAY_MAX, 2 * size ) );
+			System.arraycopy( values, i, values, i + 1, size - i );
+			values[ i ] = v;
+			size++;
+			return this;
+		}
+
+		@Override
+		int cardinality()
+		{
+			return size;
+		}
+
+		@Override
+		int next( final int from )
+		{
+			if ( from > 0xFFFF )
+				return -1;
+			int i = Arrays.binarySearch( values, 0, size, ( char ) from );
+			if ( i < 0 )
+				i = -i - 1;
+			return i < size ? values[ i ] : -1;
+		}
+
+		@Override
+		int last()
+		{
+			return values[ size - 1 ];
+		}
+
+		@Override
+		Container copy()
+		{
+			return new ArrayContainer( Arrays.copyOf( values, size ), size );
+		}
+
+		@Override
+		long bytes()
+		{
+			return 16 + 2l * values.length;
+		}
+
+		@Override
+		void toWords( final long[] words, final int offset )
+		{
+			for ( int i = 0; i < size; i++ )
+				words[ offset + ( values[ i ] >>> 6 ) ] |= 1l << values[ i ];
+		}
+
+		@Override
+		Container optimize()
+		{
+			int runs = size == 0 ? 0 : 1;
+			for ( int i = 1; i < size; i++ )
+				if ( values[ i ] != values[ i - 1 ] + 1 )
+					runs++;
+			if ( 2 * runs < size )
+				return RunContainer.of( words(), runs );
+			if ( values.length > size )
+				values = Arrays.copyOf( values, size );
+			return this;
+		}
+	}
+
+	private static final class BitmapContainer extends Container
+	{
+
+		private final long[] words;
+
+		private int card;
+
+		BitmapContainer( final long[] words, final int card )
+		{
+			this.words = words;
+			this.card = card;
+		}
+
+		@Override
+		boolean contains( final char v )
+		{
+			return ( words[ v >>> 6 ] & 1l << v ) != 0l;
+		}
+
+		@Override
+		Container add( final char v )
+		{
+			final long bit = 1l << v;
+			if ( ( words[ v >>> 6 ] & bit ) == 0l )
+			{
+				words[ v >>> 6 ] |= bit;
+				card++;
+			}
+			return this;
+		}
+
+		@Override
+		int cardinality()
+		{
+			return card;
+		}
+
+		@Override
+		int next( final int from )
+		{
+			return nextSet( words, from );
+		}
+
+		@Override
+		int last()
+		{
+			for ( int w = WORDS - 1; w >= 0; w-- )
+				if ( words[ w ] != 0l )
+					return ( w << 6 ) + 63 - Long.numberOfLeadingZeros( words[ w ] );
+			return -1;
+		}
+
+		@Override
+		Container copy()
+		{
+			return new BitmapContainer( words.clone(), card );
+		}
+
+		@Override
+		long bytes()
+		{
+			return 16 + 8l * WORDS;
+		}
+
+		@Override
+		void toWords( final long[] target, final int offset )
+		{
+			// The target may be shorter than a full container at its end.
+			final int n = Math.min( WORDS, target.length - offset );
+			for ( int w = 0; w < n; w++ )
+				target[ offset + w ] |= words[ w ];
+		}
+
+		@Override
+		Container optimize()
+		{
+			return fromWords( words );
+		}
+	}
+
+	private static final class RunContainer extends Container
+	{
+
+		private final char[] starts;
+
+		/**
+		 * The number of values in each run, minus one.
+		 */
+		private final char[] lengths;
+
+		private final int runs;
+
+		private RunContainer( final char[] starts, final char[] lengths, final int runs )
+		{
+			this.starts = starts;
+			this.lengths = lengths;
+			this.runs = runs;
+		}
+
+		static RunContainer of( final long[] words, final int runs )
+		{
+			final char[] starts = new char[ runs ];
+			final char[] lengths = new char[ runs ];
+			int n = 0;
+			for ( int v = nextSet( words, 0 ); v >= 0; )
+			{
+				final int end = nextClear( words, v );
+				starts[ n ] = ( char ) v;
+				lengths[ n++ ] = ( char ) ( end - 1 - v );
+				v = nextSet( words, end );
+			}
+			return new RunContainer( starts, lengths, n );
+		}
+
+		/**
+		 * Returns the index of the run that may contain the specified value,
+		 * or <code>-1</code>.
+		 */
+		private int run( final int v )
+		{
+			final int i = Arrays.binarySearch( starts, 0, runs, ( char ) v );
+			return i >= 0 ? i : -i - 2;
+		}
+
+		@Override
+		boolean contains( final char v )
+		{
+			final int i = run( v );
+			return i >= 0 && v - starts[ i ] <= lengths[ i ];
+		}
+
+		@Override
+		Container add( final char v )
+		{
+			if ( contains( v ) )
+				return this;
+			// Runs are made by optimize(), go back to a mutable form.
+			final long[] words = words();
+			words[ v >>> 6 ] |= 1l << v;
+			return new BitmapContainer( words, cardinality() + 1 );
+		}
+
+		@Override
+		int cardinality()
+		{
+			int n = 0;
+			for ( int i = 0; i < runs; i++ )
+				n += lengths[ i ] + 1;
+			return n;
+		}
+
+		@Override
+		int next( final int from )
+		{
+			if ( from > 0xFFFF )
+				return -1;
+			final int i = run( from );
+			if ( i >= 0 && from - starts[ i ] <= lengths[ i ] )
+				return from;
+			return i + 1 < runs ? starts[ i + 1 ] : -1;
+		}
+
+		@Override
+		int last()
+		{
+			return starts[ runs - 1 ] + lengths[ runs - 1 ];
+		}
+
+		@Override
+		Container copy()
+		{
+			// Immutable.
+			return this;
+		}
+
+		@Override
+		long bytes()
+		{
+			return 16 + 4l * runs;
+		}
+
+		@Override
+		void toWords( final long[] words, final int offset )
+		{
+			for ( int i = 0; i < runs; i++ )
+			{
+				final int start = starts[ i ];
+				final int end = start + lengths[ i ] + 1;
+				final int w0 = offset + ( start >>> 6 );
+				final int w1 = offset + ( ( end - 1 ) >>> 6 );
+				final long first = -1l << start;
+				final long lastMask = -1l >>> -end;
+				if ( w0 == w1 )
+				{
+					words[ w0 ] |= first & lastMask;
+					continue;
+				}
+				words[ w0 ] |= first;
+				for ( int w = w0 + 1; w < w1; w++ )
+					words[ w ] = -1l;
+				words[ w1 ] |= lastMask;
+			}
+		}
+
+		@Override
+		Container optimize()
+		{
+			return this;
+		}
+	}
+}
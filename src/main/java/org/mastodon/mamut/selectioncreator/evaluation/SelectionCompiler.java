@@ -0,0 +1,457 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.FrameOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.MorphOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.SelectionModelOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.MaterializedOperator.TraversalOperator;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+import org.mastodon.mamut.selectioncreator.evaluation.TagComparisonOperator.TagTest;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.scijava.parsington.Function;
+import org.scijava.parsington.Operator;
+import org.scijava.parsington.Operators;
+import org.scijava.parsington.SyntaxTree;
+import org.scijava.parsington.Tokens;
+import org.scijava.parsington.Variable;
+
+/**
+ * Compiles a {@link SyntaxTree} into a {@link BlockOperator} tree, that can be
+ * executed by a {@link BlockExecutor}.
+ * <p>
+ * Feature and tag-set functions are resolved once, with a
+ * {@link SelectionEvaluator}, and their comparisons become leaf operators.
+ * Selection operators (<code>&amp;</code>, <code>|</code>, <code>+</code>,
+ * <code>-</code>) become combining operators. Comparisons on the same feature
+ * projection combined with 'and' or 'or' are fused into a single leaf that
+ * tests a set of intervals, so that the values are read once. Constant
+ * sub-expressions, such as thresholds, are evaluated at compile time.
+ * Repeated morphs, traversals and references to the selection compile to a
+ * single operator, built once per execution.
+ * <p>
+ * Expressions that cannot be compiled make {@link #compile(SyntaxTree)} return
+ * <code>null</code>. They should be evaluated by the
+ * {@link SelectionEvaluator} instead, which also reports the syntax errors.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class SelectionCompiler< V extends Vertex< E >, E extends Edge< V > >
+{
+
+	private final SelectionEvaluator< V, E > evaluator;
+
+	private final Map< String, Morpher > morpherMap = new HashMap<>();
+
+	/**
+	 * The operators that build a full selection, by fingerprint of their
+	 * syntax tree. Repeated terms get the same instance, so that they are
+	 * built once per execution.
+	 */
+	private final Map< String, MaterializedOperator > materialized = new HashMap<>();
+
+	/**
+	 * The 'and', 'or' and '+' nodes of the syntax tree whose comparisons were
+	 * all fused into a single operator.
+	 */
+	private final Map< SyntaxTree, FeatureComparisonOperator< ? > > fused = new IdentityHashMap<>();
+
+	/**
+	 * Creates a compiler that resolves features, tag-sets and constants with
+	 * the specified evaluator.
+	 *
+	 * @param evaluator
+	 *            the evaluator.
+	 */
+	public SelectionCompiler( final SelectionEvaluator< V, E > evaluator )
+	{
+		this.evaluator = evaluator;
+		for ( final Morpher morpher : SelectionMorpher.Morpher.values() )
+			morpherMap.put( morpher.toString(), morpher );
+	}
+
+	/**
+	 * Compiles the specified syntax tree.
+	 *
+	 * @param tree
+	 *            the syntax tree.
+	 * @return the root of the operator tree, or <code>null</code> if the
+	 *         expression cannot be compiled.
+	 */
+	public BlockOperator compile( final SyntaxTree tree )
+	{
+		try
+		{
+			final Object compiled = compileNode( tree );
+			if ( compiled instanceof BlockOperator )
+				return ( BlockOperator ) compiled;
+			return null;
+		}
+		catch ( final IllegalArgumentException iae )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the 'and', 'or' and '+' nodes of the trees compiled so far
+	 * whose comparisons were all fused into a single operator, with this
+	 * operator. Nodes compiled before a compilation failed are included.
+	 */
+	Map< SyntaxTree, FeatureComparisonOperator< ? > > fused()
+	{
+		return fused;
+	}
+
+	/**
+	 * Returns either a {@link BlockOperator} or a value: a literal, a
+	 * variable, a list or a resolved feature or tag-set.
+	 */
+	private Object compileNode( final SyntaxTree tree )
+	{
+		final Object compiled = compileTerm( tree );
+		if ( compiled instanceof MaterializedOperator )
+		{
+			final MaterializedOperator previous = materialized.putIfAbsent( ResultCache.fingerprint( tree ), ( MaterializedOperator ) compiled );
+			if ( previous != null )
+				return previous;
+		}
+		return compiled;
+	}
+
+	private Object compileTerm( final SyntaxTree tree )
+	{
+		final Object token = tree.token();
+		if ( Tokens.isVariable( token ) )
+			return variable( ( Variable ) token );
+		if ( !Tokens.isOperator( token ) )
+			return token;
+
+		final Operator op = ( Operator ) token;
+		if ( op instanceof Function )
+			return function( tree );
+		if ( Tokens.isMatchingGroup( op, Operators.PARENS ) && tree.count() == 1 )
+			return compileNode( tree.child( 0 ) );
+		if ( op == Operators.NOT || op == Operators.COMPLEMENT )
+			return tagPresence( op, tree );
+
+		final Comparison comparison = comparison( op );
+		if ( comparison != null )
+			return compare( comparison, compileNode( tree.child( 0 ) ), compileNode( tree.child( 1 ) ) );
+
+		if ( op == Operators.BITWISE_AND || op == Operators.ADD || op == Operators.BITWISE_OR || op == Operators.SUB )
+		{
+			// Put the cheapest operand of 'and' first, so that the other one
+			// only tests the objects that survived it.
+			final boolean swap = op == Operators.BITWISE_AND
+					&& SelectionEvaluator.cost( tree.child( 1 ) ) < SelectionEvaluator.cost( tree.child( 0 ) );
+			final Object a = compileNode( tree.child( swap ? 1 : 0 ) );
+			final Object b = compileNode( tree.child( swap ? 0 : 1 ) );
+			if ( a instanceof BlockOperator && b instanceof BlockOperator )
+			{
+				final BlockOperator oa = ( BlockOperator ) a;
+				final BlockOperator ob = ( BlockOperator ) b;
+				if ( op == Operators.SUB )
+					return BlockOperator.sub( oa, ob );
+				final BlockOperator combined = combine( op == Operators.BITWISE_AND, oa, ob );
+				if ( combined instanceof FeatureComparisonOperator )
+					fused.put( tree, ( FeatureComparisonOperator< ? > ) combined );
+				return combined;
+			}
+			if ( a instanceof BlockOperator || b instanceof BlockOperator )
+				throw unsupported( tree );
+		}
+
+		// Constant sub-expression.
+		return evaluator.evaluate( tree );
+	}
+
+	private Object variable( final Variable variable )
+	{
+		switch ( variable.getToken().toLowerCase() )
+		{
+		case "selection":
+			return new SelectionModelOperator( true, true );
+		case "vertexselection":
+			return new SelectionModelOperator( true, false );
+		case "edgeselection":
+			return new SelectionModelOperator( false, true );
+		default:
+			return variable;
+		}
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	private Object function( final SyntaxTree tree )
+	{
+		final Object nameToken = tree.child( 0 ).token();
+		if ( !Tokens.isVariable( nameToken ) )
+			throw unsupported( tree );
+		final String name = ( ( Variable ) nameToken ).getToken().toLowerCase().trim();
+		if ( name.equals( "between" ) )
+			return between( tree );
+		if ( name.equals( "frame" ) )
+			return frame( tree );
+		if ( name.equals( "successors" ) || name.equals( "predecessors" ) )
+			return traversal( tree, name.equals( "successors" ) );
+		if ( !name.equals( "morph" ) )
+			// Feature and tag-set functions: resolve them now.
+			return evaluator.evaluate( tree );
+
+		final SyntaxTree args = tree.child( 1 );
+		if ( !Tokens.isMatchingGroup( args.token(), Operators.PARENS ) || args.count() < 2 )
+			throw unsupported( tree );
+		final Object arg0 = compileNode( args.child( 0 ) );
+		final Object arg1 = compileNode( args.child( 1 ) );
+		final BlockOperator child;
+		final Object switches;
+		if ( arg0 instanceof BlockOperator )
+		{
+			child = ( BlockOperator ) arg0;
+			switches = arg1;
+		}
+		else if ( arg1 instanceof BlockOperator )
+		{
+			child = ( BlockOperator ) arg1;
+			switches = arg0;
+		}
+		else
+			throw unsupported( tree );
+
+		final List< Morpher > morphers = new ArrayList<>();
+		final List tokens = ( switches instanceof List ) ? ( List ) switches : Collections.singletonList( switches );
+		for ( final Object tk : tokens )
+		{
+			final Morpher morpher = morpherMap.get( tk );
+			if ( morpher == null )
+				throw unsupported( tree );
+			morphers.add( morpher );
+		}
+		if ( morphers.isEmpty() )
+			throw unsupported( tree );
+		return new MorphOperator( child, morphers );
+	}
+
+	private Object between( final SyntaxTree tree )
+	{
+		final SyntaxTree args = tree.child( 1 );
+		if ( !Tokens.isMatchingGroup( args.token(), Operators.PARENS ) || args.count() != 3 )
+			throw unsupported( tree );
+		final Object fv = compileNode( args.child( 0 ) );
+		final Object min = compileNode( args.child( 1 ) );
+		final Object max = compileNode( args.child( 2 ) );
+		if ( !( fv instanceof FeatureVariable ) || !( min instanceof Number ) || !( max instanceof Number ) )
+			throw unsupported( tree );
+		final IntervalSet intervals = IntervalSet.between( ( ( Number ) min ).doubleValue(), ( ( Number ) max ).doubleValue() );
+		if ( fv instanceof AbstractFeatureVariable )
+			return ( ( AbstractFeatureVariable< ? > ) fv ).compare( intervals );
+		if ( fv instanceof BranchFeatureVariable )
+			return ( ( BranchFeatureVariable< ? > ) fv ).compare( intervals );
+		return BlockOperator.nothing();
+	}
+
+	private Object traversal( final SyntaxTree tree, final boolean forward )
+	{
+		final SyntaxTree args = tree.child( 1 );
+		if ( !Tokens.isMatchingGroup( args.token(), Operators.PARENS ) || args.count() != 2 )
+			throw unsupported( tree );
+		final Object child = compileNode( args.child( 0 ) );
+		final Object steps = compileNode( args.child( 1 ) );
+		if ( !( child instanceof BlockOperator ) || !( steps instanceof Number ) )
+			throw unsupported( tree );
+		final double depth = ( ( Number ) steps ).doubleValue();
+		if ( depth < 0 || depth != Math.floor( depth ) )
+			throw unsupported( tree );
+		return new TraversalOperator( ( BlockOperator ) child, forward, ( int ) Math.min( depth, Integer.MAX_VALUE ) );
+	}
+
+	/**
+	 * Without a frame index, the frame function is left to the evaluator, that
+	 * reads the frame feature instead.
+	 */
+	private Object frame( final SyntaxTree tree )
+	{
+		final FrameIndex< V > frames = evaluator.frames();
+		final SyntaxTree args = tree.child( 1 );
+		if ( frames == null || !Tokens.isMatchingGroup( args.token(), Operators.PARENS ) || args.count() < 1 || args.count() > 2 )
+			throw unsupported( tree );
+		final Object min = compileNode( args.child( 0 ) );
+		final Object max = compileNode( args.child( args.count() - 1 ) );
+		if ( !( min instanceof Number ) || !( max instanceof Number ) )
+			throw unsupported( tree );
+		return new FrameOperator( frames, IntervalSet.between( ( ( Number ) min ).doubleValue(), ( ( Number ) max ).doubleValue() ) );
+	}
+
+	/**
+	 * Combines two operators with 'and' or 'or'. Chains of the same operator
+	 * are flattened, and the comparisons they make on the same feature
+	 * projection are fused into one operator, at the place of the first one.
+	 */
+	private static BlockOperator combine( final boolean and, final BlockOperator a, final BlockOperator b )
+	{
+		final List< BlockOperator > terms = new ArrayList<>();
+		flatten( and, a, terms );
+		flatten( and, b, terms );
+		for ( int i = 0; i < terms.size(); i++ )
+		{
+			if ( !( terms.get( i ) instanceof FeatureComparisonOperator ) )
+				continue;
+			FeatureComparisonOperator< ? > fused = ( FeatureComparisonOperator< ? > ) terms.get( i );
+			for ( int j = i + 1; j < terms.size(); )
+			{
+				final BlockOperator term = terms.get( j );
+				if ( term instanceof FeatureComparisonOperator && fused.canFuse( ( FeatureComparisonOperator< ? > ) term ) )
+				{
+					fused = fused.fuse( ( FeatureComparisonOperator< ? > ) term, and );
+					terms.remove( j );
+				}
+				else
+					j++;
+			}
+			terms.set( i, fused );
+		}
+
+		BlockOperator combined = terms.get( 0 );
+		for ( int i = 1; i < terms.size(); i++ )
+			combined = and ? BlockOperator.and( combined, terms.get( i ) ) : BlockOperator.or( combined, terms.get( i ) );
+		return combined;
+	}
+
+	private static void flatten( final boolean and, final BlockOperator op, final List< BlockOperator > terms )
+	{
+		if ( and && op instanceof BlockOperator.And )
+		{
+			flatten( and, ( ( BlockOperator.And ) op ).a, terms );
+			flatten( and, ( ( BlockOperator.And ) op ).b, terms );
+		}
+		else if ( !and && op instanceof BlockOperator.Or )
+		{
+			flatten( and, ( ( BlockOperator.Or ) op ).a, terms );
+			flatten( and, ( ( BlockOperator.Or ) op ).b, terms );
+		}
+		else
+			terms.add( op );
+	}
+
+	private Object compare( final Comparison comparison, final Object a, final Object b )
+	{
+		if ( a instanceof FeatureVariable && b instanceof Number )
+			return featureOperator( ( FeatureVariable< ? > ) a, comparison, ( ( Number ) b ).doubleValue() );
+		if ( a instanceof Number && b instanceof FeatureVariable )
+			return featureOperator( ( FeatureVariable< ? > ) b, comparison.mirror(), ( ( Number ) a ).doubleValue() );
+
+		if ( comparison == Comparison.EQUAL || comparison == Comparison.NOT_EQUAL )
+		{
+			final TagTest tagTest = comparison == Comparison.EQUAL ? TagTest.EQUAL : TagTest.NOT_EQUAL;
+			if ( a instanceof TagSetVariable && b instanceof String )
+				return tagOperator( ( TagSetVariable ) a, tagTest, ( String ) b );
+			if ( a instanceof String && b instanceof TagSetVariable )
+				return tagOperator( ( TagSetVariable ) b, tagTest, ( String ) a );
+		}
+		throw new IllegalArgumentException( "Cannot compile comparison " + comparison + " between " + a + " and " + b + "." );
+	}
+
+	private Object tagPresence( final Operator op, final SyntaxTree tree )
+	{
+		final Object a = compileNode( tree.child( 0 ) );
+		if ( !( a instanceof TagSetVariable ) )
+			throw unsupported( tree );
+		return tagOperator( ( TagSetVariable ) a, op == Operators.NOT ? TagTest.UNSET : TagTest.SET, null );
+	}
+
+	private static BlockOperator featureOperator( final FeatureVariable< ? > fv, final Comparison comparison, final double threshold )
+	{
+		if ( fv instanceof AbstractFeatureVariable )
+			return ( ( AbstractFeatureVariable< ? > ) fv ).compare( comparison, threshold );
+		if ( fv instanceof BranchFeatureVariable )
+			return ( ( BranchFeatureVariable< ? > ) fv ).compare( IntervalSet.of( comparison, threshold ) );
+		return BlockOperator.nothing();
+	}
+
+	private static BlockOperator tagOperator( final TagSetVariable tsv, final TagTest tagTest, final String label )
+	{
+		final TagSet tagSet = tsv.getTagSet();
+		if ( tagSet == null )
+			return BlockOperator.nothing();
+
+		Tag tag = null;
+		if ( label != null )
+		{
+			for ( final Tag t : tagSet.getTags() )
+				if ( t.label().equals( label ) )
+				{
+					tag = t;
+					break;
+				}
+			if ( tag == null )
+				throw new IllegalArgumentException( "The tag '" + label + "' is unknown to the tag-set '" + tagSet.getName() + "'." );
+		}
+
+		if ( tsv instanceof AbstractTagSetVariable )
+			return ( ( AbstractTagSetVariable< ? > ) tsv ).compare( tagTest, tag );
+		if ( tsv instanceof GraphTagSetVariable )
+			return ( ( GraphTagSetVariable< ?, ? > ) tsv ).compare( tagTest, tag );
+		return BlockOperator.nothing();
+	}
+
+	private static Comparison comparison( final Operator op )
+	{
+		if ( op == Operators.LESS_THAN )
+			return Comparison.LESS_THAN;
+		if ( op == Operators.GREATER_THAN )
+			return Comparison.GREATER_THAN;
+		if ( op == Operators.LESS_THAN_OR_EQUAL )
+			return Comparison.LESS_THAN_OR_EQUAL;
+		if ( op == Operators.GREATER_THAN_OR_EQUAL )
+			return Comparison.GREATER_THAN_OR_EQUAL;
+		if ( op == Operators.EQUAL )
+			return Comparison.EQUAL;
+		if ( op == Operators.NOT_EQUAL )
+			return Comparison.NOT_EQUAL;
+		return null;
+	}
+
+	private static IllegalArgumentException unsupported( final SyntaxTree tree )
+	{
+		return new IllegalArgumentException( "Cannot compile " + tree.token() + "." );
+	}
+}
@@ -28,11 +28,15 @@
  */
 package org.mastodon.mamut.selectioncreator.evaluation;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,6 +50,7 @@ import org.mastodon.graph.Edge;
 import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
+import org.mastodon.mamut.selectioncreator.evaluation.BranchFeatureVariable.BranchFeature;
 import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.model.tag.ObjTagMap;
@@ -77,32 +82,371 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 
 	private final Map< String, Morpher > morpherMap = new HashMap<>();
 
+	private final FeatureColumnCache columns;
+
+	private final TagIndexCache tagIndices;
+
+	private final FrameIndex< V > frames;
+
+	private final SelectionMorpher< V, E > morpher;
+
+	private final SelectionMirror< V, E > mirror;
+
 	private String errorMessage;
 
+	/**
+	 * The selection the comparisons currently executed are restricted to.
+	 * <code>null</code> if they must be evaluated over the whole graph.
+	 */
+	private SelectionVariable domain;
+
+	/**
+	 * The fingerprints of the subtrees that occur more than once in the
+	 * expression being evaluated. <code>null</code> outside of an
+	 * evaluation.
+	 */
+	private Map< SyntaxTree, String > repeated;
+
+	/**
+	 * The results of the repeated subtrees evaluated so far, shared with
+	 * their users.
+	 */
+	private Map< String, SelectionVariable > shared;
+
+	/**
+	 * The content of the selection model, read once per evaluation.
+	 */
+	private SelectionVariable selection;
+
+	/**
+	 * The subtrees whose comparisons are tested in one pass, found once per
+	 * evaluation by the compiler. <code>null</code> while they are searched.
+	 */
+	private Map< SyntaxTree, FeatureComparisonOperator< ? > > fused;
+
+	/**
+	 * The feature and tag-set variables resolved so far, by syntax tree.
+	 * <code>null</code> unless {@link #keepBindings()} was called.
+	 */
+	private Map< SyntaxTree, Object > variables;
+
+	/**
+	 * The last expression evaluated while the bindings are kept, and its
+	 * repeated and fused subtrees.
+	 */
+	private SyntaxTree boundTree;
+
+	private Map< SyntaxTree, String > boundRepeated;
+
+	private Map< SyntaxTree, FeatureComparisonOperator< ? > > boundFused;
+
 	public SelectionEvaluator( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final TagSetModel< V, E > tagSetModel, final FeatureModel featureModel, final SelectionModel< V, E > selectionModel )
+	{
+		this( graph, idmap, tagSetModel, featureModel, selectionModel, EvaluationContext.empty() );
+	}
+
+	/**
+	 * Creates an evaluator that reads feature values, tags, frames and the
+	 * current selection from the caches and indices of the specified context,
+	 * and morphs selections with its morpher.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            the graph ID bimap.
+	 * @param tagSetModel
+	 *            the tag-set model.
+	 * @param featureModel
+	 *            the feature model.
+	 * @param selectionModel
+	 *            the selection model.
+	 * @param context
+	 *            the caches and indices of the model.
+	 */
+	public SelectionEvaluator( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final TagSetModel< V, E > tagSetModel, final FeatureModel featureModel, final SelectionModel< V, E > selectionModel, final EvaluationContext< V, E > context )
 	{
 		this.graph = graph;
 		this.idmap = idmap;
 		this.tagSetModel = tagSetModel;
 		this.featureModel = featureModel;
 		this.selectionModel = selectionModel;
+		this.columns = context.columns;
+		this.tagIndices = context.tagIndices;
+		this.frames = context.frames;
+		this.mirror = context.mirror;
+		this.morpher = context.morpher == null ? new SelectionMorpher<>( graph, idmap ) : context.morpher;
 		this.defaultEvaluator = new DefaultStackEvaluator();
-		for ( final Morpher morpher : SelectionMorpher.Morpher.values() )
-			morpherMap.put( morpher.toString(), morpher );
+		for ( final Morpher mp : SelectionMorpher.Morpher.values() )
+			morpherMap.put( mp.toString(), mp );
+	}
+
+	/**
+	 * Makes this evaluator keep the feature and tag-set variables it
+	 * resolves, and the subtrees it finds repeated or fused, and reuse them
+	 * when it evaluates the same syntax tree again. The evaluator must then
+	 * not be used after the feature model or the tag-set structure changed.
+	 */
+	public void keepBindings()
+	{
+		if ( variables == null )
+			variables = new IdentityHashMap<>();
 	}
 
 	@Override
 	public Object evaluate( final SyntaxTree syntaxTree )
 	{
-		// Intercept result that could be variables that need to be transformed
-		// into a selection.
-		Object result = super.evaluate( syntaxTree );
-		if ( null != result && Tokens.isVariable( result ) )
-			result = getVariableValue( ( Variable ) result );
+		// Nested evaluations, from the compiler, share the repeated subtrees
+		// of the outermost one.
+		final boolean outermost = repeated == null;
+		if ( outermost )
+		{
+			shared = new HashMap<>();
+			if ( variables != null && syntaxTree == boundTree )
+			{
+				repeated = boundRepeated;
+				fused = boundFused;
+			}
+			else
+			{
+				repeated = repeatedSubtrees( syntaxTree );
+				fused = fusedSubtrees( syntaxTree );
+				if ( variables != null )
+				{
+					boundTree = syntaxTree;
+					boundRepeated = repeated;
+					boundFused = fused;
+				}
+			}
+		}
+		try
+		{
+			// Intercept result that could be variables that need to be
+			// transformed into a selection.
+			Object result = evaluate( syntaxTree, null );
+			if ( null != result && Tokens.isVariable( result ) )
+				result = getVariableValue( ( Variable ) result );
+
+			return result;
+		}
+		finally
+		{
+			if ( outermost )
+			{
+				repeated = null;
+				shared = null;
+				selection = null;
+				fused = null;
+			}
+		}
+	}
+
+	/**
+	 * Finds the subtrees that occur more than once in the specified tree,
+	 * with the same fingerprint.
+	 */
+	private static Map< SyntaxTree, String > repeatedSubtrees( final SyntaxTree tree )
+	{
+		final Map< SyntaxTree, String > fingerprints = new IdentityHashMap<>();
+		final Map< String, Integer > counts = new HashMap<>();
+		final Deque< SyntaxTree > stack = new ArrayDeque<>();
+		stack.push( tree );
+		while ( !stack.isEmpty() )
+		{
+			final SyntaxTree t = stack.pop();
+			if ( !Tokens.isOperator( t.token() ) )
+				continue;
+			final String fingerprint = ResultCache.fingerprint( t );
+			fingerprints.put( t, fingerprint );
+			counts.merge( fingerprint, 1, Integer::sum );
+			for ( int i = 0; i < t.count(); i++ )
+				stack.push( t.child( i ) );
+		}
+		fingerprints.values().removeIf( fingerprint -> counts.get( fingerprint ) < 2 );
+		return fingerprints;
+	}
 
+	/**
+	 * Finds the subtrees whose comparisons are all on the same feature
+	 * projection, and can be tested in one pass. The fusion is done by the
+	 * compiler, once for the whole tree.
+	 */
+	private Map< SyntaxTree, FeatureComparisonOperator< ? > > fusedSubtrees( final SyntaxTree tree )
+	{
+		if ( !combines( tree ) )
+			return Collections.emptyMap();
+		final SelectionCompiler< V, E > compiler = new SelectionCompiler<>( this );
+		compiler.compile( tree );
+		return compiler.fused();
+	}
+
+	private static boolean combines( final SyntaxTree tree )
+	{
+		final Object token = tree.token();
+		if ( ( token == Operators.BITWISE_AND || token == Operators.BITWISE_OR || token == Operators.ADD ) && tree.count() == 2 )
+			return true;
+		for ( int i = 0; i < tree.count(); i++ )
+			if ( combines( tree.child( i ) ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Evaluates the syntax tree recursively, restricting the comparisons to
+	 * the specified domain.
+	 * <p>
+	 * The result is only exact inside the domain: objects outside of it may
+	 * be missing. This is fine for the second operand of the 'and' and 'sub'
+	 * operators, that only matters where the first operand is selected. So
+	 * the first operand is evaluated first, and serves as domain for the
+	 * second one. For 'and', the cheapest operand is evaluated first.
+	 * Morphs look at the neighborhood of objects, so their argument is always
+	 * evaluated over the whole graph.
+	 * <p>
+	 * Subtrees that occur several times in the expression are evaluated once,
+	 * over the whole graph so that their result is exact wherever it is
+	 * reused. Their result is shared copy-on-write by the occurrences, so
+	 * that the in-place operators do not modify it.
+	 *
+	 * @param tree
+	 *            the syntax tree to evaluate.
+	 * @param domain
+	 *            the domain, or <code>null</code> to evaluate over the whole
+	 *            graph.
+	 * @return the result of the evaluation.
+	 */
+	private Object evaluate( final SyntaxTree tree, final SelectionVariable domain )
+	{
+		final Object token = tree.token();
+		if ( !Tokens.isOperator( token ) )
+			return token;
+
+		final String fingerprint = repeated == null ? null : repeated.get( tree );
+		if ( fingerprint == null )
+			return evaluateOperator( tree, domain );
+
+		final SelectionVariable previous = shared.get( fingerprint );
+		if ( previous != null )
+			return previous.share();
+		final Object result = evaluateOperator( tree, null );
+		if ( result instanceof SelectionVariable )
+			shared.put( fingerprint, ( ( SelectionVariable ) result ).share() );
 		return result;
 	}
 
+	private Object evaluateOperator( final SyntaxTree tree, final SelectionVariable domain )
+	{
+		final Operator op = ( Operator ) tree.token();
+		final FeatureComparisonOperator< ? > comparisons = fused == null ? null : fused.get( tree );
+		if ( comparisons != null )
+			// Comparisons on a single projection are tested in one pass.
+			return comparisons.feature.test( comparisons.intervals, domain );
+		final Object variable = variables == null ? null : variables.get( tree );
+		if ( variable != null )
+			return variable;
+
+		final Deque< Object > stack = new ArrayDeque<>();
+		if ( ( op == Operators.BITWISE_AND || op == Operators.SUB ) && tree.count() == 2 )
+		{
+			final boolean swap = op == Operators.BITWISE_AND && cost( tree.child( 1 ) ) < cost( tree.child( 0 ) );
+			final Object first = evaluate( tree.child( swap ? 1 : 0 ), domain );
+			final Object resolved = Tokens.isVariable( first ) ? getVariableValue( ( Variable ) first ) : first;
+			final SelectionVariable restriction = ( resolved instanceof SelectionVariable ) ? ( SelectionVariable ) resolved : domain;
+			final Object second = evaluate( tree.child( swap ? 0 : 1 ), restriction );
+			stack.push( swap ? second : resolved );
+			stack.push( swap ? resolved : second );
+		}
+		else
+		{
+			final boolean morph = op instanceof Function
+					&& Tokens.isVariable( tree.child( 0 ).token() )
+					&& isMorph( ( ( Variable ) tree.child( 0 ).token() ).getToken() );
+			for ( int i = 0; i < tree.count(); i++ )
+				stack.push( evaluate( tree.child( i ), morph ? null : domain ) );
+		}
+
+		this.domain = domain;
+		final Object result;
+		try
+		{
+			result = execute( op, stack );
+		}
+		finally
+		{
+			this.domain = null;
+		}
+		if ( result == null )
+			throw new IllegalArgumentException( "Unsupported operator: " + op );
+		if ( variables != null && ( result instanceof FeatureVariable || result instanceof TagSetVariable ) )
+			variables.put( tree, result );
+		return result;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified function selects objects
+	 * related to the objects of its argument, which must then be evaluated
+	 * over the whole graph.
+	 */
+	private static boolean isMorph( final String name )
+	{
+		switch ( name.toLowerCase().trim() )
+		{
+		case "morph":
+		case "successors":
+		case "predecessors":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Rough relative cost of evaluating the specified syntax tree. Reading
+	 * the selection model is cheap, the frame function only visits the
+	 * vertices of some timepoints, feature and tag-set tests visit all the
+	 * objects of the graph, and morphs visit them plus their neighbors.
+	 *
+	 * @param tree
+	 *            the syntax tree.
+	 * @return the cost.
+	 */
+	static int cost( final SyntaxTree tree )
+	{
+		final Object token = tree.token();
+		if ( Tokens.isVariable( token ) )
+		{
+			switch ( ( ( Variable ) token ).getToken().toLowerCase() )
+			{
+			case "selection":
+			case "vertexselection":
+			case "edgeselection":
+				return 1;
+			default:
+				return 0;
+			}
+		}
+		int cost = 0;
+		if ( token instanceof Function && Tokens.isVariable( tree.child( 0 ).token() ) )
+		{
+			switch ( ( ( Variable ) tree.child( 0 ).token() ).getToken().toLowerCase().trim() )
+			{
+			case "morph":
+			case "successors":
+			case "predecessors":
+				cost += 1000;
+				break;
+			case "frame":
+				cost += 10;
+				break;
+			default:
+				cost += 100;
+				break;
+			}
+		}
+		for ( int i = 0; i < tree.count(); i++ )
+			cost += cost( tree.child( i ) );
+		return cost;
+	}
+
 	@Override
 	public Object execute( final Operator op, final Deque< Object > stack )
 	{
@@ -168,21 +512,37 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		return null;
 	}
 
+	private SelectionVariable selection()
+	{
+		if ( repeated == null )
+			return readSelection();
+		if ( selection == null )
+			selection = readSelection();
+		return selection.share();
+	}
+
+	private SelectionVariable readSelection()
+	{
+		return mirror == null
+				? SelectionVariable.fromSelectionModel( selectionModel, idmap )
+				: mirror.get();
+	}
+
 	private Object getVariableValue( final Variable variable )
 	{
 		switch ( variable.getToken().toLowerCase() )
 		{
 		case "selection":
-			return SelectionVariable.fromSelectionModel( selectionModel, idmap );
+			return selection();
 		case "vertexselection":
 		{
-			final SelectionVariable sv = SelectionVariable.fromSelectionModel( selectionModel, idmap );
+			final SelectionVariable sv = selection();
 			sv.clearEdges();
 			return sv;
 		}
 		case "edgeselection":
 		{
-			final SelectionVariable sv = SelectionVariable.fromSelectionModel( selectionModel, idmap );
+			final SelectionVariable sv = selection();
 			sv.clearVertices();
 			return sv;
 		}
@@ -207,9 +567,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object notEqual( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).notEqual( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).notEqual( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).notEqual( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).notEqual( ( ( Number ) a ).doubleValue(), domain );
 		else if ( a instanceof TagSetVariable || b instanceof TagSetVariable )
 		{
 
@@ -236,9 +596,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object equal( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).equal( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).equal( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).equal( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).equal( ( ( Number ) a ).doubleValue(), domain );
 		else if ( a instanceof TagSetVariable || b instanceof TagSetVariable )
 		{
 
@@ -265,9 +625,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object greaterThanOrEqual( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).greaterThanOrEqual( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).greaterThanOrEqual( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).lessThanOrEqual( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).lessThanOrEqual( ( ( Number ) a ).doubleValue(), domain );
 
 		errorMessage = "Cannot apply the 'greater than or equal to' operator to " + a.getClass().getSimpleName() + " and " + b.getClass().getSimpleName() + ".";
 		return null;
@@ -277,9 +637,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object lessThanOrEqual( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).lessThanOrEqual( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).lessThanOrEqual( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).greaterThanOrEqual( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).greaterThanOrEqual( ( ( Number ) a ).doubleValue(), domain );
 
 		errorMessage = "Cannot apply the 'less than or equal to' operator to " + a.getClass().getSimpleName() + " and " + b.getClass().getSimpleName() + ".";
 		return null;
@@ -289,9 +649,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object greaterThan( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).greaterThan( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).greaterThan( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).lessThan( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).lessThan( ( ( Number ) a ).doubleValue(), domain );
 
 		errorMessage = "Cannot apply the 'greater than' operator to " + a.getClass().getSimpleName() + " and " + b.getClass().getSimpleName() + ".";
 		return null;
@@ -301,9 +661,9 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object lessThan( final Object a, final Object b )
 	{
 		if ( a instanceof FeatureVariable && b instanceof Number )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).lessThan( ( ( Number ) b ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) a ).lessThan( ( ( Number ) b ).doubleValue(), domain );
 		else if ( a instanceof Number && b instanceof FeatureVariable )
-			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).greaterThan( ( ( Number ) a ).doubleValue() );
+			return ( (org.mastodon.mamut.selectioncreator.evaluation.FeatureVariable< ? > ) b ).greaterThan( ( ( Number ) a ).doubleValue(), domain );
 
 		errorMessage = "Cannot apply the 'less than' operator to " + a.getClass().getSimpleName() + " and " + b.getClass().getSimpleName() + ".";
 		return null;
@@ -313,7 +673,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object not( final Object a )
 	{
 		if ( a instanceof TagSetVariable )
-			return ( ( TagSetVariable ) a ).unset();
+			return ( ( TagSetVariable ) a ).unset( domain );
 
 		errorMessage = "Cannot apply the 'not' ('!') operator to " + a.getClass() + ".";
 		return null;
@@ -323,7 +683,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 	public Object complement( final Object a )
 	{
 		if ( a instanceof TagSetVariable )
-			return ( ( TagSetVariable ) a ).set();
+			return ( ( TagSetVariable ) a ).set( domain );
 
 		errorMessage = "Cannot apply the 'complement' ('~') operator to " + a.getClass() + ".";
 		return null;
@@ -408,6 +768,14 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		{
 			return getFromFeature( name, b );
 		}
+		case "branchfeature":
+		{
+			if ( b instanceof String )
+				return getFromBranchFeature( ( String ) b );
+			errorMessage = "Incorrect syntax for branchFeature. Specify the branch feature key "
+					+ "between single quotation marks (e.g. \"branchFeature('Branch duration')\").";
+			return null;
+		}
 		case "tagset":
 		case "vertextagset":
 		case "edgetagset":
@@ -433,6 +801,44 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 					+ "(e.g. \"morph( vertexFeature('Spot N links') == 3, ('toVertex', 'outgoingEdges') )\".";
 			return null;
 		}
+		case "successors":
+		case "predecessors":
+		{
+			if ( b instanceof List && ( ( List ) b ).size() == 2 )
+			{
+				final Object arg0 = ( ( List ) b ).get( 0 );
+				final Object arg1 = ( ( List ) b ).get( 1 );
+				return getFromTraversal( name, arg0, arg1 );
+			}
+			errorMessage = "Incorrect syntax for " + name + ". Specify a selection variable and a number of steps "
+					+ "(e.g. \"successors( vertexSelection, 3 )\").";
+			return null;
+		}
+		case "between":
+		{
+			if ( b instanceof List && ( ( List ) b ).size() == 3 )
+			{
+				final Object fv = ( ( List ) b ).get( 0 );
+				final Object min = ( ( List ) b ).get( 1 );
+				final Object max = ( ( List ) b ).get( 2 );
+				if ( fv instanceof FeatureVariable && min instanceof Number && max instanceof Number )
+					return ( ( FeatureVariable< ? > ) fv ).between( ( ( Number ) min ).doubleValue(), ( ( Number ) max ).doubleValue(), domain );
+			}
+			errorMessage = "Incorrect syntax for between. Specify a feature and two bounds "
+					+ "(e.g. \"between( vertexFeature('Spot position', 'X'), 100, 200 )\").";
+			return null;
+		}
+		case "frame":
+		{
+			if ( b instanceof Number )
+				return getFromFrames( ( Number ) b, ( Number ) b );
+			if ( b instanceof List && ( ( List ) b ).size() == 2
+					&& ( ( List ) b ).get( 0 ) instanceof Number && ( ( List ) b ).get( 1 ) instanceof Number )
+				return getFromFrames( ( Number ) ( ( List ) b ).get( 0 ), ( Number ) ( ( List ) b ).get( 1 ) );
+			errorMessage = "Incorrect syntax for frame. Specify a timepoint or a range of timepoints "
+					+ "(e.g. \"frame( 25 )\" or \"frame( 10, 20 )\").";
+			return null;
+		}
 		}
 		errorMessage = "Unkown function name: " + name + ".";
 		return null;
@@ -547,7 +953,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 					errorMessage = "Calling " + name + ": The feature '" + featureSpec.getKey() + "' is not defined for vertices.";
 					return null;
 				}
-				fv = FeatureVariable.vertexFeature( graph, idmap, featureModel, featureSpec, featureProjectionKey );
+				fv = FeatureVariable.vertexFeature( graph, idmap, featureModel, featureSpec, featureProjectionKey, columns, frames );
 			}
 			else
 			{
@@ -556,7 +962,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 					errorMessage = "Calling " + name + ": The feature '" + featureSpec.getKey() + "' is not defined for edges.";
 					return null;
 				}
-				fv = FeatureVariable.edgeFeature( graph, idmap, featureModel, featureSpec, featureProjectionKey );
+				fv = FeatureVariable.edgeFeature( graph, idmap, featureModel, featureSpec, featureProjectionKey, columns );
 			}
 			return fv;
 		}
@@ -565,6 +971,35 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		return null;
 	}
 
+	/**
+	 * Selects the vertices of a range of timepoints, from the frame index or,
+	 * without index, from the frame feature.
+	 */
+	private SelectionVariable getFromFrames( final Number min, final Number max )
+	{
+		if ( frames != null )
+		{
+			final BitSet vertices = new BitSet();
+			frames.select( IntervalSet.between( min.doubleValue(), max.doubleValue() ), vertices );
+			return new SelectionVariable( vertices, new BitSet() );
+		}
+		final FeatureVariable< ? > fv = getFromFeature( "vertexFeature", FrameIndex.FEATURE_KEY );
+		if ( fv == null )
+			return null;
+		return fv.between( min.doubleValue(), max.doubleValue(), domain );
+	}
+
+	/**
+	 * Returns the frame index this evaluator reads the vertices of given
+	 * timepoints from.
+	 *
+	 * @return the frame index, or <code>null</code>.
+	 */
+	FrameIndex< V > frames()
+	{
+		return frames;
+	}
+
 	private SelectionVariable getFromMorph( Object arg0, Object arg1 )
 	{
 		if (Tokens.isVariable( arg0 ))
@@ -591,7 +1026,6 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 			return null;
 		}
 
-		final SelectionMorpher< V, E > morpher = new SelectionMorpher<>( graph, idmap );
 		final List< Morpher > morphers = new ArrayList<>();
 		for ( final String sw : switches )
 		{
@@ -607,6 +1041,58 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		return morphed;
 	}
 
+	private SelectionVariable getFromTraversal( final String name, Object arg0, final Object arg1 )
+	{
+		if ( Tokens.isVariable( arg0 ) )
+			arg0 = getVariableValue( ( Variable ) arg0 );
+		if ( !( arg0 instanceof SelectionVariable ) || !( arg1 instanceof Number ) )
+		{
+			errorMessage = "Incorrect syntax for " + name + ". Specify a selection variable and a number of steps "
+					+ "(e.g. \"successors( vertexSelection, 3 )\").";
+			return null;
+		}
+		final double steps = ( ( Number ) arg1 ).doubleValue();
+		if ( steps < 0 || steps != Math.floor( steps ) )
+		{
+			errorMessage = "Calling " + name + ": The number of steps must be a non-negative integer. Got: " + arg1 + ".";
+			return null;
+		}
+		final int depth = ( int ) Math.min( steps, Integer.MAX_VALUE );
+		final SelectionVariable selection = ( SelectionVariable ) arg0;
+		return name.toLowerCase().trim().equals( "successors" )
+				? morpher.successors( selection, depth )
+				: morpher.predecessors( selection, depth );
+	}
+
+	/**
+	 * Returns a feature of the branches of the graph. The duration is computed
+	 * from the frame feature of the vertices.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private FeatureVariable< V > getFromBranchFeature( final String key )
+	{
+		final BranchFeature feature = BranchFeature.forKey( key );
+		if ( feature == null )
+		{
+			errorMessage = "Calling branchFeature: The branch feature '" + key + "' is unknown. Use one of "
+					+ Arrays.toString( BranchFeature.values() ) + ".";
+			return null;
+		}
+		FeatureProjection< V > frameProjection = null;
+		if ( feature == BranchFeature.DURATION )
+		{
+			final FeatureVariable< ? > fv = getFromFeature( "vertexFeature", FrameIndex.FEATURE_KEY );
+			if ( !( fv instanceof AbstractFeatureVariable ) )
+			{
+				errorMessage = "Calling branchFeature: The branch duration is computed from the feature '"
+						+ FrameIndex.FEATURE_KEY + "', which is unknown to the feature model.";
+				return null;
+			}
+			frameProjection = ( ( AbstractFeatureVariable< V > ) fv ).projection;
+		}
+		return new BranchFeatureVariable<>( feature, morpher, frameProjection, idmap.vertexIdBimap() );
+	}
+
 	private TagSetVariable getFromTagSet( final String tagSetName, final String functionName )
 	{
 		TagSet tagSet = null;
@@ -628,11 +1114,11 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		switch ( functionName.toLowerCase().trim() )
 		{
 		case "tagset":
-			return new GraphTagSetVariable<>( tagSet, vertexTags, edgeTags, graph.vertices(), graph.edges(), idmap );
+			return new GraphTagSetVariable<>( tagSet, vertexTags, edgeTags, graph.vertices(), graph.edges(), idmap, tagIndices );
 		case "vertextagset":
-			return new VertexTagSetVariable<>( tagSet, vertexTags, graph.vertices(), idmap.vertexIdBimap() );
+			return new VertexTagSetVariable<>( tagSet, vertexTags, graph.vertices(), idmap.vertexIdBimap(), tagIndices );
 		case "edgetagset":
-			return new EdgeTagSetVariable<>( tagSet, edgeTags, graph.edges(), idmap.edgeIdBimap() );
+			return new EdgeTagSetVariable<>( tagSet, edgeTags, graph.edges(), idmap.edgeIdBimap(), tagIndices );
 		}
 		errorMessage = "Unkown function name: " + functionName + ".";
 		return null;
@@ -643,7 +1129,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		final Tag tag = checkTagAsParam( tsv, param );
 		if (null == tag)
 			return null;
-		return tsv.equal( tag );
+		return tsv.equal( tag, domain );
 	}
 
 	private SelectionVariable notEqualTag( final TagSetVariable tsv, final Object param )
@@ -651,7 +1137,7 @@ public class SelectionEvaluator< V extends Vertex< E >, E extends Edge< V > > ex
 		final Tag tag = checkTagAsParam( tsv, param );
 		if (null == tag)
 			return null;
-		return tsv.notEqual( tag );
+		return tsv.notEqual( tag, domain );
 	}
 
 	private Tag checkTagAsParam(final TagSetVariable tsv, final Object param)
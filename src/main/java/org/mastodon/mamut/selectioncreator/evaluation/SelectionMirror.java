@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.Vertex;
+import org.mastodon.model.SelectionListener;
+import org.mastodon.model.SelectionModel;
+
+/**
+ * Mirrors the content of a {@link SelectionModel} as ID bitmaps, so that the
+ * <code>selection</code>, <code>vertexSelection</code> and
+ * <code>edgeSelection</code> variables resolve without walking the selected
+ * objects.
+ * <p>
+ * The mirror listens to the selection model. Mastodon notifies that the
+ * selection changed, but does not say which objects, so the bitmaps are
+ * dropped and rebuilt the next time they are needed. When the plugin itself
+ * writes a selection to the model, it hands the written selection to
+ * {@link #applied(SelectionVariable)}, and the next expression reads it back
+ * without rebuilding. The mirror is also rebuilt when vertices or edges were
+ * added or removed, because their IDs may have been reused.
+ * <p>
+ * The mirror stands in for a selection model stored as bitsets. Mastodon
+ * creates the selection model of a project itself and offers no way to
+ * replace it, and the views listen to that model, so the plugin keeps the
+ * default model and mirrors it instead.
+ * <p>
+ * The selections returned share their bitmaps with the mirror, and copy them
+ * before their first modification.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class SelectionMirror< V extends Vertex< E >, E extends Edge< V > > implements SelectionListener
+{
+
+	private final SelectionModel< V, E > selectionModel;
+
+	private final GraphIdBimap< V, E > idmap;
+
+	private final ModelVersion version;
+
+	/**
+	 * The current selection, or <code>null</code> if it must be rebuilt.
+	 */
+	private SelectionVariable current;
+
+	/**
+	 * The structure version of the graph when {@link #current} was built.
+	 */
+	private long structure;
+
+	/**
+	 * Incremented every time the selection changes.
+	 */
+	private long generation;
+
+	private int builds;
+
+	/**
+	 * Creates a mirror of the specified selection model, and registers it as
+	 * a listener of the model.
+	 *
+	 * @param selectionModel
+	 *            the selection model.
+	 * @param idmap
+	 *            the graph ID bimap.
+	 * @param version
+	 *            the version of the model.
+	 */
+	public SelectionMirror( final SelectionModel< V, E > selectionModel, final GraphIdBimap< V, E > idmap, final ModelVersion version )
+	{
+		this.selectionModel = selectionModel;
+		this.idmap = idmap;
+		this.version = version;
+		selectionModel.listeners().add( this );
+	}
+
+	/**
+	 * Stops listening to the selection model.
+	 */
+	public void close()
+	{
+		selectionModel.listeners().remove( this );
+	}
+
+	@Override
+	public synchronized void selectionChanged()
+	{
+		current = null;
+		generation++;
+	}
+
+	/**
+	 * Returns the current content of the selection model.
+	 *
+	 * @return a new selection, sharing its bitmaps with this mirror.
+	 */
+	public synchronized SelectionVariable get()
+	{
+		if ( current == null || structure != version.structure() )
+		{
+			structure = version.structure();
+			// Held shared from the start, so that handing it out never writes to it.
+			current = SelectionVariable.fromSelectionModel( selectionModel, idmap ).share();
+			builds++;
+		}
+		return current.share();
+	}
+
+	/**
+	 * Tells this mirror that the specified selection was just written to the
+	 * selection model, so that it does not need to be read back. The
+	 * selection is shared with this mirror, and copies its bitmaps before its
+	 * next modification.
+	 *
+	 * @param selection
+	 *            the selection written to the model.
+	 */
+	public synchronized void applied( final SelectionVariable selection )
+	{
+		structure = version.structure();
+		current = selection.share();
+	}
+
+	/**
+	 * Returns a counter incremented every time the selection model changes.
+	 *
+	 * @return the selection generation.
+	 */
+	public synchronized long generation()
+	{
+		return generation;
+	}
+
+	/**
+	 * Returns how many times the selection was read from the selection model.
+	 *
+	 * @return the number of builds.
+	 */
+	public synchronized int getBuildCount()
+	{
+		return builds;
+	}
+}
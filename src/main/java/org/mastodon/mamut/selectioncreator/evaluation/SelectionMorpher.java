@@ -28,11 +28,10 @@
  */
 package org.mastodon.mamut.selectioncreator.evaluation;
 
-import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.GraphIdBimap;
@@ -42,8 +41,6 @@ import org.mastodon.graph.algorithm.traversal.DepthFirstSearch;
 import org.mastodon.graph.algorithm.traversal.GraphSearch.SearchDirection;
 import org.mastodon.graph.algorithm.traversal.SearchListener;
 
-import gnu.trove.set.hash.TIntHashSet;
-
 /**
  * Class that can morph a {@link SelectionVariable} into another one, based on
  * graph hierarchical rules.
@@ -62,6 +59,16 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 
 	private final GraphIdBimap< V, E > idmap;
 
+	private final TrackIndex< V, E > tracks;
+
+	private final ModelVersion version;
+
+	private Adjacency adjacency;
+
+	private LineageIndex lineages;
+
+	private BranchIndex branches;
+
 	/**
 	 * Enum specifying what morphing to perform.
 	 *
@@ -100,7 +107,33 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 		/**
 		 * Include the whole track of selected vertices and edges.
 		 */
-		WHOLE_TRACK( "wholeTrack" );
+		WHOLE_TRACK( "wholeTrack" ),
+		/**
+		 * Include all the vertices and edges that can be reached from the
+		 * selection by following edges from source to target.
+		 */
+		DESCENDANTS( "descendants" ),
+		/**
+		 * Include all the vertices and edges that can be reached from the
+		 * selection by following edges from target to source.
+		 */
+		ANCESTORS( "ancestors" ),
+		/**
+		 * Include the vertices and the inner edges of the branches of the
+		 * selected vertices and edges. A branch is a chain of vertices linked
+		 * one to one, between divisions and merges.
+		 */
+		WHOLE_BRANCH( "wholeBranch" ),
+		/**
+		 * Include the branches that start from the same division as the
+		 * branches of the selection.
+		 */
+		SIBLING_BRANCHES( "siblingBranches" ),
+		/**
+		 * Include the branches that follow the branches of the selection,
+		 * after a division or a merge.
+		 */
+		DAUGHTER_BRANCHES( "daughterBranches" );
 
 		private final String label;
 
@@ -126,14 +159,75 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 *            map between graph objects and their IDs.
 	 */
 	public SelectionMorpher( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap )
+	{
+		this( graph, idmap, null );
+	}
+
+	/**
+	 * Instantiates a new {@link SelectionMorpher} that selects whole tracks
+	 * from an index of the tracks of the graph.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            map between graph objects and their IDs.
+	 * @param tracks
+	 *            the index of the tracks of the graph, may be
+	 *            <code>null</code>.
+	 */
+	public SelectionMorpher( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final TrackIndex< V, E > tracks )
+	{
+		this( graph, idmap, tracks, null );
+	}
+
+	/**
+	 * Instantiates a new {@link SelectionMorpher} that reads the edges of
+	 * vertices and the ends of edges from a snapshot of the graph structure.
+	 * The snapshot is taken on the first morph, and taken again when the
+	 * model version says that the graph structure changed.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            map between graph objects and their IDs.
+	 * @param tracks
+	 *            the index of the tracks of the graph, may be
+	 *            <code>null</code>.
+	 * @param version
+	 *            the version of the model, may be <code>null</code>. If
+	 *            <code>null</code>, no snapshot is taken and the graph is
+	 *            read directly.
+	 */
+	public SelectionMorpher( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap, final TrackIndex< V, E > tracks, final ModelVersion version )
 	{
 		this.graph = graph;
 		this.idmap = idmap;
+		this.tracks = tracks;
+		this.version = version;
+	}
+
+	/**
+	 * Returns a current snapshot of the graph structure, taking it if needed.
+	 *
+	 * @return the snapshot, <code>null</code> if changes to the graph cannot
+	 *         be tracked.
+	 */
+	synchronized Adjacency adjacency()
+	{
+		if ( version == null )
+			return null;
+		if ( adjacency == null || !adjacency.isCurrent( version ) )
+			adjacency = Adjacency.build( graph, idmap, version );
+		return adjacency;
 	}
 
 	/**
 	 * Returns a new {@link SelectionVariable} containing the <b>union</b> of
 	 * the results all morphers specified applied to the specified selection.
+	 * <p>
+	 * The morphers are fused: the selected vertices are read once for all the
+	 * edges to include, and the selected edges once for all the vertices to
+	 * include, straight into the result.
 	 *
 	 * @param selection
 	 *            the selection to morph.
@@ -146,38 +240,247 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 		if ( morphers.isEmpty() )
 			return selection;
 
-		final List< SelectionVariable > svs = new ArrayList<>();
-		for ( final Morpher morpher : morphers )
+		// Whole tracks include the results of all the other morphers.
+		if ( morphers.contains( Morpher.WHOLE_TRACK ) )
+			return wholeTrack( selection );
+
+		final boolean incoming = morphers.contains( Morpher.INCOMING_EDGES );
+		final boolean outgoing = morphers.contains( Morpher.OUTGOING_EDGES );
+		final boolean source = morphers.contains( Morpher.SOURCE_VERTEX );
+		final boolean target = morphers.contains( Morpher.TARGET_VERTEX );
+
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		if ( morphers.contains( Morpher.DESCENDANTS ) || morphers.contains( Morpher.ANCESTORS ) )
+		{
+			final LineageIndex lineages = lineages();
+			if ( morphers.contains( Morpher.DESCENDANTS ) )
+				lineages.descendants( selection.selectedVertices, selection.selectedEdges, vertices, edges );
+			if ( morphers.contains( Morpher.ANCESTORS ) )
+				lineages.ancestors( selection.selectedVertices, selection.selectedEdges, vertices, edges );
+		}
+		final boolean wholeBranch = morphers.contains( Morpher.WHOLE_BRANCH );
+		final boolean siblings = morphers.contains( Morpher.SIBLING_BRANCHES );
+		final boolean daughters = morphers.contains( Morpher.DAUGHTER_BRANCHES );
+		if ( wholeBranch || siblings || daughters )
+		{
+			final BranchIndex index = branches();
+			final BitSet selected = index.branchesOf( selection.selectedVertices, selection.selectedEdges );
+			final BitSet result = wholeBranch ? ( BitSet ) selected.clone() : new BitSet();
+			if ( siblings )
+				result.or( index.siblings( selected ) );
+			if ( daughters )
+				result.or( index.daughters( selected ) );
+			index.expand( result, vertices, edges );
+		}
+		if ( morphers.contains( Morpher.TO_VERTEX ) )
+			vertices.or( selection.selectedVertices.asBitSet() );
+		if ( morphers.contains( Morpher.TO_EDGE ) )
+			edges.or( selection.selectedEdges.asBitSet() );
+
+		final Adjacency adjacency = adjacency();
+		if ( adjacency != null )
+		{
+			if ( incoming || outgoing )
+				adjacency.edgesOf( selection.selectedVertices, incoming, outgoing, edges );
+			if ( source || target )
+				adjacency.endsOf( selection.selectedEdges, source, target, vertices );
+			return new SelectionVariable( vertices, edges );
+		}
+
+		if ( incoming || outgoing )
+		{
+			final Iterator< V > it = selection.vertexIterator( idmap.vertexIdBimap() );
+			while ( it.hasNext() )
+			{
+				final V v = it.next();
+				if ( incoming )
+					for ( final E e : v.incomingEdges() )
+						edges.set( idmap.getEdgeId( e ) );
+				if ( outgoing )
+					for ( final E e : v.outgoingEdges() )
+						edges.set( idmap.getEdgeId( e ) );
+			}
+		}
+		if ( source || target )
 		{
-			switch ( morpher )
+			final V ref = idmap.vertexIdBimap().createRef();
+			final Iterator< E > it = selection.edgeIterator( idmap.edgeIdBimap() );
+			while ( it.hasNext() )
 			{
-			case TO_VERTEX:
-				svs.add( toVertex( selection ) );
-				break;
-			case INCOMING_EDGES:
-				svs.add( incomingEdges( selection ) );
-				break;
-			case OUTGOING_EDGES:
-				svs.add( outgoingEdges( selection ) );
-				break;
-			case SOURCE_VERTEX:
-				svs.add( sourceVertex( selection ) );
-				break;
-			case TARGET_VERTEX:
-				svs.add( targetVertex( selection ) );
-				break;
-			case TO_EDGE:
-				svs.add( toEdge( selection ) );
-				break;
-			case WHOLE_TRACK:
-				svs.add( wholeTrack( selection ) );
-				break;
-			default:
-				throw new IllegalArgumentException( "Unknown morpher: " + morpher );
+				final E e = it.next();
+				if ( source )
+					vertices.set( idmap.getVertexId( e.getSource( ref ) ) );
+				if ( target )
+					vertices.set( idmap.getVertexId( e.getTarget( ref ) ) );
 			}
+			idmap.vertexIdBimap().releaseRef( ref );
 		}
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns the lineage index of the current snapshot of the graph
+	 * structure, building it if needed.
+	 */
+	private synchronized LineageIndex lineages()
+	{
+		final Adjacency adjacency = traversable();
+		if ( lineages == null || lineages.adjacency != adjacency )
+			lineages = LineageIndex.build( adjacency );
+		return lineages;
+	}
+
+	/**
+	 * Returns the branches of the current snapshot of the graph structure,
+	 * building them if needed.
+	 *
+	 * @return the branch index.
+	 */
+	synchronized BranchIndex branches()
+	{
+		final Adjacency adjacency = traversable();
+		if ( branches == null || branches.adjacency != adjacency )
+			branches = BranchIndex.build( adjacency );
+		return branches;
+	}
+
+	/**
+	 * Returns a snapshot of the graph structure to search, taking a one-off
+	 * snapshot if changes to the graph cannot be tracked.
+	 */
+	private Adjacency traversable()
+	{
+		final Adjacency adjacency = adjacency();
+		return adjacency != null ? adjacency : Adjacency.build( graph, idmap, null );
+	}
+
+	/**
+	 * Returns the selection that includes the vertices and edges reached from
+	 * the source selection in at most the specified number of steps along
+	 * the edges, from source to target. The selected objects themselves are
+	 * not included, unless they are reached from others.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @param depth
+	 *            the max number of steps.
+	 * @return a new selection
+	 */
+	public SelectionVariable successors( final SelectionVariable selection, final int depth )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		traversable().reach( selection.selectedVertices, selection.selectedEdges, true, depth, vertices, edges );
+		return new SelectionVariable( vertices, edges );
+	}
 
-		return svs.stream().reduce( ( t, u ) -> t.inPlaceAdd( u ) ).get();
+	/**
+	 * Returns the selection that includes the vertices and edges reached from
+	 * the source selection in at most the specified number of steps along
+	 * the edges, from target to source. The selected objects themselves are
+	 * not included, unless they are reached from others.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @param depth
+	 *            the max number of steps.
+	 * @return a new selection
+	 */
+	public SelectionVariable predecessors( final SelectionVariable selection, final int depth )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		traversable().reach( selection.selectedVertices, selection.selectedEdges, false, depth, vertices, edges );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns the selection that includes all the vertices and edges that
+	 * follow the source selection.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection
+	 */
+	public SelectionVariable descendants( final SelectionVariable selection )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		lineages().descendants( selection.selectedVertices, selection.selectedEdges, vertices, edges );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns the selection that includes all the vertices and edges that
+	 * precede the source selection.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection
+	 */
+	public SelectionVariable ancestors( final SelectionVariable selection )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		lineages().ancestors( selection.selectedVertices, selection.selectedEdges, vertices, edges );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns the selection that includes the vertices and the inner edges
+	 * of the branches to which the source selection belongs.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection
+	 */
+	public SelectionVariable wholeBranch( final SelectionVariable selection )
+	{
+		return morph( selection, Collections.singleton( Morpher.WHOLE_BRANCH ) );
+	}
+
+	/**
+	 * Returns the selection that includes the vertices and the inner edges
+	 * of the branches that start from the same division as the branches of
+	 * the source selection.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection
+	 */
+	public SelectionVariable siblingBranches( final SelectionVariable selection )
+	{
+		return morph( selection, Collections.singleton( Morpher.SIBLING_BRANCHES ) );
+	}
+
+	/**
+	 * Returns the selection that includes the vertices and the inner edges
+	 * of the branches that follow the branches of the source selection.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection
+	 */
+	public SelectionVariable daughterBranches( final SelectionVariable selection )
+	{
+		return morph( selection, Collections.singleton( Morpher.DAUGHTER_BRANCHES ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if a vertex precedes another one along the
+	 * edges of the graph.
+	 *
+	 * @param ancestor
+	 *            the possible ancestor.
+	 * @param vertex
+	 *            the vertex.
+	 * @return whether <code>vertex</code> is a descendant of
+	 *         <code>ancestor</code>.
+	 */
+	public boolean isAncestor( final V ancestor, final V vertex )
+	{
+		return lineages().isAncestor( idmap.getVertexId( ancestor ), idmap.getVertexId( vertex ) );
 	}
 
 	/**
@@ -190,31 +493,15 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable wholeTrack( final SelectionVariable selection )
 	{
-		/*
-		 * Harvest all the vertices and edges IDs to iterate. We use a
-		 * TIntHashSet as a pseudo-queue.
-		 */
-		final TIntHashSet vertices = new TIntHashSet();
-		for ( int i = selection.selectedVertices.nextSetBit( 0 ); i >= 0; i = selection.selectedVertices.nextSetBit( i + 1 ) )
-		{
-			vertices.add( i );
-			if ( i == Integer.MAX_VALUE )
-				break;
-		}
-		final TIntHashSet edges = new TIntHashSet();
-		for ( int i = selection.selectedEdges.nextSetBit( 0 ); i >= 0; i = selection.selectedEdges.nextSetBit( i + 1 ) )
-		{
-			edges.add( i );
-			if ( i == Integer.MAX_VALUE )
-				break;
-		}
+		if ( tracks != null )
+			return tracks.wholeTrack( selection );
 
 		/*
-		 * The search listener: Adds to the selection and prunes from the todo
-		 * lists.
+		 * The search listener: Adds to the selection, which also marks the
+		 * seeds already reached.
 		 */
-		final BitSet verticesToSelect = new BitSet();
-		final BitSet edgesToSelect = new BitSet();
+		final IdBitmap verticesToSelect = IdBitmap.create();
+		final IdBitmap edgesToSelect = IdBitmap.create();
 		final SearchListener< V, E, DepthFirstSearch< V, E > > listener = new SearchListener< V, E, DepthFirstSearch< V, E > >()
 		{
 
@@ -225,17 +512,13 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 			@Override
 			public void processVertexEarly( final V vertex, final DepthFirstSearch< V, E > search )
 			{
-				final int id = idmap.getVertexId( vertex );
-				verticesToSelect.set( id );
-				vertices.remove( id );
+				verticesToSelect.set( idmap.getVertexId( vertex ) );
 			}
 
 			@Override
 			public void processEdge( final E edge, final V from, final V to, final DepthFirstSearch< V, E > search )
 			{
-				final int id = idmap.getEdgeId( edge );
-				edgesToSelect.set( id );
-				edges.remove( id );
+				edgesToSelect.set( idmap.getEdgeId( edge ) );
 			}
 
 			@Override
@@ -243,25 +526,20 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 			{}
 		};
 
-		// Iterate and prune over vertex IDs.
+		// Start a search from the seeds not reached by a previous one.
 		final DepthFirstSearch< V, E > dfs = new DepthFirstSearch<>( graph, SearchDirection.UNDIRECTED );
 		dfs.setTraversalListener( listener );
 		final V vref = graph.vertexRef();
-		while ( !vertices.isEmpty() )
-		{
-			final int next = vertices.iterator().next();
-			final V v = idmap.getVertex( next, vref );
-			dfs.start( v );
-		}
+		final IdBitmap vertices = selection.selectedVertices;
+		for ( int id = vertices.nextSetBit( 0 ); id >= 0; id = vertices.nextSetBit( id + 1 ) )
+			if ( !verticesToSelect.get( id ) )
+				dfs.start( idmap.getVertex( id, vref ) );
 
-		// Iterate and prune over edge IDs.
 		final E eref = graph.edgeRef();
-		while ( !edges.isEmpty() )
-		{
-			final int next = edges.iterator().next();
-			final E e = idmap.getEdge( next, eref );
-			dfs.start( e.getSource( vref ) );
-		}
+		final IdBitmap edges = selection.selectedEdges;
+		for ( int id = edges.nextSetBit( 0 ); id >= 0; id = edges.nextSetBit( id + 1 ) )
+			if ( !edgesToSelect.get( id ) )
+				dfs.start( idmap.getEdge( id, eref ).getSource( vref ) );
 
 		graph.releaseRef( eref );
 		graph.releaseRef( vref );
@@ -278,14 +556,22 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable targetVertex( final SelectionVariable selection )
 	{
+		final Adjacency adjacency = adjacency();
+		if ( adjacency != null )
+		{
+			final BitSet vertices = new BitSet();
+			adjacency.endsOf( selection.selectedEdges, false, true, vertices );
+			return new SelectionVariable( vertices, new BitSet() );
+		}
+
 		final V ref = idmap.vertexIdBimap().createRef();
-		final BitSet targetVertices = new BitSet();
+		final IdBitmap targetVertices = IdBitmap.create();
 		final Iterator< E > it = selection.edgeIterator( idmap.edgeIdBimap() );
 		while ( it.hasNext() )
 			targetVertices.set( idmap.getVertexId( it.next().getTarget( ref ) ) );
 
 		idmap.vertexIdBimap().releaseRef( ref );
-		return new SelectionVariable( targetVertices, new BitSet() );
+		return new SelectionVariable( targetVertices, IdBitmap.create() );
 	}
 
 	/**
@@ -298,14 +584,22 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable sourceVertex( final SelectionVariable selection )
 	{
+		final Adjacency adjacency = adjacency();
+		if ( adjacency != null )
+		{
+			final BitSet vertices = new BitSet();
+			adjacency.endsOf( selection.selectedEdges, true, false, vertices );
+			return new SelectionVariable( vertices, new BitSet() );
+		}
+
 		final V ref = idmap.vertexIdBimap().createRef();
-		final BitSet sourceVertices = new BitSet();
+		final IdBitmap sourceVertices = IdBitmap.create();
 		final Iterator< E > it = selection.edgeIterator( idmap.edgeIdBimap() );
 		while ( it.hasNext() )
 			sourceVertices.set( idmap.getVertexId( it.next().getSource( ref ) ) );
 
 		idmap.vertexIdBimap().releaseRef( ref );
-		return new SelectionVariable( sourceVertices, new BitSet() );
+		return new SelectionVariable( sourceVertices, IdBitmap.create() );
 	}
 
 	/**
@@ -318,7 +612,15 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable outgoingEdges( final SelectionVariable selection )
 	{
-		final BitSet outgoingEdgeIds = new BitSet();
+		final Adjacency adjacency = adjacency();
+		if ( adjacency != null )
+		{
+			final BitSet edges = new BitSet();
+			adjacency.edgesOf( selection.selectedVertices, false, true, edges );
+			return new SelectionVariable( new BitSet(), edges );
+		}
+
+		final IdBitmap outgoingEdgeIds = IdBitmap.create();
 		final Iterator< V > it = selection.vertexIterator( idmap.vertexIdBimap() );
 		while ( it.hasNext() )
 		{
@@ -326,7 +628,7 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 			for ( final E e : v.outgoingEdges() )
 				outgoingEdgeIds.set( idmap.getEdgeId( e ) );
 		}
-		return new SelectionVariable( new BitSet(), outgoingEdgeIds );
+		return new SelectionVariable( IdBitmap.create(), outgoingEdgeIds );
 	}
 
 	/**
@@ -339,7 +641,15 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable incomingEdges( final SelectionVariable selection )
 	{
-		final BitSet incomingEdgeIds = new BitSet();
+		final Adjacency adjacency = adjacency();
+		if ( adjacency != null )
+		{
+			final BitSet edges = new BitSet();
+			adjacency.edgesOf( selection.selectedVertices, true, false, edges );
+			return new SelectionVariable( new BitSet(), edges );
+		}
+
+		final IdBitmap incomingEdgeIds = IdBitmap.create();
 		final Iterator< V > it = selection.vertexIterator( idmap.vertexIdBimap() );
 		while ( it.hasNext() )
 		{
@@ -347,7 +657,7 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 			for ( final E e : v.incomingEdges() )
 				incomingEdgeIds.set( idmap.getEdgeId( e ) );
 		}
-		return new SelectionVariable( new BitSet(), incomingEdgeIds );
+		return new SelectionVariable( IdBitmap.create(), incomingEdgeIds );
 	}
 
 	/**
@@ -360,9 +670,7 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable toVertex( final SelectionVariable selection )
 	{
-		final SelectionVariable copy = selection.copy();
-		copy.clearEdges();
-		return copy;
+		return new SelectionVariable( selection.selectedVertices.copy(), IdBitmap.create() );
 	}
 
 	/**
@@ -375,8 +683,6 @@ public class SelectionMorpher< V extends Vertex< E >, E extends Edge< V > >
 	 */
 	public SelectionVariable toEdge( final SelectionVariable selection )
 	{
-		final SelectionVariable copy = selection.copy();
-		copy.clearVertices();
-		return copy;
+		return new SelectionVariable( IdBitmap.create(), selection.selectedEdges.copy() );
 	}
 }
@@ -28,11 +28,12 @@
  */
 package org.mastodon.mamut.selectioncreator.evaluation;
 
+import java.util.AbstractCollection;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.Iterator;
 
 import org.mastodon.RefPool;
-import org.mastodon.collection.ref.RefArrayList;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.graph.ReadOnlyGraph;
@@ -45,9 +46,28 @@ import org.mastodon.model.SelectionModel;
 public class SelectionVariable
 {
 
-	final BitSet selectedVertices;
+	/**
+	 * The IDs of the selected vertices. Replaced by the in-place operations
+	 * when the result is better stored in another form.
+	 */
+	IdBitmap selectedVertices;
 
-	final BitSet selectedEdges;
+	/**
+	 * The IDs of the selected edges.
+	 */
+	IdBitmap selectedEdges;
+
+	/**
+	 * Whether the bitmaps are shared with another selection, and must be
+	 * copied before they are modified. A selection that is not shared is
+	 * confined to one thread. Shared selections are marked when they are
+	 * created, and a flag is only cleared by the selection that copies its
+	 * bitmaps, so that several threads can share the selections held by the
+	 * caches, which never modify them.
+	 */
+	private boolean sharedVertices;
+
+	private boolean sharedEdges;
 
 	/**
 	 * Empty selection variable.
@@ -59,8 +79,24 @@ public class SelectionVariable
 
 	SelectionVariable( final BitSet selectedVertices, final BitSet selectedEdges )
 	{
-		this.selectedVertices = selectedVertices;
-		this.selectedEdges = selectedEdges;
+		this( IdBitmap.of( selectedVertices ), IdBitmap.of( selectedEdges ) );
+	}
+
+	SelectionVariable( final IdBitmap selectedVertices, final IdBitmap selectedEdges )
+	{
+		this.selectedVertices = selectedVertices.optimize();
+		this.selectedEdges = selectedEdges.optimize();
+	}
+
+	/**
+	 * A selection sharing the specified bitmaps.
+	 */
+	private SelectionVariable( final SelectionVariable source )
+	{
+		this.selectedVertices = source.selectedVertices;
+		this.selectedEdges = source.selectedEdges;
+		this.sharedVertices = true;
+		this.sharedEdges = true;
 	}
 
 	/**
@@ -79,12 +115,12 @@ public class SelectionVariable
 	public static < V extends Vertex< E >, E extends Edge< V > > SelectionVariable fromSelectionModel( final SelectionModel< V, E > selectionModel, final GraphIdBimap< V, E > idmap )
 	{
 		// Vertices.
-		final BitSet sv = new BitSet();
+		final IdBitmap sv = IdBitmap.create();
 		for ( final V v : selectionModel.getSelectedVertices() )
 			sv.set( idmap.getVertexId( v ) );
 
 		// Edges.
-		final BitSet se = new BitSet();
+		final IdBitmap se = IdBitmap.create();
 		for ( final E e : selectionModel.getSelectedEdges() )
 			se.set( idmap.getEdgeId( e ) );
 
@@ -117,24 +153,61 @@ public class SelectionVariable
 		return new SelectionVariable( vs, es );
 	}
 
+	/**
+	 * Returns a new selection backed by the same bitmaps as this one. Both
+	 * selections copy the bitmaps before their first modification. A
+	 * selection that is already shared is not written to, so that it can be
+	 * shared by several threads.
+	 *
+	 * @return a new selection.
+	 */
+	public SelectionVariable share()
+	{
+		if ( !sharedVertices )
+			sharedVertices = true;
+		if ( !sharedEdges )
+			sharedEdges = true;
+		return new SelectionVariable( this );
+	}
+
+	private IdBitmap ownVertices()
+	{
+		if ( sharedVertices )
+		{
+			selectedVertices = selectedVertices.copy();
+			sharedVertices = false;
+		}
+		return selectedVertices;
+	}
+
+	private IdBitmap ownEdges()
+	{
+		if ( sharedEdges )
+		{
+			selectedEdges = selectedEdges.copy();
+			sharedEdges = false;
+		}
+		return selectedEdges;
+	}
+
 	public SelectionVariable inPlaceAdd( final SelectionVariable sv )
 	{
-		selectedVertices.or( sv.selectedVertices );
-		selectedEdges.or( sv.selectedEdges );
+		selectedVertices = ownVertices().or( sv.selectedVertices ).optimize();
+		selectedEdges = ownEdges().or( sv.selectedEdges ).optimize();
 		return this;
 	}
 
 	public SelectionVariable inPlaceSub( final SelectionVariable sv )
 	{
-		selectedVertices.andNot( sv.selectedVertices );
-		selectedEdges.andNot( sv.selectedEdges );
+		selectedVertices = ownVertices().andNot( sv.selectedVertices ).optimize();
+		selectedEdges = ownEdges().andNot( sv.selectedEdges ).optimize();
 		return this;
 	}
 
 	public SelectionVariable inPlaceAnd( final SelectionVariable sv )
 	{
-		selectedVertices.and( sv.selectedVertices );
-		selectedEdges.and( sv.selectedEdges );
+		selectedVertices = ownVertices().and( sv.selectedVertices ).optimize();
+		selectedEdges = ownEdges().and( sv.selectedEdges ).optimize();
 		return this;
 	}
 
@@ -144,19 +217,41 @@ public class SelectionVariable
 		return "Selection( " + selectedVertices.cardinality() + ", " + selectedEdges.cardinality() + " )";
 	}
 
+	public int vertexCount()
+	{
+		return selectedVertices.cardinality();
+	}
+
+	public int edgeCount()
+	{
+		return selectedEdges.cardinality();
+	}
+
 	public SelectionVariable copy()
 	{
-		return new SelectionVariable( ( BitSet ) selectedVertices.clone(), ( BitSet ) selectedEdges.clone() );
+		return new SelectionVariable( selectedVertices.copy(), selectedEdges.copy() );
 	}
 
 	public void clearVertices()
 	{
-		selectedVertices.clear();
+		if ( sharedVertices )
+		{
+			selectedVertices = IdBitmap.create();
+			sharedVertices = false;
+		}
+		else
+			selectedVertices.clear();
 	}
 
 	public void clearEdges()
 	{
-		selectedEdges.clear();
+		if ( sharedEdges )
+		{
+			selectedEdges = IdBitmap.create();
+			sharedEdges = false;
+		}
+		else
+			selectedEdges.clear();
 	}
 
 	/**
@@ -264,17 +359,87 @@ public class SelectionVariable
 	{
 		selectionModel.pauseListeners();
 		selectionModel.clearSelection();
+		selectionModel.setVerticesSelected( view( selectedVertices, graphIdBimap.vertexIdBimap() ), true );
+		selectionModel.setEdgesSelected( view( selectedEdges, graphIdBimap.edgeIdBimap() ), true );
+		selectionModel.resumeListeners();
+	}
 
-		final RefArrayList< V > vertices = new RefArrayList<>( graphIdBimap.vertexIdBimap(), selectedVertices.cardinality() );
-		for ( final V v : vertices( graphIdBimap.vertexIdBimap() ) )
-			vertices.add( v );
-
-		final RefArrayList< E > edges = new RefArrayList<>( graphIdBimap.edgeIdBimap(), selectedEdges.cardinality() );
-		for ( final E e : edges( graphIdBimap.edgeIdBimap() ) )
-			edges.add( e );
+	/**
+	 * Writes the content of this {@link SelectionVariable} into the specified
+	 * {@link SelectionModel}, knowing its current content. Only the objects
+	 * whose selection state differs are selected or deselected, so that the
+	 * views listening to the model have as little to update as possible.
+	 *
+	 * @param selectionModel
+	 *            the selection model.
+	 * @param graphIdBimap
+	 *            the graph ID map.
+	 * @param current
+	 *            the current content of the selection model.
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 */
+	public < V extends Vertex< E >, E extends Edge< V > > void toSelectionModel( final SelectionModel< V, E > selectionModel, final GraphIdBimap< V, E > graphIdBimap, final SelectionVariable current )
+	{
+		final IdBitmap toDeselectVertices = current.selectedVertices.copy().andNot( selectedVertices );
+		final IdBitmap toSelectVertices = selectedVertices.copy().andNot( current.selectedVertices );
+		final IdBitmap toDeselectEdges = current.selectedEdges.copy().andNot( selectedEdges );
+		final IdBitmap toSelectEdges = selectedEdges.copy().andNot( current.selectedEdges );
+		if ( toDeselectVertices.isEmpty() && toSelectVertices.isEmpty() && toDeselectEdges.isEmpty() && toSelectEdges.isEmpty() )
+			return;
 
-		selectionModel.setVerticesSelected( vertices, true );
-		selectionModel.setEdgesSelected( edges, true );
+		selectionModel.pauseListeners();
+		if ( !toDeselectEdges.isEmpty() )
+			selectionModel.setEdgesSelected( view( toDeselectEdges, graphIdBimap.edgeIdBimap() ), false );
+		if ( !toDeselectVertices.isEmpty() )
+			selectionModel.setVerticesSelected( view( toDeselectVertices, graphIdBimap.vertexIdBimap() ), false );
+		if ( !toSelectVertices.isEmpty() )
+			selectionModel.setVerticesSelected( view( toSelectVertices, graphIdBimap.vertexIdBimap() ), true );
+		if ( !toSelectEdges.isEmpty() )
+			selectionModel.setEdgesSelected( view( toSelectEdges, graphIdBimap.edgeIdBimap() ), true );
 		selectionModel.resumeListeners();
 	}
+
+	/**
+	 * Returns a read-only collection over the objects of the specified IDs.
+	 * The iterator reuses a single reference object, so the collection is
+	 * meant to be passed directly to bulk methods that copy the IDs.
+	 */
+	private static < O > Collection< O > view( final IdBitmap ids, final RefPool< O > pool )
+	{
+		final int size = ids.cardinality();
+		return new AbstractCollection< O >()
+		{
+
+			@Override
+			public Iterator< O > iterator()
+			{
+				final O ref = pool.createRef();
+				final BitSetIterator it = new BitSetIterator( ids );
+				return new Iterator< O >()
+				{
+
+					@Override
+					public boolean hasNext()
+					{
+						return it.hasNext();
+					}
+
+					@Override
+					public O next()
+					{
+						return pool.getObject( it.next(), ref );
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
 }
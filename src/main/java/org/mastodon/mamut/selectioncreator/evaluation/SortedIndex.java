@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+import org.mastodon.mamut.selectioncreator.evaluation.IntervalSet.Interval;
+
+/**
+ * The IDs of the objects of a {@link FeatureColumn}, sorted by value.
+ * <p>
+ * A range or equality comparison, and more generally each interval of an
+ * {@link IntervalSet}, maps onto a contiguous slice of the sorted values,
+ * found by binary search. Selecting the objects then costs
+ * <code>O(log n + k)</code> where <code>k</code> is the number of objects
+ * selected. Objects with a <code>NaN</code> value, including the ones for
+ * which the feature is not set, are not indexed: no range comparison accepts
+ * them.
+ */
+final class SortedIndex
+{
+
+	private static final int INSERTION_SORT_THRESHOLD = 32;
+
+	/**
+	 * The values, in increasing order.
+	 */
+	private final double[] values;
+
+	/**
+	 * The object IDs, in the order of their values.
+	 */
+	private final int[] ids;
+
+	/**
+	 * Sorts the values of a column.
+	 *
+	 * @param columnValues
+	 *            the values of the column, indexed by object ID.
+	 */
+	SortedIndex( final double[] columnValues )
+	{
+		int n = 0;
+		for ( final double v : columnValues )
+			if ( !Double.isNaN( v ) )
+				n++;
+		values = new double[ n ];
+		ids = new int[ n ];
+		int i = 0;
+		for ( int id = 0; id < columnValues.length; id++ )
+		{
+			final double v = columnValues[ id ];
+			if ( Double.isNaN( v ) )
+				continue;
+			values[ i ] = v;
+			ids[ i ] = id;
+			i++;
+		}
+		sort( values, ids, 0, n - 1 );
+	}
+
+	/**
+	 * Returns the number of indexed objects.
+	 *
+	 * @return the number of objects.
+	 */
+	int size()
+	{
+		return values.length;
+	}
+
+	/**
+	 * Adds to the target bitset the IDs of objects whose value is in the
+	 * specified intervals. One slice of the index is read per interval.
+	 *
+	 * @param intervals
+	 *            the intervals. Whether they accept <code>NaN</code> is
+	 *            ignored.
+	 * @param target
+	 *            the bitset to write to.
+	 */
+	void select( final IntervalSet intervals, final BitSet target )
+	{
+		for ( int k = 0; k < intervals.size(); k++ )
+		{
+			final Interval interval = intervals.get( k );
+			final int to = to( interval );
+			for ( int i = from( interval ); i < to; i++ )
+				target.set( ids[ i ] );
+		}
+	}
+
+	/**
+	 * Returns the number of objects whose value is in the specified intervals.
+	 *
+	 * @param intervals
+	 *            the intervals. Whether they accept <code>NaN</code> is
+	 *            ignored.
+	 * @return the number of objects.
+	 */
+	int count( final IntervalSet intervals )
+	{
+		int count = 0;
+		for ( int k = 0; k < intervals.size(); k++ )
+		{
+			final Interval interval = intervals.get( k );
+			count += Math.max( 0, to( interval ) - from( interval ) );
+		}
+		return count;
+	}
+
+	private int from( final Interval interval )
+	{
+		return interval.minOpen ? upperBound( interval.min ) : lowerBound( interval.min );
+	}
+
+	private int to( final Interval interval )
+	{
+		return interval.maxOpen ? lowerBound( interval.max ) : upperBound( interval.max );
+	}
+
+	/**
+	 * Index of the first value greater than or equal to x.
+	 */
+	private int lowerBound( final double x )
+	{
+		int lo = 0;
+		int hi = values.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( values[ mid ] < x )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Index of the first value strictly greater than x.
+	 */
+	private int upperBound( final double x )
+	{
+		int lo = 0;
+		int hi = values.length;
+		while ( lo < hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+			if ( values[ mid ] <= x )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Approximate memory footprint of this index, in bytes.
+	 *
+	 * @return the size in bytes.
+	 */
+	long bytes()
+	{
+		return 12l * values.length;
+	}
+
+	/**
+	 * Quicksort of the values, moving the IDs along. Recurses on the smaller
+	 * partition only, so the stack depth stays logarithmic.
+	 */
+	private static void sort( final double[] values, final int[] ids, int lo, int hi )
+	{
+		while ( hi - lo > INSERTION_SORT_THRESHOLD )
+		{
+			// Median of three as pivot.
+			final int mid = ( lo + hi ) >>> 1;
+			if ( values[ mid ] < values[ lo ] )
+				swap( values, ids, mid, lo );
+			if ( values[ hi ] < values[ lo ] )
+				swap( values, ids, hi, lo );
+			if ( values[ hi ] < values[ mid ] )
+				swap( values, ids, hi, mid );
+			final double pivot = values[ mid ];
+
+			int i = lo;
+			int j = hi;
+			while ( i <= j )
+			{
+				while ( values[ i ] < pivot )
+					i++;
+				while ( values[ j ] > pivot )
+					j--;
+				if ( i <= j )
+				{
+					swap( values, ids, i, j );
+					i++;
+					j--;
+				}
+			}
+
+			if ( j - lo < hi - i )
+			{
+				sort( values, ids, lo, j );
+				lo = i;
+			}
+			else
+			{
+				sort( values, ids, i, hi );
+				hi = j;
+			}
+		}
+
+		for ( int i = lo + 1; i <= hi; i++ )
+		{
+			final double v = values[ i ];
+			final int id = ids[ i ];
+			int j = i - 1;
+			while ( j >= lo && values[ j ] > v )
+			{
+				values[ j + 1 ] = values[ j ];
+				ids[ j + 1 ] = ids[ j ];
+				j--;
+			}
+			values[ j + 1 ] = v;
+			ids[ j + 1 ] = id;
+		}
+	}
+
+	private static void swap( final double[] values, final int[] ids, final int i, final int j )
+	{
+		final double v = values[ i ];
+		values[ i ] = values[ j ];
+		values[ j ] = v;
+		final int id = ids[ i ];
+		ids[ i ] = ids[ j ];
+		ids[ j ] = id;
+	}
+}
@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+
+import org.mastodon.RefPool;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Leaf operator that accepts the objects according to the tag they have in a
+ * tag-set.
+ *
+ * @param <O>
+ *            the type of objects tagged.
+ */
+class TagComparisonOperator< O > extends BlockOperator
+{
+
+	/**
+	 * The tests that can be made on the tag of an object.
+	 */
+	enum TagTest
+	{
+		/**
+		 * The object has the tag.
+		 */
+		EQUAL,
+		/**
+		 * The object does not have the tag, or is not tagged.
+		 */
+		NOT_EQUAL,
+		/**
+		 * The object has any tag in the tag-set.
+		 */
+		SET,
+		/**
+		 * The object has no tag in the tag-set.
+		 */
+		UNSET;
+	}
+
+	final AbstractTagSetVariable< O > variable;
+
+	final TagSet tagSet;
+
+	final ObjTagMap< O, Tag > tags;
+
+	final RefPool< O > idMap;
+
+	final ObjectKind kind;
+
+	final TagTest tagTest;
+
+	final Tag tag;
+
+	/**
+	 * Creates a new tag operator.
+	 *
+	 * @param variable
+	 *            the tag-set variable, for vertices or for edges.
+	 * @param tagTest
+	 *            the test to perform.
+	 * @param tag
+	 *            the tag to compare with. Ignored for {@link TagTest#SET} and
+	 *            {@link TagTest#UNSET}.
+	 */
+	TagComparisonOperator(
+			final AbstractTagSetVariable< O > variable,
+			final TagTest tagTest,
+			final Tag tag )
+	{
+		this.variable = variable;
+		this.tagSet = variable.getTagSet();
+		this.tags = variable.tags;
+		this.idMap = variable.idMap;
+		this.kind = variable.kind();
+		this.tagTest = tagTest;
+		this.tag = tag;
+	}
+
+	@Override
+	void test( final IdBlock block, final long[] in, final long[] out )
+	{
+		if ( block.kind != kind )
+		{
+			for ( int w = 0; w < out.length; w++ )
+				out[ w ] = 0l;
+			return;
+		}
+
+		// Build an index only if a good part of all the objects reach us.
+		TagIndex index = variable.index( false );
+		if ( index == null && block.scan && 4 * IdBlock.cardinality( in ) >= block.size )
+			index = variable.index( true );
+		if ( index != null )
+		{
+			for ( int w = 0; w < in.length; w++ )
+			{
+				long word = in[ w ];
+				long accepted = 0l;
+				while ( word != 0l )
+				{
+					final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+					word &= word - 1;
+					if ( index.test( block.ids[ i ], tagTest, tag ) )
+						accepted |= 1l << i;
+				}
+				out[ w ] = accepted;
+			}
+			return;
+		}
+
+		final O ref = idMap.createRef();
+		for ( int w = 0; w < in.length; w++ )
+		{
+			long word = in[ w ];
+			long accepted = 0l;
+			while ( word != 0l )
+			{
+				final int i = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+				word &= word - 1;
+				final Tag t = tags.get( idMap.getObject( block.ids[ i ], ref ) );
+				if ( accept( t ) )
+					accepted |= 1l << i;
+			}
+			out[ w ] = accepted;
+		}
+		idMap.releaseRef( ref );
+	}
+
+	@Override
+	BitSet candidates( final BlockExecutor< ?, ? >.Execution execution, final ObjectKind kind )
+	{
+		if ( kind != this.kind )
+			return new BitSet();
+		// 'not equal' and 'unset' accept most objects, scan them instead.
+		if ( tagTest == TagTest.NOT_EQUAL || tagTest == TagTest.UNSET )
+			return null;
+		final TagIndex index = variable.index( true );
+		if ( index == null )
+			return null;
+		return index.select( tagTest, tag, null );
+	}
+
+	@Override
+	double selectivity( final QueryPlanner planner, final ObjectKind kind )
+	{
+		if ( kind != this.kind )
+			return 0.;
+		final TagIndex index = variable.index( false );
+		if ( index != null )
+			return index.size() == 0 ? 0. : ( double ) index.count( tagTest, tag ) / index.size();
+
+		// Without an index, assume the objects are evenly spread over the
+		// tags and the untagged state.
+		final double share = 1. / ( tagSet.getTags().size() + 1 );
+		return ( tagTest == TagTest.EQUAL || tagTest == TagTest.UNSET ) ? share : 1. - share;
+	}
+
+	@Override
+	String access()
+	{
+		return variable.index( false ) != null ? "tag index" : "tag map";
+	}
+
+	/**
+	 * Mastodon notifies a graph change after objects are tagged, but does not
+	 * say which ones.
+	 */
+	@Override
+	public boolean isTracked()
+	{
+		return false;
+	}
+
+	private boolean accept( final Tag t )
+	{
+		switch ( tagTest )
+		{
+		case EQUAL:
+			return tag.equals( t );
+		case NOT_EQUAL:
+			return !tag.equals( t );
+		case SET:
+			return t != null;
+		case UNSET:
+			return t == null;
+		default:
+			throw new IllegalArgumentException( "Unknown tag test: " + tagTest );
+		}
+	}
+
+	@Override
+	boolean accepts( final ObjectKind kind )
+	{
+		return this.kind == kind;
+	}
+
+	@Override
+	public String toString()
+	{
+		final String str = ( kind == ObjectKind.VERTEX ? "VertexTagSet( " : "EdgeTagSet( " ) + tagSet.getName();
+		switch ( tagTest )
+		{
+		case EQUAL:
+			return str + " == " + tag.label() + " )";
+		case NOT_EQUAL:
+			return str + " != " + tag.label() + " )";
+		case SET:
+			return str + " is set )";
+		case UNSET:
+		default:
+			return str + " is not set )";
+		}
+	}
+}
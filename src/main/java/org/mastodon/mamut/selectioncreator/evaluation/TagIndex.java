@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.mastodon.RefPool;
+import org.mastodon.mamut.selectioncreator.evaluation.TagComparisonOperator.TagTest;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * An inverted index of the tags of one tag-set, for vertices or for edges.
+ * It stores the IDs of the objects tagged with each tag, of the objects
+ * tagged with any tag, and of all the objects of the graph.
+ * <p>
+ * All the tag tests then become bitset operations: 'equal' and 'set' read one
+ * bitset, 'not equal' and 'unset' subtract it from all the objects, and tests
+ * restricted to a domain intersect it with the domain, 64 objects at a time.
+ */
+final class TagIndex
+{
+
+	private static final BitSet EMPTY = new BitSet();
+
+	/**
+	 * The IDs of the objects tagged with each tag.
+	 */
+	private final Map< Tag, BitSet > tagged;
+
+	/**
+	 * The IDs of the objects tagged with any tag of the tag-set.
+	 */
+	private final BitSet any;
+
+	/**
+	 * The IDs of all the objects.
+	 */
+	private final BitSet all;
+
+	/**
+	 * The tag-set version this index was built at.
+	 */
+	final long tagsVersion;
+
+	/**
+	 * The graph version this index was built at.
+	 */
+	final long graphVersion;
+
+	private TagIndex( final Map< Tag, BitSet > tagged, final BitSet any, final BitSet all, final long tagsVersion, final long graphVersion )
+	{
+		this.tagged = tagged;
+		this.any = any;
+		this.all = all;
+		this.tagsVersion = tagsVersion;
+		this.graphVersion = graphVersion;
+	}
+
+	/**
+	 * Indexes the tags of the specified objects.
+	 *
+	 * @param tagSet
+	 *            the tag-set.
+	 * @param tags
+	 *            the object tags in this tag-set.
+	 * @param objects
+	 *            all the objects that can be tagged.
+	 * @param idMap
+	 *            the map from objects to their IDs.
+	 * @param version
+	 *            the current model version.
+	 * @return a new index.
+	 */
+	static < O > TagIndex build( final TagSet tagSet, final ObjTagMap< O, Tag > tags, final Iterable< O > objects, final RefPool< O > idMap, final ModelVersion version )
+	{
+		// Read versions first: a change during the build makes it stale.
+		final long tagsVersion = version.tags();
+		final long graphVersion = version.graph();
+		final BitSet all = new BitSet();
+		for ( final O o : objects )
+			all.set( idMap.getId( o ) );
+
+		final Map< Tag, BitSet > tagged = new IdentityHashMap<>();
+		final BitSet any = new BitSet();
+		for ( final Tag tag : tagSet.getTags() )
+		{
+			final BitSet bitset = new BitSet();
+			for ( final O o : tags.getTaggedWith( tag ) )
+				bitset.set( idMap.getId( o ) );
+			bitset.and( all );
+			tagged.put( tag, bitset );
+			any.or( bitset );
+		}
+		return new TagIndex( tagged, any, all, tagsVersion, graphVersion );
+	}
+
+	/**
+	 * Returns <code>true</code> if the model did not change since this index
+	 * was built.
+	 *
+	 * @param version
+	 *            the current model version.
+	 * @return whether this index is still valid.
+	 */
+	boolean isCurrent( final ModelVersion version )
+	{
+		return tagsVersion == version.tags() && graphVersion == version.graph();
+	}
+
+	/**
+	 * Returns the IDs of the objects that pass a tag test.
+	 *
+	 * @param tagTest
+	 *            the test.
+	 * @param tag
+	 *            the tag to compare with, ignored for {@link TagTest#SET} and
+	 *            {@link TagTest#UNSET}.
+	 * @param domain
+	 *            the IDs to test, or <code>null</code> to test all the
+	 *            objects.
+	 * @return a new bitset.
+	 */
+	BitSet select( final TagTest tagTest, final Tag tag, final BitSet domain )
+	{
+		final BitSet bitset = ( BitSet ) ( domain == null ? all : domain ).clone();
+		switch ( tagTest )
+		{
+		case EQUAL:
+			bitset.and( bits( tag ) );
+			break;
+		case NOT_EQUAL:
+			bitset.andNot( bits( tag ) );
+			break;
+		case SET:
+			bitset.and( any );
+			break;
+		case UNSET:
+			bitset.andNot( any );
+			break;
+		default:
+			throw new IllegalArgumentException( "Unknown tag test: " + tagTest );
+		}
+		return bitset;
+	}
+
+	/**
+	 * Tests one object.
+	 *
+	 * @param id
+	 *            the ID of an object of the graph.
+	 * @param tagTest
+	 *            the test.
+	 * @param tag
+	 *            the tag to compare with, ignored for {@link TagTest#SET} and
+	 *            {@link TagTest#UNSET}.
+	 * @return whether the object passes the test.
+	 */
+	boolean test( final int id, final TagTest tagTest, final Tag tag )
+	{
+		switch ( tagTest )
+		{
+		case EQUAL:
+			return bits( tag ).get( id );
+		case NOT_EQUAL:
+			return !bits( tag ).get( id );
+		case SET:
+			return any.get( id );
+		case UNSET:
+			return !any.get( id );
+		default:
+			throw new IllegalArgumentException( "Unknown tag test: " + tagTest );
+		}
+	}
+
+	/**
+	 * Returns the number of objects that pass a tag test.
+	 *
+	 * @param tagTest
+	 *            the test.
+	 * @param tag
+	 *            the tag to compare with, ignored for {@link TagTest#SET} and
+	 *            {@link TagTest#UNSET}.
+	 * @return the number of objects.
+	 */
+	int count( final TagTest tagTest, final Tag tag )
+	{
+		switch ( tagTest )
+		{
+		case EQUAL:
+			return bits( tag ).cardinality();
+		case NOT_EQUAL:
+			return all.cardinality() - bits( tag ).cardinality();
+		case SET:
+			return any.cardinality();
+		case UNSET:
+			return all.cardinality() - any.cardinality();
+		default:
+			throw new IllegalArgumentException( "Unknown tag test: " + tagTest );
+		}
+	}
+
+	/**
+	 * Returns the number of indexed objects.
+	 *
+	 * @return the number of objects.
+	 */
+	int size()
+	{
+		return all.cardinality();
+	}
+
+	private BitSet bits( final Tag tag )
+	{
+		final BitSet bitset = tagged.get( tag );
+		return bitset == null ? EMPTY : bitset;
+	}
+
+	/**
+	 * Approximate memory footprint of this index, in bytes.
+	 *
+	 * @return the size in bytes.
+	 */
+	long bytes()
+	{
+		long bytes = ( any.size() + all.size() ) / 8;
+		for ( final BitSet bitset : tagged.values() )
+			bytes += bitset.size() / 8;
+		return bytes;
+	}
+}
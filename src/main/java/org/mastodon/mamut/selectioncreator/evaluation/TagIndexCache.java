@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mastodon.RefPool;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Caches an inverted {@link TagIndex} for the tag-sets used in expressions, so
+ * that tag tests become bitset operations.
+ * <p>
+ * An index is built the first time a tag-set is tested over the whole graph,
+ * and rebuilt when the {@link ModelVersion} says that the tag-set structure or
+ * the graph changed. Mastodon notifies a graph change after objects are
+ * tagged, but does not say which ones, so the index is rebuilt as a whole.
+ * Tests restricted to a small domain use an index if there is a valid one,
+ * but never build one.
+ * <p>
+ * The cache can be used concurrently by several threads.
+ */
+public class TagIndexCache
+{
+
+	private final ModelVersion version;
+
+	private final Map< ObjTagMap< ?, Tag >, TagIndex > indices = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param version
+	 *            the version of the model the indices are built from.
+	 */
+	public TagIndexCache( final ModelVersion version )
+	{
+		this.version = version;
+	}
+
+	/**
+	 * Returns a valid index for the specified object tags, building it if
+	 * needed.
+	 */
+	< O > TagIndex get( final TagSet tagSet, final ObjTagMap< O, Tag > tags, final Iterable< O > objects, final RefPool< O > idMap )
+	{
+		// Drop the indices of tag-sets that may not exist anymore.
+		indices.values().removeIf( index -> !index.isCurrent( version ) );
+		return indices.compute( tags, ( k, index ) -> ( index != null && index.isCurrent( version ) )
+				? index
+				: TagIndex.build( tagSet, tags, objects, idMap, version ) );
+	}
+
+	/**
+	 * Returns a valid index for the specified object tags, or
+	 * <code>null</code> if there is none.
+	 */
+	TagIndex getIfPresent( final ObjTagMap< ?, Tag > tags )
+	{
+		final TagIndex index = indices.get( tags );
+		return ( index != null && index.isCurrent( version ) ) ? index : null;
+	}
+
+	/**
+	 * Returns the version of the model the indices are built from.
+	 *
+	 * @return the model version.
+	 */
+	public ModelVersion version()
+	{
+		return version;
+	}
+
+	/**
+	 * Removes all the indices from the cache.
+	 */
+	public void clear()
+	{
+		indices.clear();
+	}
+}
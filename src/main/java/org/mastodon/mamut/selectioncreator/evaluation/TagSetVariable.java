@@ -42,6 +42,20 @@ public interface TagSetVariable
 
 	public SelectionVariable set();
 
+	/*
+	 * Tests restricted to a domain. Objects outside the domain are not tested
+	 * and are never part of the result. A null domain stands for the whole
+	 * graph.
+	 */
+
+	public SelectionVariable equal( Tag tag, SelectionVariable domain );
+
+	public SelectionVariable notEqual( Tag tag, SelectionVariable domain );
+
+	public SelectionVariable unset( SelectionVariable domain );
+
+	public SelectionVariable set( SelectionVariable domain );
+
 	public TagSet getTagSet();
 
 }
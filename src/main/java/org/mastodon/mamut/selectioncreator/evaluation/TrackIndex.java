@@ -0,0 +1,831 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.graph.ListenableReadOnlyGraph;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * An index of the tracks of the graph, that is of its connected components
+ * when edges are followed in both directions.
+ * <p>
+ * It stores the component of each vertex and of each edge, and the member IDs
+ * of each component. Selecting the whole tracks of a selection then amounts to
+ * reading the components of the selected objects and concatenating their
+ * members, without traversing the graph.
+ * <p>
+ * The index is built by {@link #build()}, or else the first time it is
+ * queried, with a concurrent union-find over the edges that runs in the common
+ * fork-join pool. If the graph is a {@link ListenableReadOnlyGraph}, it is
+ * then kept up to date as vertices and edges are added and removed, until
+ * {@link #close()} is called:
+ * <ul>
+ * <li>adding an edge merges the components of its ends, relabeling the
+ * members of the smaller one;
+ * <li>removing an edge searches the graph from both its ends at the same
+ * pace, until the searches meet or one of them runs out. In the latter case,
+ * the side it explored becomes a new component. The cost is proportional to
+ * the smaller side, not to the whole track;
+ * <li>removing a vertex removes its edges one by one first.
+ * </ul>
+ * When the graph notifies that it was rebuilt, the index is dropped and built
+ * again on the next query. Indices over graphs that cannot be listened to, and
+ * closed indices, are rebuilt on every query.
+ * <p>
+ * The index can be used concurrently by several threads.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class TrackIndex< V extends Vertex< E >, E extends Edge< V > >
+{
+
+	private final ReadOnlyGraph< V, E > graph;
+
+	private final GraphIdBimap< V, E > idmap;
+
+	private final Listener listener;
+
+	private boolean listening;
+
+	/**
+	 * Whether the index reflects the current graph.
+	 */
+	private boolean built;
+
+	/**
+	 * The component of each vertex ID, <code>-1</code> for unused IDs.
+	 */
+	private int[] vertexLabels = new int[ 0 ];
+
+	/**
+	 * The component of each edge ID, <code>-1</code> for unused IDs.
+	 */
+	private int[] edgeLabels = new int[ 0 ];
+
+	/**
+	 * The position of each vertex ID in the members of its component.
+	 */
+	private int[] vertexPositions = new int[ 0 ];
+
+	private int[] edgePositions = new int[ 0 ];
+
+	/**
+	 * The components, indexed by label. <code>null</code> for free labels.
+	 */
+	private final List< Component > components = new ArrayList<>();
+
+	private final TIntArrayList freeLabels = new TIntArrayList();
+
+	/**
+	 * Marks of the vertices visited by the split searches, compared to
+	 * {@link #stamp}.
+	 */
+	private int[] marks = new int[ 0 ];
+
+	private int stamp;
+
+	private int builds;
+
+	private long buildTime;
+
+	/**
+	 * Min number of items in a chunk of the parallel build.
+	 */
+	private static final int MIN_CHUNK = 1 << 14;
+
+	/**
+	 * Creates an index of the tracks of the specified graph.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param idmap
+	 *            the graph ID bimap.
+	 */
+	public TrackIndex( final ReadOnlyGraph< V, E > graph, final GraphIdBimap< V, E > idmap )
+	{
+		this.graph = graph;
+		this.idmap = idmap;
+		this.listening = graph instanceof ListenableReadOnlyGraph;
+		this.listener = new Listener();
+		if ( listening )
+			( ( ListenableReadOnlyGraph< V, E > ) graph ).addGraphListener( listener );
+	}
+
+	/**
+	 * Builds the index if it does not reflect the current graph, so that the
+	 * next query does not have to.
+	 */
+	public synchronized void build()
+	{
+		if ( !built || !listening )
+			buildLabels();
+	}
+
+	/**
+	 * Stops listening to the graph. The index is rebuilt on every query
+	 * afterwards.
+	 */
+	public synchronized void close()
+	{
+		if ( listening )
+			( ( ListenableReadOnlyGraph< V, E > ) graph ).removeGraphListener( listener );
+		listening = false;
+		built = false;
+	}
+
+	/**
+	 * Returns the selection that includes all the vertices and edges of the
+	 * tracks to which the specified selection belongs.
+	 *
+	 * @param selection
+	 *            the source selection.
+	 * @return a new selection.
+	 */
+	public synchronized SelectionVariable wholeTrack( final SelectionVariable selection )
+	{
+		build();
+
+		final BitSet marked = new BitSet();
+		mark( selection.selectedVertices, vertexLabels, marked );
+		mark( selection.selectedEdges, edgeLabels, marked );
+		int nv = 0;
+		int ne = 0;
+		for ( int c = marked.nextSetBit( 0 ); c >= 0; c = marked.nextSetBit( c + 1 ) )
+		{
+			nv += components.get( c ).vertices.size;
+			ne += components.get( c ).edges.size;
+		}
+		final IdBitmap vertices = bitmap( nv, vertexLabels.length );
+		final IdBitmap edges = bitmap( ne, edgeLabels.length );
+		for ( int c = marked.nextSetBit( 0 ); c >= 0; c = marked.nextSetBit( c + 1 ) )
+		{
+			components.get( c ).vertices.addTo( vertices );
+			components.get( c ).edges.addTo( edges );
+		}
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns the number of tracks.
+	 *
+	 * @return the number of connected components.
+	 */
+	public synchronized int size()
+	{
+		build();
+		return components.size() - freeLabels.size();
+	}
+
+	private static void mark( final IdBitmap ids, final int[] labels, final BitSet marked )
+	{
+		for ( int id = ids.nextSetBit( 0 ); id >= 0 && id < labels.length; id = ids.nextSetBit( id + 1 ) )
+			if ( labels[ id ] >= 0 )
+				marked.set( labels[ id ] );
+	}
+
+	private static IdBitmap bitmap( final int size, final int range )
+	{
+		// Write large results straight into a bitset.
+		return ( 16l * size > range ) ? new BitSetIdBitmap( new BitSet( range ) ) : IdBitmap.create();
+	}
+
+	/*
+	 * BUILD.
+	 */
+
+	private void buildLabels()
+	{
+		final long start = System.nanoTime();
+
+		// Read the ends of all the edges at once. Pools are only iterable
+		// sequentially, so this is the only pass that is not parallel.
+		final int nv = graph.vertices().size();
+		final int[] vertexIds = new int[ nv ];
+		int maxVertexId = -1;
+		int i = 0;
+		for ( final V v : graph.vertices() )
+		{
+			final int id = idmap.getVertexId( v );
+			vertexIds[ i++ ] = id;
+			maxVertexId = Math.max( maxVertexId, id );
+		}
+		final int ne = graph.edges().size();
+		final int[] edgeIds = new int[ ne ];
+		final int[] sources = new int[ ne ];
+		final int[] targets = new int[ ne ];
+		int maxEdgeId = -1;
+		i = 0;
+		final V ref = graph.vertexRef();
+		for ( final E e : graph.edges() )
+		{
+			final int id = idmap.getEdgeId( e );
+			edgeIds[ i ] = id;
+			sources[ i ] = idmap.getVertexId( e.getSource( ref ) );
+			targets[ i ] = idmap.getVertexId( e.getTarget( ref ) );
+			maxEdgeId = Math.max( maxEdgeId, id );
+			i++;
+		}
+		graph.releaseRef( ref );
+
+		// Concurrent union-find over the edges.
+		final AtomicIntegerArray parents = new AtomicIntegerArray( maxVertexId + 1 );
+		forEachChunk( nv, ( from, to ) -> {
+			for ( int k = from; k < to; k++ )
+				parents.set( vertexIds[ k ], vertexIds[ k ] );
+		} );
+		forEachChunk( ne, ( from, to ) -> {
+			for ( int k = from; k < to; k++ )
+				union( parents, sources[ k ], targets[ k ] );
+		} );
+
+		// Label the roots, chunk after chunk, then the other vertices.
+		final int[] labels = new int[ maxVertexId + 1 ];
+		Arrays.fill( labels, -1 );
+		final int chunks = chunks( nv );
+		final int[] offsets = new int[ chunks + 1 ];
+		forEachChunk( nv, chunks, ( c, from, to ) -> {
+			int roots = 0;
+			for ( int k = from; k < to; k++ )
+				if ( parents.get( vertexIds[ k ] ) == vertexIds[ k ] )
+					roots++;
+			offsets[ c + 1 ] = roots;
+		} );
+		for ( int c = 0; c < chunks; c++ )
+			offsets[ c + 1 ] += offsets[ c ];
+		forEachChunk( nv, chunks, ( c, from, to ) -> {
+			int label = offsets[ c ];
+			for ( int k = from; k < to; k++ )
+				if ( parents.get( vertexIds[ k ] ) == vertexIds[ k ] )
+					labels[ vertexIds[ k ] ] = label++;
+		} );
+		forEachChunk( nv, ( from, to ) -> {
+			for ( int k = from; k < to; k++ )
+				labels[ vertexIds[ k ] ] = labels[ find( parents, vertexIds[ k ] ) ];
+		} );
+		final int[] elabels = new int[ maxEdgeId + 1 ];
+		Arrays.fill( elabels, -1 );
+		forEachChunk( ne, ( from, to ) -> {
+			for ( int k = from; k < to; k++ )
+				elabels[ edgeIds[ k ] ] = labels[ sources[ k ] ];
+		} );
+
+		// Members, in arrays of the exact size.
+		final int nc = offsets[ chunks ];
+		final int[] vertexCounts = new int[ nc ];
+		final int[] edgeCounts = new int[ nc ];
+		for ( final int id : vertexIds )
+			vertexCounts[ labels[ id ] ]++;
+		for ( final int id : edgeIds )
+			edgeCounts[ elabels[ id ] ]++;
+		components.clear();
+		freeLabels.clear();
+		for ( int c = 0; c < nc; c++ )
+			components.add( new Component( vertexCounts[ c ], edgeCounts[ c ] ) );
+		vertexLabels = labels;
+		vertexPositions = new int[ maxVertexId + 1 ];
+		for ( final int id : vertexIds )
+			vertexPositions[ id ] = components.get( labels[ id ] ).vertices.add( id );
+		edgeLabels = elabels;
+		edgePositions = new int[ maxEdgeId + 1 ];
+		for ( final int id : edgeIds )
+			edgePositions[ id ] = components.get( elabels[ id ] ).edges.add( id );
+		marks = new int[ maxVertexId + 1 ];
+		stamp = 0;
+
+		built = true;
+		builds++;
+		buildTime = ( System.nanoTime() - start ) / 1_000_000;
+	}
+
+	/**
+	 * Returns the root of a vertex, halving the path to it on the way.
+	 * Parents always have smaller IDs than their children, so concurrent
+	 * updates cannot create cycles.
+	 */
+	private static int find( final AtomicIntegerArray parents, final int id )
+	{
+		int i = id;
+		while ( true )
+		{
+			final int parent = parents.get( i );
+			if ( parent == i )
+				return i;
+			final int grandParent = parents.get( parent );
+			if ( grandParent != parent )
+				parents.compareAndSet( i, parent, grandParent );
+			i = grandParent;
+		}
+	}
+
+	/**
+	 * Joins the sets of two vertices, below the smallest of their roots. Each
+	 * root is thus the smallest ID of its set.
+	 */
+	private static void union( final AtomicIntegerArray parents, final int a, final int b )
+	{
+		while ( true )
+		{
+			final int ra = find( parents, a );
+			final int rb = find( parents, b );
+			if ( ra == rb )
+				return;
+			final int low = Math.min( ra, rb );
+			final int high = Math.max( ra, rb );
+			// Fails if another thread linked 'high' meanwhile; try again.
+			if ( parents.compareAndSet( high, high, low ) )
+				return;
+		}
+	}
+
+	/**
+	 * Returns the number of chunks to split <code>n</code> items in, a few per
+	 * worker thread, and not smaller than {@link #MIN_CHUNK}.
+	 */
+	private static int chunks( final int n )
+	{
+		return Math.max( 1, Math.min( 4 * ForkJoinPool.getCommonPoolParallelism(), n / MIN_CHUNK ) );
+	}
+
+	private static void forEachChunk( final int n, final RangeTask task )
+	{
+		forEachChunk( n, chunks( n ), ( c, from, to ) -> task.run( from, to ) );
+	}
+
+	/**
+	 * Runs a task over contiguous chunks of <code>n</code> items, in the
+	 * common fork-join pool.
+	 */
+	private static void forEachChunk( final int n, final int chunks, final ChunkTask task )
+	{
+		IntStream.range( 0, chunks ).parallel().forEach( c -> task.run( c,
+				( int ) ( ( long ) n * c / chunks ),
+				( int ) ( ( long ) n * ( c + 1 ) / chunks ) ) );
+	}
+
+	@FunctionalInterface
+	private interface RangeTask
+	{
+		void run( int from, int to );
+	}
+
+	@FunctionalInterface
+	private interface ChunkTask
+	{
+		void run( int chunk, int from, int to );
+	}
+
+	/**
+	 * Returns how many times the index was built from scratch. Incremental
+	 * updates do not count.
+	 *
+	 * @return the number of builds.
+	 */
+	public synchronized int getBuildCount()
+	{
+		return builds;
+	}
+
+	/**
+	 * Returns the duration of the last build.
+	 *
+	 * @return a duration in milliseconds, <code>0</code> if the index was
+	 *         never built.
+	 */
+	public synchronized long getBuildTime()
+	{
+		return buildTime;
+	}
+
+	/*
+	 * INCREMENTAL UPDATES.
+	 */
+
+	private synchronized void vertexAdded( final int id )
+	{
+		if ( !built )
+			return;
+		if ( id >= vertexLabels.length )
+		{
+			final int length = Math.max( id + 1, 2 * vertexLabels.length );
+			final int from = vertexLabels.length;
+			vertexLabels = Arrays.copyOf( vertexLabels, length );
+			Arrays.fill( vertexLabels, from, length, -1 );
+			vertexPositions = Arrays.copyOf( vertexPositions, length );
+			marks = Arrays.copyOf( marks, length );
+		}
+		if ( vertexLabels[ id ] >= 0 )
+			return;
+		final int label = newComponent();
+		vertexLabels[ id ] = label;
+		vertexPositions[ id ] = components.get( label ).vertices.add( id );
+	}
+
+	private synchronized void edgeAdded( final int id, final int source, final int target )
+	{
+		if ( !built )
+			return;
+		if ( id >= edgeLabels.length )
+		{
+			final int length = Math.max( id + 1, 2 * edgeLabels.length );
+			final int from = edgeLabels.length;
+			edgeLabels = Arrays.copyOf( edgeLabels, length );
+			Arrays.fill( edgeLabels, from, length, -1 );
+			edgePositions = Arrays.copyOf( edgePositions, length );
+		}
+		if ( edgeLabels[ id ] >= 0 )
+			return;
+		// Ends we do not know of: give up on incremental updates.
+		if ( source >= vertexLabels.length || target >= vertexLabels.length
+				|| vertexLabels[ source ] < 0 || vertexLabels[ target ] < 0 )
+		{
+			built = false;
+			return;
+		}
+
+		int label = vertexLabels[ source ];
+		final int other = vertexLabels[ target ];
+		if ( other != label )
+		{
+			// Relabel the members of the smaller component.
+			final boolean keep = components.get( label ).size() >= components.get( other ).size();
+			final int from = keep ? other : label;
+			label = keep ? label : other;
+			merge( from, label );
+		}
+		edgeLabels[ id ] = label;
+		edgePositions[ id ] = components.get( label ).edges.add( id );
+	}
+
+	/**
+	 * Called before the edge is removed from the graph.
+	 */
+	private synchronized void edgeRemoved( final int id, final int source, final int target )
+	{
+		if ( !built || id >= edgeLabels.length || edgeLabels[ id ] < 0 )
+			return;
+		removeEdge( id );
+		if ( source != target )
+			split( source, target );
+	}
+
+	/**
+	 * Called before the vertex is removed from the graph, possibly with its
+	 * edges.
+	 */
+	private synchronized void vertexRemoved( final V vertex )
+	{
+		if ( !built )
+			return;
+		final int id = idmap.getVertexId( vertex );
+		if ( id >= vertexLabels.length || vertexLabels[ id ] < 0 )
+			return;
+
+		final TIntArrayList edges = new TIntArrayList();
+		final TIntArrayList others = new TIntArrayList();
+		final V ref = graph.vertexRef();
+		for ( final E e : vertex.edges() )
+		{
+			final int eid = idmap.getEdgeId( e );
+			if ( eid >= edgeLabels.length || edgeLabels[ eid ] < 0 )
+				continue;
+			edges.add( eid );
+			final int source = idmap.getVertexId( e.getSource( ref ) );
+			others.add( source == id ? idmap.getVertexId( e.getTarget( ref ) ) : source );
+		}
+		graph.releaseRef( ref );
+		for ( int i = 0; i < edges.size(); i++ )
+			edgeRemoved( edges.get( i ), id, others.get( i ) );
+
+		final int label = vertexLabels[ id ];
+		components.get( label ).vertices.remove( vertexPositions[ id ], vertexPositions );
+		vertexLabels[ id ] = -1;
+		freeIfEmpty( label );
+	}
+
+	private void removeEdge( final int id )
+	{
+		final int label = edgeLabels[ id ];
+		components.get( label ).edges.remove( edgePositions[ id ], edgePositions );
+		edgeLabels[ id ] = -1;
+	}
+
+	/**
+	 * Checks whether two vertices of the same component are still connected
+	 * after an edge between them was removed, and moves the side of the
+	 * smaller one to a new component if not.
+	 */
+	private void split( final int a, final int b )
+	{
+		if ( stamp > Integer.MAX_VALUE - 2 )
+		{
+			Arrays.fill( marks, 0 );
+			stamp = 0;
+		}
+		final int sa = ++stamp;
+		final int sb = ++stamp;
+		final TIntArrayList qa = new TIntArrayList();
+		final TIntArrayList qb = new TIntArrayList();
+		qa.add( a );
+		qb.add( b );
+		marks[ a ] = sa;
+		marks[ b ] = sb;
+
+		final V vref = graph.vertexRef();
+		final V oref = graph.vertexRef();
+		try
+		{
+			int ha = 0;
+			int hb = 0;
+			while ( true )
+			{
+				if ( ha == qa.size() )
+				{
+					detach( qa, vref, oref );
+					return;
+				}
+				if ( hb == qb.size() )
+				{
+					detach( qb, vref, oref );
+					return;
+				}
+				if ( expand( qa.get( ha++ ), qa, sa, sb, vref, oref ) || expand( qb.get( hb++ ), qb, sb, sa, vref, oref ) )
+					return;
+			}
+		}
+		finally
+		{
+			graph.releaseRef( oref );
+			graph.releaseRef( vref );
+		}
+	}
+
+	/**
+	 * Visits the neighbors of a vertex through the indexed edges.
+	 *
+	 * @return <code>true</code> if a vertex of the other search was reached.
+	 */
+	private boolean expand( final int id, final TIntArrayList queue, final int own, final int other, final V vref, final V oref )
+	{
+		final V v = idmap.getVertex( id, vref );
+		for ( final E e : v.edges() )
+		{
+			final int eid = idmap.getEdgeId( e );
+			if ( eid >= edgeLabels.length || edgeLabels[ eid ] < 0 )
+				continue;
+			int n = idmap.getVertexId( e.getSource( oref ) );
+			if ( n == id )
+				n = idmap.getVertexId( e.getTarget( oref ) );
+			if ( marks[ n ] == other )
+				return true;
+			if ( marks[ n ] != own )
+			{
+				marks[ n ] = own;
+				queue.add( n );
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves a fully explored side of a component to a new component.
+	 */
+	private void detach( final TIntArrayList side, final V vref, final V oref )
+	{
+		final int from = vertexLabels[ side.get( 0 ) ];
+		final int to = newComponent();
+		final Component source = components.get( from );
+		final Component target = components.get( to );
+		for ( int i = 0; i < side.size(); i++ )
+		{
+			final int id = side.get( i );
+			source.vertices.remove( vertexPositions[ id ], vertexPositions );
+			vertexLabels[ id ] = to;
+			vertexPositions[ id ] = target.vertices.add( id );
+			for ( final E e : idmap.getVertex( id, vref ).edges() )
+			{
+				final int eid = idmap.getEdgeId( e );
+				if ( eid >= edgeLabels.length || edgeLabels[ eid ] != from )
+					continue;
+				source.edges.remove( edgePositions[ eid ], edgePositions );
+				edgeLabels[ eid ] = to;
+				edgePositions[ eid ] = target.edges.add( eid );
+			}
+		}
+	}
+
+	private void merge( final int from, final int to )
+	{
+		final Component source = components.get( from );
+		final Component target = components.get( to );
+		for ( int i = 0; i < source.vertices.size; i++ )
+		{
+			final int id = source.vertices.ids[ i ];
+			vertexLabels[ id ] = to;
+			vertexPositions[ id ] = target.vertices.add( id );
+		}
+		for ( int i = 0; i < source.edges.size; i++ )
+		{
+			final int id = source.edges.ids[ i ];
+			edgeLabels[ id ] = to;
+			edgePositions[ id ] = target.edges.add( id );
+		}
+		components.set( from, null );
+		freeLabels.add( from );
+	}
+
+	private int newComponent()
+	{
+		if ( !freeLabels.isEmpty() )
+		{
+			final int label = freeLabels.removeAt( freeLabels.size() - 1 );
+			components.set( label, new Component() );
+			return label;
+		}
+		components.add( new Component() );
+		return components.size() - 1;
+	}
+
+	private void freeIfEmpty( final int label )
+	{
+		if ( components.get( label ).size() > 0 )
+			return;
+		components.set( label, null );
+		freeLabels.add( label );
+	}
+
+	/**
+	 * Returns the approximate memory footprint of this index.
+	 *
+	 * @return a number of bytes.
+	 */
+	public synchronized long bytes()
+	{
+		long bytes = 4l * ( 2 * vertexLabels.length + marks.length + 2 * edgeLabels.length );
+		for ( final Component c : components )
+			if ( c != null )
+				bytes += 4l * ( c.vertices.ids.length + c.edges.ids.length );
+		return bytes;
+	}
+
+	/**
+	 * The vertex and edge IDs of one track.
+	 */
+	private static final class Component
+	{
+
+		final Members vertices;
+
+		final Members edges;
+
+		Component()
+		{
+			this( 2, 2 );
+		}
+
+		Component( final int nVertices, final int nEdges )
+		{
+			this.vertices = new Members( nVertices );
+			this.edges = new Members( nEdges );
+		}
+
+		int size()
+		{
+			return vertices.size + edges.size;
+		}
+	}
+
+	/**
+	 * An unordered list of IDs, where each ID knows its position so that it
+	 * can be removed in constant time.
+	 */
+	private static final class Members
+	{
+
+		int[] ids;
+
+		int size;
+
+		Members( final int capacity )
+		{
+			this.ids = new int[ Math.max( 2, capacity ) ];
+		}
+
+		/**
+		 * Appends an ID.
+		 *
+		 * @return its position.
+		 */
+		int add( final int id )
+		{
+			if ( size == ids.length )
+				ids = Arrays.copyOf( ids, 2 * size );
+			ids[ size ] = id;
+			return size++;
+		}
+
+		/**
+		 * Removes the ID at the specified position, and moves the last ID in
+		 * its place.
+		 */
+		void remove( final int position, final int[] positions )
+		{
+			final int last = ids[ --size ];
+			ids[ position ] = last;
+			positions[ last ] = position;
+		}
+
+		void addTo( final IdBitmap bitmap )
+		{
+			for ( int i = 0; i < size; i++ )
+				bitmap.set( ids[ i ] );
+		}
+	}
+
+	private final class Listener implements GraphListener< V, E >
+	{
+
+		@Override
+		public void graphRebuilt()
+		{
+			synchronized ( TrackIndex.this )
+			{
+				built = false;
+			}
+		}
+
+		@Override
+		public void vertexAdded( final V vertex )
+		{
+			TrackIndex.this.vertexAdded( idmap.getVertexId( vertex ) );
+		}
+
+		@Override
+		public void vertexRemoved( final V vertex )
+		{
+			TrackIndex.this.vertexRemoved( vertex );
+		}
+
+		@Override
+		public void edgeAdded( final E edge )
+		{
+			final V ref = graph.vertexRef();
+			final int source = idmap.getVertexId( edge.getSource( ref ) );
+			final int target = idmap.getVertexId( edge.getTarget( ref ) );
+			graph.releaseRef( ref );
+			TrackIndex.this.edgeAdded( idmap.getEdgeId( edge ), source, target );
+		}
+
+		@Override
+		public void edgeRemoved( final E edge )
+		{
+			final V ref = graph.vertexRef();
+			final int source = idmap.getVertexId( edge.getSource( ref ) );
+			final int target = idmap.getVertexId( edge.getTarget( ref ) );
+			graph.releaseRef( ref );
+			TrackIndex.this.edgeRemoved( idmap.getEdgeId( edge ), source, target );
+		}
+	}
+}
@@ -50,12 +50,30 @@ public class VertexFeatureVariable< V extends Vertex< ? > > extends AbstractFeat
 		super( featureKey, projectionKey, projection, collection, idMap );
 	}
 
+	public VertexFeatureVariable(
+			final FeatureSpec< ?, ? > featureKey,
+			final FeatureProjectionKey projectionKey,
+			final FeatureProjection< V > projection,
+			final RefCollection< V > collection,
+			final RefPool< V > idMap,
+			final FeatureColumnCache cache,
+			final FrameIndex< V > frames )
+	{
+		super( featureKey, projectionKey, projection, collection, idMap, cache, frames );
+	}
+
 	@Override
 	protected SelectionVariable make( final BitSet mainBitSet )
 	{
 		return new SelectionVariable( mainBitSet, new BitSet() );
 	}
 
+	@Override
+	ObjectKind kind()
+	{
+		return ObjectKind.VERTEX;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -44,10 +44,20 @@ public class VertexTagSetVariable< V > extends AbstractTagSetVariable< V >
 		super( tagSet, tags, collection, idMap );
 	}
 
+	public VertexTagSetVariable( final TagSet tagSet, final ObjTagMap< V, Tag > tags, final RefCollection< V > collection, final RefPool< V > idMap, final TagIndexCache cache )
+	{
+		super( tagSet, tags, collection, idMap, cache );
+	}
+
 	@Override
 	protected SelectionVariable make( final BitSet bitset )
 	{
 		return new SelectionVariable( bitset, new BitSet() );
 	}
 
+	@Override
+	ObjectKind kind()
+	{
+		return ObjectKind.VERTEX;
+	}
 }
@@ -47,8 +47,12 @@ import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.plugin.MamutPlugin;
+import org.mastodon.mamut.selectioncreator.LiveSelection;
 import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.evaluation.QueryPlanner;
+import org.mastodon.mamut.selectioncreator.evaluation.TrackIndex;
 import org.mastodon.mamut.selectioncreator.plugin.settings.SelectionCreatorConfigPage;
+import org.mastodon.mamut.selectioncreator.plugin.settings.SelectionCreatorSettings;
 import org.mastodon.mamut.selectioncreator.plugin.settings.SelectionCreatorSettingsManager;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.model.tag.TagSetModel;
@@ -69,6 +73,10 @@ public class SelectionParserPlugin implements MamutPlugin
 
 	private static final String[] SHOW_SELECTION_CREATOR_WINDOW_KEYS = new String[] { "not mapped" };
 
+	private static final String EXPLAIN = "EXPLAIN ";
+
+	private static final String EXPLAIN_ANALYZE = "EXPLAIN ANALYZE ";
+
 	private static Map< String, String > menuTexts = new HashMap<>();
 
 	private SelectionParser< Spot, Link > selectionParser;
@@ -77,6 +85,11 @@ public class SelectionParserPlugin implements MamutPlugin
 
 	private SelectionCreatorConfigPage page;
 
+	/**
+	 * The live views of the expressions run so far, by settings.
+	 */
+	private final Map< SelectionCreatorSettings, LiveView > liveViews = new HashMap<>();
+
 	static
 	{
 		menuTexts.put( SHOW_SELECTION_CREATOR_WINDOW, "Selection creator" );
@@ -133,7 +146,9 @@ public class SelectionParserPlugin implements MamutPlugin
 	@Override
 	public void setAppPluginModel( final ProjectModel appModel )
 	{
+		close();
 		this.appModel = appModel;
+		appModel.projectClosedListeners().add( this::close );
 
 		final Model model = appModel.getModel();
 		final ModelGraph graph = model.getGraph();
@@ -141,25 +156,167 @@ public class SelectionParserPlugin implements MamutPlugin
 		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
 		final FeatureModel featureModel = model.getFeatureModel();
 		final SelectionModel< Spot, Link > selectionModel = appModel.getSelectionModel();
-		selectionParser = new SelectionParser<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel );
+		selectionParser = new SelectionParser<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel,
+				model.getSpatioTemporalIndex(), appModel.getMinTimepoint(), appModel.getMaxTimepoint() );
+		// Label the tracks now rather than on the first expression.
+		selectionParser.buildIndices();
 
-		final Function< String, String > evaluator = ( expression ) -> {
-			final boolean ok = selectionParser.parse( expression );
-			final String message = ok
+		final Function< SelectionCreatorSettings, String > evaluator = ( settings ) -> {
+			final String expression = settings.expression();
+			final String explained = explain( expression );
+			if ( explained != null )
+				return explained;
+			final TrackIndex< Spot, Link > before = selectionParser.getTrackIndex();
+			final int builds = before == null ? 0 : before.getBuildCount();
+			LiveSelection< Spot, Link > view = null;
+			String error = null;
+			try
+			{
+				view = liveView( settings );
+				if ( view != null )
+					view.apply();
+				else if ( !selectionParser.parse( expression ) )
+					error = selectionParser.getErrorMessage();
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				error = e.getMessage();
+			}
+			String message = error == null
 					? "Evaluation successful. Selection has now " + selectionModel.getSelectedVertices().size()
 							+ " spots and " + selectionModel.getSelectedEdges().size() + " edges."
-					: "Evaluation failed. " + selectionParser.getErrorMessage();
+					: "Evaluation failed. " + error;
+			if ( error == null && view != null && view.getTestedCount() >= 0 )
+				message += " Live view updated by testing " + view.getTestedCount() + " changed objects.";
+			// Report when the evaluation had to label the tracks.
+			final TrackIndex< Spot, Link > tracks = selectionParser.getTrackIndex();
+			if ( tracks != null && tracks.getBuildCount() != builds )
+				message += " " + indexed( tracks ) + ".";
+			// Show the plan when operands were not tested in the order of
+			// the expression.
+			final QueryPlanner.Plan plan = view == null ? selectionParser.getPlan() : null;
+			if ( error == null && plan != null && plan.isReordered() )
+				message += "\nOperands reordered by estimated selectivity:\n" + plan;
 			return message;
 		};
 
 		final SelectionCreatorSettingsManager styleManager = new SelectionCreatorSettingsManager();
 		page = new SelectionCreatorConfigPage( "Plugins > Selection creator parser", styleManager, evaluator );
 		page.apply();
+		page.showMessage( indexed( selectionParser.getTrackIndex() ) + " when the project was opened." );
 
 		final PreferencesDialog settings = appModel.getWindowManager().getPreferencesDialog();
 		settings.addPage( page );
 	}
 
+	/**
+	 * Returns how many tracks the specified index labelled, and how long it
+	 * took.
+	 */
+	private static String indexed( final TrackIndex< Spot, Link > tracks )
+	{
+		return "Indexed " + tracks.size() + " tracks in " + tracks.getBuildTime() + " ms";
+	}
+
+	/**
+	 * Closes the live views, and detaches the parser of the current project
+	 * from its model.
+	 */
+	private synchronized void close()
+	{
+		for ( final LiveView view : liveViews.values() )
+		{
+			view.settings.updateListeners().remove( view );
+			view.close();
+		}
+		liveViews.clear();
+		if ( selectionParser != null )
+			selectionParser.close();
+	}
+
+	/**
+	 * Returns the live view of the specified settings, creating it if needed,
+	 * or <code>null</code> if the settings are not a live view. A view is
+	 * closed as soon as the expression of its settings changes or they stop
+	 * being live, which also happens when another profile is loaded in their
+	 * place.
+	 */
+	private synchronized LiveSelection< Spot, Link > liveView( final SelectionCreatorSettings settings )
+	{
+		if ( !settings.isLive() )
+			return null;
+		LiveView view = liveViews.get( settings );
+		if ( view == null )
+		{
+			view = new LiveView( settings );
+			liveViews.put( settings, view );
+			settings.updateListeners().add( view );
+		}
+		if ( view.selection == null )
+			view.selection = selectionParser.live( settings.expression() );
+		return view.selection;
+	}
+
+	/**
+	 * Returns the report of an expression prefixed by 'EXPLAIN' or 'EXPLAIN
+	 * ANALYZE', or <code>null</code> if the expression is not prefixed. The
+	 * selection is not modified.
+	 */
+	private String explain( final String expression )
+	{
+		final String trimmed = expression.trim();
+		try
+		{
+			if ( trimmed.regionMatches( true, 0, EXPLAIN_ANALYZE, 0, EXPLAIN_ANALYZE.length() ) )
+				return selectionParser.explainAnalyze( trimmed.substring( EXPLAIN_ANALYZE.length() ) );
+			if ( trimmed.regionMatches( true, 0, EXPLAIN, 0, EXPLAIN.length() ) )
+				return selectionParser.explain( trimmed.substring( EXPLAIN.length() ) );
+			return null;
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			return "Evaluation failed. " + e.getMessage();
+		}
+	}
+
+	/**
+	 * The live view of some settings, closed when they change. Stays
+	 * registered as a listener of the settings until the plugin is closed.
+	 */
+	private final class LiveView implements SelectionCreatorSettings.UpdateListener
+	{
+
+		private final SelectionCreatorSettings settings;
+
+		/**
+		 * <code>null</code> if the view is closed.
+		 */
+		private LiveSelection< Spot, Link > selection;
+
+		private LiveView( final SelectionCreatorSettings settings )
+		{
+			this.settings = settings;
+		}
+
+		@Override
+		public void settingsChanged()
+		{
+			synchronized ( SelectionParserPlugin.this )
+			{
+				if ( selection != null
+						&& ( !settings.isLive() || !selection.getExpression().equals( settings.expression() ) ) )
+					close();
+			}
+		}
+
+		private void close()
+		{
+			if ( selection != null )
+				selection.close();
+			selection = null;
+		}
+	}
+
 	private final AbstractNamedAction toggleSelectionCreatorWindowVisibility =
 			new AbstractNamedAction( SHOW_SELECTION_CREATOR_WINDOW )
 			{
@@ -41,6 +41,9 @@ import bdv.ui.settings.style.StyleProfileManager;
 
 public class SelectionCreatorConfigPage extends SelectAndEditProfileSettingsPage< StyleProfile< SelectionCreatorSettings > >
 {
+
+	private final SelectionCreatorSettingsEditPanel editPanel;
+
 	/**
 	 * @param treePath
 	 *                                            path of this page in the settings
@@ -48,19 +51,44 @@ public class SelectionCreatorConfigPage extends SelectAndEditProfileSettingsPage
 	 * @param selectionCreatorSettingsManager
 	 *                                            the selection expression manager.
 	 * @param evaluator
-	 *                                            the expression evaluator: takes a
-	 *                                            string (the expression) and
+	 *                                            the expression evaluator: takes
+	 *                                            the settings (the expression and
+	 *                                            whether it is a live view) and
 	 *                                            returns a message to the user.
 	 */
 	public SelectionCreatorConfigPage(
 			final String treePath,
 			final SelectionCreatorSettingsManager selectionCreatorSettingsManager,
-			final Function< String, String > evaluator )
+			final Function< SelectionCreatorSettings, String > evaluator )
+	{
+		this(
+				treePath,
+				selectionCreatorSettingsManager,
+				new SelectionCreatorSettingsEditPanel( selectionCreatorSettingsManager.getSelectedStyle(), evaluator ) );
+	}
+
+	private SelectionCreatorConfigPage(
+			final String treePath,
+			final SelectionCreatorSettingsManager selectionCreatorSettingsManager,
+			final SelectionCreatorSettingsEditPanel editPanel )
 	{
 		super(
 				treePath,
 				new StyleProfileManager<>( selectionCreatorSettingsManager, new SelectionCreatorSettingsManager( false ) ),
-				new SelectionCreatorSettingsEditPanel( selectionCreatorSettingsManager.getSelectedStyle(), evaluator ) );
+				editPanel );
+		this.editPanel = editPanel;
+	}
+
+	/**
+	 * Shows a message to the user, in place of the message of the last
+	 * evaluation.
+	 *
+	 * @param message
+	 *            the message.
+	 */
+	public void showMessage( final String message )
+	{
+		editPanel.styleEditorPanel.showMessage( message );
 	}
 
 	static class SelectionCreatorSettingsEditPanel implements SelectionCreatorSettings.UpdateListener, SelectAndEditProfileSettingsPage.ProfileEditPanel< StyleProfile< SelectionCreatorSettings > >
@@ -71,7 +99,7 @@ public class SelectionCreatorConfigPage extends SelectAndEditProfileSettingsPage
 
 		private final SelectionCreatorSettingsPanel styleEditorPanel;
 
-		public SelectionCreatorSettingsEditPanel( final SelectionCreatorSettings initialStyle, final Function< String, String > evaluator )
+		public SelectionCreatorSettingsEditPanel( final SelectionCreatorSettings initialStyle, final Function< SelectionCreatorSettings, String > evaluator )
 		{
 			editedStyle = initialStyle.copy( "Edited" );
 			styleEditorPanel = new SelectionCreatorSettingsPanel( editedStyle, evaluator );
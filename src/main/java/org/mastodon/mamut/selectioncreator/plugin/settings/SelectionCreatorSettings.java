@@ -51,6 +51,8 @@ public class SelectionCreatorSettings implements Style< SelectionCreatorSettings
 
 	private String description;
 
+	private boolean live;
+
 	private final Listeners.List< UpdateListener > updateListeners;
 
 	private SelectionCreatorSettings()
@@ -63,6 +65,7 @@ public class SelectionCreatorSettings implements Style< SelectionCreatorSettings
 		this.name = scs.name;
 		this.expression = scs.expression;
 		this.description = scs.description;
+		this.live = scs.live;
 		notifyListeners();
 	}
 
@@ -76,6 +79,26 @@ public class SelectionCreatorSettings implements Style< SelectionCreatorSettings
 		return expression;
 	}
 
+	/**
+	 * Returns whether the result of this expression is kept and updated as
+	 * the model is edited.
+	 *
+	 * @return <code>true</code> if this expression is a live view.
+	 */
+	public boolean isLive()
+	{
+		return live;
+	}
+
+	public void setLive( final boolean live )
+	{
+		if ( this.live != live )
+		{
+			this.live = live;
+			notifyListeners();
+		}
+	}
+
 	public void setExpression( final String expression )
 	{
 		if ( !Objects.equals( this.expression, expression ) )
@@ -143,7 +166,8 @@ public class SelectionCreatorSettings implements Style< SelectionCreatorSettings
 		return super.toString()
 				+ "\n - name: " + name
 				+ "\n - expression: " + expression
-				+ "\n - description: " + description;
+				+ "\n - description: " + description
+				+ "\n - live: " + live;
 	}
 
 	/**
@@ -101,6 +101,7 @@ public class SelectionCreatorSettingsIO
 			mapping.put( "name", s.getName() );
 			mapping.put( "expression", s.expression() );
 			mapping.put( "description", s.description() );
+			mapping.put( "live", s.isLive() );
 
 			final Node node = representMapping( getTag(), mapping, getDefaultFlowStyle() );
 			return node;
@@ -126,6 +127,8 @@ public class SelectionCreatorSettingsIO
 				s.setName( getString( mapping, "name" ) );
 				s.setExpression( getString( mapping, "expression" ) );
 				s.setDescription( getString( mapping, "description" ) );
+				// Absent from files saved before live views.
+				s.setLive( Boolean.TRUE.equals( mapping.get( "live" ) ) );
 
 				return s;
 			}
@@ -41,6 +41,7 @@ import java.util.function.Function;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -65,15 +66,17 @@ public class SelectionCreatorSettingsPanel extends JPanel
 
 	private final JTextArea textAreaMessage;
 
-	public SelectionCreatorSettingsPanel( final SelectionCreatorSettings settings, final Function< String, String > evaluator )
+	private final JCheckBox chckbxLive;
+
+	public SelectionCreatorSettingsPanel( final SelectionCreatorSettings settings, final Function< SelectionCreatorSettings, String > evaluator )
 	{
 		this.settings = settings;
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 0, 0, 0 };
-		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0 };
+		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0, 0 };
 		gridBagLayout.columnWeights = new double[] { 1.0, 0.0, Double.MIN_VALUE };
-		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0, 0.0, 1.0, Double.MIN_VALUE };
+		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 1.0, 0.0, 1.0, 0.0, Double.MIN_VALUE };
 		setLayout( gridBagLayout );
 
 		final JLabel lblExpression = new JLabel( "Expression:" );
@@ -160,6 +163,16 @@ public class SelectionCreatorSettingsPanel extends JPanel
 		gbc_btnRun.gridy = 5;
 		add( btnRun, gbc_btnRun );
 
+		chckbxLive = new JCheckBox( "Live view" );
+		chckbxLive.setToolTipText( "<html>Keep the result of this expression and update it as the model is edited,<br>"
+				+ "so that running it again only tests the objects that changed.</html>" );
+		final GridBagConstraints gbc_chckbxLive = new GridBagConstraints();
+		gbc_chckbxLive.anchor = GridBagConstraints.WEST;
+		gbc_chckbxLive.insets = new Insets( 5, 5, 5, 5 );
+		gbc_chckbxLive.gridx = 0;
+		gbc_chckbxLive.gridy = 6;
+		add( chckbxLive, gbc_chckbxLive );
+
 		setPreferredSize( new Dimension(482, 341) );
 
 		/*
@@ -170,6 +183,7 @@ public class SelectionCreatorSettingsPanel extends JPanel
 		final MyFocusListener focusListener = new MyFocusListener();
 		textPaneExpression.addFocusListener( focusListener );
 		textPaneDescription.addFocusListener( focusListener );
+		chckbxLive.addFocusListener( focusListener );
 		updateFromSettings();
 	}
 
@@ -189,23 +203,41 @@ public class SelectionCreatorSettingsPanel extends JPanel
 				reenabler.disable();
 
 				commitToSettings();
-				final String message = evaluator.apply( settings.expression() );
+				final String message = evaluator.apply( settings );
 				textAreaMessage.setText( message );
 				reenabler.reenable();
 			};
 		}.start();
 	}
 
+	/**
+	 * Shows a message below the expression, until the next evaluation.
+	 *
+	 * @param message
+	 *            the message.
+	 */
+	public void showMessage( final String message )
+	{
+		textAreaMessage.setText( message );
+	}
+
 	private void commitToSettings()
 	{
-		settings.setExpression( textPaneExpression.getText() );
-		settings.setDescription( textPaneDescription.getText() );
+		// Read all the fields first: each setter refreshes them from the
+		// settings.
+		final String expression = textPaneExpression.getText();
+		final String description = textPaneDescription.getText();
+		final boolean live = chckbxLive.isSelected();
+		settings.setExpression( expression );
+		settings.setDescription( description );
+		settings.setLive( live );
 	}
 
 	private void updateFromSettings()
 	{
 		textPaneExpression.setText( settings.expression() );
 		textPaneDescription.setText( settings.description() );
+		chckbxLive.setSelected( settings.isLive() );
 		repaint();
 	}
 
@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefSet;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser.ExecutionMode;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Evaluates a corpus of expressions in {@link ExecutionMode#STACK} and in
+ * {@link ExecutionMode#BLOCK} mode on a small model, and checks that both
+ * modes select the same spots and links.
+ */
+@RunWith( Parameterized.class )
+public class ExecutionModeTest
+{
+
+	private static final String[] EXPRESSIONS = new String[] {
+			// Comparisons.
+			"vertexFeature('X') > 50",
+			"vertexFeature('X') < 50",
+			"50 < vertexFeature('X')",
+			"vertexFeature('Y') >= 6",
+			"vertexFeature('X') != 3",
+			"vertexFeature('X') == 37",
+			"vertexFeature('X') < 'a'",
+			"vertexFeature('X') > 2 & 3",
+			"between( vertexFeature('X'), 20, 70 )",
+			"between( vertexFeature('X'), 70, 20 )",
+			"between( edgeFeature('L'), -5, 40 ) & vertexFeature('X') > 3",
+			"between( vertexFeature('X'), 20 )",
+			"between( 3, 20, 70 )",
+
+			// Combinations of comparisons.
+			"vertexFeature('X') > 20 & vertexFeature('X') < 70",
+			"vertexFeature('X') > 20 && vertexFeature('Y') <= 4 | edgeFeature('L') > 40",
+			"(vertexFeature('X') > 60) - (vertexFeature('T') < 3)",
+			"(edgeFeature('L') <= 10) + (vertexFeature('T') == 2)",
+			"vertexFeature('T') >= 2 & vertexFeature('T') <= 4 & vertexFeature('X') > 10",
+			"(vertexFeature('X') > 10 | vertexFeature('X') < 5) & vertexFeature('T') < 3",
+			"vertexFeature('X') > 10 & vertexFeature('X') > 30 & vertexFeature('X') < 80 & vertexFeature('X') <= 75",
+			"(vertexFeature('X') > 10) - (vertexFeature('X') > 30 & vertexFeature('X') < 50)",
+			"(vertexFeature('X') != 30) & (vertexFeature('X') != 40)",
+			"(vertexFeature('X') != 30) | (vertexFeature('X') == 30)",
+			"(vertexFeature('X') < 20) | (vertexFeature('X') > 80) | (vertexFeature('T') == 2) | (vertexFeature('X') == 50)",
+			"(vertexFeature('X') > 20) & (vertexFeature('T') > 1) & (vertexFeature('X') < 60) & (vertexFeature('T') < 4)",
+			"((vertexFeature('X') > 20) & (vertexFeature('X') < 60)) | ((vertexFeature('X') >= 70) & (vertexFeature('X') < 90))",
+			"(vertexFeature('X') > 20) + (vertexFeature('X') < 5)",
+			"(edgeFeature('L') > 20) & (vertexFeature('X') < 60)",
+			"(vertexFeature('X') > 50) & (vertexFeature('X') < 40)",
+			"(vertexFeature('Y') > 2) & (vertexFeature('X') < 60)",
+
+			// Tags.
+			"vertexTagSet('S') == 'a'",
+			"vertexTagSet('S') != 'a'",
+			"edgeTagSet('S') == 'b'",
+			"tagSet('S') == 'c'",
+			"tagSet('S') != 'c'",
+			"!vertexTagSet('S')",
+			"~vertexTagSet('S')",
+			"!tagSet('S')",
+			"~edgeTagSet('S')",
+			"vertexTagSet('Q') == 'a' & vertexTagSet('S') == 'b'",
+			"vertexTagSet('nope') == 'a'",
+			"edgeTagSet('S') == 'zz'",
+
+			// Current selection.
+			"selection",
+			"vertexSelection",
+			"edgeSelection",
+			"selection & vertexFeature('X') > 40",
+			"selection - vertexTagSet('S') == 'a'",
+			"(selection | vertexFeature('T') == 1) & !vertexTagSet('S')",
+			"edgeSelection & tagSet('S') != 'a'",
+			"vertexFeature('X') > 50 & selection & ~tagSet('Q')",
+			"(vertexFeature('T') > 2) - (selection & vertexTagSet('S') == 'b')",
+			"selection & between( vertexFeature('X'), 20, 70 )",
+			"selection & (vertexFeature('X') > 20) & (vertexFeature('X') <= 40)",
+			"(vertexFeature('X') > 20) & selection & (vertexFeature('X') <= 40)",
+
+			// Morphs and graph walks.
+			"morph( vertexFeature('X') > 90, 'wholeTrack' )",
+			"morph( vertexFeature('X') > 90, ('toEdge', 'targetVertex') )",
+			"morph( vertexTagSet('S') == 'c', 'outgoingEdges' ) & edgeFeature('L') > 30",
+			"morph( edgeFeature('L') > 80, ('sourceVertex', 'incomingEdges') )",
+			"morph( selection, 'toVertex' ) | vertexFeature('T') == 0",
+			"selection & morph( vertexFeature('X') > 90, 'wholeTrack' )",
+			"vertexSelection - morph( vertexFeature('X') > 90, ('wholeTrack', 'toVertex') )",
+			"morph( selection & vertexFeature('X') < 30, 'wholeTrack' ) & (vertexFeature('T') > 2 - vertexTagSet('S') == 'b')",
+			"morph( vertexFeature('X') > 90, ('descendants', 'toVertex') )",
+			"morph( edgeSelection, 'ancestors' ) - vertexFeature('T') == 0",
+			"successors( vertexFeature('X') > 90, 2 )",
+			"predecessors( vertexTagSet('S') == 'a', 1 ) & edgeFeature('L') > 30",
+			"successors( selection, 0 )",
+			"successors( selection, 1.5 )",
+			"predecessors( selection, -1 )",
+			"selection & successors( vertexFeature('T') == 0, 3 )",
+			"successors( selection )",
+			"successors( 3, selection )",
+	};
+
+	private static final int N_TRACKS = 40;
+
+	private static ModelGraph graph;
+
+	private static GraphIdBimap< Spot, Link > idmap;
+
+	private static SelectionModel< Spot, Link > selectionModel;
+
+	private static SelectionParser< Spot, Link > stack;
+
+	private static SelectionParser< Spot, Link > block;
+
+	@Parameter
+	public String expression;
+
+	@Parameters( name = "{0}" )
+	public static Collection< Object[] > expressions()
+	{
+		return Arrays.stream( EXPRESSIONS )
+				.map( e -> new Object[] { e } )
+				.collect( Collectors.toList() );
+	}
+
+	@BeforeClass
+	public static void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		final Random ran = new Random( 1l );
+
+		// Tracks with a few divisions and merges.
+		for ( int i = 0; i < N_TRACKS; i++ )
+		{
+			final List< Spot > front = new ArrayList<>();
+			front.add( addSpot( ran.nextInt( 5 ) ) );
+			final int length = 2 + ran.nextInt( 12 );
+			for ( int t = 0; t < length && !front.isEmpty(); t++ )
+			{
+				final Spot parent = front.remove( ran.nextInt( front.size() ) );
+				final int nChildren = ran.nextInt( 10 ) == 0 ? 2 : 1;
+				for ( int c = 0; c < nChildren; c++ )
+				{
+					final Spot child = addSpot( parent.getTimepoint() + 1 );
+					graph.addEdge( parent, child ).init();
+					front.add( child );
+				}
+				if ( front.size() >= 2 && ran.nextInt( 15 ) == 0 )
+				{
+					final Spot merge = addSpot( parent.getTimepoint() + 2 );
+					graph.addEdge( front.get( 0 ), merge ).init();
+					graph.addEdge( front.get( 1 ), merge ).init();
+				}
+			}
+		}
+
+		// Features, with some values left unset.
+		final DoubleScalarFeature< Spot > x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		final DoubleScalarFeature< Spot > y = new DoubleScalarFeature<>( "Y", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		final DoubleScalarFeature< Spot > t = new DoubleScalarFeature<>( "T", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		final DoubleScalarFeature< Link > l = new DoubleScalarFeature<>( "L", Dimension.NONE, Dimension.NONE_UNITS, graph.edges().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int id = idmap.getVertexId( spot );
+			if ( id % 7 != 0 )
+				x.set( spot, ( id * 37 ) % 101 );
+			y.set( spot, id % 13 );
+			t.set( spot, spot.getTimepoint() );
+		}
+		for ( final Link link : graph.edges() )
+			l.set( link, ( idmap.getEdgeId( link ) * 53 ) % 97 );
+		final FeatureModel featureModel = model.getFeatureModel();
+		featureModel.declareFeature( x );
+		featureModel.declareFeature( y );
+		featureModel.declareFeature( t );
+		featureModel.declareFeature( l );
+
+		// Tags.
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		final TagSetStructure tss = new TagSetStructure();
+		final TagSet s = tss.createTagSet( "S" );
+		s.createTag( "a", Color.RED.getRGB() );
+		s.createTag( "b", Color.GREEN.getRGB() );
+		s.createTag( "c", Color.BLUE.getRGB() );
+		tss.createTagSet( "Q" ).createTag( "a", Color.WHITE.getRGB() );
+		tagSetModel.setTagSetStructure( tss );
+		// Re-acquire the tags, because the model stores a copy.
+		final List< Tag > sTags = tagSetModel.getTagSetStructure().getTagSets().get( 0 ).getTags();
+		final Tag qTag = tagSetModel.getTagSetStructure().getTagSets().get( 1 ).getTags().get( 0 );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < sTags.size() )
+				tagSetModel.getVertexTags().set( spot, sTags.get( i ) );
+			if ( ran.nextBoolean() )
+				tagSetModel.getVertexTags().set( spot, qTag );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < sTags.size() )
+				tagSetModel.getEdgeTags().set( link, sTags.get( i ) );
+		}
+
+		// Current selection.
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextInt( 4 ) == 0 )
+				selectionModel.setSelected( spot, true );
+		for ( final Link link : graph.edges() )
+			if ( ran.nextInt( 4 ) == 0 )
+				selectionModel.setSelected( link, true );
+
+		stack = new SelectionParser<>( graph, idmap, tagSetModel, featureModel, selectionModel );
+		stack.setExecutionMode( ExecutionMode.STACK );
+		block = new SelectionParser<>( graph, idmap, tagSetModel, featureModel, selectionModel );
+		block.setExecutionMode( ExecutionMode.BLOCK );
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		stack.close();
+		block.close();
+	}
+
+	@Test
+	public void testSameSelection()
+	{
+		final BitSet[] expected = evaluate( stack );
+		final BitSet[] actual = evaluate( block );
+		if ( expected == null || actual == null )
+		{
+			assertEquals( "Expression '" + expression + "' should fail in both modes or in none. Stack: "
+					+ stack.getErrorMessage() + ", block: " + block.getErrorMessage(),
+					expected == null, actual == null );
+			return;
+		}
+		assertEquals( "Spots selected by '" + expression + "'", expected[ 0 ], actual[ 0 ] );
+		assertEquals( "Links selected by '" + expression + "'", expected[ 1 ], actual[ 1 ] );
+	}
+
+	/**
+	 * Evaluates the expression with the specified parser, and restores the
+	 * selection the next expression will read.
+	 *
+	 * @return the IDs of the selected spots and links, or <code>null</code>
+	 *         if the evaluation failed.
+	 */
+	private BitSet[] evaluate( final SelectionParser< Spot, Link > parser )
+	{
+		final RefSet< Spot > spots = RefCollections.createRefSet( graph.vertices() );
+		spots.addAll( selectionModel.getSelectedVertices() );
+		final RefSet< Link > links = RefCollections.createRefSet( graph.edges() );
+		links.addAll( selectionModel.getSelectedEdges() );
+
+		BitSet[] result = null;
+		if ( parser.parse( expression ) )
+		{
+			result = new BitSet[] { new BitSet(), new BitSet() };
+			for ( final Spot spot : selectionModel.getSelectedVertices() )
+				result[ 0 ].set( idmap.getVertexId( spot ) );
+			for ( final Link link : selectionModel.getSelectedEdges() )
+				result[ 1 ].set( idmap.getEdgeId( link ) );
+		}
+
+		selectionModel.pauseListeners();
+		selectionModel.clearSelection();
+		selectionModel.setVerticesSelected( spots, true );
+		selectionModel.setEdgesSelected( links, true );
+		selectionModel.resumeListeners();
+		return result;
+	}
+
+	private static Spot addSpot( final int timepoint )
+	{
+		return graph.addVertex().init( timepoint, new double[ 3 ], 1. );
+	}
+}
@@ -0,0 +1,397 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.feature.FeatureProjectionSpec;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.feature.Multiplicity;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionVariable;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Edits a model and checks that {@link LiveSelection}s, updated from the
+ * graph events, select the same spots and links as a full evaluation of
+ * their expression.
+ */
+public class LiveSelectionTest
+{
+
+	private static final String[] EXPRESSIONS = new String[] {
+			"vertexFeature('X') > 50",
+			"vertexFeature('Spot N links') > 2 | vertexFeature('Spot N links') == 0",
+			"vertexFeature('Spot position', 'X') > 60",
+			"vertexTagSet('QC') == 'bad' | vertexFeature('Spot N links') > 2",
+			"edgeTagSet('QC') == 'good' | vertexFeature('Spot position', 'X') < 20",
+			"!vertexTagSet('QC') & vertexFeature('X') < 30",
+			"selection & vertexFeature('Spot N links') == 1",
+	};
+
+	private static final int N_TRACKS = 20;
+
+	private static final int N_EDITS = 300;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private TagSetModel< Spot, Link > tagSetModel;
+
+	private SelectionModel< Spot, Link > selectionModel;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private TagSet qc;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 1l );
+
+		for ( int i = 0; i < N_TRACKS; i++ )
+		{
+			Spot parent = addSpot( ran.nextInt( 5 ) );
+			final int length = 2 + ran.nextInt( 8 );
+			for ( int t = 0; t < length; t++ )
+			{
+				final Spot child = addSpot( parent.getTimepoint() + 1 );
+				graph.addEdge( parent, child ).init();
+				if ( ran.nextInt( 5 ) == 0 )
+					graph.addEdge( parent, addSpot( parent.getTimepoint() + 1 ) ).init();
+				parent = child;
+			}
+		}
+
+		// A stored feature, and two that read the spots.
+		final DoubleScalarFeature< Spot > x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+			x.set( spot, ( idmap.getVertexId( spot ) * 37 ) % 101 );
+		final FeatureModel featureModel = model.getFeatureModel();
+		featureModel.declareFeature( x );
+		featureModel.declareFeature( new SpotFeature( "Spot N links", "Spot N links", s -> s.edges().size() ) );
+		featureModel.declareFeature( new SpotFeature( "Spot position", "X", s -> s.getDoublePosition( 0 ) ) );
+
+		tagSetModel = model.getTagSetModel();
+		final TagSetStructure tss = new TagSetStructure();
+		final TagSet ts = tss.createTagSet( "QC" );
+		ts.createTag( "bad", Color.RED.getRGB() );
+		ts.createTag( "good", Color.GREEN.getRGB() );
+		tagSetModel.setTagSetStructure( tss );
+		// Re-acquire the tag-set, because the model stores a copy.
+		qc = tagSetModel.getTagSetStructure().getTagSets().get( 0 );
+
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		parser = new SelectionParser<>( graph, idmap, tagSetModel, featureModel, selectionModel );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testRandomEdits()
+	{
+		final List< LiveSelection< Spot, Link > > views = new ArrayList<>();
+		for ( final String expression : EXPRESSIONS )
+			views.add( parser.live( expression ) );
+
+		int incremental = 0;
+		for ( int i = 0; i < N_EDITS; i++ )
+		{
+			final int op = ran.nextInt( 9 );
+			switch ( op )
+			{
+			case 0:
+				graph.addEdge( randomSpot(), addSpot( ran.nextInt( 10 ) ) ).init();
+				break;
+			case 1:
+			{
+				final Spot source = randomSpot();
+				final Spot target = randomSpot();
+				if ( !source.equals( target ) && graph.getEdge( source, target ) == null )
+					graph.addEdge( source, target ).init();
+				break;
+			}
+			case 2:
+				if ( graph.edges().size() > 0 )
+					graph.remove( randomLink() );
+				break;
+			case 3:
+				if ( graph.vertices().size() > 1 )
+					graph.remove( randomSpot() );
+				break;
+			case 4:
+				randomSpot().setPosition( 100. * ran.nextDouble(), 0 );
+				break;
+			case 5:
+				tag( randomSpot() );
+				break;
+			case 6:
+				if ( graph.edges().size() > 0 )
+					tagSetModel.getEdgeTags().set( randomLink(), randomTag() );
+				break;
+			case 7:
+				// A move and a tag notified by the same graph change.
+				randomSpot().setPosition( 100. * ran.nextDouble(), 0 );
+				tag( randomSpot() );
+				break;
+			case 8:
+			{
+				final Spot spot = randomSpot();
+				selectionModel.setSelected( spot, !selectionModel.isSelected( spot ) );
+				break;
+			}
+			}
+			if ( op != 8 )
+				graph.notifyGraphChanged();
+
+			for ( final LiveSelection< Spot, Link > view : views )
+			{
+				if ( ran.nextInt( 3 ) != 0 )
+					continue;
+				assertSameSelection( view, "after edit " + i );
+				if ( view.getTestedCount() >= 0 )
+					incremental++;
+			}
+		}
+		assertTrue( "Some views should be updated incrementally.", incremental > 0 );
+		for ( final LiveSelection< Spot, Link > view : views )
+			view.close();
+	}
+
+	@Test
+	public void testLinkEnds()
+	{
+		final LiveSelection< Spot, Link > view = parser.live( "vertexFeature('Spot N links') > 2" );
+		view.evaluate();
+
+		// Both ends of the new link gain one.
+		final Spot source = randomSpot();
+		Spot target = randomSpot();
+		while ( target.equals( source ) || graph.getEdge( source, target ) != null )
+			target = randomSpot();
+		graph.addEdge( source, target ).init();
+		graph.notifyGraphChanged();
+		assertSameSelection( view, "after adding a link" );
+		assertEquals( "Tested objects after adding a link", 3, view.getTestedCount() );
+
+		// The neighbours of a removed spot lose one.
+		graph.remove( source );
+		graph.notifyGraphChanged();
+		assertSameSelection( view, "after removing a spot" );
+		assertTrue( "The view should be updated incrementally.", view.getTestedCount() >= 0 );
+		view.close();
+	}
+
+	@Test
+	public void testTagAfterMove()
+	{
+		final LiveSelection< Spot, Link > view = parser.live( "vertexTagSet('QC') == 'bad' | vertexFeature('Spot position', 'X') > 60" );
+		view.evaluate();
+
+		final Spot moved = randomSpot();
+		Spot tagged = randomSpot();
+		while ( tagged.equals( moved ) )
+			tagged = randomSpot();
+		moved.setPosition( 10., 0 );
+		tagSetModel.getVertexTags().set( tagged, qc.getTags().get( 0 ) );
+		graph.notifyGraphChanged();
+
+		final SelectionVariable result = view.evaluate();
+		assertTrue( "The tagged spot should be selected.", ids( result )[ 0 ].get( idmap.getVertexId( tagged ) ) );
+		assertEquals( "The view should be evaluated in full.", -1, view.getTestedCount() );
+		view.close();
+	}
+
+	private void assertSameSelection( final LiveSelection< Spot, Link > view, final String when )
+	{
+		final BitSet[] actual = ids( view.evaluate() );
+		final BitSet[] expected = ids( parser.compile( view.getExpression() ).evaluate() );
+		assertEquals( "Spots selected by '" + view.getExpression() + "' " + when, expected[ 0 ], actual[ 0 ] );
+		assertEquals( "Links selected by '" + view.getExpression() + "' " + when, expected[ 1 ], actual[ 1 ] );
+	}
+
+	private BitSet[] ids( final SelectionVariable sv )
+	{
+		final BitSet[] ids = new BitSet[] { new BitSet(), new BitSet() };
+		for ( final Spot spot : sv.vertices( idmap.vertexIdBimap() ) )
+			ids[ 0 ].set( idmap.getVertexId( spot ) );
+		for ( final Link link : sv.edges( idmap.edgeIdBimap() ) )
+			ids[ 1 ].set( idmap.getEdgeId( link ) );
+		return ids;
+	}
+
+	private void tag( final Spot spot )
+	{
+		if ( ran.nextInt( 3 ) == 0 )
+			tagSetModel.getVertexTags().tags( qc ).remove( spot );
+		else
+			tagSetModel.getVertexTags().set( spot, randomTag() );
+	}
+
+	private Tag randomTag()
+	{
+		return qc.getTags().get( ran.nextInt( qc.getTags().size() ) );
+	}
+
+	private Spot randomSpot()
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		return spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+	}
+
+	private Link randomLink()
+	{
+		final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+		links.addAll( graph.edges() );
+		return links.get( ran.nextInt( links.size() ), graph.edgeRef() );
+	}
+
+	private Spot addSpot( final int timepoint )
+	{
+		final double[] position = new double[] { 100. * ran.nextDouble(), 0., 0. };
+		return graph.addVertex().init( timepoint, position, 1. );
+	}
+
+	/**
+	 * A feature with one projection, that reads its values from the spots
+	 * when asked, like the Mastodon features whose values are not stored.
+	 */
+	private static class SpotFeature implements Feature< Spot >
+	{
+
+		private final Spec spec;
+
+		private final FeatureProjection< Spot > projection;
+
+		SpotFeature( final String key, final String projectionName, final ToDoubleFunction< Spot > fn )
+		{
+			final FeatureProjectionSpec projectionSpec = new FeatureProjectionSpec( projectionName, Dimension.NONE );
+			this.spec = new Spec( key, projectionSpec );
+			final FeatureProjectionKey projectionKey = FeatureProjectionKey.key( projectionSpec );
+			this.projection = new FeatureProjection< Spot >()
+			{
+
+				@Override
+				public FeatureProjectionKey getKey()
+				{
+					return projectionKey;
+				}
+
+				@Override
+				public boolean isSet( final Spot obj )
+				{
+					return true;
+				}
+
+				@Override
+				public double value( final Spot obj )
+				{
+					return fn.applyAsDouble( obj );
+				}
+
+				@Override
+				public String units()
+				{
+					return Dimension.NONE_UNITS;
+				}
+			};
+		}
+
+		@Override
+		public FeatureProjection< Spot > project( final FeatureProjectionKey key )
+		{
+			return projection.getKey().equals( key ) ? projection : null;
+		}
+
+		@Override
+		public Set< FeatureProjection< Spot > > projections()
+		{
+			return Collections.singleton( projection );
+		}
+
+		@Override
+		public Spec getSpec()
+		{
+			return spec;
+		}
+
+		@Override
+		public void invalidate( final Spot obj )
+		{}
+
+		private static class Spec extends FeatureSpec< SpotFeature, Spot >
+		{
+			Spec( final String key, final FeatureProjectionSpec projectionSpec )
+			{
+				super( key, key, SpotFeature.class, Spot.class, Multiplicity.SINGLE, projectionSpec );
+			}
+		}
+	}
+}
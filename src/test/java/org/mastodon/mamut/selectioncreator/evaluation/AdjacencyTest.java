@@ -0,0 +1,324 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+
+/**
+ * Checks the {@link Adjacency} snapshot against the edges of the spots and
+ * the ends of the links read from the graph, and that the morpher takes a
+ * new snapshot after the graph structure changes.
+ */
+public class AdjacencyTest
+{
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private ModelVersion version;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 29l );
+		for ( int i = 0; i < 300; i++ )
+			graph.addVertex().init( ran.nextInt( 10 ), new double[ 3 ], 1. );
+		for ( int i = 0; i < 400; i++ )
+			addRandomLink();
+
+		// Leave unused IDs in the ranges of the snapshot.
+		for ( int i = 0; i < 30; i++ )
+			removeRandomSpot();
+		for ( int i = 0; i < 40; i++ )
+			removeRandomLink();
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testStructure()
+	{
+		assertStructure( Adjacency.build( graph, idmap, version ) );
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final Model empty = new Model();
+		final ModelVersion emptyVersion = new ModelVersion( empty.getGraph(), empty.getFeatureModel(), empty.getTagSetModel() );
+		final Adjacency adjacency = Adjacency.build( empty.getGraph(), empty.getGraphIdBimap(), emptyVersion );
+		assertEquals( 0, adjacency.vertexRange() );
+		assertEquals( 0, adjacency.edgeRange() );
+		assertFalse( adjacency.contains( 0 ) );
+		assertEquals( -1, adjacency.source( 0 ) );
+		assertEquals( -1, adjacency.target( 0 ) );
+		emptyVersion.close();
+	}
+
+	@Test
+	public void testEdgesAndEnds()
+	{
+		final Adjacency adjacency = Adjacency.build( graph, idmap, version );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final SelectionVariable selection = randomSelection();
+			for ( final boolean[] flags : new boolean[][] { { true, false }, { false, true }, { true, true } } )
+			{
+				final BitSet edges = new BitSet();
+				adjacency.edgesOf( selection.selectedVertices, flags[ 0 ], flags[ 1 ], edges );
+				assertEquals( "Edges of the vertices " + Arrays.toString( flags ), edgesOf( selection, flags[ 0 ], flags[ 1 ] ), edges );
+				final BitSet vertices = new BitSet();
+				adjacency.endsOf( selection.selectedEdges, flags[ 0 ], flags[ 1 ], vertices );
+				assertEquals( "Ends of the edges " + Arrays.toString( flags ), endsOf( selection, flags[ 0 ], flags[ 1 ] ), vertices );
+			}
+		}
+	}
+
+	@Test
+	public void testVersion()
+	{
+		final Adjacency adjacency = Adjacency.build( graph, idmap, version );
+		assertTrue( adjacency.isCurrent( version ) );
+
+		// Moving a spot does not change the structure.
+		final Spot spot = graph.vertices().iterator().next();
+		spot.setPosition( 3., 0 );
+		assertTrue( "Snapshot after a position change", adjacency.isCurrent( version ) );
+
+		addRandomLink();
+		assertFalse( "Snapshot after a new link", adjacency.isCurrent( version ) );
+		final Adjacency rebuilt = Adjacency.build( graph, idmap, version );
+		assertTrue( rebuilt.isCurrent( version ) );
+		assertStructure( rebuilt );
+
+		removeRandomSpot();
+		assertFalse( "Snapshot after a spot removal", rebuilt.isCurrent( version ) );
+		assertStructure( Adjacency.build( graph, idmap, version ) );
+	}
+
+	@Test
+	public void testMorpher()
+	{
+		final SelectionMorpher< Spot, Link > snapshot = new SelectionMorpher<>( graph, idmap, null, version );
+		final SelectionMorpher< Spot, Link > direct = new SelectionMorpher<>( graph, idmap );
+		final List< Morpher > morphers = Arrays.asList( Morpher.TO_VERTEX, Morpher.TO_EDGE,
+				Morpher.INCOMING_EDGES, Morpher.OUTGOING_EDGES, Morpher.SOURCE_VERTEX, Morpher.TARGET_VERTEX );
+		for ( int i = 0; i < 100; i++ )
+		{
+			switch ( ran.nextInt( 4 ) )
+			{
+			case 0:
+				addRandomLink();
+				break;
+			case 1:
+				removeRandomLink();
+				break;
+			case 2:
+				graph.addVertex().init( 0, new double[ 3 ], 1. );
+				break;
+			default:
+				removeRandomSpot();
+				break;
+			}
+			final SelectionVariable selection = randomSelection();
+			final Collection< Morpher > subset = EnumSet.noneOf( Morpher.class );
+			for ( final Morpher morpher : morphers )
+				if ( ran.nextBoolean() )
+					subset.add( morpher );
+			final SelectionVariable expected = direct.morph( selection, subset );
+			final SelectionVariable actual = snapshot.morph( selection, subset );
+			assertEquals( "Vertices of " + subset, expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+			assertEquals( "Edges of " + subset, expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+		}
+	}
+
+	/**
+	 * Checks the ends of each edge ID and the edges of each vertex ID of a
+	 * snapshot against the graph.
+	 */
+	private void assertStructure( final Adjacency adjacency )
+	{
+		final Spot ref = graph.vertexRef();
+		final BitSet edgeIds = new BitSet();
+		for ( final Link link : graph.edges() )
+		{
+			final int id = idmap.getEdgeId( link );
+			edgeIds.set( id );
+			assertEquals( "Source of link " + id, idmap.getVertexId( link.getSource( ref ) ), adjacency.source( id ) );
+			assertEquals( "Target of link " + id, idmap.getVertexId( link.getTarget( ref ) ), adjacency.target( id ) );
+		}
+		graph.releaseRef( ref );
+		for ( int id = edgeIds.nextClearBit( 0 ); id < adjacency.edgeRange() + 10; id = edgeIds.nextClearBit( id + 1 ) )
+		{
+			assertEquals( "Source of unused link ID " + id, -1, adjacency.source( id ) );
+			assertEquals( "Target of unused link ID " + id, -1, adjacency.target( id ) );
+		}
+
+		final BitSet vertexIds = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int id = idmap.getVertexId( spot );
+			vertexIds.set( id );
+			assertTrue( "Spot " + id, adjacency.contains( id ) );
+
+			final BitSet outgoing = new BitSet();
+			for ( final Link link : spot.outgoingEdges() )
+				outgoing.set( idmap.getEdgeId( link ) );
+			final BitSet out = new BitSet();
+			for ( int i = adjacency.outStart( id ); i < adjacency.outEnd( id ); i++ )
+				out.set( adjacency.outEdge( i ) );
+			assertEquals( "Outgoing links of spot " + id, outgoing, out );
+			assertEquals( "Out-degree of spot " + id, spot.outgoingEdges().size(), adjacency.outDegree( id ) );
+
+			final BitSet incoming = new BitSet();
+			for ( final Link link : spot.incomingEdges() )
+				incoming.set( idmap.getEdgeId( link ) );
+			final BitSet in = new BitSet();
+			for ( int i = adjacency.inStart( id ); i < adjacency.inEnd( id ); i++ )
+				in.set( adjacency.inEdge( i ) );
+			assertEquals( "Incoming links of spot " + id, incoming, in );
+			assertEquals( "In-degree of spot " + id, spot.incomingEdges().size(), adjacency.inDegree( id ) );
+		}
+		assertEquals( "Vertex ID range", vertexIds.length(), adjacency.vertexRange() );
+		for ( int id = vertexIds.nextClearBit( 0 ); id < adjacency.vertexRange(); id = vertexIds.nextClearBit( id + 1 ) )
+		{
+			assertFalse( "Unused spot ID " + id, adjacency.contains( id ) );
+			assertEquals( "Out-degree of unused spot ID " + id, 0, adjacency.outDegree( id ) );
+			assertEquals( "In-degree of unused spot ID " + id, 0, adjacency.inDegree( id ) );
+		}
+	}
+
+	private BitSet edgesOf( final SelectionVariable selection, final boolean incoming, final boolean outgoing )
+	{
+		final BitSet edges = new BitSet();
+		for ( final Spot spot : selection.vertices( idmap.vertexIdBimap() ) )
+		{
+			if ( incoming )
+				for ( final Link link : spot.incomingEdges() )
+					edges.set( idmap.getEdgeId( link ) );
+			if ( outgoing )
+				for ( final Link link : spot.outgoingEdges() )
+					edges.set( idmap.getEdgeId( link ) );
+		}
+		return edges;
+	}
+
+	private BitSet endsOf( final SelectionVariable selection, final boolean source, final boolean target )
+	{
+		final BitSet vertices = new BitSet();
+		final Spot ref = graph.vertexRef();
+		for ( final Link link : selection.edges( idmap.edgeIdBimap() ) )
+		{
+			if ( source )
+				vertices.set( idmap.getVertexId( link.getSource( ref ) ) );
+			if ( target )
+				vertices.set( idmap.getVertexId( link.getTarget( ref ) ) );
+		}
+		graph.releaseRef( ref );
+		return vertices;
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = ran.nextDouble() * ran.nextDouble();
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private void addRandomLink()
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		if ( spots.size() < 2 )
+			return;
+		final Spot source = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		final Spot target = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		if ( !source.equals( target ) && graph.getEdge( source, target ) == null )
+			graph.addEdge( source, target ).init();
+		graph.releaseRef( source );
+		graph.releaseRef( target );
+	}
+
+	private void removeRandomLink()
+	{
+		final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+		links.addAll( graph.edges() );
+		if ( !links.isEmpty() )
+			graph.remove( links.get( ran.nextInt( links.size() ) ) );
+	}
+
+	private void removeRandomSpot()
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		if ( !spots.isEmpty() )
+			graph.remove( spots.get( ran.nextInt( spots.size() ) ) );
+	}
+}
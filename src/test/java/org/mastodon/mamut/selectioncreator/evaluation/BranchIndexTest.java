@@ -0,0 +1,325 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.TestSimpleEdge;
+import org.mastodon.graph.TestSimpleGraph;
+import org.mastodon.graph.TestSimpleVertex;
+import org.mastodon.mamut.selectioncreator.evaluation.BranchFeatureVariable.BranchFeature;
+
+/**
+ * Tests the branch decomposition on a small lineage: a branch that divides
+ * in two branches that merge again, a cycle of one to one links and an
+ * isolated vertex. The ID of each vertex is its frame.
+ */
+public class BranchIndexTest
+{
+
+	private TestSimpleGraph graph;
+
+	private GraphIdBimap< TestSimpleVertex, TestSimpleEdge > idmap;
+
+	private SelectionMorpher< TestSimpleVertex, TestSimpleEdge > morpher;
+
+	private BranchIndex index;
+
+	/*
+	 * a0 -> a1 -> a2 -> b0 -> b1 -> m0 -> m1
+	 *              \                /
+	 *               -> c0 -> c1 ----
+	 *
+	 * x0 -> x1 -> x2 -> x0
+	 *
+	 * s0
+	 */
+
+	private int[] branchA;
+
+	private int[] branchB;
+
+	private int[] branchC;
+
+	private int[] branchM;
+
+	private int[] branchX;
+
+	private int[] branchS;
+
+	private int[] edgesA;
+
+	private int[] edgesB;
+
+	private int[] edgesC;
+
+	private int[] edgesM;
+
+	private int[] edgesX;
+
+	private int division;
+
+	@Before
+	public void setUp()
+	{
+		graph = new TestSimpleGraph();
+		idmap = new GraphIdBimap<>( graph.getVertexPool(), graph.getEdgePool() );
+
+		final int a0 = vertex( 0 );
+		final int a1 = vertex( 1 );
+		final int a2 = vertex( 2 );
+		final int b0 = vertex( 3 );
+		final int b1 = vertex( 4 );
+		final int c0 = vertex( 3 );
+		final int c1 = vertex( 5 );
+		final int m0 = vertex( 6 );
+		final int m1 = vertex( 8 );
+		final int x0 = vertex( 10 );
+		final int x1 = vertex( 11 );
+		final int x2 = vertex( 12 );
+		final int s0 = vertex( 20 );
+
+		branchA = new int[] { a0, a1, a2 };
+		branchB = new int[] { b0, b1 };
+		branchC = new int[] { c0, c1 };
+		branchM = new int[] { m0, m1 };
+		branchX = new int[] { x0, x1, x2 };
+		branchS = new int[] { s0 };
+
+		edgesA = new int[] { edge( a0, a1 ), edge( a1, a2 ) };
+		division = edge( a2, b0 );
+		edge( a2, c0 );
+		edgesB = new int[] { edge( b0, b1 ) };
+		edgesC = new int[] { edge( c0, c1 ) };
+		edge( b1, m0 );
+		edge( c1, m0 );
+		edgesM = new int[] { edge( m0, m1 ) };
+		edgesX = new int[] { edge( x0, x1 ), edge( x1, x2 ), edge( x2, x0 ) };
+
+		morpher = new SelectionMorpher<>( graph, idmap );
+		index = morpher.branches();
+	}
+
+	@Test
+	public void testBuild()
+	{
+		assertEquals( "Unexpected number of branches.", 6, index.size() );
+		final int[][] chains = new int[][] { branchA, branchB, branchC, branchM, branchX, branchS };
+		final BitSet seen = new BitSet();
+		for ( final int[] chain : chains )
+		{
+			final int branch = branchOf( chain[ 0 ] );
+			assertTrue( "Each chain should be a different branch.", !seen.get( branch ) );
+			seen.set( branch );
+			for ( final int v : chain )
+				assertEquals( "All the vertices of a chain should be in the same branch.", branch, branchOf( v ) );
+			assertEquals( "Unexpected branch length.", chain.length, index.length( branch ) );
+			assertEquals( "Unexpected first vertex.", chain[ 0 ], index.first( branch ) );
+			assertEquals( "Unexpected last vertex.", chain[ chain.length - 1 ], index.last( branch ) );
+		}
+	}
+
+	@Test
+	public void testBranchesOfEdge()
+	{
+		final BitSet edges = new BitSet();
+		edges.set( division );
+		final BitSet branches = index.branchesOf( IdBitmap.create(), IdBitmap.of( edges ) );
+		assertEquals( "A division edge should touch the branches it links.",
+				branches( branchA, branchB ), branches );
+
+		final BitSet inner = new BitSet();
+		inner.set( edgesA[ 0 ] );
+		assertEquals( "An inner edge should touch its branch only.",
+				branches( branchA ), index.branchesOf( IdBitmap.create(), IdBitmap.of( inner ) ) );
+	}
+
+	@Test
+	public void testExpand()
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		index.expand( branches( branchX ), vertices, edges );
+		assertEquals( "The cycle should be expanded to all its vertices.", bits( branchX ), vertices );
+		assertEquals( "The cycle should be expanded to all its edges.", bits( edgesX ), edges );
+
+		vertices.clear();
+		edges.clear();
+		index.expand( branches( branchA, branchB ), vertices, edges );
+		assertEquals( "Unexpected vertices.", bits( branchA, branchB ), vertices );
+		assertEquals( "The division edges should not be part of the branches.", bits( edgesA, edgesB ), edges );
+	}
+
+	@Test
+	public void testDaughters()
+	{
+		assertEquals( "A division should have two daughters.",
+				branches( branchB, branchC ), index.daughters( branches( branchA ) ) );
+		assertEquals( "Merging branches should have the merge as daughter.",
+				branches( branchM ), index.daughters( branches( branchB ) ) );
+		assertEquals( "Merging branches should have the merge as daughter.",
+				branches( branchM ), index.daughters( branches( branchC ) ) );
+		assertTrue( "A leaf should not have daughters.", index.daughters( branches( branchM ) ).isEmpty() );
+		assertTrue( "A cycle should not have daughters.", index.daughters( branches( branchX ) ).isEmpty() );
+		assertTrue( "An isolated vertex should not have daughters.", index.daughters( branches( branchS ) ).isEmpty() );
+	}
+
+	@Test
+	public void testSiblings()
+	{
+		assertEquals( "Unexpected sibling.", branches( branchC ), index.siblings( branches( branchB ) ) );
+		assertEquals( "Unexpected sibling.", branches( branchB ), index.siblings( branches( branchC ) ) );
+		assertTrue( "A root should not have siblings.", index.siblings( branches( branchA ) ).isEmpty() );
+		assertTrue( "A merge should not have siblings.", index.siblings( branches( branchM ) ).isEmpty() );
+		assertTrue( "A cycle should not have siblings.", index.siblings( branches( branchX ) ).isEmpty() );
+	}
+
+	@Test
+	public void testMorphs()
+	{
+		final SelectionVariable b1 = selection( new int[] { branchB[ 1 ] }, new int[ 0 ] );
+		assertSelection( morpher.wholeBranch( b1 ), bits( branchB ), bits( edgesB ) );
+		assertSelection( morpher.siblingBranches( b1 ), bits( branchC ), bits( edgesC ) );
+		assertSelection( morpher.daughterBranches( b1 ), bits( branchM ), bits( edgesM ) );
+
+		final SelectionVariable divisionEdge = selection( new int[ 0 ], new int[] { division } );
+		assertSelection( morpher.wholeBranch( divisionEdge ), bits( branchA, branchB ), bits( edgesA, edgesB ) );
+
+		final SelectionVariable x1 = selection( new int[] { branchX[ 1 ] }, new int[ 0 ] );
+		assertSelection( morpher.wholeBranch( x1 ), bits( branchX ), bits( edgesX ) );
+	}
+
+	@Test
+	public void testBranchFeatures()
+	{
+		final BranchFeatureVariable< TestSimpleVertex > nSpots =
+				new BranchFeatureVariable<>( BranchFeature.N_SPOTS, morpher, null, idmap.vertexIdBimap() );
+		assertSelection( nSpots.greaterThan( 2. ), bits( branchA, branchX ), bits( edgesA, edgesX ) );
+		assertSelection( nSpots.equal( 1. ), bits( branchS ), new BitSet() );
+
+		final BranchFeatureVariable< TestSimpleVertex > duration =
+				new BranchFeatureVariable<>( BranchFeature.DURATION, morpher, frames(), idmap.vertexIdBimap() );
+		assertSelection( duration.equal( 2. ), bits( branchA, branchC, branchM, branchX ), bits( edgesA, edgesC, edgesM, edgesX ) );
+		assertSelection( duration.lessThan( 2. ), bits( branchB, branchS ), bits( edgesB ) );
+
+		final SelectionVariable domain = selection( new int[] { branchA[ 0 ], branchB[ 0 ], branchC[ 0 ] }, new int[ 0 ] );
+		assertSelection( duration.equal( 2., domain ), bits( new int[] { branchA[ 0 ], branchC[ 0 ] } ), new BitSet() );
+	}
+
+	private int vertex( final int frame )
+	{
+		return idmap.getVertexId( graph.addVertex().init( frame ) );
+	}
+
+	private int edge( final int source, final int target )
+	{
+		final TestSimpleVertex s = graph.vertexRef();
+		final TestSimpleVertex t = graph.vertexRef();
+		final int id = idmap.getEdgeId( graph.addEdge( idmap.getVertex( source, s ), idmap.getVertex( target, t ) ) );
+		graph.releaseRef( s );
+		graph.releaseRef( t );
+		return id;
+	}
+
+	private int branchOf( final int vertex )
+	{
+		final BitSet vertices = new BitSet();
+		vertices.set( vertex );
+		final BitSet branches = index.branchesOf( IdBitmap.of( vertices ), IdBitmap.create() );
+		assertEquals( "A vertex should belong to exactly one branch.", 1, branches.cardinality() );
+		return branches.nextSetBit( 0 );
+	}
+
+	private BitSet branches( final int[]... chains )
+	{
+		final BitSet branches = new BitSet();
+		for ( final int[] chain : chains )
+			branches.set( branchOf( chain[ 0 ] ) );
+		return branches;
+	}
+
+	private FeatureProjection< TestSimpleVertex > frames()
+	{
+		return new FeatureProjection< TestSimpleVertex >()
+		{
+
+			@Override
+			public FeatureProjectionKey getKey()
+			{
+				return null;
+			}
+
+			@Override
+			public boolean isSet( final TestSimpleVertex obj )
+			{
+				return true;
+			}
+
+			@Override
+			public double value( final TestSimpleVertex obj )
+			{
+				return obj.getId();
+			}
+
+			@Override
+			public String units()
+			{
+				return "";
+			}
+		};
+	}
+
+	private static BitSet bits( final int[]... ids )
+	{
+		final BitSet bits = new BitSet();
+		for ( final int[] array : ids )
+			for ( final int id : array )
+				bits.set( id );
+		return bits;
+	}
+
+	private static SelectionVariable selection( final int[] vertices, final int[] edges )
+	{
+		return new SelectionVariable( bits( vertices ), bits( edges ) );
+	}
+
+	private static void assertSelection( final SelectionVariable sv, final BitSet vertices, final BitSet edges )
+	{
+		assertEquals( "Unexpected selected vertices.", vertices, sv.selectedVertices.asBitSet() );
+		assertEquals( "Unexpected selected edges.", edges, sv.selectedEdges.asBitSet() );
+	}
+}
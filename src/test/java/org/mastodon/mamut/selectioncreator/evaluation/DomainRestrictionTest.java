@@ -0,0 +1,387 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Checks the comparisons restricted to a domain against a scan of the objects
+ * of the domain, and the expressions whose operands are evaluated over the
+ * result of the previous ones against the combination of the operands
+ * evaluated alone.
+ */
+public class DomainRestrictionTest
+{
+
+	private static final int N_TRACKS = 20;
+
+	private static final double[] THRESHOLDS = new double[] { -1., 0., 20., 50., 50.5, 100. };
+
+	/**
+	 * The comparisons tested, the last one being <code>between</code>.
+	 */
+	private static final int N_COMPARISONS = 7;
+
+	private static final String[][] OPERANDS = new String[][] {
+			{ "vertexFeature('X') > 50", "vertexTagSet('S') == 'a'" },
+			{ "vertexTagSet('S') != 'b'", "vertexFeature('X') <= 30" },
+			{ "selection", "edgeFeature('L') > 40" },
+			{ "tagSet('S') == 'c'", "selection" },
+			{ "morph( vertexFeature('X') > 90, 'wholeTrack' )", "!tagSet('S')" },
+			{ "vertexFeature('X') > 10 | edgeFeature('L') < 20", "vertexFeature('X') < 80" },
+	};
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private DoubleScalarFeature< Spot > x;
+
+	private DoubleScalarFeature< Link > l;
+
+	private FeatureModel featureModel;
+
+	private TagSetModel< Spot, Link > tagSetModel;
+
+	private TagSet tagSet;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private SelectionModel< Spot, Link > selectionModel;
+
+	/**
+	 * The domains tested, <code>null</code> standing for the whole graph.
+	 */
+	private List< SelectionVariable > domains;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		final Random ran = new Random( 3l );
+		for ( int i = 0; i < N_TRACKS; i++ )
+		{
+			Spot parent = graph.addVertex().init( 0, new double[ 3 ], 1. );
+			final int length = 2 + ran.nextInt( 12 );
+			for ( int t = 1; t < length; t++ )
+			{
+				final Spot child = graph.addVertex().init( t, new double[ 3 ], 1. );
+				graph.addEdge( parent, child ).init();
+				if ( ran.nextInt( 8 ) == 0 )
+					graph.addEdge( parent, graph.addVertex().init( t, new double[ 3 ], 1. ) ).init();
+				parent = child;
+			}
+		}
+
+		// Features, with some values left unset.
+		x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		l = new DoubleScalarFeature<>( "L", Dimension.NONE, Dimension.NONE_UNITS, graph.edges().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int id = idmap.getVertexId( spot );
+			if ( id % 7 != 0 )
+				x.set( spot, ( id * 37 ) % 101 );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final int id = idmap.getEdgeId( link );
+			if ( id % 5 != 0 )
+				l.set( link, ( id * 53 ) % 97 );
+		}
+		featureModel = model.getFeatureModel();
+		featureModel.declareFeature( x );
+		featureModel.declareFeature( l );
+
+		// Tags.
+		tagSetModel = model.getTagSetModel();
+		final TagSetStructure tss = new TagSetStructure();
+		final TagSet s = tss.createTagSet( "S" );
+		s.createTag( "a", Color.RED.getRGB() );
+		s.createTag( "b", Color.GREEN.getRGB() );
+		s.createTag( "c", Color.BLUE.getRGB() );
+		tagSetModel.setTagSetStructure( tss );
+		// Re-acquire the tag-set, because the model stores a copy.
+		tagSet = tagSetModel.getTagSetStructure().getTagSets().get( 0 );
+		final List< Tag > tags = tagSet.getTags();
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < tags.size() )
+				tagSetModel.getVertexTags().set( spot, tags.get( i ) );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < tags.size() )
+				tagSetModel.getEdgeTags().set( link, tags.get( i ) );
+		}
+
+		// Domains: the whole graph, nothing, and random sparse and dense
+		// subsets.
+		domains = new ArrayList<>();
+		domains.add( null );
+		domains.add( new SelectionVariable( new BitSet(), new BitSet() ) );
+		for ( final int density : new int[] { 20, 2, 1 } )
+		{
+			final BitSet vertices = new BitSet();
+			for ( final Spot spot : graph.vertices() )
+				if ( ran.nextInt( density ) == 0 )
+					vertices.set( idmap.getVertexId( spot ) );
+			final BitSet edges = new BitSet();
+			for ( final Link link : graph.edges() )
+				if ( ran.nextInt( density ) == 0 )
+					edges.set( idmap.getEdgeId( link ) );
+			domains.add( new SelectionVariable( vertices, edges ) );
+		}
+
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextInt( 3 ) == 0 )
+				selectionModel.setSelected( spot, true );
+		for ( final Link link : graph.edges() )
+			if ( ran.nextInt( 3 ) == 0 )
+				selectionModel.setSelected( link, true );
+		parser = new SelectionParser<>( graph, idmap, tagSetModel, featureModel, selectionModel );
+	}
+
+	@Test
+	public void testVertexFeature()
+	{
+		final FeatureProjection< Spot > projection = x.projections().iterator().next();
+		final FeatureVariable< Spot > variable = FeatureVariable.vertexFeature( graph, idmap, featureModel, x.getSpec(), projection.getKey() );
+		for ( final SelectionVariable domain : domains )
+			assertFeature( variable, projection, graph.vertices(), idmap.vertexIdBimap(), domain, true );
+	}
+
+	@Test
+	public void testEdgeFeature()
+	{
+		final FeatureProjection< Link > projection = l.projections().iterator().next();
+		final FeatureVariable< Link > variable = FeatureVariable.edgeFeature( graph, idmap, featureModel, l.getSpec(), projection.getKey() );
+		for ( final SelectionVariable domain : domains )
+			assertFeature( variable, projection, graph.edges(), idmap.edgeIdBimap(), domain, false );
+	}
+
+	@Test
+	public void testTagSets()
+	{
+		final ObjTagMap< Spot, Tag > vertexTags = tagSetModel.getVertexTags().tags( tagSet );
+		final ObjTagMap< Link, Tag > edgeTags = tagSetModel.getEdgeTags().tags( tagSet );
+		final TagSetVariable vertexVariable = new VertexTagSetVariable<>( tagSet, vertexTags, graph.vertices(), idmap.vertexIdBimap() );
+		final TagSetVariable edgeVariable = new EdgeTagSetVariable<>( tagSet, edgeTags, graph.edges(), idmap.edgeIdBimap() );
+		final TagSetVariable graphVariable = new GraphTagSetVariable<>( tagSet, vertexTags, edgeTags, graph.vertices(), graph.edges(), idmap );
+		for ( final SelectionVariable domain : domains )
+		{
+			for ( final Tag tag : tagSet.getTags() )
+			{
+				final BitSet[] equal = new BitSet[] {
+						scanTags( graph.vertices(), idmap.vertexIdBimap(), vertexTags, tag, true, domain, true ),
+						scanTags( graph.edges(), idmap.edgeIdBimap(), edgeTags, tag, true, domain, false ) };
+				final BitSet[] notEqual = new BitSet[] {
+						scanTags( graph.vertices(), idmap.vertexIdBimap(), vertexTags, tag, false, domain, true ),
+						scanTags( graph.edges(), idmap.edgeIdBimap(), edgeTags, tag, false, domain, false ) };
+				final String message = "tag '" + tag.label() + "' over " + describe( domain );
+				assertSelection( "Vertices equal to " + message, equal[ 0 ], new BitSet(), vertexVariable.equal( tag, domain ) );
+				assertSelection( "Edges equal to " + message, new BitSet(), equal[ 1 ], edgeVariable.equal( tag, domain ) );
+				assertSelection( "Objects equal to " + message, equal[ 0 ], equal[ 1 ], graphVariable.equal( tag, domain ) );
+				assertSelection( "Vertices not equal to " + message, notEqual[ 0 ], new BitSet(), vertexVariable.notEqual( tag, domain ) );
+				assertSelection( "Edges not equal to " + message, new BitSet(), notEqual[ 1 ], edgeVariable.notEqual( tag, domain ) );
+				assertSelection( "Objects not equal to " + message, notEqual[ 0 ], notEqual[ 1 ], graphVariable.notEqual( tag, domain ) );
+			}
+			final BitSet[] unset = new BitSet[] {
+					scanTags( graph.vertices(), idmap.vertexIdBimap(), vertexTags, null, true, domain, true ),
+					scanTags( graph.edges(), idmap.edgeIdBimap(), edgeTags, null, true, domain, false ) };
+			final BitSet[] set = new BitSet[] {
+					scanTags( graph.vertices(), idmap.vertexIdBimap(), vertexTags, null, false, domain, true ),
+					scanTags( graph.edges(), idmap.edgeIdBimap(), edgeTags, null, false, domain, false ) };
+			assertSelection( "Untagged objects over " + describe( domain ), unset[ 0 ], unset[ 1 ], graphVariable.unset( domain ) );
+			assertSelection( "Tagged objects over " + describe( domain ), set[ 0 ], set[ 1 ], graphVariable.set( domain ) );
+		}
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		for ( final String[] operands : OPERANDS )
+		{
+			final BitSet[] a = evaluate( operands[ 0 ] );
+			final BitSet[] b = evaluate( operands[ 1 ] );
+
+			final BitSet[] and = evaluate( "(" + operands[ 0 ] + ") & (" + operands[ 1 ] + ")" );
+			final BitSet[] expectedAnd = new BitSet[] { ( BitSet ) a[ 0 ].clone(), ( BitSet ) a[ 1 ].clone() };
+			expectedAnd[ 0 ].and( b[ 0 ] );
+			expectedAnd[ 1 ].and( b[ 1 ] );
+			assertEquals( "Spots of " + operands[ 0 ] + " & " + operands[ 1 ], expectedAnd[ 0 ], and[ 0 ] );
+			assertEquals( "Links of " + operands[ 0 ] + " & " + operands[ 1 ], expectedAnd[ 1 ], and[ 1 ] );
+
+			final BitSet[] sub = evaluate( "(" + operands[ 0 ] + ") - (" + operands[ 1 ] + ")" );
+			final BitSet[] expectedSub = new BitSet[] { ( BitSet ) a[ 0 ].clone(), ( BitSet ) a[ 1 ].clone() };
+			expectedSub[ 0 ].andNot( b[ 0 ] );
+			expectedSub[ 1 ].andNot( b[ 1 ] );
+			assertEquals( "Spots of " + operands[ 0 ] + " - " + operands[ 1 ], expectedSub[ 0 ], sub[ 0 ] );
+			assertEquals( "Links of " + operands[ 0 ] + " - " + operands[ 1 ], expectedSub[ 1 ], sub[ 1 ] );
+		}
+	}
+
+	private < O > void assertFeature( final FeatureVariable< O > variable, final FeatureProjection< O > projection, final RefCollection< O > objects, final RefPool< O > idMap, final SelectionVariable domain, final boolean vertices )
+	{
+		for ( final double threshold : THRESHOLDS )
+		{
+			for ( int comparison = 0; comparison < N_COMPARISONS; comparison++ )
+			{
+				final BitSet expected = new BitSet();
+				final BitSet candidates = domain == null ? null : ( vertices ? domain.selectedVertices : domain.selectedEdges ).asBitSet();
+				for ( final O o : objects )
+				{
+					final int id = idMap.getId( o );
+					if ( ( candidates == null || candidates.get( id ) ) && projection.isSet( o ) && accepts( comparison, projection.value( o ), threshold ) )
+						expected.set( id );
+				}
+				final SelectionVariable actual = compare( variable, comparison, threshold, domain );
+				final String message = "Comparison " + comparison + " with " + threshold + " over " + describe( domain );
+				if ( vertices )
+					assertSelection( message, expected, new BitSet(), actual );
+				else
+					assertSelection( message, new BitSet(), expected, actual );
+			}
+		}
+	}
+
+	private static SelectionVariable compare( final FeatureVariable< ? > variable, final int comparison, final double threshold, final SelectionVariable domain )
+	{
+		switch ( comparison )
+		{
+		case 0:
+			return variable.lessThan( threshold, domain );
+		case 1:
+			return variable.lessThanOrEqual( threshold, domain );
+		case 2:
+			return variable.greaterThan( threshold, domain );
+		case 3:
+			return variable.greaterThanOrEqual( threshold, domain );
+		case 4:
+			return variable.equal( threshold, domain );
+		case 5:
+			return variable.notEqual( threshold, domain );
+		default:
+			return variable.between( threshold, threshold + 25., domain );
+		}
+	}
+
+	private static boolean accepts( final int comparison, final double value, final double threshold )
+	{
+		switch ( comparison )
+		{
+		case 0:
+			return value < threshold;
+		case 1:
+			return value <= threshold;
+		case 2:
+			return value > threshold;
+		case 3:
+			return value >= threshold;
+		case 4:
+			return value == threshold;
+		case 5:
+			return value != threshold;
+		default:
+			return value >= threshold && value <= threshold + 25.;
+		}
+	}
+
+	/**
+	 * Scans the objects of a domain for a tag.
+	 *
+	 * @param tag
+	 *            the tag, or <code>null</code> to test whether objects are
+	 *            tagged.
+	 * @param equal
+	 *            whether to select the objects with this tag or the others.
+	 */
+	private static < O > BitSet scanTags( final RefCollection< O > objects, final RefPool< O > idMap, final ObjTagMap< O, Tag > tags, final Tag tag, final boolean equal, final SelectionVariable domain, final boolean vertices )
+	{
+		final BitSet candidates = domain == null ? null : ( vertices ? domain.selectedVertices : domain.selectedEdges ).asBitSet();
+		final BitSet bits = new BitSet();
+		for ( final O o : objects )
+		{
+			final int id = idMap.getId( o );
+			final Tag t = tags.get( o );
+			if ( ( candidates == null || candidates.get( id ) ) && ( tag == null ? t == null : tag.equals( t ) ) == equal )
+				bits.set( id );
+		}
+		return bits;
+	}
+
+	private BitSet[] evaluate( final String expression )
+	{
+		final SelectionVariable result = parser.compile( expression ).evaluate();
+		return new BitSet[] { result.selectedVertices.asBitSet(), result.selectedEdges.asBitSet() };
+	}
+
+	private static String describe( final SelectionVariable domain )
+	{
+		return domain == null ? "the whole graph" : "a domain of " + domain.selectedVertices.cardinality() + " vertices and " + domain.selectedEdges.cardinality() + " edges";
+	}
+
+	private static void assertSelection( final String message, final BitSet vertices, final BitSet edges, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", vertices, actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", edges, actual.selectedEdges.asBitSet() );
+	}
+}
@@ -0,0 +1,508 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.CompiledSelection;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.SelectionParser.ExecutionMode;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the reports of EXPLAIN and EXPLAIN ANALYZE: the header, the operator
+ * tree against the plan of an evaluation, and the measures of each operator
+ * against the objects its operands passed on, and the totals against scans
+ * of the feature values and of the selection. Analyzing must leave the
+ * selection model and the result cache untouched.
+ */
+public class ExplainTest
+{
+
+	private static final Pattern OPERATOR = Pattern.compile(
+			"( *)(\\S.*?)  \\[est\\. \\d+ vertices, \\d+ edges\\]( via .+?)?(  \\[tested (\\d+), accepted (\\d+), \\d+\\.\\d\\d ms(, [\\d.]+ (B|kB|MB))?\\])?" );
+
+	private static final Pattern TOTAL = Pattern.compile(
+			"Total: \\d+\\.\\d\\d ms, (\\d+) vertices and (\\d+) edges selected(, [\\d.]+ (B|kB|MB) allocated)?\\." );
+
+	private static final Pattern PASS = Pattern.compile(
+			"Vertices: (skipped|scanned all \\d+|tested \\d+ candidates of \\d+)\\. Edges: (skipped|scanned all \\d+|tested \\d+ candidates of \\d+)\\." );
+
+	private static final String HIT = "Result cache: hit, the result is read from the cache.";
+
+	private static final String MISS = "Result cache: miss.";
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private DoubleScalarFeature< Spot > x;
+
+	private DoubleScalarFeature< Spot > y;
+
+	private DoubleScalarFeature< Link > l;
+
+	private DefaultSelectionModel< Spot, Link > selectionModel;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private Random ran;
+
+	private int notifications;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 61l );
+		for ( int i = 0; i < 1500; i++ )
+			graph.addVertex().init( ran.nextInt( 10 ), new double[ 3 ], 1. );
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		for ( int i = 0; i < 2000; i++ )
+		{
+			final Spot source = spots.get( ran.nextInt( spots.size() ), sref );
+			final Spot target = spots.get( ran.nextInt( spots.size() ), tref );
+			if ( source.getTimepoint() < target.getTimepoint() && graph.getEdge( source, target ) == null )
+				graph.addEdge( source, target ).init();
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( tref );
+
+		x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		y = new DoubleScalarFeature<>( "Y", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+		{
+			x.set( spot, ran.nextInt( 101 ) );
+			y.set( spot, ran.nextInt( 101 ) );
+		}
+		l = new DoubleScalarFeature<>( "L", Dimension.NONE, Dimension.NONE_UNITS, graph.edges().getRefPool() );
+		for ( final Link link : graph.edges() )
+			l.set( link, ran.nextInt( 101 ) );
+		model.getFeatureModel().declareFeature( x );
+		model.getFeatureModel().declareFeature( y );
+		model.getFeatureModel().declareFeature( l );
+
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextInt( 3 ) == 0 )
+				selectionModel.setSelected( spot, true );
+		for ( final Link link : graph.edges() )
+			if ( ran.nextInt( 3 ) == 0 )
+				selectionModel.setSelected( link, true );
+		selectionModel.listeners().add( () -> notifications++ );
+
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, 9 );
+		parser.setExecutionMode( ExecutionMode.BLOCK );
+		// Builds the columns, so that the plans do not change between runs.
+		parser.compile( "(vertexFeature('X') > 0) | (vertexFeature('Y') > 0) | (edgeFeature('L') > 0)" ).evaluate();
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testExplain()
+	{
+		for ( int i = 0; i < 50; i++ )
+		{
+			final String expression = randomExpression( new Sets() );
+			final CompiledSelection< Spot, Link > compiled = parser.compile( expression );
+			final String[] before = compiled.explain( false ).split( "\n" );
+			assertEquals( "EXPLAIN " + expression, before[ 0 ] );
+			assertEquals( expression, MISS, before[ 1 ] );
+
+			// Planned the same way as an evaluation.
+			compiled.evaluate();
+			final QueryPlanner.Plan plan = compiled.getPlan();
+			assertNotNull( expression, plan );
+			final String[] after = compiled.explain( false ).split( "\n" );
+			assertEquals( "EXPLAIN " + expression, after[ 0 ] );
+			assertEquals( expression, HIT, after[ 1 ] );
+			assertEquals( expression, plan.toString(), body( after, 2 ) );
+			assertEquals( expression, body( before, 2 ), body( after, 2 ) );
+			assertTree( expression, after, 2, false );
+			assertEquals( expression, 0, notifications );
+		}
+	}
+
+	@Test
+	public void testAnalyze()
+	{
+		for ( int i = 0; i < 50; i++ )
+		{
+			final Sets expected = new Sets();
+			final String expression = randomExpression( expected );
+			final BitSet vertices = selectedVertices();
+			final BitSet edges = selectedEdges();
+			final CompiledSelection< Spot, Link > compiled = parser.compile( expression );
+			final String[] plan = compiled.explain( false ).split( "\n" );
+
+			final String[] lines = compiled.explain( true ).split( "\n" );
+			assertEquals( "EXPLAIN ANALYZE " + expression, lines[ 0 ] );
+			assertEquals( expression, MISS, lines[ 1 ] );
+			assertTrue( expression + ": " + lines[ 2 ], PASS.matcher( lines[ 2 ] ).matches() );
+			final Matcher total = TOTAL.matcher( lines[ lines.length - 1 ] );
+			assertTrue( expression + ": " + lines[ lines.length - 1 ], total.matches() );
+			assertEquals( expression, expected.vertices.cardinality(), Integer.parseInt( total.group( 1 ) ) );
+			assertEquals( expression, expected.edges.cardinality(), Integer.parseInt( total.group( 2 ) ) );
+
+			// The same operators as the plan, with their measures.
+			assertEquals( expression, plan.length + 2, lines.length );
+			for ( int k = 2; k < plan.length; k++ )
+				assertTrue( lines[ k + 1 ] + " for " + plan[ k ], lines[ k + 1 ].startsWith( plan[ k ] + "  [tested " ) );
+			final Node root = assertTree( expression, lines, 3, true );
+			assertEquals( expression, expected.vertices.cardinality() + expected.edges.cardinality(), root.accepted );
+
+			// Neither applied nor cached.
+			assertEquals( expression, vertices, selectedVertices() );
+			assertEquals( expression, edges, selectedEdges() );
+			assertEquals( expression, 0, notifications );
+			assertEquals( expression, MISS, compiled.explain( false ).split( "\n" )[ 1 ] );
+			compiled.evaluate();
+			assertEquals( expression, HIT, compiled.explain( true ).split( "\n" )[ 1 ] );
+		}
+	}
+
+	@Test
+	public void testStack()
+	{
+		parser.setExecutionMode( ExecutionMode.STACK );
+		for ( int i = 0; i < 20; i++ )
+		{
+			final Sets expected = new Sets();
+			final String expression = randomExpression( expected );
+			final CompiledSelection< Spot, Link > compiled = parser.compile( expression );
+			final String[] plan = compiled.explain( false ).split( "\n" );
+			assertEquals( 3, plan.length );
+			assertEquals( "EXPLAIN " + expression, plan[ 0 ] );
+			assertEquals( expression, MISS, plan[ 1 ] );
+			assertEquals( expression, "Evaluated by the stack evaluator.", plan[ 2 ] );
+
+			final String[] lines = compiled.explain( true ).split( "\n" );
+			assertEquals( 4, lines.length );
+			assertEquals( "EXPLAIN ANALYZE " + expression, lines[ 0 ] );
+			assertEquals( expression, "Evaluated by the stack evaluator.", lines[ 2 ] );
+			final Matcher total = TOTAL.matcher( lines[ 3 ] );
+			assertTrue( expression + ": " + lines[ 3 ], total.matches() );
+			assertEquals( expression, expected.vertices.cardinality(), Integer.parseInt( total.group( 1 ) ) );
+			assertEquals( expression, expected.edges.cardinality(), Integer.parseInt( total.group( 2 ) ) );
+			assertEquals( expression, 0, notifications );
+		}
+	}
+
+	/**
+	 * Parses the operator lines of a report, from the specified line, and
+	 * checks their nesting and, when analyzed, their measures.
+	 */
+	private static Node assertTree( final String expression, final String[] lines, final int from, final boolean analyzed )
+	{
+		final List< Node > stack = new ArrayList<>();
+		Node root = null;
+		final int to = analyzed ? lines.length - 1 : lines.length;
+		for ( int k = from; k < to; k++ )
+		{
+			final Matcher matcher = OPERATOR.matcher( lines[ k ] );
+			assertTrue( expression + ": " + lines[ k ], matcher.matches() );
+			assertEquals( expression + ": " + lines[ k ], analyzed, matcher.group( 4 ) != null );
+			final int depth = matcher.group( 1 ).length() / 2;
+			assertEquals( expression + ": " + lines[ k ], 2 * depth, matcher.group( 1 ).length() );
+			final Node node = new Node( matcher.group( 2 ),
+					analyzed ? Long.parseLong( matcher.group( 5 ) ) : 0,
+					analyzed ? Long.parseLong( matcher.group( 6 ) ) : 0 );
+			if ( k == from )
+			{
+				assertEquals( expression, 0, depth );
+				root = node;
+			}
+			else
+			{
+				assertTrue( expression + ": " + lines[ k ], depth > 0 && depth <= stack.size() );
+				stack.get( depth - 1 ).children.add( node );
+			}
+			while ( stack.size() > depth )
+				stack.remove( stack.size() - 1 );
+			stack.add( node );
+		}
+		assertNotNull( expression, root );
+		assertNode( expression, root, analyzed );
+		return root;
+	}
+
+	/**
+	 * Checks the number of operands of an operator and, when analyzed, that
+	 * it tested the objects its operands passed on.
+	 */
+	private static void assertNode( final String expression, final Node node, final boolean analyzed )
+	{
+		final String message = expression + ": " + node.label;
+		final boolean binary = node.label.equals( "And" ) || node.label.equals( "Or" ) || node.label.equals( "Sub" );
+		final boolean unary = node.label.startsWith( "Morph( " ) || node.label.startsWith( "Successors( " ) || node.label.startsWith( "Predecessors( " );
+		assertEquals( message, binary ? 2 : unary ? 1 : 0, node.children.size() );
+		for ( final Node child : node.children )
+			assertNode( expression, child, analyzed );
+		if ( !analyzed )
+			return;
+
+		assertTrue( message, node.accepted <= node.tested );
+		if ( !binary )
+			return;
+		// Materialized operands are computed for all the objects, and are not checked here.
+		final Node a = node.children.get( 0 );
+		final Node b = node.children.get( 1 );
+		assertEquals( message, node.tested, a.tested );
+		switch ( node.label )
+		{
+		case "And":
+			assertEquals( message, a.accepted, b.tested );
+			assertEquals( message, b.accepted, node.accepted );
+			break;
+		case "Or":
+			assertEquals( message, node.tested - a.accepted, b.tested );
+			assertEquals( message, a.accepted + b.accepted, node.accepted );
+			break;
+		default:
+			assertEquals( message, a.accepted, b.tested );
+			assertEquals( message, a.accepted - b.accepted, node.accepted );
+			break;
+		}
+	}
+
+	private static String body( final String[] lines, final int from )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( int k = from; k < lines.length; k++ )
+			str.append( k > from ? "\n" : "" ).append( lines[ k ] );
+		return str.toString();
+	}
+
+	/**
+	 * Returns a random expression that uses each of its terms once, and
+	 * stores the objects it selects in the specified sets.
+	 */
+	private String randomExpression( final Sets result )
+	{
+		final List< String > terms = new ArrayList<>();
+		final List< Sets > sets = new ArrayList<>();
+		final int tx = ran.nextInt( 101 );
+		final int ty = ran.nextInt( 101 );
+		final int tl = ran.nextInt( 101 );
+		final int tm = ran.nextInt( 101 );
+		terms.add( "(vertexFeature('X') > " + tx + ")" );
+		sets.add( scan( x, tx, true ) );
+		terms.add( "(vertexFeature('Y') <= " + ty + ")" );
+		sets.add( scan( y, ty, false ) );
+		terms.add( "(edgeFeature('L') > " + tl + ")" );
+		sets.add( edgeScan( tl ) );
+		terms.add( "selection" );
+		sets.add( selection() );
+		terms.add( "morph( vertexFeature('X') <= " + tm + ", ('toVertex', 'outgoingEdges') )" );
+		sets.add( morph( tm ) );
+
+		// Each term at most once, so that no operator is shared.
+		final int n = 2 + ran.nextInt( terms.size() - 1 );
+		while ( terms.size() > n )
+		{
+			final int k = ran.nextInt( terms.size() );
+			terms.remove( k );
+			sets.remove( k );
+		}
+		while ( terms.size() > 1 )
+		{
+			final int k = ran.nextInt( terms.size() - 1 );
+			final Sets a = sets.get( k );
+			final Sets b = sets.remove( k + 1 );
+			final String op;
+			final Sets combined = a.copy();
+			switch ( ran.nextInt( 3 ) )
+			{
+			case 0:
+				op = " & ";
+				combined.vertices.and( b.vertices );
+				combined.edges.and( b.edges );
+				break;
+			case 1:
+				op = " | ";
+				combined.vertices.or( b.vertices );
+				combined.edges.or( b.edges );
+				break;
+			default:
+				op = " - ";
+				combined.vertices.andNot( b.vertices );
+				combined.edges.andNot( b.edges );
+				break;
+			}
+			terms.set( k, "(" + terms.get( k ) + op + terms.remove( k + 1 ) + ")" );
+			sets.set( k, combined );
+		}
+		result.vertices.or( sets.get( 0 ).vertices );
+		result.edges.or( sets.get( 0 ).edges );
+		return terms.get( 0 );
+	}
+
+	/**
+	 * Returns the spots whose value is above, or not above, a threshold.
+	 */
+	private Sets scan( final DoubleScalarFeature< Spot > feature, final double threshold, final boolean above )
+	{
+		final Sets sets = new Sets();
+		for ( final Spot spot : graph.vertices() )
+			if ( ( feature.value( spot ) > threshold ) == above )
+				sets.vertices.set( idmap.getVertexId( spot ) );
+		return sets;
+	}
+
+	/**
+	 * Returns the links with an L value above a threshold.
+	 */
+	private Sets edgeScan( final double threshold )
+	{
+		final Sets sets = new Sets();
+		for ( final Link link : graph.edges() )
+			if ( l.value( link ) > threshold )
+				sets.edges.set( idmap.getEdgeId( link ) );
+		return sets;
+	}
+
+	/**
+	 * Returns the spots with an X value not above a threshold, and their
+	 * outgoing links.
+	 */
+	private Sets morph( final double threshold )
+	{
+		final Sets sets = new Sets();
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( x.value( spot ) > threshold )
+				continue;
+			sets.vertices.set( idmap.getVertexId( spot ) );
+			for ( final Link link : spot.outgoingEdges() )
+				sets.edges.set( idmap.getEdgeId( link ) );
+		}
+		return sets;
+	}
+
+	private Sets selection()
+	{
+		final Sets sets = new Sets();
+		sets.vertices.or( selectedVertices() );
+		sets.edges.or( selectedEdges() );
+		return sets;
+	}
+
+	private BitSet selectedVertices()
+	{
+		final BitSet ids = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( selectionModel.isSelected( spot ) )
+				ids.set( idmap.getVertexId( spot ) );
+		return ids;
+	}
+
+	private BitSet selectedEdges()
+	{
+		final BitSet ids = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( selectionModel.isSelected( link ) )
+				ids.set( idmap.getEdgeId( link ) );
+		return ids;
+	}
+
+	/**
+	 * One operator of a report, with its measures.
+	 */
+	private static class Node
+	{
+
+		private final String label;
+
+		private final long tested;
+
+		private final long accepted;
+
+		private final List< Node > children = new ArrayList<>();
+
+		private Node( final String label, final long tested, final long accepted )
+		{
+			this.label = label;
+			this.tested = tested;
+			this.accepted = accepted;
+		}
+	}
+
+	/**
+	 * The vertex and edge IDs of an expected result.
+	 */
+	private static class Sets
+	{
+
+		private final BitSet vertices = new BitSet();
+
+		private final BitSet edges = new BitSet();
+
+		private Sets copy()
+		{
+			final Sets sets = new Sets();
+			sets.vertices.or( vertices );
+			sets.edges.or( edges );
+			return sets;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoublePredicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.RefPool;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.feature.FeatureProjectionSpec;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Checks the feature columns against the values read from the feature
+ * projection, and that the {@link FeatureColumnCache} drops them after the
+ * changes they depend on.
+ */
+public class FeatureColumnTest
+{
+
+	private static final int N_SPOTS = 500;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private RefPool< Spot > pool;
+
+	private DoubleScalarFeature< Spot > x;
+
+	private FeatureProjection< Spot > projection;
+
+	private ModelVersion version;
+
+	private FeatureColumnCache cache;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		pool = graph.vertices().getRefPool();
+		final Random ran = new Random( 5l );
+		Spot previous = null;
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			final Spot spot = graph.addVertex().init( i / 10, new double[] { i, 0., 0. }, 1. );
+			if ( previous != null && ran.nextInt( 4 ) != 0 )
+				graph.addEdge( previous, spot ).init();
+			previous = spot;
+		}
+
+		// Values with duplicates, some unset and some NaN.
+		x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, pool );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int r = ran.nextInt( 20 );
+			if ( r == 0 )
+				continue;
+			x.set( spot, r == 1 ? Double.NaN : ran.nextInt( 50 ) - 10 );
+		}
+		model.getFeatureModel().declareFeature( x );
+		projection = x.projections().iterator().next();
+
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+		cache = new FeatureColumnCache( version );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testValues()
+	{
+		final FeatureColumn column = column( projection );
+		final List< IntervalSet > intervals = new ArrayList<>();
+		final List< DoublePredicate > predicates = new ArrayList<>();
+		for ( final double t : new double[] { -20., -10., 0., 0.5, 17., 39., 100. } )
+		{
+			intervals.add( IntervalSet.of( Comparison.LESS_THAN, t ) );
+			predicates.add( v -> v < t );
+			intervals.add( IntervalSet.of( Comparison.LESS_THAN_OR_EQUAL, t ) );
+			predicates.add( v -> v <= t );
+			intervals.add( IntervalSet.of( Comparison.GREATER_THAN, t ) );
+			predicates.add( v -> v > t );
+			intervals.add( IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, t ) );
+			predicates.add( v -> v >= t );
+			intervals.add( IntervalSet.of( Comparison.EQUAL, t ) );
+			predicates.add( v -> v == t );
+			intervals.add( IntervalSet.of( Comparison.NOT_EQUAL, t ) );
+			predicates.add( v -> v != t );
+			intervals.add( IntervalSet.between( t, t + 12. ) );
+			predicates.add( v -> v >= t && v <= t + 12. );
+			intervals.add( IntervalSet.of( Comparison.LESS_THAN, t ).or( IntervalSet.of( Comparison.GREATER_THAN, t + 20. ) ) );
+			predicates.add( v -> v < t || v > t + 20. );
+			intervals.add( IntervalSet.of( Comparison.NOT_EQUAL, t ).and( IntervalSet.of( Comparison.NOT_EQUAL, t + 1. ) ) );
+			predicates.add( v -> v != t && v != t + 1. );
+		}
+
+		final BitSet domain = new BitSet();
+		for ( int id = 0; id < N_SPOTS + 10; id += 3 )
+			domain.set( id );
+
+		for ( int i = 0; i < intervals.size(); i++ )
+		{
+			final IntervalSet accepted = intervals.get( i );
+			final BitSet expected = new BitSet();
+			for ( final Spot spot : graph.vertices() )
+			{
+				final int id = pool.getId( spot );
+				final boolean accepts = projection.isSet( spot ) && predicates.get( i ).test( projection.value( spot ) );
+				assertEquals( "Value of spot " + id + " in " + accepted, accepts, column.test( id, accepted ) );
+				if ( accepts )
+					expected.set( id );
+			}
+			assertEquals( "Unexpected test of a missing ID.", false, column.test( N_SPOTS + 5, accepted ) );
+
+			final BitSet all = new BitSet();
+			column.select( accepted, null, all );
+			assertEquals( "Spots in " + accepted, expected, all );
+
+			final BitSet restricted = new BitSet();
+			column.select( accepted, domain, restricted );
+			final BitSet expectedRestricted = ( BitSet ) expected.clone();
+			expectedRestricted.and( domain );
+			assertEquals( "Spots of the domain in " + accepted, expectedRestricted, restricted );
+		}
+	}
+
+	@Test
+	public void testHit()
+	{
+		final FeatureColumn column = column( projection );
+		assertSame( "Column after no change", column, column( projection ) );
+		assertSame( "Column after no change", column, cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+	}
+
+	@Test
+	public void testFeatureChange()
+	{
+		column( projection );
+		final Spot spot = graph.vertices().iterator().next();
+		x.set( spot, 1000. );
+		model.getFeatureModel().declareFeature( x );
+		assertNull( "Column after a feature change", cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+		assertEquals( "The new value should be read.", true, column( projection ).test( pool.getId( spot ), IntervalSet.of( Comparison.EQUAL, 1000. ) ) );
+	}
+
+	@Test
+	public void testStructureChange()
+	{
+		column( projection );
+		graph.addVertex().init( 0, new double[ 3 ], 1. );
+		assertNull( "Column after a spot was added", cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+	}
+
+	@Test
+	public void testPositionChange()
+	{
+		column( projection );
+		graph.vertices().iterator().next().setPosition( 3., 0 );
+		assertNull( "Column after a spot was moved", cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+	}
+
+	@Test
+	public void testGraphChange()
+	{
+		final FeatureProjection< Spot > untracked = new FeatureProjection< Spot >()
+		{
+
+			@Override
+			public FeatureProjectionKey getKey()
+			{
+				return FeatureProjectionKey.key( new FeatureProjectionSpec( "N links", Dimension.NONE ) );
+			}
+
+			@Override
+			public boolean isSet( final Spot obj )
+			{
+				return true;
+			}
+
+			@Override
+			public double value( final Spot obj )
+			{
+				return obj.edges().size();
+			}
+
+			@Override
+			public String units()
+			{
+				return Dimension.NONE_UNITS;
+			}
+		};
+		column( projection );
+		column( untracked );
+		graph.notifyGraphChanged();
+		assertNotNull( "Column of a tracked projection after a graph change",
+				cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+		assertNull( "Column of an untracked projection after a graph change",
+				cache.getIfPresent( x.getSpec(), untracked.getKey() ) );
+	}
+
+	@Test
+	public void testBudget()
+	{
+		column( projection );
+		final long bytes = cache.bytes();
+		assertEquals( "A column of " + N_SPOTS + " values should be cached.", true, bytes >= 8l * N_SPOTS );
+		cache.setBudget( bytes );
+		assertNotNull( "Column within the budget", cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+		cache.setBudget( bytes - 1 );
+		assertNull( "Column over the budget", cache.getIfPresent( x.getSpec(), projection.getKey() ) );
+		assertEquals( 0l, cache.bytes() );
+	}
+
+	private FeatureColumn column( final FeatureProjection< Spot > p )
+	{
+		final FeatureColumn column = cache.get( x.getSpec(), p.getKey(), p, graph.vertices(), pool );
+		assertNotNull( column );
+		return column;
+	}
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the vertices read from the spatio-temporal index, by the
+ * {@link FrameIndex} itself and through the <code>frame</code> function and
+ * the comparisons on the frame feature, against a scan of the timepoints of
+ * the spots.
+ */
+public class FrameIndexTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private FrameIndex< Spot > frames;
+
+	private SelectionParser< Spot, Link > parser;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		final Random ran = new Random( 19l );
+		for ( int i = 0; i < 300; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[] { ran.nextDouble(), ran.nextDouble(), 0. }, 1. );
+
+		final DoubleScalarFeature< Spot > frame = new DoubleScalarFeature<>( FrameIndex.FEATURE_KEY, Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+			frame.set( spot, spot.getTimepoint() );
+		model.getFeatureModel().declareFeature( frame );
+
+		frames = new FrameIndex<>( model.getSpatioTemporalIndex(), idmap.vertexIdBimap(), 0, N_TIMEPOINTS - 1 );
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				new DefaultSelectionModel<>( graph, idmap ), model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testIndex()
+	{
+		for ( final double t : new double[] { -3., 0., 2.5, 3., 9., 20. } )
+		{
+			assertFrames( IntervalSet.of( Comparison.LESS_THAN, t ), tp -> tp < t );
+			assertFrames( IntervalSet.of( Comparison.LESS_THAN_OR_EQUAL, t ), tp -> tp <= t );
+			assertFrames( IntervalSet.of( Comparison.GREATER_THAN, t ), tp -> tp > t );
+			assertFrames( IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, t ), tp -> tp >= t );
+			assertFrames( IntervalSet.of( Comparison.EQUAL, t ), tp -> tp == t );
+			assertFrames( IntervalSet.of( Comparison.NOT_EQUAL, t ), tp -> tp != t );
+			assertFrames( IntervalSet.between( t, t + 2.5 ), tp -> tp >= t && tp <= t + 2.5 );
+		}
+		assertFrames( IntervalSet.of( Comparison.LESS_THAN, 2. ).or( IntervalSet.of( Comparison.GREATER_THAN, 7. ) ), tp -> tp < 2 || tp > 7 );
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		assertExpression( "frame( 3 )", tp -> tp == 3 );
+		assertExpression( "frame( 3, 5 )", tp -> tp >= 3 && tp <= 5 );
+		assertExpression( "frame( -4, 1 )", tp -> tp <= 1 );
+		assertExpression( "frame( 20 )", tp -> false );
+		assertExpression( "vertexFeature('Spot frame') == 3", tp -> tp == 3 );
+		assertExpression( "vertexFeature('Spot frame') < 2", tp -> tp < 2 );
+		assertExpression( "vertexFeature('Spot frame') != 3", tp -> tp != 3 );
+		assertExpression( "vertexFeature('Spot frame') == 2.5", tp -> false );
+		assertExpression( "vertexFeature('Spot frame') > 2.5 & vertexFeature('Spot frame') <= 4", tp -> tp > 2.5 && tp <= 4 );
+		assertExpression( "(vertexFeature('Spot frame') == 3) | (vertexFeature('Spot frame') == 7)", tp -> tp == 3 || tp == 7 );
+		assertExpression( "between( vertexFeature('Spot frame'), 3, 5 ) - frame( 4 )", tp -> tp == 3 || tp == 5 );
+	}
+
+	@Test
+	public void testNewSpots()
+	{
+		assertExpression( "frame( 4 )", tp -> tp == 4 );
+		graph.addVertex().init( 4, new double[ 3 ], 1. );
+		graph.addVertex().init( 5, new double[ 3 ], 1. );
+		assertExpression( "frame( 4 )", tp -> tp == 4 );
+		assertFrames( IntervalSet.between( 4., 5. ), tp -> tp == 4 || tp == 5 );
+	}
+
+	private void assertFrames( final IntervalSet timepoints, final IntPredicate predicate )
+	{
+		final BitSet expected = scan( predicate );
+		final BitSet actual = new BitSet();
+		frames.select( timepoints, actual );
+		assertEquals( "Spots at the timepoints " + timepoints, expected, actual );
+		assertEquals( "Number of spots at the timepoints " + timepoints, expected.cardinality(), frames.count( timepoints ) );
+	}
+
+	private void assertExpression( final String expression, final IntPredicate predicate )
+	{
+		final SelectionVariable result = parser.compile( expression ).evaluate();
+		assertEquals( "Spots of " + expression, scan( predicate ), result.selectedVertices.asBitSet() );
+		assertEquals( "Links of " + expression, new BitSet(), result.selectedEdges.asBitSet() );
+	}
+
+	private BitSet scan( final IntPredicate predicate )
+	{
+		final BitSet bits = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( predicate.test( spot.getTimepoint() ) )
+				bits.set( idmap.getVertexId( spot ) );
+		return bits;
+	}
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+
+/**
+ * Checks that a morph with several morphers, fused in one pass, gives the
+ * union of the morphs with each morpher on its own, and checks the single
+ * local morphers against the spots and links read from the graph.
+ */
+public class FusedMorphTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private ModelVersion version;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 31l );
+
+		// Links go forward in time, with divisions and merges.
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		for ( int i = 0; i < 400; i++ )
+			spots.add( graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. ) );
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		for ( int i = 0; i < 500; i++ )
+		{
+			final Spot source = spots.get( ran.nextInt( spots.size() ), sref );
+			final Spot target = spots.get( ran.nextInt( spots.size() ), tref );
+			if ( source.getTimepoint() < target.getTimepoint() && graph.getEdge( source, target ) == null )
+				graph.addEdge( source, target ).init();
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( tref );
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testSingleMorphers()
+	{
+		for ( final SelectionMorpher< Spot, Link > morpher : morphers() )
+		{
+			for ( int i = 0; i < 20; i++ )
+			{
+				final SelectionVariable selection = randomSelection();
+				for ( final Morpher m : EnumSet.range( Morpher.TO_VERTEX, Morpher.TARGET_VERTEX ) )
+					assertSameSelection( m.toString(), reference( m, selection ), morpher.morph( selection, Collections.singleton( m ) ) );
+			}
+		}
+	}
+
+	@Test
+	public void testFusedMorphers()
+	{
+		for ( final SelectionMorpher< Spot, Link > morpher : morphers() )
+		{
+			for ( int i = 0; i < 300; i++ )
+			{
+				final SelectionVariable selection = randomSelection();
+				final EnumSet< Morpher > subset = EnumSet.noneOf( Morpher.class );
+				for ( final Morpher m : Morpher.values() )
+					if ( m != Morpher.WHOLE_TRACK && ran.nextInt( 3 ) == 0 )
+						subset.add( m );
+				if ( subset.isEmpty() )
+					continue;
+
+				final BitSet vertices = new BitSet();
+				final BitSet edges = new BitSet();
+				for ( final Morpher m : subset )
+				{
+					final SelectionVariable single = morpher.morph( selection, Collections.singleton( m ) );
+					vertices.or( single.selectedVertices.asBitSet() );
+					edges.or( single.selectedEdges.asBitSet() );
+				}
+				assertSameSelection( subset.toString(), new SelectionVariable( vertices, edges ), morpher.morph( selection, subset ) );
+
+				// A whole track contains the result of any other morpher.
+				final SelectionVariable wholeTrack = morpher.wholeTrack( selection );
+				subset.add( Morpher.WHOLE_TRACK );
+				assertSameSelection( subset.toString(), wholeTrack, morpher.morph( selection, subset ) );
+			}
+		}
+	}
+
+	@Test
+	public void testNoMorpher()
+	{
+		final SelectionVariable selection = randomSelection();
+		for ( final SelectionMorpher< Spot, Link > morpher : morphers() )
+			assertSameSelection( "No morpher", selection, morpher.morph( selection, EnumSet.noneOf( Morpher.class ) ) );
+	}
+
+	/**
+	 * Returns a morpher that reads the graph and one that reads a snapshot of
+	 * the graph structure.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private SelectionMorpher< Spot, Link >[] morphers()
+	{
+		return new SelectionMorpher[] {
+				new SelectionMorpher<>( graph, idmap ),
+				new SelectionMorpher<>( graph, idmap, null, version ) };
+	}
+
+	/**
+	 * Returns the result of one of the local morphers, read from the graph.
+	 */
+	private SelectionVariable reference( final Morpher morpher, final SelectionVariable selection )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : selection.vertices( idmap.vertexIdBimap() ) )
+		{
+			if ( morpher == Morpher.TO_VERTEX )
+				vertices.set( idmap.getVertexId( spot ) );
+			if ( morpher == Morpher.INCOMING_EDGES )
+				for ( final Link link : spot.incomingEdges() )
+					edges.set( idmap.getEdgeId( link ) );
+			if ( morpher == Morpher.OUTGOING_EDGES )
+				for ( final Link link : spot.outgoingEdges() )
+					edges.set( idmap.getEdgeId( link ) );
+		}
+		for ( final Link link : selection.edges( idmap.edgeIdBimap() ) )
+		{
+			if ( morpher == Morpher.TO_EDGE )
+				edges.set( idmap.getEdgeId( link ) );
+			if ( morpher == Morpher.SOURCE_VERTEX )
+				vertices.set( idmap.getVertexId( link.getSource( ref ) ) );
+			if ( morpher == Morpher.TARGET_VERTEX )
+				vertices.set( idmap.getVertexId( link.getTarget( ref ) ) );
+		}
+		graph.releaseRef( ref );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = ran.nextDouble() * ran.nextDouble();
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+}
@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs random sequences of operations on the compressed and on the dense
+ * {@link IdBitmap}, and checks them against a plain {@link BitSet}.
+ */
+public class IdBitmapTest
+{
+
+	private static final int CHUNK = 1 << 16;
+
+	private static final int N_SEQUENCES = 100;
+
+	private static final int N_OPERATIONS = 50;
+
+	private static final int MAX_WALK = 10_000;
+
+	private static final int N_PROBES = 64;
+
+	@Test
+	public void testRandomOperations()
+	{
+		final Random random = new Random( 1l );
+		for ( int s = 0; s < N_SEQUENCES; s++ )
+		{
+			final BitSet expected = new BitSet();
+			IdBitmap compressed = IdBitmap.create();
+			IdBitmap dense = new BitSetIdBitmap( new BitSet() );
+			for ( int o = 0; o < N_OPERATIONS; o++ )
+			{
+				final String op;
+				switch ( random.nextInt( 7 ) )
+				{
+				case 0:
+				{
+					final int id = randomId( random );
+					op = "add " + id;
+					expected.set( id );
+					compressed.set( id );
+					dense.set( id );
+					break;
+				}
+				case 1:
+				{
+					final int id = expected.isEmpty() ? randomId( random ) : randomMember( random, expected );
+					op = "remove " + id;
+					expected.clear( id );
+					compressed = compressed.andNot( single( id, random.nextBoolean() ) );
+					dense = dense.andNot( single( id, random.nextBoolean() ) );
+					break;
+				}
+				case 2:
+				{
+					final BitSet other = randomPattern( random );
+					op = "or " + other.cardinality();
+					expected.or( other );
+					compressed = compressed.or( bitmap( other, random.nextBoolean() ) );
+					dense = dense.or( bitmap( other, random.nextBoolean() ) );
+					break;
+				}
+				case 3:
+				{
+					final BitSet other = randomPattern( random );
+					other.or( expected.get( 0, random.nextInt( expected.length() + 1 ) ) );
+					op = "and " + other.cardinality();
+					expected.and( other );
+					compressed = compressed.and( bitmap( other, random.nextBoolean() ) );
+					dense = dense.and( bitmap( other, random.nextBoolean() ) );
+					break;
+				}
+				case 4:
+				{
+					final BitSet other = randomPattern( random );
+					op = "andNot " + other.cardinality();
+					expected.andNot( other );
+					compressed = compressed.andNot( bitmap( other, random.nextBoolean() ) );
+					dense = dense.andNot( bitmap( other, random.nextBoolean() ) );
+					break;
+				}
+				case 5:
+				{
+					final int from = randomId( random );
+					final int to = from + random.nextInt( 2 * CHUNK );
+					op = "flip " + from + " " + to;
+					expected.flip( from, to );
+					compressed = flip( compressed, from, to, random.nextBoolean() );
+					dense = flip( dense, from, to, random.nextBoolean() );
+					break;
+				}
+				default:
+					op = "optimize";
+					compressed = compressed.optimize();
+					dense = dense.optimize();
+					break;
+				}
+				final String msg = "Sequence " + s + ", operation " + o + " (" + op + ")";
+				assertSame( msg + ", compressed", expected, compressed );
+				assertSame( msg + ", dense", expected, dense );
+			}
+		}
+	}
+
+	@Test
+	public void testArrayToBitmapAtArrayMax()
+	{
+		// Fill one chunk every other ID around the array size limit.
+		final int offset = 3 * CHUNK;
+		final BitSet expected = new BitSet();
+		IdBitmap bitmap = IdBitmap.create();
+		for ( int i = 0; i < RoaringIdBitmap.ARRAY_MAX + 1; i++ )
+		{
+			expected.set( offset + 2 * i );
+			bitmap.set( offset + 2 * i );
+			if ( i >= RoaringIdBitmap.ARRAY_MAX - 2 )
+				assertSame( "After " + ( i + 1 ) + " IDs", expected, bitmap );
+		}
+
+		// And back below the limit.
+		for ( int i = 0; i < 3; i++ )
+		{
+			final int id = offset + 2 * i;
+			expected.clear( id );
+			bitmap = bitmap.andNot( single( id, false ) );
+			assertSame( "After removing " + id, expected, bitmap );
+		}
+		bitmap = bitmap.optimize();
+		assertSame( "After optimize", expected, bitmap );
+	}
+
+	@Test
+	public void testRuns()
+	{
+		// A few long ranges in a far chunk are stored as runs.
+		final int offset = 10 * CHUNK;
+		final BitSet expected = new BitSet();
+		expected.set( offset + 100, offset + 30_000 );
+		expected.set( offset + 40_000, offset + CHUNK );
+		IdBitmap bitmap = IdBitmap.create();
+		for ( int id = expected.nextSetBit( 0 ); id >= 0; id = expected.nextSetBit( id + 1 ) )
+			bitmap.set( id );
+		bitmap = bitmap.optimize();
+		assertSame( "Runs", expected, bitmap );
+		assertTrue( "Expected runs to be stored compressed, got " + bitmap, bitmap instanceof RoaringIdBitmap );
+		assertTrue( "Expected runs to take little memory, got " + bitmap.bytes() + " bytes", bitmap.bytes() < 1024 );
+
+		// Split a run, merge two runs, and cross into the next chunk.
+		expected.clear( offset + 15_000 );
+		bitmap = bitmap.andNot( single( offset + 15_000, false ) ).optimize();
+		assertSame( "Split run", expected, bitmap );
+		expected.set( offset + 30_000, offset + 40_000 );
+		bitmap = bitmap.or( range( offset + 30_000, offset + 40_000 ) ).optimize();
+		assertSame( "Merged runs", expected, bitmap );
+		expected.set( offset + CHUNK, offset + CHUNK + 10 );
+		bitmap = bitmap.or( range( offset + CHUNK - 1, offset + CHUNK + 10 ) ).optimize();
+		assertSame( "Run across chunks", expected, bitmap );
+	}
+
+	@Test
+	public void testChunkBoundaries()
+	{
+		final int[] ids = new int[] { 0, 1, 4095, 4096, 4097, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK - 1, 2 * CHUNK, 5 * CHUNK + 4096 };
+		final BitSet expected = new BitSet();
+		IdBitmap compressed = IdBitmap.create();
+		for ( final int id : ids )
+		{
+			expected.set( id );
+			compressed.set( id );
+		}
+		assertSame( "Boundaries", expected, compressed );
+		compressed = compressed.optimize();
+		assertSame( "Boundaries, optimized", expected, compressed );
+
+		for ( final int id : ids )
+		{
+			assertEquals( "Next set bit from " + id, id, compressed.nextSetBit( id ) );
+			expected.clear( id );
+			compressed = compressed.andNot( single( id, false ) );
+			assertSame( "After removing " + id, expected, compressed );
+		}
+		assertTrue( compressed.isEmpty() );
+	}
+
+	/**
+	 * Checks that the bitmap holds the same IDs as the bitset, through all
+	 * the read methods. Small sets are walked entirely, large ones are probed
+	 * at the boundaries of arrays and chunks and at regular intervals.
+	 */
+	private static void assertSame( final String msg, final BitSet expected, final IdBitmap actual )
+	{
+		assertEquals( msg + ": bits", expected, actual.asBitSet() );
+		assertEquals( msg + ": cardinality", expected.cardinality(), actual.cardinality() );
+		assertEquals( msg + ": isEmpty", expected.isEmpty(), actual.isEmpty() );
+		if ( expected.cardinality() <= MAX_WALK )
+		{
+			int id = actual.nextSetBit( 0 );
+			for ( int e = expected.nextSetBit( 0 ); e >= 0; e = expected.nextSetBit( e + 1 ) )
+			{
+				assertEquals( msg + ": nextSetBit", e, id );
+				assertTrue( msg + ": get " + e, actual.get( e ) );
+				id = actual.nextSetBit( id + 1 );
+			}
+			assertEquals( msg + ": nextSetBit past the end", -1, id );
+		}
+		final int length = expected.length();
+		for ( int i = 0; i <= N_PROBES; i++ )
+			assertProbe( msg, expected, actual, ( int ) ( ( long ) length * i / N_PROBES ) );
+		for ( int chunk = 0; chunk <= length; chunk += CHUNK )
+			for ( final int offset : new int[] { -1, 0, 1, RoaringIdBitmap.ARRAY_MAX - 1, RoaringIdBitmap.ARRAY_MAX } )
+				if ( chunk + offset >= 0 )
+					assertProbe( msg, expected, actual, chunk + offset );
+	}
+
+	private static void assertProbe( final String msg, final BitSet expected, final IdBitmap actual, final int id )
+	{
+		assertEquals( msg + ": get " + id, expected.get( id ), actual.get( id ) );
+		assertEquals( msg + ": nextSetBit " + id, expected.nextSetBit( id ), actual.nextSetBit( id ) );
+	}
+
+	private static IdBitmap flip( final IdBitmap bitmap, final int from, final int to, final boolean compressed )
+	{
+		final IdBitmap added = range( from, to ).andNot( bitmap );
+		return bitmap.andNot( bitmap( rangeBits( from, to ), compressed ) ).or( added );
+	}
+
+	private static IdBitmap single( final int id, final boolean compressed )
+	{
+		final BitSet bits = new BitSet();
+		bits.set( id );
+		return bitmap( bits, compressed );
+	}
+
+	private static IdBitmap range( final int from, final int to )
+	{
+		return bitmap( rangeBits( from, to ), true );
+	}
+
+	private static BitSet rangeBits( final int from, final int to )
+	{
+		final BitSet bits = new BitSet();
+		bits.set( from, to );
+		return bits;
+	}
+
+	private static IdBitmap bitmap( final BitSet bits, final boolean compressed )
+	{
+		if ( !compressed )
+			return new BitSetIdBitmap( ( BitSet ) bits.clone() );
+		return RoaringIdBitmap.of( bits );
+	}
+
+	/**
+	 * An ID close to the boundaries of arrays and chunks, or anywhere in the
+	 * first chunks.
+	 */
+	private static int randomId( final Random random )
+	{
+		final int chunk = random.nextInt( 4 ) * CHUNK;
+		switch ( random.nextInt( 3 ) )
+		{
+		case 0:
+			return chunk + RoaringIdBitmap.ARRAY_MAX - 2 + random.nextInt( 4 );
+		case 1:
+			return Math.max( 0, chunk - 2 + random.nextInt( 4 ) );
+		default:
+			return chunk + random.nextInt( CHUNK );
+		}
+	}
+
+	private static int randomMember( final Random random, final BitSet bits )
+	{
+		final int id = bits.nextSetBit( random.nextInt( bits.length() ) );
+		return id >= 0 ? id : bits.nextSetBit( 0 );
+	}
+
+	/**
+	 * A sparse set, a dense chunk, or a few ranges, so that the operands
+	 * cover the three kinds of containers.
+	 */
+	private static BitSet randomPattern( final Random random )
+	{
+		final BitSet bits = new BitSet();
+		final int chunk = random.nextInt( 4 ) * CHUNK;
+		switch ( random.nextInt( 3 ) )
+		{
+		case 0:
+			for ( int i = random.nextInt( 200 ); i >= 0; i-- )
+				bits.set( randomId( random ) );
+			break;
+		case 1:
+			// Around the array size limit, in one chunk.
+			for ( int i = RoaringIdBitmap.ARRAY_MAX - 50 + random.nextInt( 100 ); i >= 0; i-- )
+				bits.set( chunk + random.nextInt( CHUNK ) );
+			break;
+		default:
+			for ( int i = 1 + random.nextInt( 4 ); i > 0; i-- )
+			{
+				final int from = chunk + random.nextInt( CHUNK );
+				bits.set( from, from + random.nextInt( 3 * CHUNK / 2 ) );
+			}
+			break;
+		}
+		return bits;
+	}
+}
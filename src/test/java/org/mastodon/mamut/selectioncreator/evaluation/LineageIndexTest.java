@@ -0,0 +1,325 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the descendants and ancestors read from the {@link LineageIndex}
+ * against a depth-first search started from each selected spot and link, on
+ * lineages with divisions, merges and cycles.
+ */
+public class LineageIndexTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private ModelVersion version;
+
+	private SelectionMorpher< Spot, Link > morpher;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 41l );
+
+		// Lineages with divisions.
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < 30; i++ )
+		{
+			final int start = spots.size();
+			spots.add( graph.addVertex().init( 0, new double[ 3 ], 1. ) );
+			for ( int j = 0; j < 15; j++ )
+			{
+				final Spot parent = spots.get( start + ran.nextInt( spots.size() - start ), ref );
+				final Spot child = graph.addVertex().init( parent.getTimepoint() + 1, new double[ 3 ], 1. );
+				graph.addEdge( parent, child ).init();
+				spots.add( child );
+			}
+		}
+		graph.releaseRef( ref );
+
+		// Merges in some lineages, between them and within them.
+		for ( int i = 0; i < 10; i++ )
+			addRandomLink( true );
+
+		// A cycle not reached from any root, and one below a root.
+		final Spot c0 = graph.addVertex().init( 0, new double[ 3 ], 1. );
+		final Spot c1 = graph.addVertex().init( 1, new double[ 3 ], 1. );
+		final Spot c2 = graph.addVertex().init( 2, new double[ 3 ], 1. );
+		graph.addEdge( c0, c1 ).init();
+		graph.addEdge( c1, c2 ).init();
+		graph.addEdge( c2, c0 ).init();
+		final Spot r = graph.addVertex().init( 0, new double[ 3 ], 1. );
+		final Spot d0 = graph.addVertex().init( 1, new double[ 3 ], 1. );
+		final Spot d1 = graph.addVertex().init( 2, new double[ 3 ], 1. );
+		graph.addEdge( r, d0 ).init();
+		graph.addEdge( d0, d1 ).init();
+		graph.addEdge( d1, d0 ).init();
+
+		// Lonely spots.
+		for ( int i = 0; i < 5; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+		morpher = new SelectionMorpher<>( graph, idmap, null, version );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testDescendantsAndAncestors()
+	{
+		for ( int i = 0; i < 100; i++ )
+			assertLineages( randomSelection() );
+	}
+
+	@Test
+	public void testSingleSpots()
+	{
+		// Each spot on its own, in and out of the trees flagged as merged.
+		for ( final Spot spot : graph.vertices() )
+		{
+			final BitSet vertices = new BitSet();
+			vertices.set( idmap.getVertexId( spot ) );
+			assertLineages( new SelectionVariable( vertices, new BitSet() ) );
+		}
+	}
+
+	@Test
+	public void testIsAncestor()
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : graph.vertices() )
+		{
+			final BitSet seed = new BitSet();
+			seed.set( idmap.getVertexId( spot ) );
+			final BitSet ancestors = search( new SelectionVariable( seed, new BitSet() ), false ).selectedVertices.asBitSet();
+			for ( int i = 0; i < 20; i++ )
+			{
+				final Spot other = spots.get( ran.nextInt( spots.size() ), ref );
+				assertEquals( "Is " + other + " an ancestor of " + spot, ancestors.get( idmap.getVertexId( other ) ), morpher.isAncestor( other, spot ) );
+			}
+			for ( final Link link : spot.incomingEdges() )
+				assertTrue( "Parent of " + spot, morpher.isAncestor( link.getSource( ref ), spot ) );
+			assertEquals( "Is " + spot + " its own ancestor", ancestors.get( idmap.getVertexId( spot ) ), morpher.isAncestor( spot, spot ) );
+		}
+		graph.releaseRef( ref );
+	}
+
+	@Test
+	public void testEdits()
+	{
+		for ( int i = 0; i < 40; i++ )
+		{
+			if ( ran.nextBoolean() )
+				addRandomLink( ran.nextInt( 4 ) > 0 );
+			else
+				removeRandomLink();
+			assertLineages( randomSelection() );
+		}
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		final DefaultSelectionModel< Spot, Link > selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+		for ( int i = 0; i < 20; i++ )
+		{
+			final SelectionVariable selection = randomSelection();
+			selectionModel.clearSelection();
+			selection.toSelectionModel( selectionModel, idmap );
+			assertSameSelection( "morph( selection, 'descendants' )", search( selection, true ),
+					parser.compile( "morph( selection, 'descendants' )" ).evaluate() );
+			assertSameSelection( "morph( selection, 'ancestors' )", search( selection, false ),
+					parser.compile( "morph( selection, 'ancestors' )" ).evaluate() );
+			addRandomLink( true );
+		}
+		parser.close();
+	}
+
+	/**
+	 * Checks the descendants and ancestors of a selection, alone and fused
+	 * in one morph, against a search from each seed.
+	 */
+	private void assertLineages( final SelectionVariable selection )
+	{
+		final SelectionVariable descendants = search( selection, true );
+		final SelectionVariable ancestors = search( selection, false );
+		assertSameSelection( "Descendants", descendants, morpher.descendants( selection ) );
+		assertSameSelection( "Ancestors", ancestors, morpher.ancestors( selection ) );
+		assertSameSelection( "Descendants morph", descendants, morpher.morph( selection, Collections.singleton( Morpher.DESCENDANTS ) ) );
+
+		final BitSet vertices = new BitSet();
+		vertices.or( descendants.selectedVertices.asBitSet() );
+		vertices.or( ancestors.selectedVertices.asBitSet() );
+		final BitSet edges = new BitSet();
+		edges.or( descendants.selectedEdges.asBitSet() );
+		edges.or( ancestors.selectedEdges.asBitSet() );
+		assertSameSelection( "Descendants and ancestors", new SelectionVariable( vertices, edges ),
+				morpher.morph( selection, EnumSet.of( Morpher.DESCENDANTS, Morpher.ANCESTORS ) ) );
+	}
+
+	/**
+	 * Returns the spots and links reached by a depth-first search along the
+	 * links, started from each selected spot and from the end of each
+	 * selected link.
+	 */
+	private SelectionVariable search( final SelectionVariable seeds, final boolean forward )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : seeds.vertices( idmap.vertexIdBimap() ) )
+			search( idmap.getVertexId( spot ), forward, vertices, edges );
+		for ( final Link link : seeds.edges( idmap.edgeIdBimap() ) )
+		{
+			final int end = idmap.getVertexId( forward ? link.getTarget( ref ) : link.getSource( ref ) );
+			vertices.set( end );
+			search( end, forward, vertices, edges );
+		}
+		graph.releaseRef( ref );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Adds the spots and links reached from one spot.
+	 */
+	private void search( final int start, final boolean forward, final BitSet vertices, final BitSet edges )
+	{
+		final BitSet visited = new BitSet();
+		final Deque< Integer > stack = new ArrayDeque<>();
+		visited.set( start );
+		stack.push( start );
+		final Spot vref = graph.vertexRef();
+		final Spot ref = graph.vertexRef();
+		while ( !stack.isEmpty() )
+		{
+			final Spot spot = idmap.getVertex( stack.pop(), vref );
+			for ( final Link link : forward ? spot.outgoingEdges() : spot.incomingEdges() )
+			{
+				edges.set( idmap.getEdgeId( link ) );
+				final int next = idmap.getVertexId( forward ? link.getTarget( ref ) : link.getSource( ref ) );
+				vertices.set( next );
+				if ( !visited.get( next ) )
+				{
+					visited.set( next );
+					stack.push( next );
+				}
+			}
+		}
+		graph.releaseRef( vref );
+		graph.releaseRef( ref );
+	}
+
+	/**
+	 * Links two random spots, forward in time or not.
+	 */
+	private void addRandomLink( final boolean forward )
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot source = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		final Spot target = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		if ( !source.equals( target ) && ( source.getTimepoint() < target.getTimepoint() ) == forward && graph.getEdge( source, target ) == null )
+			graph.addEdge( source, target ).init();
+		graph.releaseRef( source );
+		graph.releaseRef( target );
+	}
+
+	private void removeRandomLink()
+	{
+		final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+		links.addAll( graph.edges() );
+		if ( !links.isEmpty() )
+			graph.remove( links.get( ran.nextInt( links.size() ) ) );
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = 0.1 * ran.nextDouble() * ran.nextDouble();
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+}
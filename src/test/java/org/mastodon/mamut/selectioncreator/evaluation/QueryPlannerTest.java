@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.CompiledSelection;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.SelectionParser.ExecutionMode;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the estimates of the {@link FeatureStatistics} against the fraction
+ * of the values counted by a scan, and the order the {@link QueryPlanner}
+ * gives to the operands of 'and' and 'or' chains against the order of their
+ * counted selectivities. The results of the planned expressions are checked
+ * against scans of the feature values.
+ */
+public class QueryPlannerTest
+{
+
+	private static final String[] FEATURES = new String[] { "X", "Y", "Z" };
+
+	private static final Pattern LEAF = Pattern.compile( "VertexFeature\\( (\\w+) in .*\\[est\\. (\\d+) vertices" );
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private List< DoubleScalarFeature< Spot > > features;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 59l );
+		for ( int i = 0; i < 2000; i++ )
+			graph.addVertex().init( ran.nextInt( 10 ), new double[ 3 ], 1. );
+
+		features = new ArrayList<>();
+		for ( final String name : FEATURES )
+		{
+			final DoubleScalarFeature< Spot > feature = new DoubleScalarFeature<>( name, Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+			for ( final Spot spot : graph.vertices() )
+				feature.set( spot, ran.nextInt( 101 ) );
+			model.getFeatureModel().declareFeature( feature );
+			features.add( feature );
+		}
+
+		final DefaultSelectionModel< Spot, Link > selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, 9 );
+		parser.setExecutionMode( ExecutionMode.BLOCK );
+		// Builds the columns, and their statistics.
+		parser.compile( "(vertexFeature('X') > 0) | (vertexFeature('Y') > 0) | (vertexFeature('Z') > 0)" ).evaluate();
+		// Every evaluation runs the planner.
+		parser.getResultCache().setBudget( 0 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testStatistics()
+	{
+		final int n = 20000;
+		final double[] uniform = new double[ n ];
+		final double[] skewed = new double[ n ];
+		final double[] discrete = new double[ n ];
+		final double[] sparse = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			uniform[ i ] = 100. * ran.nextDouble();
+			skewed[ i ] = -10. * Math.log( 1. - ran.nextDouble() );
+			discrete[ i ] = ran.nextInt( 5 );
+			sparse[ i ] = ran.nextBoolean() ? Double.NaN : 100. * ran.nextDouble();
+		}
+		for ( final double[] values : new double[][] { uniform, skewed, discrete, sparse } )
+		{
+			final FeatureStatistics statistics = new FeatureStatistics( values, n );
+			int count = 0;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for ( final double v : values )
+			{
+				if ( Double.isNaN( v ) )
+					continue;
+				count++;
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+			}
+			assertEquals( count, statistics.count );
+			assertEquals( n - count, statistics.nullCount );
+			assertEquals( min, statistics.min, 0. );
+			assertEquals( max, statistics.max, 0. );
+
+			for ( int i = 0; i < 200; i++ )
+			{
+				final double a = values[ ran.nextInt( n ) ];
+				final double b = values[ ran.nextInt( n ) ];
+				final Comparison comparison = Comparison.values()[ ran.nextInt( Comparison.values().length ) ];
+				assertSelectivity( statistics, values, IntervalSet.of( comparison, Double.isNaN( a ) ? 50. : a ) );
+				assertSelectivity( statistics, values, IntervalSet.between( Math.min( a, b ), Math.max( a, b ) ) );
+				assertSelectivity( statistics, values, IntervalSet.of( Comparison.LESS_THAN, 10. ).or( IntervalSet.of( comparison, 3. ) ) );
+			}
+			assertSelectivity( statistics, values, IntervalSet.of( Comparison.GREATER_THAN, max ) );
+			assertSelectivity( statistics, values, IntervalSet.of( Comparison.LESS_THAN, min ) );
+			assertSelectivity( statistics, values, IntervalSet.between( min, max ) );
+		}
+	}
+
+	@Test
+	public void testEmptyStatistics()
+	{
+		final double[] values = new double[] { Double.NaN, Double.NaN, Double.NaN };
+		final FeatureStatistics statistics = new FeatureStatistics( values, values.length );
+		assertEquals( 0, statistics.count );
+		assertEquals( 3, statistics.nullCount );
+		assertTrue( Double.isNaN( statistics.min ) );
+		assertTrue( Double.isNaN( statistics.max ) );
+		assertEquals( 0., statistics.selectivity( IntervalSet.of( Comparison.NOT_EQUAL, 3. ) ), 0. );
+		assertEquals( 0., new FeatureStatistics( new double[ 0 ], 0 ).selectivity( IntervalSet.between( 0., 1. ) ), 0. );
+	}
+
+	@Test
+	public void testTwoOperands()
+	{
+		assertPlan( "(vertexFeature('X') > 5) & (vertexFeature('Y') > 95)", true, "Y", "X" );
+		assertPlan( "(vertexFeature('Y') > 95) & (vertexFeature('X') > 5)", false, "Y", "X" );
+		assertPlan( "(vertexFeature('Y') > 95) | (vertexFeature('X') > 5)", true, "X", "Y" );
+		assertPlan( "(vertexFeature('X') > 5) | (vertexFeature('Y') > 95)", false, "X", "Y" );
+		assertPlan( "(vertexFeature('X') < 5) | (vertexFeature('Y') < 95)", true, "Y", "X" );
+		assertPlan( "(vertexFeature('X') != 5) & (vertexFeature('Y') == 5)", true, "Y", "X" );
+	}
+
+	@Test
+	public void testChains()
+	{
+		final int[] thresholds = new int[] { 5, 35, 65, 95 };
+		for ( int i = 0; i < 50; i++ )
+		{
+			// Distinct thresholds, far enough apart for the estimates to order them.
+			final List< Integer > remaining = new ArrayList<>();
+			for ( final int t : thresholds )
+				remaining.add( t );
+			final int[] t = new int[ FEATURES.length ];
+			for ( int k = 0; k < FEATURES.length; k++ )
+				t[ k ] = remaining.remove( ran.nextInt( remaining.size() ) );
+			final boolean and = ran.nextBoolean();
+			final StringBuilder expression = new StringBuilder();
+			final BitSet expected = new BitSet();
+			final double[] fractions = new double[ FEATURES.length ];
+			for ( int k = 0; k < FEATURES.length; k++ )
+			{
+				if ( k > 0 )
+					expression.append( and ? " & " : " | " );
+				expression.append( "(vertexFeature('" ).append( FEATURES[ k ] ).append( "') > " ).append( t[ k ] ).append( ")" );
+				final BitSet scan = scan( features.get( k ), t[ k ] );
+				fractions[ k ] = ( double ) scan.cardinality() / graph.vertices().size();
+				if ( k == 0 )
+					expected.or( scan );
+				else if ( and )
+					expected.and( scan );
+				else
+					expected.or( scan );
+			}
+
+			final CompiledSelection< Spot, Link > compiled = parser.compile( expression.toString() );
+			final SelectionVariable result = compiled.evaluate();
+			assertEquals( expression.toString(), expected, result.selectedVertices.asBitSet() );
+			assertEquals( expression.toString(), 0, result.selectedEdges.asBitSet().cardinality() );
+
+			// 'and' first tests the operands that reject the most objects, 'or' those that accept the most.
+			final List< String > order = leaves( compiled.getPlan() );
+			assertEquals( expression.toString(), FEATURES.length, order.size() );
+			for ( int k = 1; k < order.size(); k++ )
+			{
+				final double previous = fractions[ indexOf( order.get( k - 1 ) ) ];
+				final double next = fractions[ indexOf( order.get( k ) ) ];
+				assertTrue( expression + "\n" + compiled.getPlan(), and ? previous < next : previous > next );
+			}
+
+			parser.setExecutionMode( ExecutionMode.STACK );
+			assertEquals( expression.toString(), expected, parser.compile( expression.toString() ).evaluate().selectedVertices.asBitSet() );
+			parser.setExecutionMode( ExecutionMode.BLOCK );
+		}
+	}
+
+	@Test
+	public void testEstimates()
+	{
+		final int vertices = graph.vertices().size();
+		for ( int i = 0; i < 50; i++ )
+		{
+			final int k = ran.nextInt( FEATURES.length );
+			final int threshold = ran.nextInt( 101 );
+			final String expression = "vertexFeature('" + FEATURES[ k ] + "') > " + threshold;
+			final CompiledSelection< Spot, Link > compiled = parser.compile( expression );
+			final int actual = compiled.evaluate().selectedVertices.asBitSet().cardinality();
+			assertEquals( expression, scan( features.get( k ), threshold ).cardinality(), actual );
+
+			final Matcher matcher = LEAF.matcher( compiled.getPlan().toString() );
+			assertTrue( compiled.getPlan().toString(), matcher.find() );
+			assertEquals( expression, FEATURES[ k ], matcher.group( 1 ) );
+			assertEquals( expression, actual, Integer.parseInt( matcher.group( 2 ) ), 0.05 * vertices );
+		}
+	}
+
+	/**
+	 * Asserts that the estimated selectivity is close to the fraction of the
+	 * values, set or not, in the intervals.
+	 */
+	private static void assertSelectivity( final FeatureStatistics statistics, final double[] values, final IntervalSet intervals )
+	{
+		int accepted = 0;
+		for ( final double v : values )
+			if ( !Double.isNaN( v ) && intervals.test( v ) )
+				accepted++;
+		final double expected = ( double ) accepted / values.length;
+		final double actual = statistics.selectivity( intervals );
+		assertTrue( intervals + ": " + actual, actual >= 0. && actual <= 1. );
+		assertEquals( intervals + " in " + statistics, expected, actual, 0.08 );
+	}
+
+	/**
+	 * Asserts whether the plan of an expression is reordered, and the order
+	 * in which it tests the features.
+	 */
+	private void assertPlan( final String expression, final boolean reordered, final String... order )
+	{
+		final CompiledSelection< Spot, Link > compiled = parser.compile( expression );
+		compiled.evaluate();
+		final QueryPlanner.Plan plan = compiled.getPlan();
+		assertNotNull( expression, plan );
+		if ( reordered )
+			assertTrue( expression + "\n" + plan, plan.isReordered() );
+		else
+			assertFalse( expression + "\n" + plan, plan.isReordered() );
+		final List< String > leaves = leaves( plan );
+		assertEquals( expression + "\n" + plan, order.length, leaves.size() );
+		for ( int i = 0; i < order.length; i++ )
+			assertEquals( expression + "\n" + plan, order[ i ], leaves.get( i ) );
+	}
+
+	/**
+	 * Returns the names of the features compared by the leaves of a plan, in
+	 * the order they are tested.
+	 */
+	private static List< String > leaves( final QueryPlanner.Plan plan )
+	{
+		final List< String > leaves = new ArrayList<>();
+		final Matcher matcher = LEAF.matcher( plan.toString() );
+		while ( matcher.find() )
+			leaves.add( matcher.group( 1 ) );
+		return leaves;
+	}
+
+	private static int indexOf( final String feature )
+	{
+		for ( int k = 0; k < FEATURES.length; k++ )
+			if ( FEATURES[ k ].equals( feature ) )
+				return k;
+		throw new IllegalArgumentException( feature );
+	}
+
+	/**
+	 * Returns the IDs of the spots whose value is greater than the threshold.
+	 */
+	private BitSet scan( final DoubleScalarFeature< Spot > feature, final double threshold )
+	{
+		final BitSet ids = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( feature.isSet( spot ) && feature.value( spot ) > threshold )
+				ids.set( idmap.getVertexId( spot ) );
+		return ids;
+	}
+}
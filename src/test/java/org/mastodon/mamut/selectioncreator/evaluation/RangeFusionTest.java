@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.DoublePredicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the expressions whose comparisons on the same feature are fused
+ * into interval predicates against a scan of the feature values, and that
+ * they are read in a single pass.
+ */
+public class RangeFusionTest
+{
+
+	private static final int N_SPOTS = 400;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private FeatureProjection< Spot > x;
+
+	private FeatureProjection< Link > l;
+
+	private SelectionParser< Spot, Link > parser;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		final Random ran = new Random( 17l );
+		Spot previous = null;
+		for ( int i = 0; i < N_SPOTS; i++ )
+		{
+			final Spot spot = graph.addVertex().init( i / 20, new double[ 3 ], 1. );
+			if ( previous != null && ran.nextInt( 5 ) != 0 )
+				graph.addEdge( previous, spot ).init();
+			previous = spot;
+		}
+
+		// Values with duplicates, some unset and some NaN.
+		final DoubleScalarFeature< Spot > xFeature = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int r = ran.nextInt( 30 );
+			if ( r == 0 )
+				continue;
+			xFeature.set( spot, r == 1 ? Double.NaN : ran.nextInt( 101 ) );
+		}
+		final DoubleScalarFeature< Link > lFeature = new DoubleScalarFeature<>( "L", Dimension.NONE, Dimension.NONE_UNITS, graph.edges().getRefPool() );
+		for ( final Link link : graph.edges() )
+			if ( ran.nextInt( 10 ) != 0 )
+				lFeature.set( link, ran.nextInt( 101 ) );
+		final FeatureModel featureModel = model.getFeatureModel();
+		featureModel.declareFeature( xFeature );
+		featureModel.declareFeature( lFeature );
+		x = xFeature.projections().iterator().next();
+		l = lFeature.projections().iterator().next();
+
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), featureModel, new DefaultSelectionModel<>( graph, idmap ) );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testRange()
+	{
+		assertVertices( "vertexFeature('X') > 20 & vertexFeature('X') < 70", v -> v > 20 && v < 70, 1 );
+		assertVertices( "vertexFeature('X') >= 20 & vertexFeature('X') <= 70", v -> v >= 20 && v <= 70, 1 );
+		assertVertices( "vertexFeature('X') > 10 & vertexFeature('X') > 30 & vertexFeature('X') < 80 & vertexFeature('X') <= 75", v -> v > 30 && v <= 75, 1 );
+		assertVertices( "(vertexFeature('X') > 50) & (vertexFeature('X') < 40)", v -> false, 1 );
+		assertVertices( "between( vertexFeature('X'), 20, 70 ) & vertexFeature('X') != 50", v -> v >= 20 && v <= 70 && v != 50, 1 );
+	}
+
+	@Test
+	public void testUnion()
+	{
+		assertVertices( "vertexFeature('X') < 20 | vertexFeature('X') > 80", v -> v < 20 || v > 80, 1 );
+		assertVertices( "(vertexFeature('X') <= 20) | (vertexFeature('X') > 10)", v -> v <= 20 || v > 10, 1 );
+		assertVertices( "((vertexFeature('X') > 20) & (vertexFeature('X') < 60)) | ((vertexFeature('X') >= 70) & (vertexFeature('X') < 90))",
+				v -> v > 20 && v < 60 || v >= 70 && v < 90, 1 );
+		assertVertices( "between( vertexFeature('X'), 20, 30 ) | vertexFeature('X') == 95 | between( vertexFeature('X'), 25, 40 )",
+				v -> v >= 20 && v <= 40 || v == 95, 1 );
+	}
+
+	@Test
+	public void testNotEqual()
+	{
+		assertVertices( "(vertexFeature('X') != 30) & (vertexFeature('X') != 40)", v -> v != 30 && v != 40, 1 );
+		assertVertices( "(vertexFeature('X') != 30) | (vertexFeature('X') == 30)", v -> v != 30 || v == 30, 1 );
+		assertVertices( "(vertexFeature('X') != 30) & (vertexFeature('X') > 20)", v -> v != 30 && v > 20, 1 );
+	}
+
+	@Test
+	public void testMixed()
+	{
+		assertVertices( "(vertexFeature('X') > 10) - (vertexFeature('X') > 30 & vertexFeature('X') < 50)",
+				v -> v > 10 && !( v > 30 && v < 50 ), 2 );
+		assertVertices( "(vertexFeature('X') > 20) & (edgeFeature('L') > 10) & (vertexFeature('X') < 60)", v -> false, 1 );
+		assertEdges( "edgeFeature('L') < 10 | edgeFeature('L') > 90 | edgeFeature('L') == 50", v -> v < 10 || v > 90 || v == 50 );
+		assertEdges( "(edgeFeature('L') > 10) & (edgeFeature('L') <= 60)", v -> v > 10 && v <= 60 );
+	}
+
+	/**
+	 * Checks the vertices selected by an expression against the values of
+	 * 'X', and the number of times 'X' is read.
+	 */
+	private void assertVertices( final String expression, final DoublePredicate predicate, final int scans )
+	{
+		final BitSet expected = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( x.isSet( spot ) && predicate.test( x.value( spot ) ) )
+				expected.set( idmap.getVertexId( spot ) );
+		final SelectionVariable result = parser.compile( expression ).evaluate();
+		assertEquals( "Spots of " + expression, expected, result.selectedVertices.asBitSet() );
+		assertEquals( "Links of " + expression, new BitSet(), result.selectedEdges.asBitSet() );
+		final int actual = count( parser.explain( expression ), "Feature( X " );
+		assertTrue( "'X' should be read " + scans + " times by " + expression + ", not " + actual, actual <= scans );
+	}
+
+	private void assertEdges( final String expression, final DoublePredicate predicate )
+	{
+		final BitSet expected = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( l.isSet( link ) && predicate.test( l.value( link ) ) )
+				expected.set( idmap.getEdgeId( link ) );
+		final SelectionVariable result = parser.compile( expression ).evaluate();
+		assertEquals( "Spots of " + expression, new BitSet(), result.selectedVertices.asBitSet() );
+		assertEquals( "Links of " + expression, expected, result.selectedEdges.asBitSet() );
+		assertEquals( "'L' should be read once by " + expression, 1, count( parser.explain( expression ), "Feature( L " ) );
+	}
+
+	private static int count( final String text, final String pattern )
+	{
+		int count = 0;
+		for ( int i = text.indexOf( pattern ); i >= 0; i = text.indexOf( pattern, i + 1 ) )
+			count++;
+		return count;
+	}
+}
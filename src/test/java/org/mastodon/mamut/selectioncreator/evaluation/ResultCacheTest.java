@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.BitSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.TagSetStructure;
+
+/**
+ * Checks that a result stored in the {@link ResultCache} is found again while
+ * the model does not change, and not after any change the result may depend
+ * on.
+ */
+public class ResultCacheTest
+{
+
+	private static final String EXPRESSION = "vertexfeature('X')>(50)";
+
+	private static final String SELECTION_EXPRESSION = "selection";
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private Spot spot;
+
+	private SelectionModel< Spot, Link > selectionModel;
+
+	private ModelVersion version;
+
+	private SelectionMirror< Spot, Link > mirror;
+
+	private ResultCache cache;
+
+	private ResultCache.Key key;
+
+	private ResultCache.Key selectionKey;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		spot = graph.addVertex().init( 0, new double[ 3 ], 1. );
+		graph.addEdge( spot, graph.addVertex().init( 1, new double[ 3 ], 1. ) ).init();
+		selectionModel = new DefaultSelectionModel<>( graph, model.getGraphIdBimap() );
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+		mirror = new SelectionMirror<>( selectionModel, model.getGraphIdBimap(), version );
+		cache = new ResultCache( version, mirror );
+		key = put( EXPRESSION, false );
+		selectionKey = put( SELECTION_EXPRESSION, true );
+	}
+
+	@After
+	public void tearDown()
+	{
+		mirror.close();
+		version.close();
+	}
+
+	@Test
+	public void testHit()
+	{
+		assertNotNull( "Result after no change", get( EXPRESSION, false ) );
+		assertNotNull( "Result after no change", get( SELECTION_EXPRESSION, true ) );
+		assertEquals( 2, cache.getHitCount() );
+		assertEquals( 0, cache.getMissCount() );
+	}
+
+	@Test
+	public void testGraphChange()
+	{
+		graph.notifyGraphChanged();
+		assertMissed( "a graph change" );
+	}
+
+	@Test
+	public void testStructureChange()
+	{
+		graph.addVertex().init( 2, new double[ 3 ], 1. );
+		assertMissed( "a spot was added" );
+	}
+
+	@Test
+	public void testFeatureChange()
+	{
+		model.getFeatureModel().declareFeature( new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() ) );
+		assertMissed( "a feature change" );
+	}
+
+	@Test
+	public void testTagChange()
+	{
+		final TagSetStructure tss = new TagSetStructure();
+		tss.createTagSet( "QC" ).createTag( "bad", 0 );
+		model.getTagSetModel().setTagSetStructure( tss );
+		assertMissed( "a tag-set change" );
+	}
+
+	@Test
+	public void testPositionChange()
+	{
+		spot.setPosition( 5., 0 );
+		assertMissed( "a spot was moved" );
+	}
+
+	@Test
+	public void testSelectionChange()
+	{
+		selectionModel.setSelected( spot, true );
+		assertNotNull( "Result not reading the selection after a selection change", get( EXPRESSION, false ) );
+		assertNull( "Result reading the selection after a selection change", get( SELECTION_EXPRESSION, true ) );
+		assertFalse( "Result reading the selection after a selection change", cache.contains( selectionKey ) );
+	}
+
+	/**
+	 * Checks that both results are missed, under the keys made before and
+	 * after the change.
+	 */
+	private void assertMissed( final String change )
+	{
+		assertFalse( "Result after " + change, cache.contains( key ) );
+		assertFalse( "Result reading the selection after " + change, cache.contains( selectionKey ) );
+		assertNull( "Result after " + change, get( EXPRESSION, false ) );
+		assertNull( "Result reading the selection after " + change, get( SELECTION_EXPRESSION, true ) );
+		assertEquals( 0, cache.getHitCount() );
+		assertEquals( 2, cache.getMissCount() );
+	}
+
+	private ResultCache.Key put( final String fingerprint, final boolean selection )
+	{
+		final BitSet vertices = new BitSet();
+		vertices.set( 0 );
+		final ResultCache.Key key = cache.key( fingerprint, selection );
+		cache.put( key, new SelectionVariable( vertices, new BitSet() ) );
+		return key;
+	}
+
+	private SelectionVariable get( final String fingerprint, final boolean selection )
+	{
+		return cache.get( cache.key( fingerprint, selection ) );
+	}
+}
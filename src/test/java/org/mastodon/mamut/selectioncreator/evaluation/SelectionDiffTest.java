@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionListener;
+import org.mastodon.model.SelectionModel;
+import org.scijava.listeners.Listeners;
+
+/**
+ * Checks that writing a selection to the selection model as a diff leaves
+ * the model with the selection, passes only the objects whose state changes,
+ * and notifies the listeners at most once.
+ */
+public class SelectionDiffTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private CountingSelectionModel selectionModel;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 47l );
+		for ( int i = 0; i < 200; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		for ( int i = 0; i < 200; i++ )
+		{
+			final Spot source = spots.get( ran.nextInt( spots.size() ), sref );
+			final Spot target = spots.get( ran.nextInt( spots.size() ), tref );
+			if ( !source.equals( target ) && graph.getEdge( source, target ) == null )
+				graph.addEdge( source, target ).init();
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( tref );
+		selectionModel = new CountingSelectionModel( new DefaultSelectionModel<>( graph, idmap ) );
+	}
+
+	@Test
+	public void testDiff()
+	{
+		for ( int i = 0; i < 200; i++ )
+		{
+			final SelectionVariable current = randomSelection();
+			current.toSelectionModel( selectionModel, idmap );
+			final SelectionVariable target = ran.nextInt( 5 ) == 0 ? current.copy() : edit( current );
+
+			selectionModel.reset();
+			target.toSelectionModel( selectionModel, idmap, scan() );
+			assertSameSelection( "Selection model", target, scan() );
+
+			final int changes = difference( current.selectedVertices.asBitSet(), target.selectedVertices.asBitSet() )
+					+ difference( current.selectedEdges.asBitSet(), target.selectedEdges.asBitSet() );
+			assertEquals( "Objects passed to the selection model", changes, selectionModel.passed );
+			assertTrue( "Bulk calls", selectionModel.calls <= 4 );
+			assertEquals( "Clear calls", 0, selectionModel.clears );
+			assertEquals( "Notifications", changes > 0 ? 1 : 0, selectionModel.notifications );
+		}
+	}
+
+	@Test
+	public void testClearingApply()
+	{
+		for ( int i = 0; i < 50; i++ )
+		{
+			final SelectionVariable target = randomSelection();
+			selectionModel.reset();
+			target.toSelectionModel( selectionModel, idmap );
+			assertSameSelection( "Selection model", target, scan() );
+			assertTrue( "Notifications", selectionModel.notifications <= 1 );
+		}
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+		for ( int i = 0; i < 30; i++ )
+		{
+			randomSelection().toSelectionModel( selectionModel, idmap );
+			final SelectionVariable before = scan();
+
+			// Applying the selection itself does not touch the model.
+			selectionModel.reset();
+			parser.compile( "selection" ).apply();
+			assertEquals( "Objects passed for an unchanged selection", 0, selectionModel.passed );
+			assertEquals( "Notifications for an unchanged selection", 0, selectionModel.notifications );
+			assertSameSelection( "Unchanged selection", before, scan() );
+
+			selectionModel.reset();
+			parser.compile( "vertexSelection" ).apply();
+			final SelectionVariable vertices = new SelectionVariable( before.selectedVertices.asBitSet(), new BitSet() );
+			assertSameSelection( "vertexSelection", vertices, scan() );
+			assertEquals( "Objects passed for vertexSelection", before.edgeCount(), selectionModel.passed );
+			assertEquals( "Notifications for vertexSelection", before.edgeCount() > 0 ? 1 : 0, selectionModel.notifications );
+
+			selectionModel.reset();
+			parser.compile( "morph( selection, ('toVertex', 'outgoingEdges') )" ).apply();
+			final SelectionVariable morphed = new SelectionMorpher<>( graph, idmap ).morph( vertices,
+					Arrays.asList( Morpher.TO_VERTEX, Morpher.OUTGOING_EDGES ) );
+			assertSameSelection( "Morphed selection", morphed, scan() );
+			assertEquals( "Objects passed for the morph", morphed.edgeCount(), selectionModel.passed );
+		}
+		parser.close();
+	}
+
+	/**
+	 * Returns the number of bits set in only one of two bitsets.
+	 */
+	private static int difference( final BitSet a, final BitSet b )
+	{
+		final BitSet xor = ( BitSet ) a.clone();
+		xor.xor( b );
+		return xor.cardinality();
+	}
+
+	/**
+	 * Returns the objects of the graph for which the selection model says
+	 * they are selected.
+	 */
+	private SelectionVariable scan()
+	{
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( selectionModel.isSelected( spot ) )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( selectionModel.isSelected( link ) )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Returns a copy of a selection with a few objects added and removed.
+	 */
+	private SelectionVariable edit( final SelectionVariable selection )
+	{
+		final BitSet vertices = ( BitSet ) selection.selectedVertices.asBitSet().clone();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextInt( 20 ) == 0 )
+				vertices.flip( idmap.getVertexId( spot ) );
+		final BitSet edges = ( BitSet ) selection.selectedEdges.asBitSet().clone();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextInt( 20 ) == 0 )
+				edges.flip( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = ran.nextDouble();
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+
+	/**
+	 * A selection model that counts the bulk calls made to it, the objects
+	 * passed to them, and the notifications of its listeners.
+	 */
+	private static class CountingSelectionModel implements SelectionModel< Spot, Link >, SelectionListener
+	{
+
+		private final SelectionModel< Spot, Link > model;
+
+		private int calls;
+
+		private int passed;
+
+		private int clears;
+
+		private int notifications;
+
+		public CountingSelectionModel( final SelectionModel< Spot, Link > model )
+		{
+			this.model = model;
+			model.listeners().add( this );
+		}
+
+		public void reset()
+		{
+			calls = 0;
+			passed = 0;
+			clears = 0;
+			notifications = 0;
+		}
+
+		@Override
+		public void selectionChanged()
+		{
+			notifications++;
+		}
+
+		@Override
+		public boolean setVerticesSelected( final Collection< Spot > vertices, final boolean selected )
+		{
+			calls++;
+			passed += vertices.size();
+			return model.setVerticesSelected( vertices, selected );
+		}
+
+		@Override
+		public boolean setEdgesSelected( final Collection< Link > edges, final boolean selected )
+		{
+			calls++;
+			passed += edges.size();
+			return model.setEdgesSelected( edges, selected );
+		}
+
+		@Override
+		public boolean clearSelection()
+		{
+			clears++;
+			return model.clearSelection();
+		}
+
+		@Override
+		public boolean isSelected( final Spot vertex )
+		{
+			return model.isSelected( vertex );
+		}
+
+		@Override
+		public boolean isSelected( final Link edge )
+		{
+			return model.isSelected( edge );
+		}
+
+		@Override
+		public void setSelected( final Spot vertex, final boolean selected )
+		{
+			model.setSelected( vertex, selected );
+		}
+
+		@Override
+		public void setSelected( final Link edge, final boolean selected )
+		{
+			model.setSelected( edge, selected );
+		}
+
+		@Override
+		public void toggle( final Spot vertex )
+		{
+			model.toggle( vertex );
+		}
+
+		@Override
+		public void toggle( final Link edge )
+		{
+			model.toggle( edge );
+		}
+
+		@Override
+		public RefSet< Spot > getSelectedVertices()
+		{
+			return model.getSelectedVertices();
+		}
+
+		@Override
+		public RefSet< Link > getSelectedEdges()
+		{
+			return model.getSelectedEdges();
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return model.isEmpty();
+		}
+
+		@Override
+		public Listeners< SelectionListener > listeners()
+		{
+			return model.listeners();
+		}
+
+		@Override
+		public void resumeListeners()
+		{
+			model.resumeListeners();
+		}
+
+		@Override
+		public void pauseListeners()
+		{
+			model.pauseListeners();
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the {@link SelectionMirror} and the selection variables against
+ * the objects selected in the selection model, as the selection and the
+ * graph are edited.
+ */
+public class SelectionMirrorTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private DefaultSelectionModel< Spot, Link > selectionModel;
+
+	private ModelVersion version;
+
+	private SelectionMirror< Spot, Link > mirror;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 43l );
+		for ( int i = 0; i < 200; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+		for ( int i = 0; i < 200; i++ )
+			addRandomLink();
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+		mirror = new SelectionMirror<>( selectionModel, idmap, version );
+	}
+
+	@After
+	public void tearDown()
+	{
+		mirror.close();
+		version.close();
+	}
+
+	@Test
+	public void testSelectionEdits()
+	{
+		for ( int i = 0; i < 200; i++ )
+		{
+			final long generation = mirror.generation();
+			final boolean changed = editSelection();
+			if ( changed )
+				assertTrue( "Generation after an edit", mirror.generation() > generation );
+			assertMirror();
+		}
+	}
+
+	@Test
+	public void testBuildCount()
+	{
+		editSelection();
+		assertMirror();
+		final int builds = mirror.getBuildCount();
+		assertMirror();
+		assertMirror();
+		assertEquals( "The mirror should not be read again without changes.", builds, mirror.getBuildCount() );
+
+		selectionModel.clearSelection();
+		selectionModel.setSelected( graph.vertices().iterator().next(), true );
+		assertMirror();
+		assertEquals( "The mirror should be read again after a change.", builds + 1, mirror.getBuildCount() );
+	}
+
+	@Test
+	public void testCopyOnWrite()
+	{
+		while ( !editSelection() )
+			;
+		final SelectionVariable expected = scan();
+		final SelectionVariable all = SelectionVariable.fromGraph( graph, idmap );
+
+		// Writing to a selection read from the mirror does not change it.
+		mirror.get().inPlaceAdd( all );
+		assertSameSelection( "After an addition", expected, mirror.get() );
+		mirror.get().inPlaceSub( all );
+		assertSameSelection( "After a subtraction", expected, mirror.get() );
+		mirror.get().inPlaceAnd( new SelectionVariable( new BitSet(), new BitSet() ) );
+		assertSameSelection( "After an intersection", expected, mirror.get() );
+		mirror.get().clearVertices();
+		mirror.get().clearEdges();
+		assertSameSelection( "After a clear", expected, mirror.get() );
+	}
+
+	@Test
+	public void testApplied()
+	{
+		for ( int i = 0; i < 20; i++ )
+		{
+			editSelection();
+			final SelectionVariable selection = randomSelection();
+			selection.toSelectionModel( selectionModel, idmap, mirror.get() );
+			mirror.applied( selection );
+			final int builds = mirror.getBuildCount();
+			assertMirror();
+			assertEquals( "An applied selection should not be read again.", builds, mirror.getBuildCount() );
+			assertSameSelection( "Applied selection", selection, mirror.get() );
+
+			// Writing to the applied selection does not change the mirror.
+			selection.inPlaceAdd( SelectionVariable.fromGraph( graph, idmap ) );
+			assertMirror();
+		}
+	}
+
+	@Test
+	public void testGraphEdits()
+	{
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < 100; i++ )
+		{
+			editSelection();
+			assertMirror();
+			final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+			spots.addAll( graph.vertices() );
+			switch ( ran.nextInt( 3 ) )
+			{
+			case 0:
+				graph.remove( spots.get( ran.nextInt( spots.size() ), ref ) );
+				break;
+			case 1:
+				// Reuses the ID of a removed spot, if any.
+				graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+				break;
+			default:
+				addRandomLink();
+				break;
+			}
+			assertMirror();
+		}
+		graph.releaseRef( ref );
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < 50; i++ )
+		{
+			editSelection();
+			if ( ran.nextInt( 4 ) == 0 )
+			{
+				final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+				spots.addAll( graph.vertices() );
+				graph.remove( spots.get( ran.nextInt( spots.size() ), ref ) );
+			}
+			final SelectionVariable selection = scan();
+			assertSameSelection( "selection", selection, parser.compile( "selection" ).evaluate() );
+			assertSameSelection( "vertexSelection", new SelectionVariable( selection.selectedVertices.asBitSet(), new BitSet() ),
+					parser.compile( "vertexSelection" ).evaluate() );
+			assertSameSelection( "edgeSelection", new SelectionVariable( new BitSet(), selection.selectedEdges.asBitSet() ),
+					parser.compile( "edgeSelection" ).evaluate() );
+
+			// Applying an expression writes the selection read back next.
+			if ( ran.nextBoolean() )
+			{
+				parser.compile( "morph( selection, ('toVertex', 'outgoingEdges') )" ).apply();
+				assertSameSelection( "Applied expression", scan(), parser.compile( "selection" ).evaluate() );
+			}
+		}
+		graph.releaseRef( ref );
+		parser.close();
+	}
+
+	/**
+	 * Checks the selection of the mirror against the selection model.
+	 */
+	private void assertMirror()
+	{
+		assertSameSelection( "Mirror", scan(), mirror.get() );
+	}
+
+	/**
+	 * Returns the objects of the graph for which the selection model says
+	 * they are selected.
+	 */
+	private SelectionVariable scan()
+	{
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( selectionModel.isSelected( spot ) )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( selectionModel.isSelected( link ) )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Makes a random edit of the selection.
+	 *
+	 * @return whether the selection changed.
+	 */
+	private boolean editSelection()
+	{
+		final SelectionVariable before = scan();
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+		links.addAll( graph.edges() );
+		final Spot sref = graph.vertexRef();
+		final Link lref = graph.edgeRef();
+		switch ( ran.nextInt( 6 ) )
+		{
+		case 0:
+			selectionModel.setSelected( spots.get( ran.nextInt( spots.size() ), sref ), ran.nextBoolean() );
+			break;
+		case 1:
+			if ( !links.isEmpty() )
+				selectionModel.setSelected( links.get( ran.nextInt( links.size() ), lref ), ran.nextBoolean() );
+			break;
+		case 2:
+			selectionModel.toggle( spots.get( ran.nextInt( spots.size() ), sref ) );
+			break;
+		case 3:
+		{
+			final RefList< Spot > some = RefCollections.createRefList( graph.vertices() );
+			for ( final Spot spot : spots )
+				if ( ran.nextInt( 10 ) == 0 )
+					some.add( spot );
+			selectionModel.setVerticesSelected( some, ran.nextBoolean() );
+			break;
+		}
+		case 4:
+		{
+			final RefList< Link > some = RefCollections.createRefList( graph.edges() );
+			for ( final Link link : links )
+				if ( ran.nextInt( 10 ) == 0 )
+					some.add( link );
+			selectionModel.setEdgesSelected( some, ran.nextBoolean() );
+			break;
+		}
+		default:
+			if ( ran.nextInt( 4 ) == 0 )
+				selectionModel.clearSelection();
+			break;
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( lref );
+		final SelectionVariable after = scan();
+		return !before.selectedVertices.asBitSet().equals( after.selectedVertices.asBitSet() )
+				|| !before.selectedEdges.asBitSet().equals( after.selectedEdges.asBitSet() );
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = ran.nextDouble();
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private void addRandomLink()
+	{
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot source = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		final Spot target = spots.get( ran.nextInt( spots.size() ), graph.vertexRef() );
+		if ( !source.equals( target ) && graph.getEdge( source, target ) == null )
+			graph.addEdge( source, target ).init();
+		graph.releaseRef( source );
+		graph.releaseRef( target );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+}
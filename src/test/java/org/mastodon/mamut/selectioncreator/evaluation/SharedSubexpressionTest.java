@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.feature.Dimension;
+import org.mastodon.feature.DoubleScalarFeature;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.SelectionParser.ExecutionMode;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks expressions in which sub-expressions are repeated, and thus
+ * evaluated once and shared, against the results combined from scans of the
+ * feature values and of the selection. The results of the terms are checked
+ * again afterwards, to make sure the sharing did not modify them.
+ */
+public class SharedSubexpressionTest
+{
+
+	private static final String A = "(vertexFeature('X') > 50)";
+
+	private static final String B = "(vertexFeature('X') < 70)";
+
+	private static final String L = "(edgeFeature('L') > 30)";
+
+	private static final String M = "morph( vertexFeature('X') > 50, ('toVertex', 'outgoingEdges') )";
+
+	private static final String N = "successors( selection, 1 )";
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private DoubleScalarFeature< Spot > x;
+
+	private DoubleScalarFeature< Link > l;
+
+	private DefaultSelectionModel< Spot, Link > selectionModel;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 53l );
+		for ( int i = 0; i < 300; i++ )
+			graph.addVertex().init( ran.nextInt( 10 ), new double[ 3 ], 1. );
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		for ( int i = 0; i < 400; i++ )
+		{
+			final Spot source = spots.get( ran.nextInt( spots.size() ), sref );
+			final Spot target = spots.get( ran.nextInt( spots.size() ), tref );
+			if ( source.getTimepoint() < target.getTimepoint() && graph.getEdge( source, target ) == null )
+				graph.addEdge( source, target ).init();
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( tref );
+
+		x = new DoubleScalarFeature<>( "X", Dimension.NONE, Dimension.NONE_UNITS, graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+			x.set( spot, ran.nextInt( 101 ) );
+		l = new DoubleScalarFeature<>( "L", Dimension.NONE, Dimension.NONE_UNITS, graph.edges().getRefPool() );
+		for ( final Link link : graph.edges() )
+			l.set( link, ran.nextInt( 101 ) );
+		model.getFeatureModel().declareFeature( x );
+		model.getFeatureModel().declareFeature( l );
+
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, 9 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+	}
+
+	@Test
+	public void testRepeatedTerms()
+	{
+		for ( int i = 0; i < 10; i++ )
+		{
+			selectionModel.clearSelection();
+			randomSelection().toSelectionModel( selectionModel, idmap );
+			for ( final ExecutionMode mode : ExecutionMode.values() )
+			{
+				parser.setExecutionMode( mode );
+				for ( final Map.Entry< String, Sets > entry : expressions().entrySet() )
+				{
+					final String expression = entry.getKey();
+					// Twice, the second time possibly from the result cache.
+					assertSelection( mode + " " + expression, entry.getValue(), parser.compile( expression ).evaluate() );
+					assertSelection( mode + " " + expression, entry.getValue(), parser.compile( expression ).evaluate() );
+				}
+				assertTerms( mode );
+			}
+		}
+	}
+
+	@Test
+	public void testEdits()
+	{
+		final String expression = "(" + M + " - " + L + ") | (" + M + " & " + L + ")";
+		for ( int i = 0; i < 20; i++ )
+		{
+			// Values change between the runs.
+			for ( final Spot spot : graph.vertices() )
+				if ( ran.nextInt( 10 ) == 0 )
+					x.set( spot, ran.nextInt( 101 ) );
+			model.getFeatureModel().declareFeature( x );
+			for ( final ExecutionMode mode : ExecutionMode.values() )
+			{
+				parser.setExecutionMode( mode );
+				assertSelection( mode + " " + expression, morph(), parser.compile( expression ).evaluate() );
+				assertTerms( mode );
+			}
+		}
+	}
+
+	/**
+	 * Returns the expressions to check, with their expected results.
+	 */
+	private Map< String, Sets > expressions()
+	{
+		final Sets a = vertexScan( 50, Double.POSITIVE_INFINITY );
+		final Sets b = vertexScan( Double.NEGATIVE_INFINITY, 70 );
+		final Sets lt = edgeScan();
+		final Sets s = selection();
+		final Sets m = morph();
+		final Sets n = successors();
+		final Sets none = new Sets();
+
+		final Map< String, Sets > expressions = new LinkedHashMap<>();
+		expressions.put( A + " | " + A, a );
+		expressions.put( A + " & " + A, a );
+		expressions.put( A + " - " + A, none );
+		expressions.put( A + " & (" + A + " - " + B + ")", a.minus( b ) );
+		expressions.put( A + " | (" + A + " - " + B + ")", a );
+		expressions.put( "(" + A + " - " + B + ") | (" + A + " - " + B + ")", a.minus( b ) );
+		expressions.put( "(" + A + " - " + B + ") - (" + A + " - " + B + ")", none );
+		expressions.put( "(" + A + " & " + B + ") | ((" + A + " & " + B + ") - " + A + ")", a.and( b ) );
+		expressions.put( "selection - (selection & " + A + ")", s.minus( a ) );
+		expressions.put( "(selection & (selection - " + A + ")) | selection", s );
+		expressions.put( "(selection - selection) | (" + A + " - selection)", a.minus( s ) );
+		expressions.put( "(" + M + " & " + B + ") | " + M, m );
+		expressions.put( M + " - " + M, none );
+		expressions.put( M + " - (" + M + " & " + L + ")", m.minus( lt ) );
+		expressions.put( "(" + N + " & " + L + ") | (" + N + " - " + L + ")", n );
+		expressions.put( N + " - " + N, none );
+		expressions.put( "((" + L + " & selection) | (" + L + " - selection)) | " + L, lt );
+		return expressions;
+	}
+
+	/**
+	 * Checks the terms of the expressions on their own, after they were
+	 * shared.
+	 */
+	private void assertTerms( final ExecutionMode mode )
+	{
+		assertSelection( mode + " " + A, vertexScan( 50, Double.POSITIVE_INFINITY ), parser.compile( A ).evaluate() );
+		assertSelection( mode + " " + B, vertexScan( Double.NEGATIVE_INFINITY, 70 ), parser.compile( B ).evaluate() );
+		assertSelection( mode + " " + L, edgeScan(), parser.compile( L ).evaluate() );
+		assertSelection( mode + " " + M, morph(), parser.compile( M ).evaluate() );
+		assertSelection( mode + " " + N, successors(), parser.compile( N ).evaluate() );
+		assertSelection( mode + " selection", selection(), parser.compile( "selection" ).evaluate() );
+	}
+
+	/**
+	 * Returns the spots with an X value strictly between two bounds.
+	 */
+	private Sets vertexScan( final double min, final double max )
+	{
+		final Sets sets = new Sets();
+		for ( final Spot spot : graph.vertices() )
+			if ( x.value( spot ) > min && x.value( spot ) < max )
+				sets.vertices.set( idmap.getVertexId( spot ) );
+		return sets;
+	}
+
+	/**
+	 * Returns the links with an L value above 30.
+	 */
+	private Sets edgeScan()
+	{
+		final Sets sets = new Sets();
+		for ( final Link link : graph.edges() )
+			if ( l.value( link ) > 30 )
+				sets.edges.set( idmap.getEdgeId( link ) );
+		return sets;
+	}
+
+	/**
+	 * Returns the spots with an X value above 50, and their outgoing links.
+	 */
+	private Sets morph()
+	{
+		final Sets sets = new Sets();
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( x.value( spot ) <= 50 )
+				continue;
+			sets.vertices.set( idmap.getVertexId( spot ) );
+			for ( final Link link : spot.outgoingEdges() )
+				sets.edges.set( idmap.getEdgeId( link ) );
+		}
+		return sets;
+	}
+
+	/**
+	 * Returns the objects one step after the selection: the outgoing links of
+	 * the selected spots and their targets, and the targets of the selected
+	 * links.
+	 */
+	private Sets successors()
+	{
+		final Sets sets = new Sets();
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( !selectionModel.isSelected( spot ) )
+				continue;
+			for ( final Link link : spot.outgoingEdges() )
+			{
+				sets.edges.set( idmap.getEdgeId( link ) );
+				sets.vertices.set( idmap.getVertexId( link.getTarget( ref ) ) );
+			}
+		}
+		for ( final Link link : graph.edges() )
+			if ( selectionModel.isSelected( link ) )
+				sets.vertices.set( idmap.getVertexId( link.getTarget( ref ) ) );
+		graph.releaseRef( ref );
+		return sets;
+	}
+
+	/**
+	 * Returns the objects selected in the selection model.
+	 */
+	private Sets selection()
+	{
+		final Sets sets = new Sets();
+		for ( final Spot spot : graph.vertices() )
+			if ( selectionModel.isSelected( spot ) )
+				sets.vertices.set( idmap.getVertexId( spot ) );
+		for ( final Link link : graph.edges() )
+			if ( selectionModel.isSelected( link ) )
+				sets.edges.set( idmap.getEdgeId( link ) );
+		return sets;
+	}
+
+	private SelectionVariable randomSelection()
+	{
+		final double p = ran.nextDouble() * 0.5;
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSelection( final String message, final Sets expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.vertices, actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.edges, actual.selectedEdges.asBitSet() );
+	}
+
+	/**
+	 * The vertex and edge IDs of an expected result.
+	 */
+	private static class Sets
+	{
+
+		private final BitSet vertices = new BitSet();
+
+		private final BitSet edges = new BitSet();
+
+		private Sets and( final Sets other )
+		{
+			final Sets sets = copy();
+			sets.vertices.and( other.vertices );
+			sets.edges.and( other.edges );
+			return sets;
+		}
+
+		private Sets minus( final Sets other )
+		{
+			final Sets sets = copy();
+			sets.vertices.andNot( other.vertices );
+			sets.edges.andNot( other.edges );
+			return sets;
+		}
+
+		private Sets copy()
+		{
+			final Sets sets = new Sets();
+			sets.vertices.or( vertices );
+			sets.edges.or( edges );
+			return sets;
+		}
+	}
+}
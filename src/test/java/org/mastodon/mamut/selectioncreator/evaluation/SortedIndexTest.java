@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.DoublePredicate;
+
+import org.junit.Test;
+
+/**
+ * Checks the selections of the {@link SortedIndex} against a scan of the
+ * column values, for columns with many duplicates, already sorted columns,
+ * <code>NaN</code> and infinite values, and sizes around the insertion sort
+ * threshold.
+ */
+public class SortedIndexTest
+{
+
+	private static final int[] SIZES = new int[] { 0, 1, 2, 31, 32, 33, 100, 5000 };
+
+	@Test
+	public void testRandomValues()
+	{
+		final Random ran = new Random( 7l );
+		for ( final int size : SIZES )
+		{
+			final double[] values = new double[ size ];
+			for ( int i = 0; i < size; i++ )
+				values[ i ] = ran.nextGaussian() * 100.;
+			assertSelections( values );
+		}
+	}
+
+	@Test
+	public void testDuplicates()
+	{
+		final Random ran = new Random( 11l );
+		for ( final int size : SIZES )
+		{
+			final double[] values = new double[ size ];
+			for ( int i = 0; i < size; i++ )
+				values[ i ] = ran.nextInt( 5 );
+			assertSelections( values );
+			Arrays.fill( values, 3. );
+			assertSelections( values );
+		}
+	}
+
+	@Test
+	public void testSortedValues()
+	{
+		for ( final int size : SIZES )
+		{
+			final double[] increasing = new double[ size ];
+			final double[] decreasing = new double[ size ];
+			for ( int i = 0; i < size; i++ )
+			{
+				increasing[ i ] = i;
+				decreasing[ i ] = size - i;
+			}
+			assertSelections( increasing );
+			assertSelections( decreasing );
+		}
+	}
+
+	@Test
+	public void testSpecialValues()
+	{
+		final Random ran = new Random( 13l );
+		final double[] specials = new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0., 0. };
+		for ( final int size : SIZES )
+		{
+			final double[] values = new double[ size ];
+			for ( int i = 0; i < size; i++ )
+				values[ i ] = ran.nextBoolean() ? specials[ ran.nextInt( specials.length ) ] : ran.nextInt( 20 ) - 10;
+			assertSelections( values );
+		}
+	}
+
+	private static void assertSelections( final double[] values )
+	{
+		final SortedIndex index = new SortedIndex( values );
+		int n = 0;
+		for ( final double v : values )
+			if ( !Double.isNaN( v ) )
+				n++;
+		assertEquals( "Unexpected number of indexed values.", n, index.size() );
+
+		final double[] thresholds = new double[] { Double.NEGATIVE_INFINITY, -150., -10., -0.5, 0., 1., 3., 3.5, 50., Double.POSITIVE_INFINITY };
+		for ( final double t : thresholds )
+		{
+			assertSelection( values, index, IntervalSet.of( Comparison.LESS_THAN, t ), v -> v < t );
+			assertSelection( values, index, IntervalSet.of( Comparison.LESS_THAN_OR_EQUAL, t ), v -> v <= t );
+			assertSelection( values, index, IntervalSet.of( Comparison.GREATER_THAN, t ), v -> v > t );
+			assertSelection( values, index, IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, t ), v -> v >= t );
+			assertSelection( values, index, IntervalSet.of( Comparison.EQUAL, t ), v -> v == t );
+			assertSelection( values, index, IntervalSet.of( Comparison.NOT_EQUAL, t ), v -> v != t );
+			assertSelection( values, index, IntervalSet.between( t, t + 4. ), v -> v >= t && v <= t + 4. );
+			assertSelection( values, index, IntervalSet.between( t, t - 4. ), v -> v >= t && v <= t - 4. );
+			assertSelection( values, index, IntervalSet.of( Comparison.LESS_THAN, t ).or( IntervalSet.of( Comparison.GREATER_THAN_OR_EQUAL, t + 2. ) ),
+					v -> v < t || v >= t + 2. );
+		}
+	}
+
+	/**
+	 * Compares the selection and the count of an index with a scan. Values
+	 * that are <code>NaN</code> are never selected.
+	 */
+	private static void assertSelection( final double[] values, final SortedIndex index, final IntervalSet intervals, final DoublePredicate predicate )
+	{
+		final BitSet expected = new BitSet();
+		for ( int id = 0; id < values.length; id++ )
+			if ( !Double.isNaN( values[ id ] ) && predicate.test( values[ id ] ) )
+				expected.set( id );
+
+		final BitSet actual = new BitSet();
+		index.select( intervals, actual );
+		final String message = "Values in " + intervals + " among " + values.length + " values";
+		assertEquals( message, expected, actual );
+		assertEquals( message, expected.cardinality(), index.count( intervals ) );
+	}
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the <code>successors</code> and <code>predecessors</code> of
+ * selections against a breadth-first search limited in depth, started from
+ * each selected spot and link.
+ */
+public class SuccessorsTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private static final int[] DEPTHS = new int[] { -1, 0, 1, 2, 3, 5, 100 };
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private ModelVersion version;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 37l );
+		version = new ModelVersion( graph, model.getFeatureModel(), model.getTagSetModel() );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testMorpher()
+	{
+		// Links mostly go forward in time, with a few cycles.
+		addRandomGraph( 400, 600, 20 );
+		final SelectionMorpher< Spot, Link > snapshot = new SelectionMorpher<>( graph, idmap, null, version );
+		final SelectionMorpher< Spot, Link > oneOff = new SelectionMorpher<>( graph, idmap );
+		for ( int i = 0; i < 50; i++ )
+		{
+			final SelectionVariable selection = randomSelection( ran.nextDouble() * ran.nextDouble() );
+			for ( final int depth : DEPTHS )
+			{
+				final SelectionVariable forward = search( selection, true, depth );
+				assertSameSelection( "Successors at depth " + depth, forward, snapshot.successors( selection, depth ) );
+				assertSameSelection( "Successors at depth " + depth, forward, oneOff.successors( selection, depth ) );
+				final SelectionVariable backward = search( selection, false, depth );
+				assertSameSelection( "Predecessors at depth " + depth, backward, snapshot.predecessors( selection, depth ) );
+				assertSameSelection( "Predecessors at depth " + depth, backward, oneOff.predecessors( selection, depth ) );
+			}
+		}
+	}
+
+	@Test
+	public void testLargeLevels()
+	{
+		// Levels large enough to be expanded in several chunks.
+		final int width = 20000;
+		final RefList< Spot > previous = RefCollections.createRefList( graph.vertices() );
+		final Spot ref = graph.vertexRef();
+		for ( int t = 0; t < 4; t++ )
+		{
+			final RefList< Spot > level = RefCollections.createRefList( graph.vertices() );
+			for ( int i = 0; i < width; i++ )
+			{
+				final Spot spot = graph.addVertex().init( t, new double[ 3 ], 1. );
+				level.add( spot );
+				if ( !previous.isEmpty() && ran.nextInt( 10 ) > 0 )
+					graph.addEdge( previous.get( ran.nextInt( width ), ref ), spot ).init();
+			}
+			previous.clear();
+			previous.addAll( level );
+		}
+		graph.releaseRef( ref );
+
+		final SelectionMorpher< Spot, Link > morpher = new SelectionMorpher<>( graph, idmap, null, version );
+		final SelectionVariable selection = randomSelection( 0.5 );
+		for ( final int depth : new int[] { 1, 2, 4 } )
+		{
+			assertSameSelection( "Successors at depth " + depth, search( selection, true, depth ), morpher.successors( selection, depth ) );
+			assertSameSelection( "Predecessors at depth " + depth, search( selection, false, depth ), morpher.predecessors( selection, depth ) );
+		}
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		addRandomGraph( 300, 400, 5 );
+		final DefaultSelectionModel< Spot, Link > selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+		for ( int i = 0; i < 20; i++ )
+		{
+			final SelectionVariable selection = randomSelection( 0.05 );
+			selectionModel.clearSelection();
+			selection.toSelectionModel( selectionModel, idmap );
+			for ( final int depth : new int[] { 0, 1, 3 } )
+			{
+				assertSameSelection( "successors( selection, " + depth + " )", search( selection, true, depth ),
+						parser.compile( "successors( selection, " + depth + " )" ).evaluate() );
+				assertSameSelection( "predecessors( selection, " + depth + " )", search( selection, false, depth ),
+						parser.compile( "predecessors( selection, " + depth + " )" ).evaluate() );
+			}
+
+			// The graph is edited between runs.
+			addRandomGraph( 5, 10, 1 );
+		}
+		parser.close();
+	}
+
+	/**
+	 * Returns the spots and links reached in at most the specified number of
+	 * steps, by a search started from each selected spot and from the end of
+	 * each selected link, which is one step away.
+	 */
+	private SelectionVariable search( final SelectionVariable seeds, final boolean forward, final int depth )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		if ( depth <= 0 )
+			return new SelectionVariable( vertices, edges );
+		final Spot ref = graph.vertexRef();
+		for ( final Spot spot : seeds.vertices( idmap.vertexIdBimap() ) )
+			search( spot, forward, depth, vertices, edges );
+		for ( final Link link : seeds.edges( idmap.edgeIdBimap() ) )
+		{
+			final Spot end = forward ? link.getTarget( ref ) : link.getSource( ref );
+			vertices.set( idmap.getVertexId( end ) );
+			search( end, forward, depth - 1, vertices, edges );
+		}
+		graph.releaseRef( ref );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	/**
+	 * Adds the spots and links reached from one spot in at most the
+	 * specified number of steps, by a breadth-first search.
+	 */
+	private void search( final Spot start, final boolean forward, final int depth, final BitSet vertices, final BitSet edges )
+	{
+		final BitSet visited = new BitSet();
+		final Deque< int[] > queue = new ArrayDeque<>();
+		final int startId = idmap.getVertexId( start );
+		visited.set( startId );
+		queue.add( new int[] { startId, 0 } );
+		final Spot vref = graph.vertexRef();
+		final Spot ref = graph.vertexRef();
+		while ( !queue.isEmpty() )
+		{
+			final int[] head = queue.poll();
+			if ( head[ 1 ] >= depth )
+				continue;
+			final Spot spot = idmap.getVertex( head[ 0 ], vref );
+			for ( final Link link : forward ? spot.outgoingEdges() : spot.incomingEdges() )
+			{
+				edges.set( idmap.getEdgeId( link ) );
+				final int next = idmap.getVertexId( forward ? link.getTarget( ref ) : link.getSource( ref ) );
+				vertices.set( next );
+				if ( !visited.get( next ) )
+				{
+					visited.set( next );
+					queue.add( new int[] { next, head[ 1 ] + 1 } );
+				}
+			}
+		}
+		graph.releaseRef( vref );
+		graph.releaseRef( ref );
+	}
+
+	/**
+	 * Adds spots and links that go forward in time, and a few links that go
+	 * backward in time.
+	 */
+	private void addRandomGraph( final int nSpots, final int nLinks, final int nBackward )
+	{
+		for ( int i = 0; i < nSpots; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot sref = graph.vertexRef();
+		final Spot tref = graph.vertexRef();
+		for ( int i = 0; i < nLinks + nBackward; i++ )
+		{
+			final Spot source = spots.get( ran.nextInt( spots.size() ), sref );
+			final Spot target = spots.get( ran.nextInt( spots.size() ), tref );
+			final boolean backward = i >= nLinks;
+			if ( ( source.getTimepoint() < target.getTimepoint() ) != backward || source.equals( target ) )
+				continue;
+			if ( graph.getEdge( source, target ) == null )
+				graph.addEdge( source, target ).init();
+		}
+		graph.releaseRef( sref );
+		graph.releaseRef( tref );
+	}
+
+	private SelectionVariable randomSelection( final double p )
+	{
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < p )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < p )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+}
@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.RefPool;
+import org.mastodon.collection.RefCollection;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.evaluation.TagComparisonOperator.TagTest;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Checks the {@link TagIndex} against the tags read from the model, and that
+ * the {@link TagIndexCache} drops the indices after objects are tagged or the
+ * tag-sets change.
+ */
+public class TagIndexTest
+{
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private TagSetModel< Spot, Link > tagSetModel;
+
+	private TagSet tagSet;
+
+	private ModelVersion version;
+
+	private TagIndexCache cache;
+
+	private BitSet vertexDomain;
+
+	private BitSet edgeDomain;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		final Random ran = new Random( 23l );
+		Spot previous = null;
+		for ( int i = 0; i < 300; i++ )
+		{
+			final Spot spot = graph.addVertex().init( i / 10, new double[ 3 ], 1. );
+			if ( previous != null && ran.nextInt( 4 ) != 0 )
+				graph.addEdge( previous, spot ).init();
+			previous = spot;
+		}
+
+		tagSetModel = model.getTagSetModel();
+		final TagSetStructure tss = new TagSetStructure();
+		final TagSet s = tss.createTagSet( "S" );
+		s.createTag( "a", Color.RED.getRGB() );
+		s.createTag( "b", Color.GREEN.getRGB() );
+		s.createTag( "c", Color.BLUE.getRGB() );
+		tss.createTagSet( "Q" ).createTag( "a", Color.WHITE.getRGB() );
+		tagSetModel.setTagSetStructure( tss );
+		// Re-acquire the tag-sets, because the model stores a copy.
+		tagSet = tagSetModel.getTagSetStructure().getTagSets().get( 0 );
+		final Tag q = tagSetModel.getTagSetStructure().getTagSets().get( 1 ).getTags().get( 0 );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < 3 )
+				tagSetModel.getVertexTags().set( spot, tagSet.getTags().get( i ) );
+			if ( ran.nextBoolean() )
+				tagSetModel.getVertexTags().set( spot, q );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final int i = ran.nextInt( 5 );
+			if ( i < 3 )
+				tagSetModel.getEdgeTags().set( link, tagSet.getTags().get( i ) );
+		}
+
+		vertexDomain = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( idmap.getVertexId( spot ) % 3 == 0 )
+				vertexDomain.set( idmap.getVertexId( spot ) );
+		edgeDomain = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( idmap.getEdgeId( link ) % 2 == 0 )
+				edgeDomain.set( idmap.getEdgeId( link ) );
+
+		version = new ModelVersion( graph, model.getFeatureModel(), tagSetModel );
+		cache = new TagIndexCache( version );
+	}
+
+	@After
+	public void tearDown()
+	{
+		version.close();
+	}
+
+	@Test
+	public void testVertexIndex()
+	{
+		final ObjTagMap< Spot, Tag > tags = tagSetModel.getVertexTags().tags( tagSet );
+		final TagIndex index = TagIndex.build( tagSet, tags, graph.vertices(), graph.vertices().getRefPool(), version );
+		assertIndex( index, tags, graph.vertices(), graph.vertices().getRefPool(), vertexDomain );
+	}
+
+	@Test
+	public void testEdgeIndex()
+	{
+		final ObjTagMap< Link, Tag > tags = tagSetModel.getEdgeTags().tags( tagSet );
+		final TagIndex index = TagIndex.build( tagSet, tags, graph.edges(), graph.edges().getRefPool(), version );
+		assertIndex( index, tags, graph.edges(), graph.edges().getRefPool(), edgeDomain );
+	}
+
+	@Test
+	public void testCache()
+	{
+		final ObjTagMap< Spot, Tag > tags = tagSetModel.getVertexTags().tags( tagSet );
+		final TagIndex index = index( tags );
+		assertSame( "Index after no change", index, index( tags ) );
+		assertSame( "Index after no change", index, cache.getIfPresent( tags ) );
+
+		// Mastodon notifies a graph change after objects are tagged.
+		final Spot spot = graph.vertices().iterator().next();
+		final Tag tag = tagSet.getTags().get( 2 );
+		tags.set( spot, tag );
+		graph.notifyGraphChanged();
+		assertNull( "Index after objects were tagged", cache.getIfPresent( tags ) );
+		assertEquals( "The new tag should be read.", true, index( tags ).test( graph.vertices().getRefPool().getId( spot ), TagTest.EQUAL, tag ) );
+		assertIndex( index( tags ), tags, graph.vertices(), graph.vertices().getRefPool(), vertexDomain );
+
+		tags.remove( spot );
+		graph.notifyGraphChanged();
+		assertEquals( "The removed tag should be read.", true, index( tags ).test( graph.vertices().getRefPool().getId( spot ), TagTest.UNSET, null ) );
+
+		graph.addVertex().init( 0, new double[ 3 ], 1. );
+		assertNull( "Index after a spot was added", cache.getIfPresent( tags ) );
+		assertIndex( index( tags ), tags, graph.vertices(), graph.vertices().getRefPool(), vertexDomain );
+
+		final TagSetStructure tss = new TagSetStructure();
+		tss.createTagSet( "R" );
+		tagSetModel.setTagSetStructure( tss );
+		assertNull( "Index after a tag-set change", cache.getIfPresent( tags ) );
+	}
+
+	@Test
+	public void testVariables()
+	{
+		final ObjTagMap< Spot, Tag > vertexTags = tagSetModel.getVertexTags().tags( tagSet );
+		final ObjTagMap< Link, Tag > edgeTags = tagSetModel.getEdgeTags().tags( tagSet );
+		final TagSetVariable indexed = new GraphTagSetVariable<>( tagSet, vertexTags, edgeTags, graph.vertices(), graph.edges(), idmap, cache );
+		final TagSetVariable scanned = new GraphTagSetVariable<>( tagSet, vertexTags, edgeTags, graph.vertices(), graph.edges(), idmap );
+		final SelectionVariable domain = new SelectionVariable( vertexDomain, edgeDomain );
+		for ( final SelectionVariable d : new SelectionVariable[] { null, domain } )
+		{
+			for ( final Tag tag : tagSet.getTags() )
+			{
+				assertSameSelection( "Equal to " + tag.label(), scanned.equal( tag, d ), indexed.equal( tag, d ) );
+				assertSameSelection( "Not equal to " + tag.label(), scanned.notEqual( tag, d ), indexed.notEqual( tag, d ) );
+			}
+			assertSameSelection( "Tagged", scanned.set( d ), indexed.set( d ) );
+			assertSameSelection( "Untagged", scanned.unset( d ), indexed.unset( d ) );
+		}
+	}
+
+	private TagIndex index( final ObjTagMap< Spot, Tag > tags )
+	{
+		final TagIndex index = cache.get( tagSet, tags, graph.vertices(), graph.vertices().getRefPool() );
+		assertNotNull( index );
+		return index;
+	}
+
+	/**
+	 * Checks all the tests of an index against the tagged objects and the
+	 * tags of each object.
+	 */
+	private < O > void assertIndex( final TagIndex index, final ObjTagMap< O, Tag > tags, final RefCollection< O > objects, final RefPool< O > idMap, final BitSet domain )
+	{
+		for ( final Tag tag : tagSet.getTags() )
+		{
+			final BitSet equal = new BitSet();
+			for ( final O o : tags.getTaggedWith( tag ) )
+				equal.set( idMap.getId( o ) );
+			final BitSet notEqual = new BitSet();
+			for ( final O o : objects )
+				if ( !tag.equals( tags.get( o ) ) )
+					notEqual.set( idMap.getId( o ) );
+			assertTest( index, TagTest.EQUAL, tag, equal, domain, objects, idMap );
+			assertTest( index, TagTest.NOT_EQUAL, tag, notEqual, domain, objects, idMap );
+		}
+		final BitSet set = new BitSet();
+		final BitSet unset = new BitSet();
+		for ( final O o : objects )
+			( tags.get( o ) == null ? unset : set ).set( idMap.getId( o ) );
+		assertTest( index, TagTest.SET, null, set, domain, objects, idMap );
+		assertTest( index, TagTest.UNSET, null, unset, domain, objects, idMap );
+	}
+
+	private static < O > void assertTest( final TagIndex index, final TagTest tagTest, final Tag tag, final BitSet expected, final BitSet domain, final RefCollection< O > objects, final RefPool< O > idMap )
+	{
+		final String message = tagTest + ( tag == null ? "" : " " + tag.label() );
+		assertEquals( message, expected, index.select( tagTest, tag, null ) );
+		final BitSet restricted = ( BitSet ) expected.clone();
+		restricted.and( domain );
+		assertEquals( message + " over a domain", restricted, index.select( tagTest, tag, domain ) );
+		for ( final O o : objects )
+		{
+			final int id = idMap.getId( o );
+			assertEquals( message + " for object " + id, expected.get( id ), index.test( id, tagTest, tag ) );
+		}
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+}
@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.algorithm.traversal.DepthFirstSearch;
+import org.mastodon.graph.algorithm.traversal.GraphSearch.SearchDirection;
+import org.mastodon.graph.algorithm.traversal.SearchListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Checks the {@link TrackIndex} against the connected components found by a
+ * plain search of the graph, as links and spots are added and removed.
+ */
+public class TrackIndexTest
+{
+
+	private static final int TRACK_LENGTH = 10;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private TrackIndex< Spot, Link > index;
+
+	@Before
+	public void setUp()
+	{
+		final Model model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		index = new TrackIndex<>( graph, idmap );
+	}
+
+	@After
+	public void tearDown()
+	{
+		index.close();
+	}
+
+	@Test
+	public void testAddLink()
+	{
+		final List< Spot > track0 = addTrack( TRACK_LENGTH );
+		final List< Spot > track1 = addTrack( TRACK_LENGTH );
+		index.build();
+		assertEquals( 2, index.size() );
+
+		// Link the end of a track to the start of the other.
+		addLink( track0.get( TRACK_LENGTH - 1 ), track1.get( 0 ) );
+		assertEquals( 1, index.size() );
+		assertTracks();
+
+		// A new spot is a track on its own, until it is linked.
+		final Spot spot = addSpot( 0 );
+		assertEquals( 2, index.size() );
+		assertTracks();
+		addLink( spot, track1.get( 1 ) );
+		assertEquals( 1, index.size() );
+		assertTracks();
+		assertEquals( "The index should have been updated, not rebuilt.", 1, index.getBuildCount() );
+	}
+
+	@Test
+	public void testRemoveBridgeLink()
+	{
+		final List< Spot > track = addTrack( TRACK_LENGTH );
+		index.build();
+		assertEquals( 1, index.size() );
+
+		// The track has no cycle: removing any link splits it.
+		graph.remove( graph.getEdge( track.get( 3 ), track.get( 4 ) ) );
+		assertEquals( 2, index.size() );
+		assertTracks();
+		graph.remove( graph.getEdge( track.get( 7 ), track.get( 8 ) ) );
+		assertEquals( 3, index.size() );
+		assertTracks();
+		assertEquals( "The index should have been updated, not rebuilt.", 1, index.getBuildCount() );
+	}
+
+	@Test
+	public void testRemoveCycleLink()
+	{
+		// A division followed by a merge makes a cycle.
+		final List< Spot > track = addTrack( TRACK_LENGTH );
+		final Spot division = track.get( 2 );
+		final Spot merge = track.get( 6 );
+		final Spot other = addSpot( 3 );
+		addLink( division, other );
+		addLink( other, merge );
+		index.build();
+		assertEquals( 1, index.size() );
+
+		// Removing a link of the cycle keeps the track whole.
+		graph.remove( graph.getEdge( track.get( 4 ), track.get( 5 ) ) );
+		assertEquals( 1, index.size() );
+		assertTracks();
+
+		// The cycle is gone: the next removal splits the track.
+		graph.remove( graph.getEdge( division, other ) );
+		assertEquals( 2, index.size() );
+		assertTracks();
+		assertEquals( "The index should have been updated, not rebuilt.", 1, index.getBuildCount() );
+	}
+
+	@Test
+	public void testRemoveSpot()
+	{
+		final List< Spot > track = addTrack( TRACK_LENGTH );
+		index.build();
+
+		graph.remove( track.get( 5 ) );
+		assertEquals( 2, index.size() );
+		assertTracks();
+		graph.remove( track.get( 0 ) );
+		assertEquals( 2, index.size() );
+		assertTracks();
+		graph.remove( track.get( 9 ) );
+		assertEquals( 2, index.size() );
+		assertTracks();
+	}
+
+	@Test
+	public void testRandomEdits()
+	{
+		final Random random = new Random( 1l );
+		for ( int i = 0; i < 20; i++ )
+			addTrack( 1 + random.nextInt( 2 * TRACK_LENGTH ) );
+		index.build();
+
+		final Spot sref1 = graph.vertexRef();
+		final Spot sref2 = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		for ( int i = 0; i < 300; i++ )
+		{
+			final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+			spots.addAll( graph.vertices() );
+			final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+			links.addAll( graph.edges() );
+			switch ( random.nextInt( 4 ) )
+			{
+			case 0:
+				addSpot( random.nextInt( TRACK_LENGTH ) );
+				break;
+			case 1:
+			{
+				if ( spots.size() < 2 )
+					break;
+				final Spot source = spots.get( random.nextInt( spots.size() ), sref1 );
+				final Spot target = spots.get( random.nextInt( spots.size() ), sref2 );
+				if ( !source.equals( target ) && graph.getEdge( source, target, eref ) == null )
+					graph.addEdge( source, target, eref ).init();
+				break;
+			}
+			case 2:
+				if ( !links.isEmpty() )
+					graph.remove( links.get( random.nextInt( links.size() ), eref ) );
+				break;
+			default:
+				if ( !spots.isEmpty() )
+					graph.remove( spots.get( random.nextInt( spots.size() ), sref1 ) );
+				break;
+			}
+			assertTracks();
+		}
+		graph.releaseRef( sref1 );
+		graph.releaseRef( sref2 );
+		graph.releaseRef( eref );
+		assertEquals( "The index should have been updated, not rebuilt.", 1, index.getBuildCount() );
+	}
+
+	@Test
+	public void testParallelBuild()
+	{
+		// Enough links for the build to be split in several chunks.
+		final int nTracks = 2000;
+		final int length = 50;
+		final Random random = new Random( 1l );
+		final List< Spot > starts = new ArrayList<>();
+		for ( int i = 0; i < nTracks; i++ )
+			starts.add( addTrack( length ).get( 0 ) );
+
+		// Merge some of the tracks, through the middle of others.
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		spots.addAll( graph.vertices() );
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < nTracks / 2; i++ )
+		{
+			final Spot source = starts.get( random.nextInt( nTracks ) );
+			final Spot target = spots.get( random.nextInt( spots.size() ), ref );
+			if ( !source.equals( target ) && graph.getEdge( source, target ) == null )
+				addLink( source, target );
+		}
+		graph.releaseRef( ref );
+
+		index.build();
+		assertTracks();
+	}
+
+	/**
+	 * Checks the number of tracks in the index, and that the whole track of
+	 * a spot and of a link of each track are the track found by a search.
+	 */
+	private void assertTracks()
+	{
+		final List< BitSet[] > tracks = searchTracks();
+		assertEquals( "Number of tracks", tracks.size(), index.size() );
+		for ( final BitSet[] track : tracks )
+		{
+			final BitSet vertices = new BitSet();
+			vertices.set( track[ 0 ].nextSetBit( 0 ) );
+			assertTrack( track, index.wholeTrack( new SelectionVariable( vertices, new BitSet() ) ) );
+			if ( track[ 1 ].isEmpty() )
+				continue;
+			final BitSet edges = new BitSet();
+			edges.set( track[ 1 ].nextSetBit( 0 ) );
+			assertTrack( track, index.wholeTrack( new SelectionVariable( new BitSet(), edges ) ) );
+		}
+	}
+
+	private static void assertTrack( final BitSet[] expected, final SelectionVariable actual )
+	{
+		assertEquals( "Spots of the track", expected[ 0 ], actual.selectedVertices.asBitSet() );
+		assertEquals( "Links of the track", expected[ 1 ], actual.selectedEdges.asBitSet() );
+	}
+
+	/**
+	 * Returns the spot and link IDs of each connected component of the graph,
+	 * found by an undirected depth-first search.
+	 */
+	private List< BitSet[] > searchTracks()
+	{
+		final List< BitSet[] > tracks = new ArrayList<>();
+		final BitSet visited = new BitSet();
+		final DepthFirstSearch< Spot, Link > dfs = new DepthFirstSearch<>( graph, SearchDirection.UNDIRECTED );
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( visited.get( idmap.getVertexId( spot ) ) )
+				continue;
+			final BitSet[] track = new BitSet[] { new BitSet(), new BitSet() };
+			dfs.setTraversalListener( new TrackAdder( track ) );
+			dfs.start( spot );
+			visited.or( track[ 0 ] );
+			tracks.add( track );
+		}
+		return tracks;
+	}
+
+	private List< Spot > addTrack( final int length )
+	{
+		final List< Spot > spots = new ArrayList<>();
+		for ( int t = 0; t < length; t++ )
+		{
+			spots.add( addSpot( t ) );
+			if ( t > 0 )
+				addLink( spots.get( t - 1 ), spots.get( t ) );
+		}
+		return spots;
+	}
+
+	private Spot addSpot( final int timepoint )
+	{
+		return graph.addVertex().init( timepoint, new double[ 3 ], 1. );
+	}
+
+	private Link addLink( final Spot source, final Spot target )
+	{
+		return graph.addEdge( source, target ).init();
+	}
+
+	private class TrackAdder implements SearchListener< Spot, Link, DepthFirstSearch< Spot, Link > >
+	{
+
+		private final BitSet[] track;
+
+		public TrackAdder( final BitSet[] track )
+		{
+			this.track = track;
+		}
+
+		@Override
+		public void processVertexLate( final Spot vertex, final DepthFirstSearch< Spot, Link > search )
+		{}
+
+		@Override
+		public void processVertexEarly( final Spot vertex, final DepthFirstSearch< Spot, Link > search )
+		{
+			track[ 0 ].set( idmap.getVertexId( vertex ) );
+		}
+
+		@Override
+		public void processEdge( final Link edge, final Spot from, final Spot to, final DepthFirstSearch< Spot, Link > search )
+		{
+			track[ 1 ].set( idmap.getEdgeId( edge ) );
+		}
+
+		@Override
+		public void crossComponent( final Spot from, final Spot to, final DepthFirstSearch< Spot, Link > search )
+		{}
+	}
+}
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * mastodon-selection-creator
+ * %%
+ * Copyright (C) 2018 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.selectioncreator.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.algorithm.traversal.DepthFirstSearch;
+import org.mastodon.graph.algorithm.traversal.GraphSearch.SearchDirection;
+import org.mastodon.graph.algorithm.traversal.SearchListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.mamut.selectioncreator.evaluation.SelectionMorpher.Morpher;
+import org.mastodon.model.DefaultSelectionModel;
+
+/**
+ * Checks the whole tracks selected from the {@link TrackIndex}, by the
+ * morpher and through the <code>wholeTrack</code> morph of expressions,
+ * against a depth-first search started from each selected spot and link.
+ */
+public class WholeTrackTest
+{
+
+	private static final int N_TIMEPOINTS = 10;
+
+	private Model model;
+
+	private ModelGraph graph;
+
+	private GraphIdBimap< Spot, Link > idmap;
+
+	private DefaultSelectionModel< Spot, Link > selectionModel;
+
+	private TrackIndex< Spot, Link > index;
+
+	private SelectionParser< Spot, Link > parser;
+
+	private Random ran;
+
+	@Before
+	public void setUp()
+	{
+		model = new Model();
+		graph = model.getGraph();
+		idmap = model.getGraphIdBimap();
+		ran = new Random( 23l );
+
+		// Tracks with divisions, some merged with a previous track.
+		final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < 40; i++ )
+		{
+			final int start = spots.size();
+			spots.add( graph.addVertex().init( 0, new double[ 3 ], 1. ) );
+			for ( int t = 1; t < N_TIMEPOINTS; t++ )
+			{
+				final Spot source = spots.get( start + ran.nextInt( spots.size() - start ), ref );
+				final Spot target = graph.addVertex().init( t, new double[ 3 ], 1. );
+				graph.addEdge( source, target ).init();
+				spots.add( target );
+			}
+			if ( start > 0 && ran.nextInt( 4 ) == 0 )
+			{
+				final Spot target = graph.addVertex().init( 0, new double[ 3 ], 1. );
+				graph.addEdge( spots.get( ran.nextInt( start ), ref ), target ).init();
+				graph.addEdge( spots.get( start + ran.nextInt( N_TIMEPOINTS ), ref ), target ).init();
+				spots.add( target );
+			}
+		}
+		// Lonely spots.
+		for ( int i = 0; i < 10; i++ )
+			graph.addVertex().init( ran.nextInt( N_TIMEPOINTS ), new double[ 3 ], 1. );
+		graph.releaseRef( ref );
+
+		selectionModel = new DefaultSelectionModel<>( graph, idmap );
+		index = new TrackIndex<>( graph, idmap );
+		parser = new SelectionParser<>( graph, idmap, model.getTagSetModel(), model.getFeatureModel(),
+				selectionModel, model.getSpatioTemporalIndex(), 0, N_TIMEPOINTS - 1 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		parser.close();
+		index.close();
+	}
+
+	@Test
+	public void testMorpher()
+	{
+		final SelectionMorpher< Spot, Link > indexed = new SelectionMorpher<>( graph, idmap, index );
+		final SelectionMorpher< Spot, Link > searched = new SelectionMorpher<>( graph, idmap );
+		for ( int i = 0; i < 100; i++ )
+		{
+			final SelectionVariable seeds = randomSelection();
+			final SelectionVariable expected = searchTracks( seeds );
+			assertSameSelection( "Whole track from the index", expected, indexed.wholeTrack( seeds ) );
+			assertSameSelection( "Whole track from a search", expected, searched.wholeTrack( seeds ) );
+			assertSameSelection( "Whole track morph", expected,
+					indexed.morph( seeds, Collections.singletonList( Morpher.WHOLE_TRACK ) ) );
+			assertSameSelection( "Whole track with other morphs", expected,
+					indexed.morph( seeds, Arrays.asList( Morpher.TO_VERTEX, Morpher.WHOLE_TRACK, Morpher.OUTGOING_EDGES ) ) );
+		}
+	}
+
+	@Test
+	public void testExpressions()
+	{
+		for ( int i = 0; i < 30; i++ )
+		{
+			select( randomSelection() );
+			assertExpressions();
+		}
+	}
+
+	@Test
+	public void testEdits()
+	{
+		final Spot sref1 = graph.vertexRef();
+		final Spot sref2 = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		for ( int i = 0; i < 60; i++ )
+		{
+			final RefList< Spot > spots = RefCollections.createRefList( graph.vertices() );
+			spots.addAll( graph.vertices() );
+			final RefList< Link > links = RefCollections.createRefList( graph.edges() );
+			links.addAll( graph.edges() );
+			switch ( ran.nextInt( 3 ) )
+			{
+			case 0:
+			{
+				// Link two spots, possibly joining two tracks.
+				if ( spots.size() < 2 )
+					break;
+				final Spot source = spots.get( ran.nextInt( spots.size() ), sref1 );
+				final Spot target = spots.get( ran.nextInt( spots.size() ), sref2 );
+				if ( !source.equals( target ) && graph.getEdge( source, target, eref ) == null )
+					graph.addEdge( source, target, eref ).init();
+				break;
+			}
+			case 1:
+				if ( !links.isEmpty() )
+					graph.remove( links.get( ran.nextInt( links.size() ), eref ) );
+				break;
+			default:
+				if ( spots.size() > 1 )
+					graph.remove( spots.get( ran.nextInt( spots.size() ), sref1 ) );
+				break;
+			}
+			graph.notifyGraphChanged();
+			select( randomSelection() );
+			assertExpressions();
+		}
+		graph.releaseRef( sref1 );
+		graph.releaseRef( sref2 );
+		graph.releaseRef( eref );
+	}
+
+	/**
+	 * Checks the whole-track expressions on the current selection against a
+	 * search from the selected spots and links.
+	 */
+	private void assertExpressions()
+	{
+		final SelectionVariable selection = SelectionVariable.fromSelectionModel( selectionModel, idmap );
+		final SelectionVariable expected = searchTracks( selection );
+		assertSameSelection( "morph( selection, 'wholeTrack' )", expected,
+				parser.compile( "morph( selection, 'wholeTrack' )" ).evaluate() );
+		assertSameSelection( "morph( selection, ('toVertex', 'wholeTrack') )", expected,
+				parser.compile( "morph( selection, ('toVertex', 'wholeTrack') )" ).evaluate() );
+
+		final SelectionVariable vertices = new SelectionVariable( selection.selectedVertices.asBitSet(), new BitSet() );
+		assertSameSelection( "morph( vertexSelection, 'wholeTrack' )", searchTracks( vertices ),
+				parser.compile( "morph( vertexSelection, 'wholeTrack' )" ).evaluate() );
+		final SelectionVariable edges = new SelectionVariable( new BitSet(), selection.selectedEdges.asBitSet() );
+		assertSameSelection( "morph( edgeSelection, 'wholeTrack' )", searchTracks( edges ),
+				parser.compile( "morph( edgeSelection, 'wholeTrack' )" ).evaluate() );
+	}
+
+	/**
+	 * Returns a random selection of the spots and links of the graph, from
+	 * empty to dense.
+	 */
+	private SelectionVariable randomSelection()
+	{
+		final double[] densities = new double[] { 0., 0.005, 0.05, 0.5 };
+		final double vp = densities[ ran.nextInt( densities.length ) ];
+		final double ep = densities[ ran.nextInt( densities.length ) ];
+		final BitSet vertices = new BitSet();
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < vp )
+				vertices.set( idmap.getVertexId( spot ) );
+		final BitSet edges = new BitSet();
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < ep )
+				edges.set( idmap.getEdgeId( link ) );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private void select( final SelectionVariable selection )
+	{
+		selectionModel.clearSelection();
+		for ( final Spot spot : selection.vertices( idmap.vertexIdBimap() ) )
+			selectionModel.setSelected( spot, true );
+		for ( final Link link : selection.edges( idmap.edgeIdBimap() ) )
+			selectionModel.setSelected( link, true );
+	}
+
+	/**
+	 * Returns the spots and links reached by an undirected depth-first search
+	 * started from each selected spot, and from the source of each selected
+	 * link.
+	 */
+	private SelectionVariable searchTracks( final SelectionVariable seeds )
+	{
+		final BitSet vertices = new BitSet();
+		final BitSet edges = new BitSet();
+		final DepthFirstSearch< Spot, Link > dfs = new DepthFirstSearch<>( graph, SearchDirection.UNDIRECTED );
+		dfs.setTraversalListener( new TrackAdder( vertices, edges ) );
+		for ( final Spot spot : seeds.vertices( idmap.vertexIdBimap() ) )
+			dfs.start( spot );
+		final Spot ref = graph.vertexRef();
+		for ( final Link link : seeds.edges( idmap.edgeIdBimap() ) )
+			dfs.start( link.getSource( ref ) );
+		graph.releaseRef( ref );
+		return new SelectionVariable( vertices, edges );
+	}
+
+	private static void assertSameSelection( final String message, final SelectionVariable expected, final SelectionVariable actual )
+	{
+		assertEquals( message + ", vertices", expected.selectedVertices.asBitSet(), actual.selectedVertices.asBitSet() );
+		assertEquals( message + ", edges", expected.selectedEdges.asBitSet(), actual.selectedEdges.asBitSet() );
+	}
+
+	private class TrackAdder implements SearchListener< Spot, Link, DepthFirstSearch< Spot, Link > >
+	{
+
+		private final BitSet vertices;
+
+		private final BitSet edges;
+
+		public TrackAdder( final BitSet vertices, final BitSet edges )
+		{
+			this.vertices = vertices;
+			this.edges = edges;
+		}
+
+		@Override
+		public void processVertexLate( final Spot vertex, final DepthFirstSearch< Spot, Link > search )
+		{}
+
+		@Override
+		public void processVertexEarly( final Spot vertex, final DepthFirstSearch< Spot, Link > search )
+		{
+			vertices.set( idmap.getVertexId( vertex ) );
+		}
+
+		@Override
+		public void processEdge( final Link edge, final Spot from, final Spot to, final DepthFirstSearch< Spot, Link > search )
+		{
+			edges.set( idmap.getEdgeId( edge ) );
+		}
+
+		@Override
+		public void crossComponent( final Spot from, final Spot to, final DepthFirstSearch< Spot, Link > search )
+		{}
+	}
+}